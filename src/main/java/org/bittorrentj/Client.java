@@ -8,14 +8,20 @@ import java.net.InetSocketAddress;
 import java.io.IOException;
 
 import org.bittorrentj.command.Command;
-import org.bittorrentj.disk.DiskManager;
+import org.bittorrentj.disk.DiskJobQueue;
+import org.bittorrentj.event.AcceptingClientFailedEvent;
 import org.bittorrentj.event.Event;
 import org.bittorrentj.event.StartServerErrorEvent;
 import org.bittorrentj.event.ToManyConnectionsEvent;
+import org.bittorrentj.event.TorrentSwarmFullEvent;
+import org.bittorrentj.event.UnrecognizedInfoHashEvent;
 import org.bittorrentj.message.Handshake;
 import org.bittorrentj.message.field.Hash;
 import org.bittorrentj.message.field.PeerId;
 import org.bittorrentj.message.field.Reserved;
+import org.bittorrentj.message.stream.Clock;
+import org.bittorrentj.message.stream.TimingWheel;
+import org.bittorrentj.message.stream.TokenBucket;
 import org.bittorrentj.swarm.Swarm;
 
 public class Client extends Thread {
@@ -58,10 +64,16 @@ public class Client extends Thread {
     public final static long MAX_SELECTOR_DELAY = 100;
 
     /**
-     * The number of milliseconds in total a handshake with a new peer may take,
+     * The amount of time (ns) in total a handshake with a new peer may take,
      * any longer results in a disconnect.
      */
-    private final static long MAX_HANDSHAKE_DELAY = 2000;
+    private final static long MAX_HANDSHAKE_DELAY = 2L * 1000 * 1000 * 1000;
+
+    /**
+     * Timers of selector loop, a turn of the wheel covers the handshake delay.
+     */
+    private TimingWheel timingWheel;
+    private final static int TIMING_WHEEL_SLOTS = 64;
 
     /**
      * Stages during handshake from the perspective of the receiver of a connection
@@ -97,29 +109,52 @@ public class Client extends Thread {
         public ByteBuffer writeBuffer;
 
         /**
-         * Date and time when handshake was initiated, is used to discharge
-         * connections which do not handshake properly within a given period of time
+         * Timer which closes the channel if handshake is not done within
+         * MAX_HANDSHAKE_DELAY, is cancelled when handshake is done.
          */
-        public Date hanshakeBegan;
+        public TimingWheel.Timer handshakeTimeout;
 
         /**
-         * Constructor
+         * Constructor, schedules handshake timeout
+         * @param channel channel of connection
          */
-        public HandshakeReceiverState() {
+        public HandshakeReceiverState(final SocketChannel channel) {
 
             this.s = Stage.START;
             this.readBuffer = ByteBuffer.allocate(MAX_HANDSHAKE_MESSAGE_SIZE);
             this.readBuffer.limit(1); // Initial read is of pstrlen field of one byte
             this.messageReceived = new Handshake(0, "", null, null, null);
             this.writeBuffer = null;
-            this.hanshakeBegan = new Date();
+
+            this.handshakeTimeout = new TimingWheel.Timer() {
+
+                @Override
+                public void expired() {
+                    try {
+                        channel.close();
+                    } catch(IOException e) {
+                        // We may end up here if channel was some how already close,
+                        // but in that case who cares.
+                    }
+                }
+            };
+
+            timingWheel.schedule(handshakeTimeout, MAX_HANDSHAKE_DELAY);
         }
     }
 
     /**
-     * Disk
+     * Disk jobs of all swarms, performed on a pool of disk workers.
      */
-    private DiskManager diskManager;
+    private DiskJobQueue diskJobQueue;
+    private final static int NUMBER_OF_DISK_WORKERS = 4;
+
+    /**
+     * Token buckets limiting net upload and download rate of client,
+     * which are roots of the bucket hierarchies of all swarms.
+     */
+    private TokenBucket uploadBucket;
+    private TokenBucket downloadBucket;
 
     /**
      * Constructor
@@ -130,6 +165,36 @@ public class Client extends Thread {
         this.b = b;
         this.numberOfHandshakingConnections = 0;
         this.torrentSwarms = new HashMap<Hash, Swarm>();
+        this.uploadBucket = new TokenBucket(Clock.SYSTEM, TokenBucket.UNLIMITED, 0);
+        this.downloadBucket = new TokenBucket(Clock.SYSTEM, TokenBucket.UNLIMITED, 0);
+        this.timingWheel = new TimingWheel(Clock.SYSTEM, MAX_SELECTOR_DELAY * 1000 * 1000, TIMING_WHEEL_SLOTS);
+        this.diskJobQueue = new DiskJobQueue(NUMBER_OF_DISK_WORKERS, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+    }
+
+    /**
+     * Limits net upload rate of client.
+     * @param rate rate (bytes/s), or TokenBucket.UNLIMITED
+     * @param burst largest number of bytes which may be sent at once after a quiet period
+     */
+    public void setUploadRateLimit(long rate, long burst) {
+        uploadBucket.setRate(rate, burst);
+    }
+
+    /**
+     * Limits net download rate of client.
+     * @param rate rate (bytes/s), or TokenBucket.UNLIMITED
+     * @param burst largest number of bytes which may be received at once after a quiet period
+     */
+    public void setDownloadRateLimit(long rate, long burst) {
+        downloadBucket.setRate(rate, burst);
+    }
+
+    public TokenBucket getUploadBucket() {
+        return uploadBucket;
+    }
+
+    public TokenBucket getDownloadBucket() {
+        return downloadBucket;
     }
 
     /**
@@ -208,10 +273,13 @@ public class Client extends Thread {
             return false;
         }
 
+        SocketChannel client;
+        SelectionKey clientKey;
+
        try {
 
            // Get socket channel
-           SocketChannel client = serverChannel.accept();
+           client = serverChannel.accept();
 
             // Did we manage to actually accept connection? Why may this fail?
             // if so, signal that connection was not accepted
@@ -222,15 +290,15 @@ public class Client extends Thread {
             client.configureBlocking(false);
 
             // Register with with selector ONLY for reading
-            client.register(selector, SelectionKey.OP_READ);
+            clientKey = client.register(selector, SelectionKey.OP_READ);
 
        } catch (IOException e) {
            sendEvent(new AcceptingClientFailedEvent(e));
            return false;
        }
 
-        // Attach state object with key
-        key.attach(new HandshakeReceiverState());
+        // Attach state object with key of new channel
+        clientKey.attach(new HandshakeReceiverState(client));
 
         // Signal that connection as accepted
         return true;
@@ -288,24 +356,9 @@ public class Client extends Thread {
             }
         }
 
-        // Disconnect channels which have taken to long
-        long nowDateInMs = new Date().getTime();
-
-        for(SelectionKey key : selector.keys()) {
-
-            // Recover state of handshake
-            HandshakeReceiverState state = (HandshakeReceiverState)key.attachment();
-
-            // Close if it has taken more time than upper limit
-            if(nowDateInMs - state.hanshakeBegan.getTime() > MAX_HANDSHAKE_DELAY) {
-                try {
-                    key.channel().close();
-                } catch(IOException e) {
-                    // We may end up here if channel was some how already close,
-                    // but in that case who cares.
-                }
-            }
-        }
+        // Disconnect channels which have taken to long to handshake,
+        // only the timers which are due are visited
+        timingWheel.advance();
     }
 
     /**
@@ -395,8 +448,8 @@ public class Client extends Thread {
                                 state.s = Stage.INFO_HASH_READ;
 
                                 // Save message we intend to save
-                                Handshake m = new Handshake(19, "BitTorrent protocol", new Reserved(true, true), state.messageReceived.getInfoHash(), new PeerId(PeerId.PeerType.BitSwapr));
-                                state.writeBuffer = ByteBuffer.wrap(m.getRawMessage());
+                                Handshake m = new Handshake(19, "BitTorrent protocol", new Reserved(true, true), state.messageReceived.getInfo_hash(), PeerId.BITSWAPR);
+                                state.writeBuffer = m.getRawMessage();
 
                                 // Alter interest set so that we can ONLY write our handshake
                                 key.interestOps(SelectionKey.OP_WRITE);
@@ -439,11 +492,14 @@ public class Client extends Thread {
                     byte[] peer_id = Arrays.copyOfRange(b.array(), from, to);
 
                     // Save peer_id in state
-                    state.messageReceived.setPeer_id(new PeerId(peer_id));
+                    state.messageReceived.setPeer_id(PeerId.getPeerIdFromRaw(peer_id));
 
                     // Unregister channel with this selector, will be registered in Swarm object
                     key.cancel();
 
+                    // Handshake is done in time
+                    timingWheel.cancel(state.handshakeTimeout);
+
                     // Add peer to given torrent
                     torrentSwarms.get(state.messageReceived.getInfo_hash()).addConnection(channel, state.messageReceived);
                 }
@@ -1,5 +1,7 @@
 package org.bittorrentj.bencodej;
 
+import java.nio.ByteBuffer;
+
 /**
  * Created by bedeho on 10.09.2014.
  */
@@ -10,4 +12,19 @@ public interface Bencodable {
      * @return buffer with bencoding
      */
     abstract public byte [] bencode();
+
+    /**
+     * Byte length of bencoding of this object,
+     * computed without producing the bencoding.
+     * @return byte length
+     */
+    abstract public int encodedLength();
+
+    /**
+     * Write bencoding of this object into buffer, while
+     * trusting it has encodedLength() bytes of space. Position
+     * of buffer is advanced to end of bencoding written.
+     * @param dst buffer written to
+     */
+    abstract public void encodeTo(ByteBuffer dst);
 }
@@ -1,8 +1,6 @@
 package org.bittorrentj.bencodej;
 
-import org.bittorrentj.bencodej.exception.EmptyLengthFieldException;
-import org.bittorrentj.bencodej.exception.InvalidLengthFieldException;
-import org.bittorrentj.bencodej.exception.LengthFieldToGreatException;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -17,73 +15,47 @@ public class BencodableByteString implements Bencodable, Comparable<BencodableBy
      */
     private byte[] byteString;
 
-    /**
-     * Do not load a byte byteString which has a length field greater
-     * than this.
-     */
-    public final static int MAX_LENGTH_FIELD_TO_TRUST = 1000;
-
     public BencodableByteString(String str) { this(str.getBytes()); }
     public BencodableByteString(byte[] byteString) {
         this.byteString = byteString;
     }
 
-    public BencodableByteString(ByteBuffer src) throws EmptyLengthFieldException, LengthFieldToGreatException, InvalidLengthFieldException {
-
-        // Find length field
-        String lengthFiledDigits = "";
-        byte lastDigit;
-        while((lastDigit = src.get()) != ':')
-            lengthFiledDigits += (char)lastDigit;
-
-        // Check that we read at least one digit
-        if(lengthFiledDigits.length() == 0)
-            throw new EmptyLengthFieldException();
-
-        // Recover value
-        int lengthField;
-        try {
-            lengthField = Integer.parseInt(lengthFiledDigits);
-        } catch (NumberFormatException e) {
-            throw new InvalidLengthFieldException();
-        }
-
-        // Discord length value to great
-        if(lengthField > MAX_LENGTH_FIELD_TO_TRUST)
-            throw new LengthFieldToGreatException();
-
-        // Read content
-        this.byteString = new byte[lengthField];
+    /**
+     * Constructor based on bencoding in buffer, position
+     * is left at the end of the byte string just read.
+     * @param src buffer
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    public BencodableByteString(ByteBuffer src) throws DecodingBencodingException {
+        this(new BencodeParser(src).expect(BencodeParser.Token.BYTES));
+    }
 
-        for(int i = 0;i < lengthField;i++)
-            byteString[i] = src.get();
+    /**
+     * Constructor based on last token read by parser, which must be KEY or BYTES.
+     * Length has already been checked against the decoding limits of the parser.
+     * @param parser parser
+     */
+    BencodableByteString(BencodeParser parser) {
+        this.byteString = parser.copyByteString();
     }
 
     @Override
     public byte[] bencode() {
+        return Bencodej.bencode(this);
+    }
 
-        // Get length field
-        byte [] lengthBytes = ("" + byteString.length).getBytes();
-
-        // Length of encoding
-        int bencodingLength = lengthBytes.length + 1 + byteString.length;
-
-        // Allocate space
-        byte [] bencoding = new byte[bencodingLength];
-
-        // Fill length field
-        for(int i = 0;i < lengthBytes.length;i++)
-            bencoding[i] = lengthBytes[i];
-
-        // Fill in separate ':'
-        bencoding[lengthBytes.length] = (byte)':';
+    @Override
+    public int encodedLength() {
+        return Bencodej.decimalLength(byteString.length) + 1 + byteString.length;
+    }
 
-        // Fill in bytes
-        for(int i = 0;i < byteString.length;i++)
-            bencoding[lengthBytes.length + 1 + i] = byteString[i];
+    @Override
+    public void encodeTo(ByteBuffer dst) {
 
-        // Return bencoding
-        return bencoding;
+        // Length field, separator and bytes
+        Bencodej.putDecimal(dst, byteString.length);
+        dst.put((byte)':');
+        dst.put(byteString);
     }
 
     /**
@@ -1,10 +1,7 @@
 package org.bittorrentj.bencodej;
 
 
-import org.bittorrentj.bencodej.exception.EmptyIntegerException;
-import org.bittorrentj.bencodej.exception.InvalidDelimiterException;
-import org.bittorrentj.bencodej.exception.InvalidIntegerDigits;
-import org.bittorrentj.bencodej.exception.NegativeZeroException;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
 
 import java.nio.ByteBuffer;
 
@@ -14,72 +11,63 @@ import java.nio.ByteBuffer;
 public class BencodableInteger implements Bencodable {
 
     /**
-     * Integer value
+     * Integer value, wide enough for byte lengths of large files
      */
-    private int value;
+    private long value;
 
-    public BencodableInteger(int value) {
+    public BencodableInteger(long value) {
         this.value = value;
     }
 
-    public BencodableInteger(ByteBuffer src) throws InvalidDelimiterException, EmptyIntegerException, NegativeZeroException, InvalidIntegerDigits {
-
-        // Get leading byte
-        byte delimiter = src.get();
-
-        // Check that we have correct delimiter
-        if(delimiter != 'i')
-            throw new InvalidDelimiterException(delimiter);
-
-        // Get possible negative sign
-        byte possiblyNegativeSign = src.get();
-        boolean isNegativeInteger = false;
-
-        if(possiblyNegativeSign == '-')
-            isNegativeInteger = true;
-        else
-            src.position(src.position() - 1); // rewind buffer position one step, since we read leading digit
-
-        // Find end of integer
-        String digits = "";
-        byte lastDigit;
-        while((lastDigit = src.get()) != 'e')
-            digits += (char)lastDigit;
-
-        // Check that we read at least one digit
-        if(digits.length() == 0)
-            throw new EmptyIntegerException();
-
-        int digitsValue;
-        try {
-            digitsValue = Integer.parseInt(digits);
-        } catch (NumberFormatException e) {
-            throw new InvalidIntegerDigits();
-        }
-
-        // Check that zero has no negative sign
-        if(digitsValue == 0 && isNegativeInteger)
-            throw new NegativeZeroException();
+    /**
+     * Constructor based on bencoding in buffer, position
+     * is left at the end of the integer just read.
+     * @param src buffer
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    public BencodableInteger(ByteBuffer src) throws DecodingBencodingException {
+        this(new BencodeParser(src).expect(BencodeParser.Token.INT));
+    }
 
-        // Convert to integer
-        this.value = digitsValue * (isNegativeInteger ? -1 : 1);
+    /**
+     * Constructor based on last token read by parser, which must be INT.
+     * @param parser parser
+     */
+    BencodableInteger(BencodeParser parser) {
+        this.value = parser.getLong();
     }
 
     @Override
     public byte [] bencode() {
+        return Bencodej.bencode(this);
+    }
 
-        // Build bencoding representation of integer
-        String bencoding = "i" + this.value + "e";
+    @Override
+    public int encodedLength() {
+        return 1 + Bencodej.decimalLength(value) + 1;
+    }
 
-        // Put in buffer and return
-        return bencoding.getBytes();
+    @Override
+    public void encodeTo(ByteBuffer dst) {
+        dst.put((byte)'i');
+        Bencodej.putDecimal(dst, value);
+        dst.put((byte)'e');
     }
 
+    /**
+     * Value as an int.
+     * @return value
+     * @throws ArithmeticException if value does not fit in an int
+     */
     public int getValue() {
+        return Math.toIntExact(value);
+    }
+
+    public long getLongValue() {
         return value;
     }
 
-    public void setValue(int value) {
+    public void setValue(long value) {
         this.value = value;
     }
 
@@ -97,6 +85,6 @@ public class BencodableInteger implements Bencodable {
 
     @Override
     public int hashCode() {
-        return value;
+        return (int)(value ^ (value >>> 32));
     }
 }
@@ -2,7 +2,6 @@ package org.bittorrentj.bencodej;
 
 
 import org.bittorrentj.bencodej.exception.DecodingBencodingException;
-import org.bittorrentj.bencodej.exception.InvalidDelimiterException;
 
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
@@ -14,30 +13,60 @@ public class BencodableList extends LinkedList<Bencodable> implements Bencodable
 
     public BencodableList(){}
 
+    /**
+     * Constructor based on bencoding in buffer, position
+     * is left at the end of the list just read.
+     * @param src buffer
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
     public BencodableList(ByteBuffer src) throws DecodingBencodingException {
+        this(new BencodeParser(src).expect(BencodeParser.Token.START_LIST));
+    }
 
-        // Get leading byte
-        byte delimiter = src.get();
-
-        // Check that we have correct delimiter
-        if(delimiter != 'l')
-            throw new InvalidDelimiterException(delimiter);
+    /**
+     * Constructor based on parser which has just read START_LIST,
+     * reads up to and including the matching END.
+     * @param parser parser
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    BencodableList(BencodeParser parser) throws DecodingBencodingException {
 
         // Read objects until we find end of list
-        while(src.get(src.position()) != 'e') { // read without consuming
+        BencodeParser.Token token;
+        while((token = parser.next()) != BencodeParser.Token.END) {
 
             // Decode next object
-            Bencodable o = Bencodej.decode(src);
+            Bencodable o = Bencodej.decode(parser, token);
 
             // Add to list
             add(o);
         }
-
-        // Consume ending 'e'
-        delimiter = src.get();
     }
 
+    @Override
     public byte [] bencode() {
-        return Bencodej.concatenateBencodingsIntoBencoding((byte) 'l', this);
+        return Bencodej.bencode(this);
+    }
+
+    @Override
+    public int encodedLength() {
+
+        int length = 2;
+
+        for(Bencodable o: this)
+            length += o.encodedLength();
+
+        return length;
+    }
+
+    @Override
+    public void encodeTo(ByteBuffer dst) {
+
+        dst.put((byte)'l');
+
+        for(Bencodable o: this)
+            o.encodeTo(dst);
+
+        dst.put((byte)'e');
     }
 }
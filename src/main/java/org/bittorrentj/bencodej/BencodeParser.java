@@ -0,0 +1,564 @@
+package org.bittorrentj.bencodej;
+
+import org.bittorrentj.bencodej.exception.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pull parser for bencoding. Each call to next() consumes exactly
+ * one token from the source buffer, whose position is advanced to the
+ * end of the token. Integers and length fields are parsed arithmetically,
+ * and byte strings are not copied, they are exposed as offset and length
+ * in the source buffer, or as a slice of it.
+ *
+ * A parser parses exactly one top level value, after
+ * which isComplete() returns true. All DecodingLimits of
+ * the parser are enforced as tokens are consumed.
+ */
+public class BencodeParser {
+
+    /**
+     * Tokens produced by parser. START_DICT and START_LIST are
+     * balanced by a later END. A byte string is reported as KEY
+     * when it occupies a key position in a dictionary, and as
+     * BYTES otherwise.
+     */
+    public enum Token {
+        START_DICT, START_LIST, KEY, INT, BYTES, END;
+    }
+
+    /**
+     * States of an open container.
+     */
+    private final static byte IN_LIST = 0;
+    private final static byte EXPECTING_KEY = 1;
+    private final static byte EXPECTING_VALUE = 2;
+
+    /**
+     * Initial capacity of the container stack, grown on demand.
+     */
+    private final static int INITIAL_STACK_CAPACITY = 8;
+
+    /**
+     * Buffer parsed, position is kept at the end of the last token.
+     */
+    private ByteBuffer src;
+
+    /**
+     * Position of src where parsing began.
+     */
+    private int start;
+
+    /**
+     * Limits enforced by parser.
+     */
+    private DecodingLimits limits;
+
+    /**
+     * Number of values read so far.
+     */
+    private int numberOfValues;
+
+    /**
+     * State of each open container, innermost at depth - 1.
+     */
+    private byte[] containers;
+
+    /**
+     * Offset and length in src of the last key read in each open dictionary,
+     * offset is -1 if no key has been read yet. Used to check lexicographic ordering.
+     */
+    private int[] lastKeyOffset;
+    private int[] lastKeyLength;
+
+    /**
+     * Number of open containers.
+     */
+    private int depth;
+
+    /**
+     * Whether the top level value has been fully parsed.
+     */
+    private boolean complete;
+
+    /**
+     * Value of last INT token.
+     */
+    private long integerValue;
+
+    /**
+     * Offset and length in src of content of last KEY or BYTES token.
+     */
+    private int byteStringOffset;
+    private int byteStringLength;
+
+    /**
+     * Constructor, parsing begins at present position of buffer,
+     * and DecodingLimits.TRUSTED are enforced.
+     * @param src buffer with bencoding
+     */
+    public BencodeParser(ByteBuffer src) {
+        this(src, DecodingLimits.TRUSTED);
+    }
+
+    /**
+     * Constructor, parsing begins at present position of buffer.
+     * @param src buffer with bencoding
+     * @param limits limits to enforce
+     */
+    public BencodeParser(ByteBuffer src, DecodingLimits limits) {
+
+        this.src = src;
+        this.start = src.position();
+        this.limits = limits;
+        this.numberOfValues = 0;
+        this.containers = new byte[INITIAL_STACK_CAPACITY];
+        this.lastKeyOffset = new int[INITIAL_STACK_CAPACITY];
+        this.lastKeyLength = new int[INITIAL_STACK_CAPACITY];
+        this.depth = 0;
+        this.complete = false;
+    }
+
+    /**
+     * Consumes next token from buffer. If an exception is thrown,
+     * the buffer position is left within the offending token.
+     * @return token read
+     * @throws DecodingBencodingException if bencoding is malformed, or violates decoding limits
+     * @throws IllegalStateException if top level value has already been parsed
+     */
+    public Token next() throws DecodingBencodingException {
+
+        Token token = readToken();
+
+        // Integers are checked after the fact, byte strings already were in parseByteString()
+        if(src.position() - start > limits.getMaxTotalBytes())
+            throw new BencodingTooLongException();
+
+        return token;
+    }
+
+    /**
+     * Consumes next token, without checking total length.
+     */
+    private Token readToken() throws DecodingBencodingException {
+
+        if(complete)
+            throw new IllegalStateException();
+
+        if(!src.hasRemaining())
+            throw new UnexpectedEndOfBencodingException();
+
+        // Get leading byte, without advancing position
+        byte delimiter = src.get(src.position());
+
+        // End of list or dictionary, which is not allowed between key and value
+        if(delimiter == 'e') {
+
+            if(depth == 0 || containers[depth - 1] == EXPECTING_VALUE)
+                throw new InvalidDelimiterException(delimiter);
+
+            src.position(src.position() + 1);
+            depth--;
+            valueCompleted();
+
+            return Token.END;
+        }
+
+        // Keys must be byte strings in lexicographic order
+        if(depth > 0 && containers[depth - 1] == EXPECTING_KEY) {
+
+            if(delimiter == ':')
+                throw new EmptyLengthFieldException();
+            else if(!isDigit(delimiter))
+                throw new InvalidDelimiterException(delimiter);
+
+            parseByteString();
+            checkKeyOrder();
+
+            containers[depth - 1] = EXPECTING_VALUE;
+
+            return Token.KEY;
+        }
+
+        // Plain value
+        if(delimiter == 'i') {
+
+            src.position(src.position() + 1);
+            countValue();
+            parseInteger();
+            valueCompleted();
+
+            return Token.INT;
+        } else if(delimiter == 'l') {
+
+            src.position(src.position() + 1);
+            countValue();
+            push(IN_LIST);
+
+            return Token.START_LIST;
+        } else if(delimiter == 'd') {
+
+            src.position(src.position() + 1);
+            countValue();
+            push(EXPECTING_KEY);
+
+            return Token.START_DICT;
+        } else if(isDigit(delimiter)) {
+
+            countValue();
+            parseByteString();
+            valueCompleted();
+
+            return Token.BYTES;
+        } else
+            throw new InvalidDelimiterException(delimiter);
+    }
+
+    /**
+     * Consumes next token, and checks that it is of the expected type.
+     * @param expected token expected
+     * @return this parser
+     * @throws DecodingBencodingException if bencoding is malformed
+     * @throws InvalidDelimiterException if token was not of expected type
+     */
+    public BencodeParser expect(Token expected) throws DecodingBencodingException {
+
+        int start = src.position();
+
+        if(next() != expected)
+            throw new InvalidDelimiterException(src.get(start));
+
+        return this;
+    }
+
+    /**
+     * Skips the remainder of a value whose first token was just read,
+     * that is, if token opened a list or dictionary then all tokens
+     * up to and including the matching END are consumed, otherwise nothing is.
+     * Skipped tokens are still fully validated.
+     * @param token first token of value
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    public void skipValue(Token token) throws DecodingBencodingException {
+
+        if(token == Token.START_DICT || token == Token.START_LIST) {
+
+            int enclosingDepth = depth - 1;
+
+            while(depth > enclosingDepth)
+                next();
+        }
+    }
+
+    /**
+     * Finds the bencoding of the value for given key in the dictionary
+     * starting at present position of buffer, without decoding
+     * any value. Parsing stops as soon as the key is found, and position
+     * of source buffer is not altered.
+     * @param src buffer with bencoded dictionary
+     * @param key raw key
+     * @return buffer sharing content with source buffer, with position = 0 and limit = length of bencoding of value, or null if key is not present
+     * @throws DecodingBencodingException if bencoding is malformed, or is not a dictionary
+     */
+    public static ByteBuffer findValue(ByteBuffer src, byte[] key) throws DecodingBencodingException {
+
+        BencodeParser parser = new BencodeParser(src.duplicate()).expect(Token.START_DICT);
+        ByteBuffer b = parser.getSource();
+
+        while(parser.next() != Token.END) {
+
+            boolean isMatch = parser.keyEquals(key);
+
+            // Skip value, and note its span
+            int valueStart = b.position();
+
+            parser.skipValue(parser.next());
+
+            if(isMatch)
+                return Bencodej.slice(b, valueStart, b.position() - valueStart);
+        }
+
+        return null;
+    }
+
+    /**
+     * Checks whether content of last KEY or BYTES token is equal to given bytes.
+     * @param bytes bytes
+     * @return true iff equal
+     */
+    public boolean keyEquals(byte[] bytes) {
+
+        if(byteStringLength != bytes.length)
+            return false;
+
+        for(int i = 0;i < byteStringLength;i++) {
+            if(src.get(byteStringOffset + i) != bytes[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Parses <digits>e, leading 'i' has already been consumed.
+     */
+    private void parseInteger() throws DecodingBencodingException {
+
+        // Get possible negative sign
+        boolean isNegativeInteger = false;
+
+        if(src.hasRemaining() && src.get(src.position()) == '-') {
+            isNegativeInteger = true;
+            src.position(src.position() + 1);
+        }
+
+        // Accumulate digits until end of integer
+        long value = 0;
+        int numberOfDigits = 0;
+
+        while(true) {
+
+            if(!src.hasRemaining())
+                throw new UnexpectedEndOfBencodingException();
+
+            byte b = src.get();
+
+            if(b == 'e')
+                break;
+            else if(!isDigit(b))
+                throw new InvalidIntegerDigits();
+
+            int digit = b - '0';
+
+            // Check for overflow
+            if(value > (Long.MAX_VALUE - digit) / 10)
+                throw new InvalidIntegerDigits();
+
+            value = value * 10 + digit;
+            numberOfDigits++;
+        }
+
+        // Check that we read at least one digit
+        if(numberOfDigits == 0)
+            throw new EmptyIntegerException();
+
+        // Check that zero has no negative sign
+        if(value == 0 && isNegativeInteger)
+            throw new NegativeZeroException();
+
+        integerValue = isNegativeInteger ? -value : value;
+    }
+
+    /**
+     * Parses <length>:<content>, where first byte is known to be a digit.
+     */
+    private void parseByteString() throws DecodingBencodingException {
+
+        // Find length field
+        long length = 0;
+
+        while(true) {
+
+            if(!src.hasRemaining())
+                throw new UnexpectedEndOfBencodingException();
+
+            byte b = src.get();
+
+            if(b == ':')
+                break;
+            else if(!isDigit(b))
+                throw new InvalidLengthFieldException();
+
+            length = length * 10 + (b - '0');
+
+            // Fail as soon as limit is exceeded, before reading further digits
+            if(length > limits.getMaxByteStringLength())
+                throw new LengthFieldToGreatException();
+        }
+
+        // Check that content fits in what remains of total length, without overflowing int
+        if(length > limits.getMaxTotalBytes() - (src.position() - start))
+            throw new BencodingTooLongException();
+
+        // Check that content is present
+        if(length > src.remaining())
+            throw new UnexpectedEndOfBencodingException();
+
+        // Note content location, and skip past it
+        byteStringOffset = src.position();
+        byteStringLength = (int)length;
+
+        src.position(byteStringOffset + byteStringLength);
+    }
+
+    /**
+     * Checks that last key read does not precede previous key in
+     * same dictionary, using same order as BencodableByteString.compareTo().
+     */
+    private void checkKeyOrder() throws NonLexicographicalKeyOrderException {
+
+        int d = depth - 1;
+
+        if(lastKeyOffset[d] != -1) {
+
+            int previousOffset = lastKeyOffset[d];
+            int previousLength = lastKeyLength[d];
+
+            // Iterate part where both are long enough
+            int shortestLength = Math.min(byteStringLength, previousLength);
+            int diff = 0;
+
+            for(int i = 0;i < shortestLength && diff == 0;i++)
+                diff = (int)src.get(byteStringOffset + i) - (int)src.get(previousOffset + i);
+
+            // Compare by length
+            if(diff == 0)
+                diff = byteStringLength - previousLength;
+
+            if(diff < 0)
+                throw new NonLexicographicalKeyOrderException();
+        }
+
+        lastKeyOffset[d] = byteStringOffset;
+        lastKeyLength[d] = byteStringLength;
+    }
+
+    /**
+     * Counts a value just started.
+     */
+    private void countValue() throws TooManyValuesException {
+
+        if(numberOfValues == limits.getMaxValues())
+            throw new TooManyValuesException();
+
+        numberOfValues++;
+    }
+
+    /**
+     * Opens a new container.
+     * @param state initial state of container
+     * @throws NestingTooDeepException if depth limit would be exceeded
+     */
+    private void push(byte state) throws NestingTooDeepException {
+
+        if(depth == limits.getMaxDepth())
+            throw new NestingTooDeepException();
+
+        // Grow stack if full
+        if(depth == containers.length) {
+
+            int capacity = 2 * containers.length;
+
+            containers = Arrays.copyOf(containers, capacity);
+            lastKeyOffset = Arrays.copyOf(lastKeyOffset, capacity);
+            lastKeyLength = Arrays.copyOf(lastKeyLength, capacity);
+        }
+
+        containers[depth] = state;
+        lastKeyOffset[depth] = -1;
+        depth++;
+    }
+
+    /**
+     * Registers that a full value was read, which
+     * either completes the top level value, or the
+     * value half of a key-value pair in enclosing dictionary.
+     */
+    private void valueCompleted() {
+
+        if(depth == 0)
+            complete = true;
+        else if(containers[depth - 1] == EXPECTING_VALUE)
+            containers[depth - 1] = EXPECTING_KEY;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Value of last INT token.
+     * @return integer value
+     */
+    public long getLong() {
+        return integerValue;
+    }
+
+    /**
+     * Offset in source buffer where content of last KEY or BYTES token begins.
+     * @return offset
+     */
+    public int getByteStringOffset() {
+        return byteStringOffset;
+    }
+
+    /**
+     * Byte length of content of last KEY or BYTES token.
+     * @return length
+     */
+    public int getByteStringLength() {
+        return byteStringLength;
+    }
+
+    /**
+     * Returns content of last KEY or BYTES token as a slice
+     * of the source buffer, hence content is not copied, and is only valid
+     * as long as the source buffer is not altered.
+     * @return buffer with position = 0 and limit = length of content
+     */
+    public ByteBuffer getByteString() {
+        return Bencodej.slice(src, byteStringOffset, byteStringLength);
+    }
+
+    /**
+     * Returns a copy of the content of the last KEY or BYTES token.
+     * @return byte array with content
+     */
+    public byte[] copyByteString() {
+
+        byte[] copy = new byte[byteStringLength];
+
+        if(src.hasArray())
+            System.arraycopy(src.array(), src.arrayOffset() + byteStringOffset, copy, 0, byteStringLength);
+        else {
+            ByteBuffer b = src.duplicate();
+            b.position(byteStringOffset);
+            b.get(copy);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Number of presently open lists and dictionaries.
+     * @return depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Whether top level value has been fully parsed.
+     * @return true iff complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Limits enforced by parser.
+     * @return limits
+     */
+    public DecodingLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Source buffer of parser.
+     * @return buffer
+     */
+    public ByteBuffer getSource() {
+        return src;
+    }
+}
@@ -1,13 +1,12 @@
 package org.bittorrentj.bencodej;
 
 import org.bittorrentj.bencodej.exception.DecodingBencodingException;
-import org.bittorrentj.bencodej.exception.InvalidDelimiterException;
-import org.bittorrentj.bencodej.exception.NonLexicographicalKeyOrderException;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * Created by bedeho on 10.09.2014.
@@ -16,65 +15,70 @@ public class BencodeableDictionary extends HashMap<BencodableByteString,Bencodab
 
     public BencodeableDictionary() {}
 
+    /**
+     * Constructor based on bencoding in buffer, position
+     * is left at the end of the dictionary just read.
+     * @param src buffer
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
     public BencodeableDictionary(ByteBuffer src) throws DecodingBencodingException {
+        this(new BencodeParser(src).expect(BencodeParser.Token.START_DICT));
+    }
 
-        // Get leading byte
-        byte delimiter = src.get();
-
-        // Check that we have correct delimiter
-        if(delimiter != 'd')
-            throw new InvalidDelimiterException(delimiter);
-
-        // Last key read, is used to check lexicographic ordering
-        BencodableByteString lastKey = null;
+    /**
+     * Constructor based on parser which has just read START_DICT,
+     * reads up to and including the matching END. Lexicographic
+     * ordering of keys is checked by the parser.
+     * @param parser parser
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    BencodeableDictionary(BencodeParser parser) throws DecodingBencodingException {
 
-        while(src.get(src.position()) != 'e') { // read without consuming
+        while(parser.next() != BencodeParser.Token.END) {
 
             // Decode key object
-            BencodableByteString key = new BencodableByteString(src);
-
-            // Check that lexical ordering is preserved
-            if(lastKey != null && key.compareTo(lastKey) < 0)
-                throw new NonLexicographicalKeyOrderException();
+            BencodableByteString key = new BencodableByteString(parser);
 
             // Decode value object
-            Bencodable value = Bencodej.decode(src);
+            Bencodable value = Bencodej.decode(parser, parser.next());
 
             // Add to list
             put(key, value);
-
-            // Save this key as last key
-            lastKey = key;
         }
-
-        // Consume ending 'e'
-        delimiter = src.get();
     }
 
     @Override
     public byte [] bencode() {
+        return Bencodej.bencode(this);
+    }
 
-        // Recover keys and order them
-        LinkedList<BencodableByteString> orderedKeyList = new LinkedList<BencodableByteString>();
+    @Override
+    public int encodedLength() {
 
-        for(BencodableByteString s : keySet())
-                orderedKeyList.add(s);
+        int length = 2;
 
-        // Sort
-        Collections.sort(orderedKeyList);
+        for(Map.Entry<BencodableByteString, Bencodable> e: entrySet())
+            length += e.getKey().encodedLength() + e.getValue().encodedLength();
 
-        // Iterate keys and dump bencoding of values
-        LinkedList<Bencodable> list = new LinkedList<Bencodable>();
+        return length;
+    }
 
-        for(BencodableByteString s : orderedKeyList) {
+    @Override
+    public void encodeTo(ByteBuffer dst) {
 
-            // Add key
-            list.add(s);
+        // Recover keys and order them
+        ArrayList<BencodableByteString> orderedKeyList = new ArrayList<BencodableByteString>(keySet());
 
-            // Add Value
-            list.add(get(s));
+        Collections.sort(orderedKeyList);
+
+        // Write keys and values in key order
+        dst.put((byte)'d');
+
+        for(BencodableByteString s : orderedKeyList) {
+            s.encodeTo(dst);
+            get(s).encodeTo(dst);
         }
 
-        return Bencodej.concatenateBencodingsIntoBencoding((byte) 'd', list);
+        dst.put((byte)'e');
     }
 }
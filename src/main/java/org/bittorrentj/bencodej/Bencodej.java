@@ -25,28 +25,137 @@ public abstract class Bencodej {
      * Decodes bencoding. After successful return
      * the input buffer will have position after end
      * of bencoding. If exceptions is thrown, the position
-     * is set to where last successful read was made.
+     * is left within the offending token.
      * @param src bencoding
      * @return decoded object
      * @throws DecodingBencodingException if bencoding is malformed
      */
     public static Bencodable decode(ByteBuffer src) throws DecodingBencodingException {
+        return decode(src, DecodingLimits.TRUSTED);
+    }
+
+    /**
+     * Decodes bencoding, while enforcing given limits. After successful
+     * return the input buffer will have position after end of bencoding.
+     * @param src bencoding
+     * @param limits limits to enforce
+     * @return decoded object
+     * @throws DecodingBencodingException if bencoding is malformed, or violates limits
+     */
+    public static Bencodable decode(ByteBuffer src, DecodingLimits limits) throws DecodingBencodingException {
+
+        BencodeParser parser = new BencodeParser(src, limits);
+
+        return decode(parser, parser.next());
+    }
+
+    /**
+     * Decodes value starting with token just read by parser,
+     * in the case of lists and dictionaries all tokens up to and including
+     * the matching END are consumed.
+     * @param parser parser
+     * @param token token just read
+     * @return decoded object
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    static Bencodable decode(BencodeParser parser, BencodeParser.Token token) throws DecodingBencodingException {
+
+        // Call upon the correct constructor
+        switch(token) {
+            case INT:
+                return new BencodableInteger(parser);
+            case KEY:
+            case BYTES:
+                return new BencodableByteString(parser);
+            case START_LIST:
+                return new BencodableList(parser);
+            case START_DICT:
+                return new BencodeableDictionary(parser);
+            default:
+                // END, which parser only produces when a container is open
+                throw new InvalidDelimiterException((byte)'e');
+        }
+    }
+
+    /**
+     * Decodes bencoding, where lists and dictionaries are decoded
+     * lazily, that is only their immediate structure is recorded, and each
+     * element is decoded on first access. Decoded object refers to, rather than copies,
+     * the content of the input buffer, hence buffer content must not be altered
+     * while object is in use. After successful return the input buffer will have
+     * position after end of bencoding.
+     * @param src bencoding
+     * @return decoded object
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    public static Bencodable decodeLazily(ByteBuffer src) throws DecodingBencodingException {
+        return decodeLazily(src, DecodingLimits.TRUSTED);
+    }
+
+    /**
+     * Decodes bencoding lazily, while enforcing given limits. Limits
+     * apply to the full bencoding, which is validated up front even if
+     * elements are decoded later.
+     * @param src bencoding
+     * @param limits limits to enforce
+     * @return decoded object
+     * @throws DecodingBencodingException if bencoding is malformed, or violates limits
+     */
+    public static Bencodable decodeLazily(ByteBuffer src, DecodingLimits limits) throws DecodingBencodingException {
+
+        BencodeParser parser = new BencodeParser(src, limits);
+
+        return decodeLazily(parser, parser.next());
+    }
+
+    /**
+     * Lazy counterpart of decode(BencodeParser, BencodeParser.Token).
+     * @param parser parser
+     * @param token token just read
+     * @return decoded object
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    static Bencodable decodeLazily(BencodeParser parser, BencodeParser.Token token) throws DecodingBencodingException {
 
-        // Get leading byte, without advancing position
-        byte delimiter = src.get(src.position());
-
-        // Call upon the correct constructor, or throw
-        // exceptions if delimiter is not recognized.
-        if(delimiter == 'i')
-            return new BencodableInteger(src);
-        else if(delimiter == 'l')
-            return new BencodableList(src);
-        else if(delimiter == 'd')
-            return new BencodeableDictionary(src);
-        else if(delimiter <= '9' && delimiter >= '0')
-            return new BencodableByteString(src);
+        if(token == BencodeParser.Token.START_LIST)
+            return new LazyBencodableList(parser);
+        else if(token == BencodeParser.Token.START_DICT)
+            return new LazyBencodeableDictionary(parser);
         else
-            throw new InvalidDelimiterException(delimiter);
+            return decode(parser, token);
+    }
+
+    /**
+     * Creates buffer sharing content with given region of source
+     * buffer, without altering source buffer position or limit.
+     * @param src source buffer
+     * @param offset absolute offset of region in source buffer
+     * @param length byte length of region
+     * @return buffer with position = 0 and limit = length
+     */
+    public static ByteBuffer slice(ByteBuffer src, int offset, int length) {
+
+        ByteBuffer b = src.duplicate();
+
+        b.limit(offset + length);
+        b.position(offset);
+
+        return b.slice();
+    }
+
+    /**
+     * Bencodes object into a fresh array, by sizing it with
+     * encodedLength() and then filling it with encodeTo().
+     * @param o object
+     * @return bencoding
+     */
+    public static byte [] bencode(Bencodable o) {
+
+        byte [] bencoding = new byte[o.encodedLength()];
+
+        o.encodeTo(ByteBuffer.wrap(bencoding));
+
+        return bencoding;
     }
 
     /**
@@ -60,30 +169,68 @@ public abstract class Bencodej {
         // Count total size
         int totalByteLength = 2;
         for(Bencodable o: bencodableList)
-            totalByteLength += o.bencode().length;
+            totalByteLength += o.encodedLength();
 
         // Allocate space for bencodableList
-        byte [] totalBencoding = new byte[totalByteLength];
+        ByteBuffer totalBencoding = ByteBuffer.allocate(totalByteLength);
+
+        // Write delimiters and bencoding of list objects into buffer
+        totalBencoding.put(startingDelimiter);
 
-        // Set delimiters
-        totalBencoding[0] = (byte)startingDelimiter;
-        totalBencoding[totalBencoding.length - 1] = 'e';
+        for(Bencodable o: bencodableList)
+            o.encodeTo(totalBencoding);
 
-        // Copy bencoding of list objects into buffer
-        int position = 1;
-        for(Bencodable o: bencodableList) {
+        totalBencoding.put((byte)'e');
 
-            // Bencodej object
-            byte [] bencoding = o.bencode();
+        // Return result
+        return totalBencoding.array();
+    }
 
-            // Copy into bigger buffer
-            System.arraycopy(bencoding, 0, totalBencoding, position, bencoding.length);
+    /**
+     * Number of bytes in decimal ASCII representation of value,
+     * including any negative sign.
+     * @param value value
+     * @return byte length
+     */
+    static int decimalLength(long value) {
 
-            // Keep track of position
-            position += bencoding.length;
+        int length = value < 0 ? 2 : 1;
+
+        // Digits are counted on the negated value, since Long.MIN_VALUE has no positive counterpart
+        if(value > 0)
+            value = -value;
+
+        while(value <= -10) {
+            value /= 10;
+            length++;
         }
 
-        // Return result
-        return totalBencoding;
+        return length;
+    }
+
+    /**
+     * Writes decimal ASCII representation of value into buffer,
+     * advancing position to end of representation.
+     * @param dst buffer
+     * @param value value
+     */
+    static void putDecimal(ByteBuffer dst, long value) {
+
+        int end = dst.position() + decimalLength(value);
+
+        // Digits are taken from the negated value, as in decimalLength()
+        if(value < 0)
+            dst.put((byte)'-');
+        else
+            value = -value;
+
+        // Write digits backwards from end of representation
+        int position = end;
+        do {
+            dst.put(--position, (byte)('0' - value % 10));
+            value /= 10;
+        } while(value != 0);
+
+        dst.position(end);
     }
 }
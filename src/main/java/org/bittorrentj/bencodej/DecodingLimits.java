@@ -0,0 +1,79 @@
+package org.bittorrentj.bencodej;
+
+/**
+ * Bounds on what a BencodeParser will accept, which are enforced
+ * while parsing, so no bencoding which violates them is ever fully
+ * read or decoded. Large trusted files, like metainfo files, and small hostile
+ * payloads from peers, are thereby decoded by the same parser with different limits.
+ *
+ * Objects of this class are immutable, and may be shared between parsers and threads.
+ */
+public class DecodingLimits {
+
+    /**
+     * Limits for trusted input, like metainfo files loaded from disk.
+     * Only nesting depth is bounded, since decoding lists and dictionaries eagerly is recursive.
+     */
+    public final static DecodingLimits TRUSTED = new DecodingLimits(Integer.MAX_VALUE, Integer.MAX_VALUE, 512, Integer.MAX_VALUE);
+
+    /**
+     * Limits for untrusted input, like bencoded payloads of messages from peers.
+     */
+    public final static DecodingLimits UNTRUSTED = new DecodingLimits(1 << 20, 1 << 18, 32, 1 << 14);
+
+    /**
+     * Maximum number of bytes consumed by parser in total.
+     */
+    private final int maxTotalBytes;
+
+    /**
+     * Maximum length of content of a single byte string.
+     */
+    private final int maxByteStringLength;
+
+    /**
+     * Maximum number of simultaneously open lists and dictionaries.
+     */
+    private final int maxDepth;
+
+    /**
+     * Maximum number of values in total, where every integer, byte string, list and dictionary
+     * counts as one value, and dictionary keys are not counted.
+     */
+    private final int maxValues;
+
+    /**
+     * Constructor
+     * @param maxTotalBytes maximum number of bytes consumed by parser in total
+     * @param maxByteStringLength maximum length of content of a single byte string
+     * @param maxDepth maximum number of simultaneously open lists and dictionaries
+     * @param maxValues maximum number of values in total
+     * @throws IllegalArgumentException if a limit is negative
+     */
+    public DecodingLimits(int maxTotalBytes, int maxByteStringLength, int maxDepth, int maxValues) {
+
+        if(maxTotalBytes < 0 || maxByteStringLength < 0 || maxDepth < 0 || maxValues < 0)
+            throw new IllegalArgumentException("Limits must be non-negative");
+
+        this.maxTotalBytes = maxTotalBytes;
+        this.maxByteStringLength = maxByteStringLength;
+        this.maxDepth = maxDepth;
+        this.maxValues = maxValues;
+    }
+
+    public int getMaxTotalBytes() {
+        return maxTotalBytes;
+    }
+
+    public int getMaxByteStringLength() {
+        return maxByteStringLength;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxValues() {
+        return maxValues;
+    }
+}
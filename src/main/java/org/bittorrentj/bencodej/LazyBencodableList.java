@@ -0,0 +1,167 @@
+package org.bittorrentj.bencodej;
+
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * List which on construction only records where each element
+ * is located in the bencoding, and decodes an element the first
+ * time it is accessed. Nested lists and dictionaries are in turn decoded lazily.
+ *
+ * The list refers to, rather than copies, the buffer it was
+ * parsed from, so its content must not be altered while the list is in use.
+ */
+public class LazyBencodableList implements Bencodable {
+
+    /**
+     * Initial capacity of span tables, grown on demand.
+     */
+    private final static int INITIAL_CAPACITY = 8;
+
+    /**
+     * Bencoding of full list, with position = 0 and limit = length of bencoding.
+     * Only accessed with absolute operations, or through duplicates.
+     */
+    private ByteBuffer raw;
+
+    /**
+     * Offset in raw and length of full bencoding of each element.
+     */
+    private int[] elementOffsets;
+    private int[] elementLengths;
+
+    /**
+     * Number of elements.
+     */
+    private int size;
+
+    /**
+     * Elements decoded so far, null if not yet decoded.
+     */
+    private Bencodable[] elements;
+
+    /**
+     * Constructor based on bencoding in buffer, position
+     * is left at the end of the list just read.
+     * @param src buffer
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    public LazyBencodableList(ByteBuffer src) throws DecodingBencodingException {
+        this(new BencodeParser(src).expect(BencodeParser.Token.START_LIST));
+    }
+
+    /**
+     * Constructor based on parser which has just read START_LIST,
+     * reads up to and including the matching END, skipping over elements.
+     * @param parser parser
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    LazyBencodableList(BencodeParser parser) throws DecodingBencodingException {
+
+        ByteBuffer src = parser.getSource();
+
+        // Start of list, including leading 'l' just read
+        int start = src.position() - 1;
+
+        this.elementOffsets = new int[INITIAL_CAPACITY];
+        this.elementLengths = new int[INITIAL_CAPACITY];
+        this.size = 0;
+
+        int elementStart = src.position();
+        BencodeParser.Token token;
+
+        while((token = parser.next()) != BencodeParser.Token.END) {
+
+            // Grow tables if full
+            if(size == elementOffsets.length) {
+                elementOffsets = Arrays.copyOf(elementOffsets, 2 * size);
+                elementLengths = Arrays.copyOf(elementLengths, 2 * size);
+            }
+
+            // Skip element, and note its span
+            parser.skipValue(token);
+
+            elementOffsets[size] = elementStart - start;
+            elementLengths[size] = src.position() - elementStart;
+
+            size++;
+
+            elementStart = src.position();
+        }
+
+        this.raw = Bencodej.slice(src, start, src.position() - start);
+        this.elements = new Bencodable[size];
+    }
+
+    /**
+     * Number of elements.
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Element at given index, decoded on first access.
+     * @param index index
+     * @return element
+     * @throws DecodingBencodingException if element cannot be decoded
+     */
+    public Bencodable get(int index) throws DecodingBencodingException {
+
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+
+        if(elements[index] == null)
+            elements[index] = Bencodej.decodeLazily(getRawElement(index));
+
+        return elements[index];
+    }
+
+    /**
+     * Raw bencoding of element at given index, sharing content with this list.
+     * @param index index
+     * @return buffer with position = 0 and limit = length of bencoding
+     */
+    public ByteBuffer getRawElement(int index) {
+
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+
+        return Bencodej.slice(raw, elementOffsets[index], elementLengths[index]);
+    }
+
+    /**
+     * Raw bencoding of full list, sharing content with this list.
+     * @return buffer with position = 0 and limit = length of bencoding
+     */
+    public ByteBuffer getRaw() {
+        return raw.duplicate();
+    }
+
+    /**
+     * Decodes all elements, and returns them in a regular list.
+     * @return list
+     * @throws DecodingBencodingException if an element cannot be decoded
+     */
+    public BencodableList toList() throws DecodingBencodingException {
+        return new BencodableList(getRaw());
+    }
+
+    @Override
+    public byte[] bencode() {
+        return Bencodej.bencode(this);
+    }
+
+    @Override
+    public int encodedLength() {
+        return raw.limit();
+    }
+
+    @Override
+    public void encodeTo(ByteBuffer dst) {
+        dst.put(raw.duplicate());
+    }
+}
@@ -0,0 +1,300 @@
+package org.bittorrentj.bencodej;
+
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Dictionary which on construction only records where each key
+ * and value is located in the bencoding, and decodes a value the first
+ * time it is accessed. Nested lists and dictionaries are in turn decoded lazily.
+ *
+ * The dictionary refers to, rather than copies, the buffer it was
+ * parsed from, so its content must not be altered while the dictionary is in use.
+ * The raw bencoding of the full dictionary, or of any value, is available
+ * so it can be hashed or forwarded unchanged.
+ */
+public class LazyBencodeableDictionary implements Bencodable {
+
+    /**
+     * Initial capacity of span tables, grown on demand.
+     */
+    private final static int INITIAL_CAPACITY = 8;
+
+    /**
+     * Bencoding of full dictionary, with position = 0 and limit = length of bencoding.
+     * Only accessed with absolute operations, or through duplicates.
+     */
+    private ByteBuffer raw;
+
+    /**
+     * Offset in raw and length of content of each key, in order of appearance,
+     * which the parser guarantees to be lexicographic.
+     */
+    private int[] keyOffsets;
+    private int[] keyLengths;
+
+    /**
+     * Offset in raw and length of full bencoding of each value.
+     */
+    private int[] valueOffsets;
+    private int[] valueLengths;
+
+    /**
+     * Number of key-value pairs.
+     */
+    private int size;
+
+    /**
+     * Values decoded so far, null if not yet decoded.
+     */
+    private Bencodable[] values;
+
+    /**
+     * Constructor based on bencoding in buffer, position
+     * is left at the end of the dictionary just read.
+     * @param src buffer
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    public LazyBencodeableDictionary(ByteBuffer src) throws DecodingBencodingException {
+        this(new BencodeParser(src).expect(BencodeParser.Token.START_DICT));
+    }
+
+    /**
+     * Constructor based on parser which has just read START_DICT,
+     * reads up to and including the matching END, skipping over values.
+     * @param parser parser
+     * @throws DecodingBencodingException if bencoding is malformed
+     */
+    LazyBencodeableDictionary(BencodeParser parser) throws DecodingBencodingException {
+
+        ByteBuffer src = parser.getSource();
+
+        // Start of dictionary, including leading 'd' just read
+        int start = src.position() - 1;
+
+        this.keyOffsets = new int[INITIAL_CAPACITY];
+        this.keyLengths = new int[INITIAL_CAPACITY];
+        this.valueOffsets = new int[INITIAL_CAPACITY];
+        this.valueLengths = new int[INITIAL_CAPACITY];
+        this.size = 0;
+
+        while(parser.next() != BencodeParser.Token.END) {
+
+            // Grow tables if full
+            if(size == keyOffsets.length) {
+
+                int capacity = 2 * size;
+
+                keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+                keyLengths = Arrays.copyOf(keyLengths, capacity);
+                valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+                valueLengths = Arrays.copyOf(valueLengths, capacity);
+            }
+
+            // Note key
+            keyOffsets[size] = parser.getByteStringOffset() - start;
+            keyLengths[size] = parser.getByteStringLength();
+
+            // Skip value, and note its span
+            int valueStart = src.position();
+
+            parser.skipValue(parser.next());
+
+            valueOffsets[size] = valueStart - start;
+            valueLengths[size] = src.position() - valueStart;
+
+            size++;
+        }
+
+        this.raw = Bencodej.slice(src, start, src.position() - start);
+        this.values = new Bencodable[size];
+    }
+
+    /**
+     * Number of key-value pairs.
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Index of key, in order of appearance in bencoding.
+     * @param key raw key
+     * @return index, or -1 if key is not present
+     */
+    public int indexOf(byte[] key) {
+
+        // Binary search, keys are ordered as by BencodableByteString.compareTo()
+        int low = 0;
+        int high = size - 1;
+
+        while(low <= high) {
+
+            int middle = (low + high) >>> 1;
+            int diff = compareKey(middle, key);
+
+            if(diff < 0)
+                low = middle + 1;
+            else if(diff > 0)
+                high = middle - 1;
+            else
+                return middle;
+        }
+
+        return -1;
+    }
+
+    public int indexOf(String key) {
+        return indexOf(key.getBytes());
+    }
+
+    public boolean containsKey(String key) {
+        return indexOf(key) != -1;
+    }
+
+    public boolean containsKey(BencodableByteString key) {
+        return indexOf(key.getByteString()) != -1;
+    }
+
+    /**
+     * Value for given key, decoded on first access.
+     * @param key key
+     * @return value, or null if key is not present
+     * @throws DecodingBencodingException if value cannot be decoded
+     */
+    public Bencodable get(String key) throws DecodingBencodingException {
+        return get(key.getBytes());
+    }
+
+    public Bencodable get(BencodableByteString key) throws DecodingBencodingException {
+        return get(key.getByteString());
+    }
+
+    public Bencodable get(byte[] key) throws DecodingBencodingException {
+
+        int index = indexOf(key);
+
+        return index == -1 ? null : getValue(index);
+    }
+
+    /**
+     * Value at given index, decoded on first access.
+     * @param index index in order of appearance
+     * @return value
+     * @throws DecodingBencodingException if value cannot be decoded
+     */
+    public Bencodable getValue(int index) throws DecodingBencodingException {
+
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+
+        if(values[index] == null)
+            values[index] = Bencodej.decodeLazily(getRawValue(index));
+
+        return values[index];
+    }
+
+    /**
+     * Key at given index.
+     * @param index index in order of appearance
+     * @return copy of key
+     */
+    public BencodableByteString getKey(int index) {
+
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+
+        byte[] key = new byte[keyLengths[index]];
+
+        Bencodej.slice(raw, keyOffsets[index], keyLengths[index]).get(key);
+
+        return new BencodableByteString(key);
+    }
+
+    /**
+     * Raw bencoding of value for given key, sharing content with this dictionary.
+     * @param key key
+     * @return buffer with position = 0 and limit = length of bencoding, or null if key is not present
+     */
+    public ByteBuffer getRawValue(String key) {
+
+        int index = indexOf(key);
+
+        return index == -1 ? null : getRawValue(index);
+    }
+
+    /**
+     * Raw bencoding of value at given index, sharing content with this dictionary.
+     * @param index index in order of appearance
+     * @return buffer with position = 0 and limit = length of bencoding
+     */
+    public ByteBuffer getRawValue(int index) {
+
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException();
+
+        return Bencodej.slice(raw, valueOffsets[index], valueLengths[index]);
+    }
+
+    /**
+     * Raw bencoding of full dictionary, sharing content with this dictionary.
+     * @return buffer with position = 0 and limit = length of bencoding
+     */
+    public ByteBuffer getRaw() {
+        return raw.duplicate();
+    }
+
+    /**
+     * Decodes all values, and returns them in a regular dictionary.
+     * @return dictionary
+     * @throws DecodingBencodingException if a value cannot be decoded
+     */
+    public BencodeableDictionary toDictionary() throws DecodingBencodingException {
+        return new BencodeableDictionary(getRaw());
+    }
+
+    /**
+     * Compares key at given index with raw key, using
+     * same order as BencodableByteString.compareTo().
+     * @param index index of key
+     * @param key raw key
+     * @return a negative integer, zero, or a positive integer as key at index is less than, equal to, or greater than raw key.
+     */
+    private int compareKey(int index, byte[] key) {
+
+        int offset = keyOffsets[index];
+        int length = keyLengths[index];
+
+        // Iterate part where both are long enough
+        int shortestLength = Math.min(length, key.length);
+
+        for(int i = 0;i < shortestLength;i++) {
+
+            int diff = (int)raw.get(offset + i) - (int)key[i];
+
+            if(diff != 0)
+                return diff;
+        }
+
+        // Compare by length
+        return length - key.length;
+    }
+
+    @Override
+    public byte[] bencode() {
+        return Bencodej.bencode(this);
+    }
+
+    @Override
+    public int encodedLength() {
+        return raw.limit();
+    }
+
+    @Override
+    public void encodeTo(ByteBuffer dst) {
+        dst.put(raw.duplicate());
+    }
+}
@@ -0,0 +1,8 @@
+package org.bittorrentj.bencodej.exception;
+
+/**
+ * Thrown by BencodeParser when a bencoding
+ * is longer than allowed by its decoding limits.
+ */
+public class BencodingTooLongException extends DecodingBencodingException {
+}
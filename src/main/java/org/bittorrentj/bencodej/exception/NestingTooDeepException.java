@@ -0,0 +1,8 @@
+package org.bittorrentj.bencodej.exception;
+
+/**
+ * Thrown by BencodeParser when
+ * lists and dictionaries are nested deeper than allowed by its decoding limits.
+ */
+public class NestingTooDeepException extends DecodingBencodingException {
+}
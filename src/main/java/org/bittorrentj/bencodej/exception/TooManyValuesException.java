@@ -0,0 +1,8 @@
+package org.bittorrentj.bencodej.exception;
+
+/**
+ * Thrown by BencodeParser when a bencoding
+ * holds more values than allowed by its decoding limits.
+ */
+public class TooManyValuesException extends DecodingBencodingException {
+}
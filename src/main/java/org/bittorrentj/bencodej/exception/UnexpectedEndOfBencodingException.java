@@ -0,0 +1,8 @@
+package org.bittorrentj.bencodej.exception;
+
+/**
+ * Thrown by BencodeParser when the source buffer ends
+ * before the bencoding being parsed is complete.
+ */
+public class UnexpectedEndOfBencodingException extends DecodingBencodingException {
+}
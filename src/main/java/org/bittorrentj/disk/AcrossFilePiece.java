@@ -1,7 +1,59 @@
 package org.bittorrentj.disk;
 
 /**
- * Created by bedeho on 20.09.2014.
+ * Piece which crosses one or more file boundaries in multiple
+ * file mode, hence is stored in several files.
  */
 public class AcrossFilePiece extends Piece {
+
+    /**
+     * Index of file of each span.
+     */
+    private int[] fileIndexes;
+
+    /**
+     * Position in file where each span starts.
+     */
+    private long[] filePositions;
+
+    /**
+     * Byte length of each span.
+     */
+    private int[] spanLengths;
+
+    /**
+     * Constructor
+     * @param index piece index
+     * @param length byte length of piece
+     * @param fileIndexes index of file of each span
+     * @param filePositions position in file where each span starts
+     * @param spanLengths byte length of each span, which add up to length of piece
+     */
+    public AcrossFilePiece(int index, int length, int[] fileIndexes, long[] filePositions, int[] spanLengths) {
+        super(index, length);
+
+        this.fileIndexes = fileIndexes;
+        this.filePositions = filePositions;
+        this.spanLengths = spanLengths;
+    }
+
+    @Override
+    public int getNumberOfSpans() {
+        return fileIndexes.length;
+    }
+
+    @Override
+    public int getFileIndex(int span) {
+        return fileIndexes[span];
+    }
+
+    @Override
+    public long getFilePosition(int span) {
+        return filePositions[span];
+    }
+
+    @Override
+    public int getSpanLength(int span) {
+        return spanLengths[span];
+    }
 }
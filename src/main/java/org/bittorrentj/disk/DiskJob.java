@@ -0,0 +1,80 @@
+package org.bittorrentj.disk;
+
+import java.io.IOException;
+
+/**
+ * Job submitted to a DiskJobQueue, which performs it on one of its
+ * workers, and posts a DiskJobCompletedEvent with the job back to the submitter.
+ * A job holds its own result, or the exception which made it fail.
+ */
+public abstract class DiskJob {
+
+    /**
+     * Storage job operates on.
+     */
+    private DiskManager diskManager;
+
+    /**
+     * Exception which made job fail, or null.
+     */
+    private IOException exception;
+
+    /**
+     * Constructor
+     * @param diskManager storage job operates on
+     */
+    DiskJob(DiskManager diskManager) {
+
+        this.diskManager = diskManager;
+        this.exception = null;
+    }
+
+    /**
+     * Performs job, is called on a worker.
+     * @throws IOException if storage fails
+     */
+    abstract void perform() throws IOException;
+
+    /**
+     * Key which orders job, jobs of the same storage with the same key are performed in the
+     * order submitted. Jobs on a piece use its index, since pieces never share bytes.
+     * @return key
+     */
+    int getOrderingKey() {
+        return 0;
+    }
+
+    /**
+     * Whether job is performed after all jobs submitted before it, and
+     * before all jobs submitted after it, on all files.
+     * @return true iff job is a barrier
+     */
+    boolean isBarrier() {
+        return false;
+    }
+
+    /**
+     * Number of bytes of memory held by job until it is performed,
+     * which counts towards the limit of the queue.
+     * @return number of bytes
+     */
+    long getQueuedBytes() {
+        return 0;
+    }
+
+    void setException(IOException exception) {
+        this.exception = exception;
+    }
+
+    public boolean isSuccessful() {
+        return exception == null;
+    }
+
+    public IOException getException() {
+        return exception;
+    }
+
+    public DiskManager getDiskManager() {
+        return diskManager;
+    }
+}
@@ -0,0 +1,193 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.disk.event.DiskEventHandler;
+import org.bittorrentj.disk.event.DiskJobCompletedEvent;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Performs disk jobs on a pool of worker threads, so the thread of
+ * a swarm never blocks on disk. A completed job is posted back to the handler
+ * given when it was submitted, on the worker, the handler hands it over to its own thread.
+ *
+ * Each worker has its own queue, and jobs are assigned to workers by the key which orders
+ * them, which is the piece they are on, so the writes and the hash of a piece are performed
+ * in the order submitted, while jobs on different pieces, even of the same file, proceed in
+ * parallel. Barrier jobs, which move or flush a torrent, wait for all workers.
+ *
+ * Jobs holding memory, which are writes of received blocks, count towards a limit,
+ * and a swarm stops reading from the network while the queue is full, so
+ * a slow disk does not make received blocks pile up in memory.
+ *
+ * Is thread safe.
+ */
+public class DiskJobQueue {
+
+    /**
+     * Number of bytes queued jobs may hold by default.
+     */
+    public final static long DEFAULT_MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Worker of each queue, each with one thread.
+     */
+    private ExecutorService[] workers;
+
+    /**
+     * Number of bytes held by queued jobs.
+     */
+    private AtomicLong queuedBytes;
+
+    /**
+     * Number of bytes queued jobs may hold before queue is full.
+     */
+    private long maxQueuedBytes;
+
+    /**
+     * Constructor
+     * @param numberOfWorkers number of worker threads
+     * @param maxQueuedBytes number of bytes queued jobs may hold before queue is full
+     * @throws IllegalArgumentException if number of workers is not positive
+     */
+    public DiskJobQueue(int numberOfWorkers, long maxQueuedBytes) {
+
+        if(numberOfWorkers <= 0)
+            throw new IllegalArgumentException();
+
+        this.workers = new ExecutorService[numberOfWorkers];
+        this.queuedBytes = new AtomicLong(0);
+        this.maxQueuedBytes = maxQueuedBytes;
+
+        for(int i = 0;i < numberOfWorkers;i++) {
+
+            final String name = "Disk worker " + i;
+
+            workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+
+                    Thread t = new Thread(r, name);
+
+                    // Pending writes are not kept alive past client
+                    t.setDaemon(true);
+
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Submits job, which is performed on a worker, after which
+     * a DiskJobCompletedEvent is posted to the handler.
+     * @param job job
+     * @param handler handler of completion, is called on the worker
+     */
+    synchronized public void submit(final DiskJob job, final DiskEventHandler handler) {
+
+        queuedBytes.addAndGet(job.getQueuedBytes());
+
+        if(job.isBarrier()) {
+            submitBarrier(job, handler);
+            return;
+        }
+
+        // Spread pieces of different torrents over workers
+        int h = 31 * System.identityHashCode(job.getDiskManager()) + job.getOrderingKey();
+
+        workers[(h & Integer.MAX_VALUE) % workers.length].execute(new Runnable() {
+
+            @Override
+            public void run() {
+                perform(job, handler);
+            }
+        });
+    }
+
+    /**
+     * Submits barrier job to all workers, the last worker to reach it performs it,
+     * while the others wait for it to be done. Is only called with the lock of the
+     * queue held, so barriers are queued in the same order on every worker, otherwise
+     * workers could each wait on a different barrier, which would never complete.
+     */
+    private void submitBarrier(final DiskJob job, final DiskEventHandler handler) {
+
+        final AtomicInteger remaining = new AtomicInteger(workers.length);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Runnable barrier = new Runnable() {
+
+            @Override
+            public void run() {
+
+                if(remaining.decrementAndGet() == 0) {
+                    perform(job, handler);
+                    done.countDown();
+                    return;
+                }
+
+                try {
+                    done.await();
+                } catch(InterruptedException e) {
+                    // Only happens when pool is shut down
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        for(ExecutorService w: workers)
+            w.execute(barrier);
+    }
+
+    private void perform(DiskJob job, DiskEventHandler handler) {
+
+        try {
+            job.perform();
+        } catch(IOException e) {
+            job.setException(e);
+        } catch(RuntimeException e) {
+            job.setException(new IOException(e));
+        }
+
+        queuedBytes.addAndGet(-job.getQueuedBytes());
+
+        handler.diskEventHandler(new DiskJobCompletedEvent(job));
+    }
+
+    /**
+     * Whether queued jobs hold as many bytes as allowed, in which case
+     * no more blocks should be read from the network.
+     * @return true iff queue is full
+     */
+    public boolean isFull() {
+        return queuedBytes.get() >= maxQueuedBytes;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public int getNumberOfWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Stops workers after all submitted jobs are performed.
+     */
+    public void shutdown() {
+
+        for(ExecutorService w: workers)
+            w.shutdown();
+    }
+}
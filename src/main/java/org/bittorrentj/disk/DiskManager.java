@@ -1,48 +1,741 @@
 package org.bittorrentj.disk;
 
-import org.bittorrentj.swarm.Connection;
+import org.bittorrentj.message.field.Hash;
 import org.bittorrentj.torrent.Info;
+import org.bittorrentj.torrent.InfoHasher;
+import org.bittorrentj.torrent.MetaInfoLoader;
+import org.bittorrentj.torrent.MultpleFileInfo;
 import org.bittorrentj.torrent.SingleFileInfo;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Created by bedeho on 14.09.2014.
+ *
+ * Storage of a torrent, which reads and writes blocks through memory mapped
+ * windows of the files of the torrent.
+ *
+ * A table with the span of each piece in each file it overlaps is built up front,
+ * so a block is located without searching, and a block crossing file boundaries
+ * is copied directly between the network buffers and the mappings of each file,
+ * without an intermediate copy. Files are mapped in fixed size windows, and only a
+ * bounded number of windows are mapped, and files open, at once, the least recently
+ * used are dropped beyond that, so a very large torrent exhausts neither address
+ * space nor file descriptors. Dropped windows are unmapped right away rather than
+ * when collected, modified pages are written back by the operating system either way.
+ *
+ * All methods may block on disk, hence a swarm does not call them from its own
+ * thread, but submits jobs to a DiskJobQueue, whose workers call them. Only finding
+ * and mapping windows is synchronized, so blocks are copied in parallel. Windows are
+ * reference counted, so a dropped window stays mapped until all copies into it are done.
  */
-public class DiskManager extends Thread {
+public class DiskManager {
 
-    class Piece {
+    /**
+     * Byte length of mapped windows, windows start at multiples of it in each file.
+     */
+    private final static long WINDOW_SIZE = 32 * 1024 * 1024;
 
-    }
+    /**
+     * Maximum number of windows mapped at once.
+     */
+    private final static int MAX_MAPPED_WINDOWS = 32;
+
+    /**
+     * Maximum number of files open at once.
+     */
+    private final static int MAX_OPEN_FILES = 64;
+
+    /**
+     * Info dictionary of torrent.
+     */
+    private Info info;
+
+    /**
+     * Directory where torrent is stored.
+     */
+    private File directory;
+
+    /**
+     * Files of torrent, in the order in which they
+     * are concatenated into the byte space of the torrent.
+     */
+    private File[] files;
+
+    /**
+     * Offset in byte space of torrent where each file starts,
+     * followed by total length of torrent, hence there is one more element than
+     * there are files.
+     */
+    private long[] fileOffsets;
+
+    /**
+     * Where each piece is stored.
+     */
+    private Piece[] pieces;
+
+    /**
+     * Channel of each open file, in order of least recent use.
+     */
+    private LinkedHashMap<Integer, FileChannel> channels;
+
+    /**
+     * Mapped window of a file.
+     */
+    private static class Window {
+
+        /**
+         * Mapping of window.
+         */
+        MappedByteBuffer buffer;
+
+        /**
+         * Position in file where window starts.
+         */
+        long start;
 
-    // MappedByteBuffer <-- memory mapped
+        /**
+         * Number of holders of window, which are the manager until it drops the
+         * window, and each copy in progress, window is unmapped when there are none.
+         */
+        int references;
 
-    private HashMap<Integer, Piece> piecePool;
+        Window(MappedByteBuffer buffer, long start) {
+            this.buffer = buffer;
+            this.start = start;
+            this.references = 1;
+        }
+
+        /**
+         * View of the part of the file starting at given position which is in this window.
+         * @param position position in file, within window
+         * @param count maximum number of bytes
+         * @return view, with remaining bytes being the part
+         */
+        ByteBuffer getRegion(long position, long count) {
+
+            int offset = (int)(position - start);
+            int n = (int)Math.min(count, buffer.capacity() - offset);
+
+            // Window is shared, so it is never repositioned
+            ByteBuffer region = buffer.duplicate();
+            region.limit(offset + n);
+            region.position(offset);
+
+            return region;
+        }
+    }
+
+    /**
+     * Mapped windows, by file index in upper and window index in lower
+     * half of key, in order of least recent use.
+     */
+    private LinkedHashMap<Long, Window> windows;
 
-    public DiskManager(Info info) {
+    /**
+     * Constructor
+     * @param info info dictionary of torrent
+     * @param directory directory where torrent is stored, in multiple file mode
+     *                  files are stored in a subdirectory with name of torrent
+     * @throws IllegalArgumentException if name or a file path leads outside of directory
+     */
+    public DiskManager(Info info, File directory) {
 
-        piecePool = new HashMap<Integer, Piece>();
+        this.info = info;
+        this.directory = directory;
 
         if(info instanceof SingleFileInfo) {
 
+            SingleFileInfo singleFileInfo = (SingleFileInfo)info;
+
+            checkName(singleFileInfo.getName());
+
+            this.files = new File[] {new File(directory, singleFileInfo.getName())};
+            this.fileOffsets = new long[] {0, singleFileInfo.getLength()};
+
         } else {
 
+            MultpleFileInfo multpleFileInfo = (MultpleFileInfo)info;
+            ArrayList<MultpleFileInfo.SingleFileAmongManyInfo> fileInfos = multpleFileInfo.getFiles();
+
+            checkName(multpleFileInfo.getName());
+
+            File root = new File(directory, multpleFileInfo.getName());
+
+            this.files = new File[fileInfos.size()];
+            this.fileOffsets = new long[fileInfos.size() + 1];
+
+            long offset = 0;
+            for(int i = 0;i < files.length;i++) {
+
+                MultpleFileInfo.SingleFileAmongManyInfo f = fileInfos.get(i);
+
+                // Do not let a hostile torrent write outside of its directory
+                for(String element : f.path.split("/", -1))
+                    if(!MetaInfoLoader.isValidPathElement(element))
+                        throw new IllegalArgumentException("Illegal file path: " + f.path);
+
+                files[i] = new File(root, f.path);
+                fileOffsets[i] = offset;
+
+                offset += f.length;
+            }
+
+            fileOffsets[files.length] = offset;
+        }
+
+        this.pieces = buildPieces();
+        this.channels = new LinkedHashMap<Integer, FileChannel>(16, 0.75f, true);
+
+        // Dropped window is unmapped once copies into it are done
+        this.windows = new LinkedHashMap<Long, Window>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Window> eldest) {
+
+                if(size() <= MAX_MAPPED_WINDOWS)
+                    return false;
+
+                release(eldest.getValue());
+
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Checks that name of torrent does not lead outside of directory.
+     */
+    private static void checkName(String name) {
+
+        if(name == null || !MetaInfoLoader.isValidPathElement(name))
+            throw new IllegalArgumentException("Illegal name: " + name);
+    }
+
+    /**
+     * Builds table of where each piece is stored.
+     * @return pieces
+     */
+    private Piece[] buildPieces() {
+
+        int pieceLength = info.getPieceLength();
+        long totalLength = fileOffsets[files.length];
+
+        Piece[] result = new Piece[(int)((totalLength + pieceLength - 1) / pieceLength)];
+
+        int file = 0;
+        for(int i = 0;i < result.length;i++) {
+
+            long start = (long)i * pieceLength;
+            int length = (int)Math.min(pieceLength, totalLength - start);
+            long end = start + length;
+
+            // Skip files ending before piece, which includes empty files
+            while(fileOffsets[file + 1] <= start)
+                file++;
+
+            if(end <= fileOffsets[file + 1]) {
+                result[i] = new WithinFilePiece(i, length, file, start - fileOffsets[file]);
+                continue;
+            }
+
+            // Count non-empty files spanned
+            int numberOfSpans = 0;
+            for(int f = file;fileOffsets[f] < end;f++)
+                if(fileOffsets[f + 1] > fileOffsets[f])
+                    numberOfSpans++;
+
+            int[] fileIndexes = new int[numberOfSpans];
+            long[] filePositions = new long[numberOfSpans];
+            int[] spanLengths = new int[numberOfSpans];
+
+            int span = 0;
+            for(int f = file;fileOffsets[f] < end;f++) {
+
+                if(fileOffsets[f + 1] == fileOffsets[f])
+                    continue;
+
+                long spanStart = Math.max(start, fileOffsets[f]);
+                long spanEnd = Math.min(end, fileOffsets[f + 1]);
+
+                fileIndexes[span] = f;
+                filePositions[span] = spanStart - fileOffsets[f];
+                spanLengths[span] = (int)(spanEnd - spanStart);
+                span++;
+            }
+
+            result[i] = new AcrossFilePiece(i, length, fileIndexes, filePositions, spanLengths);
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes a full piece.
+     * @param index piece index
+     * @param src piece, all remaining bytes are written
+     * @throws IOException if a file cannot be opened or mapped
+     * @throws IllegalArgumentException if length of piece is wrong
+     */
+    public void writePiece(int index, ByteBuffer src) throws IOException {
+
+        if(index >= 0 && index < pieces.length && src.remaining() != pieces[index].getLength())
+            throw new IllegalArgumentException();
+
+        writeBlock(index, 0, new ByteBuffer[] {src});
+    }
+
+    /**
+     * Reads a full piece.
+     * @param index piece index
+     * @param dst buffer, with sufficient space remaining
+     * @throws IOException if a file cannot be opened or mapped
+     * @throws IllegalArgumentException if piece is not within torrent, or buffer is too small
+     */
+    public void readPiece(int index, ByteBuffer dst) throws IOException {
+
+        if(index < 0 || index >= pieces.length || dst.remaining() < pieces[index].getLength())
+            throw new IllegalArgumentException();
+
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + pieces[index].getLength());
+
+        readBlock(index, 0, view);
+
+        dst.position(view.position());
+    }
+
+    /**
+     * Writes a block, gathered from several buffers, such as the
+     * segments of a received piece message.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param src buffers, all remaining bytes are written, in order
+     * @throws IOException if a file cannot be opened or mapped
+     * @throws IllegalArgumentException if block is not within piece
+     */
+    public void writeBlock(int index, int begin, ByteBuffer[] src) throws IOException {
+        transfer(index, begin, src, true);
+    }
+
+    /**
+     * Reads a block, which fills remaining space of buffer.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param dst buffer
+     * @throws IOException if a file cannot be opened or mapped
+     * @throws IllegalArgumentException if block is not within piece
+     */
+    public void readBlock(int index, int begin, ByteBuffer dst) throws IOException {
+        readBlock(index, begin, new ByteBuffer[] {dst});
+    }
+
+    /**
+     * Reads a block, scattered into remaining space of several buffers.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param dst buffers, filled in order
+     * @throws IOException if a file cannot be opened or mapped
+     * @throws IllegalArgumentException if block is not within piece
+     */
+    public void readBlock(int index, int begin, ByteBuffer[] dst) throws IOException {
+        transfer(index, begin, dst, false);
+    }
+
+    /**
+     * Sends a block straight from the files where it is stored to a channel with
+     * FileChannel.transferTo, so it is neither mapped nor copied through a buffer. Stops
+     * early once the channel takes no more, as a non-blocking socket does when full.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     * @param target channel
+     * @return number of bytes sent, which are the first bytes of the block
+     * @throws IOException if a file cannot be opened or is too short, or writing to channel fails
+     * @throws IllegalArgumentException if block is not within piece
+     */
+    public long transferBlock(int index, int begin, int length, WritableByteChannel target) throws IOException {
+
+        if(index < 0 || index >= pieces.length || begin < 0 || length < 0 || (long)begin + length > pieces[index].getLength())
+            throw new IllegalArgumentException();
+
+        Piece piece = pieces[index];
+        long end = (long)begin + length;
+        long spanStart = 0;
+        long transferred = 0;
+
+        for(int span = 0;span < piece.getNumberOfSpans();span++) {
+
+            long spanEnd = spanStart + piece.getSpanLength(span);
+
+            // Part of block within this span
+            long from = Math.max(begin, spanStart);
+            long to = Math.min(end, spanEnd);
+
+            if(from < to) {
+
+                long n = transferFromFile(piece.getFileIndex(span), piece.getFilePosition(span) + from - spanStart, to - from, target);
+
+                transferred += n;
+
+                // Channel can take no more for now
+                if(n < to - from)
+                    break;
+            }
+
+            spanStart = spanEnd;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Sends part of a file to a channel, until it is sent or the channel takes no more.
+     * @param fileIndex index of file
+     * @param position position in file
+     * @param count number of bytes
+     * @param target channel
+     * @return number of bytes sent
+     * @throws IOException if file cannot be opened or is too short, or writing to channel fails
+     */
+    private long transferFromFile(int fileIndex, long position, long count, WritableByteChannel target) throws IOException {
+
+        long transferred = 0;
+
+        while(transferred < count) {
+
+            FileChannel channel = getChannel(fileIndex);
+            long n;
+
+            try {
+                n = channel.transferTo(position + transferred, count - transferred, target);
+            } catch(ClosedChannelException e) {
+
+                // File was closed by another worker to stay within limit of open files, so it is opened again
+                if(!channel.isOpen() && target.isOpen())
+                    continue;
+
+                throw e;
+            }
+
+            if(n == 0) {
+
+                // Nothing is sent past end of file, which would otherwise be tried forever
+                if(position + transferred >= channel.size())
+                    throw new IOException("File is shorter than torrent: " + files[fileIndex]);
+
+                break;
+            }
+
+            transferred += n;
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Copies block between buffers and mapped windows of each file it is stored in.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param buffers buffers, the block is the remaining bytes of all of them
+     * @param write whether buffers are written to files, rather than read from
+     * @throws IOException if a file cannot be opened or mapped
+     * @throws IllegalArgumentException if block is not within piece
+     */
+    private void transfer(int index, int begin, ByteBuffer[] buffers, boolean write) throws IOException {
+
+        long length = 0;
+        for(ByteBuffer b: buffers)
+            length += b.remaining();
+
+        if(index < 0 || index >= pieces.length || begin < 0 || begin + length > pieces[index].getLength())
+            throw new IllegalArgumentException();
+
+        Piece piece = pieces[index];
+        long end = begin + length;
+        long spanStart = 0;
+
+        for(int span = 0;span < piece.getNumberOfSpans();span++) {
+
+            long spanEnd = spanStart + piece.getSpanLength(span);
+
+            // Part of block within this span
+            long from = Math.max(begin, spanStart);
+            long to = Math.min(end, spanEnd);
+
+            if(from < to)
+                transfer(piece.getFileIndex(span), piece.getFilePosition(span) + from - spanStart, to - from, buffers, write);
+
+            spanStart = spanEnd;
+        }
+    }
+
+    /**
+     * Copies part of a file between buffers and the mapped windows of the file.
+     * @param fileIndex index of file
+     * @param position position in file
+     * @param count number of bytes
+     * @param buffers buffers, copying starts at the first with bytes remaining
+     * @param write whether buffers are written to file, rather than read from
+     * @throws IOException if file cannot be opened or mapped
+     */
+    private void transfer(int fileIndex, long position, long count, ByteBuffer[] buffers, boolean write) throws IOException {
+
+        while(count > 0) {
+
+            Window window = acquireWindow(fileIndex, position);
+
+            try {
+
+                ByteBuffer region = window.getRegion(position, count);
+                int n = region.remaining();
+
+                int i = 0;
+                while(region.hasRemaining()) {
+
+                    ByteBuffer b = buffers[i];
+
+                    if(!b.hasRemaining()) {
+                        i++;
+                        continue;
+                    }
+
+                    int m = Math.min(b.remaining(), region.remaining());
+
+                    if(write) {
+
+                        int oldLimit = b.limit();
+                        b.limit(b.position() + m);
+                        region.put(b);
+                        b.limit(oldLimit);
+
+                    } else {
+
+                        int oldLimit = region.limit();
+                        region.limit(region.position() + m);
+                        b.put(region);
+                        region.limit(oldLimit);
+                    }
+                }
+
+                position += n;
+                count -= n;
+
+            } finally {
+                release(window);
+            }
+        }
+    }
+
+    /**
+     * Computes SHA1 hash of a piece, directly over the mapped windows where it is stored.
+     * Must not run at the same time as writes to piece.
+     * @param index piece index
+     * @return hash
+     * @throws IOException if a file cannot be opened or mapped
+     * @throws IllegalArgumentException if piece is not within torrent
+     */
+    public Hash hashPiece(int index) throws IOException {
+
+        if(index < 0 || index >= pieces.length)
+            throw new IllegalArgumentException();
+
+        Piece piece = pieces[index];
+        MessageDigest digest = InfoHasher.getDigest();
+
+        for(int span = 0;span < piece.getNumberOfSpans();span++) {
+
+            long position = piece.getFilePosition(span);
+            long count = piece.getSpanLength(span);
+
+            while(count > 0) {
+
+                Window window = acquireWindow(piece.getFileIndex(span), position);
+
+                try {
+
+                    ByteBuffer region = window.getRegion(position, count);
+                    int n = region.remaining();
+
+                    digest.update(region);
+
+                    position += n;
+                    count -= n;
+
+                } finally {
+                    release(window);
+                }
+            }
+        }
+
+        return new Hash(digest.digest());
+    }
+
+    /**
+     * Mapped window of a file holding given position, which is mapped if needed,
+     * possibly dropping the least recently used window. The window stays mapped until
+     * it is released. The last window of a file is shorter.
+     * @param fileIndex index of file
+     * @param position position in file
+     * @return window, which must be released once it is no longer used
+     * @throws IOException if file cannot be opened or mapped
+     */
+    synchronized private Window acquireWindow(int fileIndex, long position) throws IOException {
+
+        long windowIndex = position / WINDOW_SIZE;
+        Long key = ((long)fileIndex << 32) | windowIndex;
+        Window window = windows.get(key);
+
+        if(window == null) {
+
+            long start = windowIndex * WINDOW_SIZE;
+            long fileLength = fileOffsets[fileIndex + 1] - fileOffsets[fileIndex];
+
+            // Mapping extends file to its full length if needed
+            window = new Window(getChannel(fileIndex).map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, fileLength - start)), start);
+
+            windows.put(key, window);
+        }
+
+        window.references++;
+
+        return window;
+    }
+
+    /**
+     * Releases window, which is unmapped if it has been dropped,
+     * and it is not used by anyone else.
+     * @param window window
+     */
+    synchronized private void release(Window window) {
+
+        if(--window.references == 0)
+            Unmapper.unmap(window.buffer);
+    }
+
+    /**
+     * Channel of given file, which is opened, and created along with
+     * its parent directories, if needed. The least recently used
+     * file is closed if too many are open.
+     * @param fileIndex index of file
+     * @return channel
+     * @throws IOException if file cannot be opened
+     */
+    synchronized FileChannel getChannel(int fileIndex) throws IOException {
+
+        FileChannel channel = channels.get(fileIndex);
+
+        if(channel != null)
+            return channel;
+
+        if(channels.size() >= MAX_OPEN_FILES) {
+
+            // Mappings stay valid when their channel is closed
+            Iterator<FileChannel> eldest = channels.values().iterator();
+            FileChannel c = eldest.next();
+            eldest.remove();
+            c.close();
         }
 
+        File f = files[fileIndex];
+        File parent = f.getParentFile();
+
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create directory " + parent);
+
+        channel = new RandomAccessFile(f, "rw").getChannel();
+        channels.put(fileIndex, channel);
+
+        return channel;
     }
 
-    synchronized public void writePiece(ByteBuffer src, int index) {
+    /**
+     * Writes all modified content of mapped windows and open files to storage.
+     * @throws IOException if content cannot be written
+     */
+    synchronized public void flush() throws IOException {
 
+        for(Window window: windows.values())
+            window.buffer.force();
+
+        for(FileChannel channel: channels.values())
+            channel.force(false);
     }
 
     /**
-     *
-     * @param dst
-     * @param index
-     * @param connection
+     * Moves all files of torrent to another directory, files
+     * which have not been created yet are created there later.
+     * @param newDirectory directory
+     * @throws IOException if a file cannot be moved, files moved before it stay moved
      */
-    synchronized public void readPiece(ByteBuffer dst, int index, Connection connection) {
+    synchronized public void moveTo(File newDirectory) throws IOException {
+
+        close();
+
+        for(int i = 0;i < files.length;i++) {
+
+            File moved = newDirectory.toPath().resolve(directory.toPath().relativize(files[i].toPath())).toFile();
+
+            if(files[i].exists()) {
+
+                File parent = moved.getParentFile();
+
+                if(parent != null && !parent.isDirectory() && !parent.mkdirs())
+                    throw new IOException("Could not create directory " + parent);
+
+                Files.move(files[i].toPath(), moved.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            files[i] = moved;
+        }
+
+        directory = newDirectory;
+    }
+
+    /**
+     * Where a piece is stored.
+     * @param index piece index
+     * @return piece
+     */
+    public Piece getPiece(int index) {
+        return pieces[index];
+    }
+
+    public int getNumberOfPieces() {
+        return pieces.length;
+    }
+
+    /**
+     * Writes all modified content to storage, drops all
+     * windows and closes all open files.
+     * @throws IOException if content cannot be written, or a file cannot be closed
+     */
+    synchronized public void close() throws IOException {
+
+        flush();
+
+        for(Window window: windows.values())
+            release(window);
+
+        windows.clear();
+
+        for(FileChannel channel: channels.values())
+            channel.close();
 
+        channels.clear();
     }
 }
@@ -0,0 +1,97 @@
+package org.bittorrentj.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Job writing the blocks of a partial piece which a write cache evicts,
+ * with one gathered write per run of consecutive blocks.
+ */
+public class FlushBlocksJob extends DiskJob {
+
+    private int index;
+
+    /**
+     * Byte length of blocks, all but the last block of the piece have this length.
+     */
+    private int blockSize;
+
+    /**
+     * Block of each slot of piece, or null where block is not held.
+     */
+    private ByteBuffer[] blocks;
+
+    /**
+     * Number of bytes of memory held by blocks.
+     */
+    private long heldBytes;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param index piece index
+     * @param blockSize byte length of blocks
+     * @param blocks block of each slot of piece, or null where block is not held, which are not altered
+     */
+    public FlushBlocksJob(DiskManager diskManager, int index, int blockSize, ByteBuffer[] blocks) {
+        super(diskManager);
+
+        this.index = index;
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+        this.heldBytes = 0;
+
+        for(ByteBuffer b: blocks)
+            if(b != null)
+                heldBytes += b.capacity();
+    }
+
+    @Override
+    void perform() throws IOException {
+
+        int start = 0;
+
+        while(start < blocks.length) {
+
+            if(blocks[start] == null) {
+                start++;
+                continue;
+            }
+
+            int end = start;
+            while(end < blocks.length && blocks[end] != null)
+                end++;
+
+            ByteBuffer[] run = new ByteBuffer[end - start];
+
+            for(int i = start;i < end;i++)
+                run[i - start] = blocks[i].duplicate();
+
+            getDiskManager().writeBlock(index, start * blockSize, run);
+
+            start = end;
+        }
+    }
+
+    @Override
+    int getOrderingKey() {
+        return index;
+    }
+
+    @Override
+    long getQueuedBytes() {
+        return heldBytes;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Blocks held by job.
+     * @return block of each slot of piece, or null where block is not held
+     */
+    public ByteBuffer[] getBlocks() {
+        return blocks;
+    }
+}
@@ -0,0 +1,28 @@
+package org.bittorrentj.disk;
+
+import java.io.IOException;
+
+/**
+ * Job writing all modified content of a torrent to storage, after
+ * all jobs submitted before it are performed.
+ */
+public class FlushJob extends DiskJob {
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     */
+    public FlushJob(DiskManager diskManager) {
+        super(diskManager);
+    }
+
+    @Override
+    void perform() throws IOException {
+        getDiskManager().flush();
+    }
+
+    @Override
+    boolean isBarrier() {
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.message.field.Hash;
+
+import java.io.IOException;
+
+/**
+ * Job computing SHA1 hash of a piece as stored, it is performed
+ * after all writes to the piece submitted before it.
+ */
+public class HashPieceJob extends DiskJob {
+
+    private int index;
+
+    /**
+     * Hash of piece, or null until job is performed.
+     */
+    private Hash hash;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param index piece index
+     */
+    public HashPieceJob(DiskManager diskManager, int index) {
+        super(diskManager);
+
+        this.index = index;
+        this.hash = null;
+    }
+
+    @Override
+    void perform() throws IOException {
+        setHash(getDiskManager().hashPiece(index));
+    }
+
+    @Override
+    int getOrderingKey() {
+        return index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Hash getHash() {
+        return hash;
+    }
+
+    void setHash(Hash hash) {
+        this.hash = hash;
+    }
+}
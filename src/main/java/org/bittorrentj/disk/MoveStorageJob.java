@@ -0,0 +1,37 @@
+package org.bittorrentj.disk;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Job moving all files of a torrent to another directory.
+ */
+public class MoveStorageJob extends DiskJob {
+
+    private File directory;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param directory directory files are moved to
+     */
+    public MoveStorageJob(DiskManager diskManager, File directory) {
+        super(diskManager);
+
+        this.directory = directory;
+    }
+
+    @Override
+    void perform() throws IOException {
+        getDiskManager().moveTo(directory);
+    }
+
+    @Override
+    boolean isBarrier() {
+        return true;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+}
@@ -1,7 +1,65 @@
 package org.bittorrentj.disk;
 
 /**
- * Created by bedeho on 20.09.2014.
+ * Where a piece of a torrent is stored in the files of the torrent, as
+ * one span per file the piece overlaps, in the order of the byte space of the torrent.
+ * Empty files never have a span.
  */
-public class Piece {
+public abstract class Piece {
+
+    /**
+     * Zero-based piece index.
+     */
+    private int index;
+
+    /**
+     * Byte length of piece.
+     */
+    private int length;
+
+    /**
+     * Constructor
+     * @param index piece index
+     * @param length byte length of piece
+     */
+    Piece(int index, int length) {
+
+        this.index = index;
+        this.length = length;
+    }
+
+    /**
+     * Number of files piece is stored in.
+     * @return number of spans
+     */
+    public abstract int getNumberOfSpans();
+
+    /**
+     * Index of file a span is stored in.
+     * @param span span
+     * @return file index
+     */
+    public abstract int getFileIndex(int span);
+
+    /**
+     * Position in file where a span starts.
+     * @param span span
+     * @return position
+     */
+    public abstract long getFilePosition(int span);
+
+    /**
+     * Byte length of a span.
+     * @param span span
+     * @return byte length
+     */
+    public abstract int getSpanLength(int span);
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getLength() {
+        return length;
+    }
 }
@@ -0,0 +1,95 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.torrent.InfoHasher;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * Incremental SHA1 hash of a piece being downloaded.
+ *
+ * A block is fed to the digest as soon as all blocks before it have arrived, blocks
+ * arriving out of order are held until then, so the hash is ready when the last
+ * block arrives, rather than the piece being hashed in full once complete.
+ *
+ * Blocks are held by reference, not copied, hence they must not be
+ * altered until they are hashed. Is not thread safe.
+ */
+public class PieceHasher {
+
+    /**
+     * Digest blocks are fed to, which is owned by hasher, since the digest of
+     * the thread would be shared by all pieces being hashed.
+     */
+    private MessageDigest digest;
+
+    /**
+     * Blocks received out of order which are not hashed yet, by block number.
+     */
+    private ByteBuffer[] pending;
+
+    /**
+     * First block which is not hashed, all blocks before it are.
+     */
+    private int nextBlock;
+
+    /**
+     * Hash of piece, or null until all blocks are hashed.
+     */
+    private Hash hash;
+
+    /**
+     * Constructor
+     * @param numberOfBlocks number of blocks in piece
+     */
+    public PieceHasher(int numberOfBlocks) {
+
+        this.digest = InfoHasher.newDigest();
+        this.pending = new ByteBuffer[numberOfBlocks];
+        this.nextBlock = 0;
+        this.hash = null;
+    }
+
+    /**
+     * Registers received block, which is hashed along with any held blocks following it
+     * once all blocks before it are hashed. A block received again is ignored.
+     * @param block block number
+     * @param b block, between position and limit, which is not altered
+     */
+    public void blockReceived(int block, ByteBuffer b) {
+
+        if(block < nextBlock || pending[block] != null)
+            return;
+
+        pending[block] = b.duplicate();
+
+        while(nextBlock < pending.length && pending[nextBlock] != null) {
+            digest.update(pending[nextBlock]);
+            pending[nextBlock++] = null;
+        }
+
+        if(nextBlock == pending.length)
+            hash = new Hash(digest.digest());
+    }
+
+    /**
+     * Hash of piece.
+     * @return hash, or null if not all blocks have been received
+     */
+    public Hash getHash() {
+        return hash;
+    }
+
+    /**
+     * Number of blocks hashed, which are the blocks before the first missing block.
+     * @return number of blocks
+     */
+    public int getNumberOfHashedBlocks() {
+        return nextBlock;
+    }
+
+    public boolean isComplete() {
+        return hash != null;
+    }
+}
@@ -0,0 +1,92 @@
+package org.bittorrentj.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Job reading a block into a new buffer.
+ */
+public class ReadBlockJob extends DiskJob {
+
+    private int index;
+
+    private int begin;
+
+    private int length;
+
+    /**
+     * Whether block is read into a direct buffer.
+     */
+    private boolean direct;
+
+    /**
+     * Block read, or null until job is performed.
+     */
+    private ByteBuffer block;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     */
+    public ReadBlockJob(DiskManager diskManager, int index, int begin, int length) {
+        this(diskManager, index, begin, length, false);
+    }
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     * @param direct whether block is read into a direct buffer, which is
+     *               written to a socket without being copied again
+     */
+    public ReadBlockJob(DiskManager diskManager, int index, int begin, int length, boolean direct) {
+        super(diskManager);
+
+        this.index = index;
+        this.begin = begin;
+        this.length = length;
+        this.direct = direct;
+        this.block = null;
+    }
+
+    @Override
+    void perform() throws IOException {
+
+        ByteBuffer b = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+
+        getDiskManager().readBlock(index, begin, b);
+        b.flip();
+
+        block = b;
+    }
+
+    @Override
+    int getOrderingKey() {
+        return index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Block read.
+     * @return buffer with block between position and limit, or null if job failed
+     */
+    public ByteBuffer getBlock() {
+        return block;
+    }
+}
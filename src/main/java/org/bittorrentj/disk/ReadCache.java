@@ -0,0 +1,394 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.disk.event.DiskEventHandler;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read cache of whole pieces of a torrent, for seeding, which is shared by all
+ * connections of a swarm, so a popular piece is read from disk once rather than
+ * once per requested block and peer.
+ *
+ * The first request of a piece which is not cached loads the full piece in a
+ * ReadBlockJob, so the rest of the piece is prefetched for the requests which follow.
+ * Pieces are held in direct buffers, so blocks are written to sockets straight from them.
+ * Memory is bounded, and eviction is segmented LRU, which takes frequency into
+ * account: a loaded piece is put on probation, and is only protected once it is
+ * read again, that is a block is asked for which does not follow the last one served,
+ * as when a second peer reads the piece. The least recently requested piece is evicted,
+ * but a protected piece is moved back to probation first, so a sweep over many pieces
+ * read once does not push out the popular pieces, while pieces in use by peers stay.
+ *
+ * Is not thread safe, it is only used by the thread of a swarm, which passes
+ * completed jobs back to the cache.
+ */
+public class ReadCache {
+
+    /**
+     * Memory (bytes) held by a cache by default.
+     */
+    public final static long DEFAULT_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * Share (%) of memory protected pieces may hold.
+     */
+    private final static int PROTECTED_SHARE = 80;
+
+    /**
+     * Piece held in cache.
+     */
+    private static class CachedPiece {
+
+        /**
+         * Content of piece.
+         */
+        ByteBuffer content;
+
+        /**
+         * Byte offset of last block served.
+         */
+        int lastBegin;
+
+        /**
+         * Number of requests made of cache when piece was last requested.
+         */
+        long lastRequested;
+
+        CachedPiece(ByteBuffer content, long lastRequested) {
+            this.content = content;
+            this.lastBegin = -1;
+            this.lastRequested = lastRequested;
+        }
+    }
+
+    /**
+     * Storage of torrent.
+     */
+    private DiskManager diskManager;
+
+    /**
+     * Queue jobs are submitted to.
+     */
+    private DiskJobQueue diskJobQueue;
+
+    /**
+     * Handler of completions of submitted jobs.
+     */
+    private DiskEventHandler handler;
+
+    /**
+     * Maximum number of bytes held.
+     */
+    private long maxBytes;
+
+    /**
+     * Pieces requested once since loaded, and pieces requested more than once,
+     * by piece index, in order of least recent request.
+     */
+    private LinkedHashMap<Integer, CachedPiece> probationPieces;
+    private LinkedHashMap<Integer, CachedPiece> protectedPieces;
+
+    /**
+     * Number of bytes held by pieces on probation, and protected pieces.
+     */
+    private long probationBytes;
+    private long protectedBytes;
+
+    /**
+     * Pieces being loaded.
+     */
+    private HashSet<Integer> loadingPieces;
+
+    /**
+     * Pieces which could not be loaded, which are not tried again until dropped.
+     */
+    private HashSet<Integer> failedPieces;
+
+    /**
+     * Number of blocks found in cache, and number of pieces which had to be loaded.
+     */
+    private long numberOfHits;
+    private long numberOfMisses;
+
+    /**
+     * Number of pieces evicted.
+     */
+    private long numberOfEvictions;
+
+    /**
+     * Number of requests made of cache, which orders requests across segments.
+     */
+    private long numberOfRequests;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param diskJobQueue queue jobs are submitted to
+     * @param handler handler of completions of jobs, which should pass them to jobCompleted()
+     * @param maxBytes maximum number of bytes held
+     */
+    public ReadCache(DiskManager diskManager, DiskJobQueue diskJobQueue, DiskEventHandler handler, long maxBytes) {
+
+        this.diskManager = diskManager;
+        this.diskJobQueue = diskJobQueue;
+        this.handler = handler;
+        this.maxBytes = maxBytes;
+        this.probationPieces = new LinkedHashMap<Integer, CachedPiece>(16, 0.75f, true);
+        this.protectedPieces = new LinkedHashMap<Integer, CachedPiece>(16, 0.75f, true);
+        this.probationBytes = 0;
+        this.protectedBytes = 0;
+        this.loadingPieces = new HashSet<Integer>();
+        this.failedPieces = new HashSet<Integer>();
+        this.numberOfHits = 0;
+        this.numberOfMisses = 0;
+        this.numberOfEvictions = 0;
+        this.numberOfRequests = 0;
+    }
+
+    /**
+     * Finds a block in cache, if its piece is not cached, the piece is loaded, and
+     * the block should be asked for again later, unless the piece is not readable.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     * @return read only view of block, or null if piece is not cached yet, or is not readable
+     * @throws IllegalArgumentException if block is not within piece
+     */
+    public ByteBuffer getBlock(int index, int begin, int length) {
+
+        if(index < 0 || index >= diskManager.getNumberOfPieces() || begin < 0 || length <= 0
+                || (long)begin + length > diskManager.getPiece(index).getLength())
+            throw new IllegalArgumentException();
+
+        numberOfRequests++;
+
+        CachedPiece piece = protectedPieces.get(index);
+
+        if(piece == null) {
+
+            piece = probationPieces.get(index);
+
+            // Piece is protected when it is read again
+            if(piece != null && begin <= piece.lastBegin) {
+                probationPieces.remove(index);
+                protect(index, piece);
+            }
+        }
+
+        if(piece == null) {
+
+            // Load full piece, unless it is already being loaded
+            if(!loadingPieces.contains(index) && isReadable(index)) {
+
+                loadingPieces.add(index);
+                numberOfMisses++;
+
+                diskJobQueue.submit(new ReadBlockJob(diskManager, index, 0, diskManager.getPiece(index).getLength(), true), handler);
+            }
+
+            return null;
+        }
+
+        numberOfHits++;
+        piece.lastBegin = begin;
+        piece.lastRequested = numberOfRequests;
+
+        ByteBuffer block = piece.content.asReadOnlyBuffer();
+        block.limit(begin + length);
+        block.position(begin);
+
+        return block;
+    }
+
+    /**
+     * Checks whether blocks of a piece can be served, which they can not if the
+     * piece does not fit in cache, or it could not be loaded, so requests for
+     * them should be rejected rather than wait.
+     * @param index piece index
+     * @return true iff piece is cached, or can be loaded
+     */
+    public boolean isReadable(int index) {
+        return !failedPieces.contains(index) && isCacheable(index);
+    }
+
+    /**
+     * Checks whether a piece fits in cache, blocks of a piece which
+     * does not must be read from storage some other way.
+     * @param index piece index
+     * @return true iff piece is no longer than cache
+     */
+    public boolean isCacheable(int index) {
+        return diskManager.getPiece(index).getLength() <= maxBytes;
+    }
+
+    /**
+     * Checks whether a piece is cached, or is being loaded.
+     * @param index piece index
+     * @return true iff piece is cached or being loaded
+     */
+    public boolean contains(int index) {
+        return probationPieces.containsKey(index) || protectedPieces.containsKey(index) || loadingPieces.contains(index);
+    }
+
+    /**
+     * Caches pieces loaded by completed jobs, all completed jobs
+     * submitted by cache must be passed here, other jobs are ignored.
+     * @param job job
+     */
+    public void jobCompleted(DiskJob job) {
+
+        if(!(job instanceof ReadBlockJob))
+            return;
+
+        ReadBlockJob read = (ReadBlockJob)job;
+
+        if(read.getBegin() != 0 || !loadingPieces.remove(read.getIndex()))
+            return;
+
+        // Piece is not loaded again, so requests for it do not wait forever
+        if(!read.isSuccessful()) {
+            failedPieces.add(read.getIndex());
+            return;
+        }
+
+        ByteBuffer content = read.getBlock();
+
+        probationPieces.put(read.getIndex(), new CachedPiece(content, numberOfRequests));
+        probationBytes += content.capacity();
+
+        evictUntilWithin(maxBytes);
+    }
+
+    /**
+     * Drops a piece, for when it is no longer valid.
+     * @param index piece index
+     */
+    public void pieceDropped(int index) {
+
+        CachedPiece piece = probationPieces.remove(index);
+
+        if(piece != null)
+            probationBytes -= piece.content.capacity();
+
+        piece = protectedPieces.remove(index);
+
+        if(piece != null)
+            protectedBytes -= piece.content.capacity();
+
+        // Piece loading is not cached when it completes
+        loadingPieces.remove(index);
+
+        // Piece may be loaded again once it is valid
+        failedPieces.remove(index);
+    }
+
+    /**
+     * Moves piece to protected segment, demoting least recently requested
+     * protected pieces to probation if segment is full.
+     */
+    private void protect(int index, CachedPiece piece) {
+
+        probationBytes -= piece.content.capacity();
+
+        protectedPieces.put(index, piece);
+        protectedBytes += piece.content.capacity();
+
+        while(protectedBytes > maxBytes * PROTECTED_SHARE / 100 && protectedPieces.size() > 1) {
+
+            Iterator<Map.Entry<Integer, CachedPiece>> i = protectedPieces.entrySet().iterator();
+            Map.Entry<Integer, CachedPiece> eldest = i.next();
+
+            i.remove();
+            protectedBytes -= eldest.getValue().content.capacity();
+
+            probationPieces.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().content.capacity();
+        }
+    }
+
+    /**
+     * Evicts least recently requested pieces until given number of bytes is held at most.
+     * When the least recently requested piece is protected, it gets a second chance, and is
+     * moved to probation rather than evicted, so pieces read once go first.
+     */
+    private void evictUntilWithin(long bytes) {
+
+        while(probationBytes + protectedBytes > bytes) {
+
+            CachedPiece eldestOnProbation = probationPieces.isEmpty() ? null : probationPieces.values().iterator().next();
+
+            Iterator<Map.Entry<Integer, CachedPiece>> i = protectedPieces.entrySet().iterator();
+
+            if(i.hasNext()) {
+
+                Map.Entry<Integer, CachedPiece> eldest = i.next();
+
+                if(eldestOnProbation == null || eldest.getValue().lastRequested < eldestOnProbation.lastRequested) {
+
+                    i.remove();
+                    protectedBytes -= eldest.getValue().content.capacity();
+
+                    probationPieces.put(eldest.getKey(), eldest.getValue());
+                    probationBytes += eldest.getValue().content.capacity();
+
+                    // Second chance counts from now
+                    eldest.getValue().lastRequested = numberOfRequests;
+                    continue;
+                }
+            }
+
+            i = probationPieces.entrySet().iterator();
+            probationBytes -= i.next().getValue().content.capacity();
+            i.remove();
+
+            numberOfEvictions++;
+        }
+    }
+
+    /**
+     * Share of lookups served from cache, where each hit is a block found, and
+     * each miss is a piece loaded, however many blocks waited for it.
+     * @return hit rate, between 0 and 1, or 0 if nothing has been asked for
+     */
+    public double getHitRate() {
+
+        long total = numberOfHits + numberOfMisses;
+
+        return total == 0 ? 0 : (double)numberOfHits / total;
+    }
+
+    public long getNumberOfHits() {
+        return numberOfHits;
+    }
+
+    public long getNumberOfMisses() {
+        return numberOfMisses;
+    }
+
+    public long getNumberOfEvictions() {
+        return numberOfEvictions;
+    }
+
+    public long getHeldBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets maximum number of bytes held, pieces are evicted right away if it is lowered.
+     * @param maxBytes number of bytes
+     */
+    public void setMaxBytes(long maxBytes) {
+
+        this.maxBytes = maxBytes;
+
+        evictUntilWithin(maxBytes);
+    }
+}
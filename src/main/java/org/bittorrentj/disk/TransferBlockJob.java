@@ -0,0 +1,76 @@
+package org.bittorrentj.disk;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Job sending a block, or the first part of it, straight from storage to a
+ * channel with FileChannel.transferTo. The channel belongs to the worker until the
+ * job is completed, so nothing else may write to it meanwhile.
+ */
+public class TransferBlockJob extends DiskJob {
+
+    private int index;
+
+    private int begin;
+
+    private int length;
+
+    /**
+     * Channel block is sent to.
+     */
+    private WritableByteChannel target;
+
+    /**
+     * Number of bytes sent, which may be less than length if channel took no more.
+     */
+    private long transferred;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length maximum number of bytes sent
+     * @param target channel
+     */
+    public TransferBlockJob(DiskManager diskManager, int index, int begin, int length, WritableByteChannel target) {
+        super(diskManager);
+
+        this.index = index;
+        this.begin = begin;
+        this.length = length;
+        this.target = target;
+        this.transferred = 0;
+    }
+
+    @Override
+    void perform() throws IOException {
+        transferred = getDiskManager().transferBlock(index, begin, length, target);
+    }
+
+    @Override
+    int getOrderingKey() {
+        return index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Number of bytes sent, which are the first bytes of the block.
+     * @return number of bytes
+     */
+    public long getTransferred() {
+        return transferred;
+    }
+}
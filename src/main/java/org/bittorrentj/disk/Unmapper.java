@@ -0,0 +1,87 @@
+package org.bittorrentj.disk;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Unmaps mapped buffers right away, rather than when they are collected,
+ * which may be long after they are dropped, so a torrent does not hold on to
+ * address space and files it no longer uses.
+ *
+ * There is no public API for this, so the cleaner of the buffer is run through
+ * reflection, with Unsafe.invokeCleaner() from Java 9, and the cleaner of the
+ * buffer itself before. If neither is available, buffers are left to be unmapped
+ * when collected.
+ *
+ * A buffer must not be accessed after it is unmapped, which would crash the
+ * virtual machine, hence callers must make sure no one uses it any more, including
+ * through buffers sharing its content.
+ */
+public class Unmapper {
+
+    /**
+     * Unsafe instance, and its invokeCleaner(), or null if not available.
+     */
+    private final static Object UNSAFE;
+    private final static Method INVOKE_CLEANER;
+
+    static {
+
+        Object unsafe = null;
+        Method invokeCleaner = null;
+
+        try {
+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+
+        } catch(Exception e) {
+            // Before Java 9, cleaner of buffer is used
+            unsafe = null;
+            invokeCleaner = null;
+        }
+
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Unmaps buffer, if possible.
+     * @param buffer buffer, which is not used afterwards
+     * @return true iff buffer was unmapped, otherwise it is unmapped when collected
+     */
+    public static boolean unmap(MappedByteBuffer buffer) {
+
+        try {
+
+            if(INVOKE_CLEANER != null)
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            else {
+
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+
+                Object cleaner = cleanerMethod.invoke(buffer);
+
+                // Buffers of length 0 have no cleaner
+                if(cleaner == null)
+                    return false;
+
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+
+            return true;
+
+        } catch(Exception e) {
+            return false;
+        }
+    }
+}
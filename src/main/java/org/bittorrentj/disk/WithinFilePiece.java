@@ -1,7 +1,52 @@
 package org.bittorrentj.disk;
 
 /**
- * Created by bedeho on 20.09.2014.
+ * Piece which is stored within a single file, which is the case for all
+ * pieces in single file mode, and most pieces in multiple file mode.
  */
 public class WithinFilePiece extends Piece {
+
+    /**
+     * Index of file piece is stored in.
+     */
+    private int fileIndex;
+
+    /**
+     * Position in file where piece starts.
+     */
+    private long filePosition;
+
+    /**
+     * Constructor
+     * @param index piece index
+     * @param length byte length of piece
+     * @param fileIndex index of file piece is stored in
+     * @param filePosition position in file where piece starts
+     */
+    public WithinFilePiece(int index, int length, int fileIndex, long filePosition) {
+        super(index, length);
+
+        this.fileIndex = fileIndex;
+        this.filePosition = filePosition;
+    }
+
+    @Override
+    public int getNumberOfSpans() {
+        return 1;
+    }
+
+    @Override
+    public int getFileIndex(int span) {
+        return fileIndex;
+    }
+
+    @Override
+    public long getFilePosition(int span) {
+        return filePosition;
+    }
+
+    @Override
+    public int getSpanLength(int span) {
+        return getLength();
+    }
 }
@@ -0,0 +1,72 @@
+package org.bittorrentj.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Job writing a block. The block is copied when the job is created, since
+ * a received block is a view over a network buffer, which is reused.
+ */
+public class WriteBlockJob extends DiskJob {
+
+    private int index;
+
+    private int begin;
+
+    /**
+     * Copy of block.
+     */
+    private ByteBuffer block;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param block buffers with consecutive segments of block, which are copied, their positions are not altered
+     */
+    public WriteBlockJob(DiskManager diskManager, int index, int begin, ByteBuffer[] block) {
+        super(diskManager);
+
+        this.index = index;
+        this.begin = begin;
+
+        int length = 0;
+        for(ByteBuffer segment: block)
+            length += segment.remaining();
+
+        this.block = ByteBuffer.allocate(length);
+
+        for(ByteBuffer segment: block)
+            this.block.put(segment.duplicate());
+
+        this.block.flip();
+    }
+
+    @Override
+    void perform() throws IOException {
+        getDiskManager().writeBlock(index, begin, new ByteBuffer[] {block});
+    }
+
+    @Override
+    int getOrderingKey() {
+        return index;
+    }
+
+    @Override
+    long getQueuedBytes() {
+        return block.capacity();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getLength() {
+        return block.capacity();
+    }
+}
@@ -0,0 +1,319 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.disk.event.DiskEventHandler;
+import org.bittorrentj.message.field.Hash;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write back cache of the blocks of pieces being downloaded, which turns blocks
+ * arriving in any order from many peers into one write per piece.
+ *
+ * Received blocks are copied into pooled buffers, and held per piece until the piece
+ * is complete, it is then written with a single gathered write in a WritePieceJob. Blocks
+ * are hashed as they arrive by a PieceHasher, so the hash of a cached piece is known when
+ * its last block arrives, and a corrupt piece can be dropped before it is written. Memory held by the cache, including blocks of jobs not yet
+ * completed, is bounded. Memory for a full piece is reserved when its first block
+ * arrives, so a cached piece always completes in cache, and a piece which does not fit
+ * is not cached at all, since evicting active pieces to admit new ones would let
+ * concurrent pieces push each other out before any completes. Only when the partial
+ * piece which least recently received a block has received none during a turnover of
+ * the cache, it is stalled and evicted, its blocks are written in a FlushBlocksJob.
+ * Blocks of a piece which is evicted or not cached are written as they arrive, and the
+ * piece is hashed as stored once complete.
+ *
+ * Is not thread safe, it is only used by the thread of a swarm, which passes
+ * completed jobs back to the cache so their buffers are reused.
+ */
+public class WriteCache {
+
+    /**
+     * Memory (bytes) held by a cache by default.
+     */
+    public final static long DEFAULT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Partial piece held in cache.
+     */
+    private static class CachedPiece {
+
+        /**
+         * Block of each slot, or null where block is not received.
+         */
+        ByteBuffer[] blocks;
+
+        /**
+         * Incremental hash of received blocks.
+         */
+        PieceHasher hasher;
+
+        /**
+         * Number of blocks received.
+         */
+        int numberOfReceivedBlocks;
+
+        /**
+         * Number of blocks received by cache when piece last received a block.
+         */
+        long lastBlockReceived;
+
+        CachedPiece(int numberOfBlocks) {
+            this.blocks = new ByteBuffer[numberOfBlocks];
+            this.hasher = new PieceHasher(numberOfBlocks);
+            this.numberOfReceivedBlocks = 0;
+            this.lastBlockReceived = 0;
+        }
+    }
+
+    /**
+     * Storage of torrent.
+     */
+    private DiskManager diskManager;
+
+    /**
+     * Queue jobs are submitted to.
+     */
+    private DiskJobQueue diskJobQueue;
+
+    /**
+     * Handler of completions of submitted jobs.
+     */
+    private DiskEventHandler handler;
+
+    /**
+     * Byte length of blocks, all but the last block of a piece have this length.
+     */
+    private int blockSize;
+
+    /**
+     * Maximum number of bytes held.
+     */
+    private long maxBytes;
+
+    /**
+     * Number of bytes held, reserved by cached pieces and by jobs not yet completed.
+     */
+    private long heldBytes;
+
+    /**
+     * Number of blocks received by cache in total.
+     */
+    private long numberOfBlocksReceived;
+
+    /**
+     * Cached partial pieces, by piece index, in order of least recent block received.
+     */
+    private LinkedHashMap<Integer, CachedPiece> pieces;
+
+    /**
+     * Partial pieces which are not cached, since they were evicted or did
+     * not fit, whose blocks are written as they arrive.
+     */
+    private HashSet<Integer> uncached;
+
+    /**
+     * Buffers of blockSize bytes not in use.
+     */
+    private ArrayDeque<ByteBuffer> free;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param diskJobQueue queue jobs are submitted to
+     * @param handler handler of completions of jobs, which should pass them to jobCompleted()
+     * @param blockSize byte length of blocks
+     * @param maxBytes maximum number of bytes held
+     */
+    public WriteCache(DiskManager diskManager, DiskJobQueue diskJobQueue, DiskEventHandler handler, int blockSize, long maxBytes) {
+
+        this.diskManager = diskManager;
+        this.diskJobQueue = diskJobQueue;
+        this.handler = handler;
+        this.blockSize = blockSize;
+        this.maxBytes = maxBytes;
+        this.heldBytes = 0;
+        this.numberOfBlocksReceived = 0;
+        this.pieces = new LinkedHashMap<Integer, CachedPiece>(16, 0.75f, true);
+        this.uncached = new HashSet<Integer>();
+        this.free = new ArrayDeque<ByteBuffer>();
+    }
+
+    /**
+     * Writes a received block, which is copied.
+     * @param index piece index
+     * @param begin byte offset within piece, a multiple of block size
+     * @param block buffers with consecutive segments of block, which are not altered
+     */
+    public void writeBlock(int index, int begin, ByteBuffer[] block) {
+
+        CachedPiece p = pieces.get(index);
+
+        if(p == null && !uncached.contains(index))
+            p = admit(index);
+
+        if(p == null) {
+            uncached.add(index);
+            diskJobQueue.submit(new WriteBlockJob(diskManager, index, begin, block), handler);
+            return;
+        }
+
+        ByteBuffer b = free.poll();
+
+        if(b == null)
+            b = ByteBuffer.allocate(blockSize);
+        else
+            b.clear();
+
+        for(ByteBuffer segment: block)
+            b.put(segment.duplicate());
+
+        b.flip();
+
+        p.blocks[begin / blockSize] = b;
+        p.hasher.blockReceived(begin / blockSize, b);
+        p.numberOfReceivedBlocks++;
+        p.lastBlockReceived = ++numberOfBlocksReceived;
+    }
+
+    /**
+     * Reserves memory for a new piece, evicting a stalled piece if needed.
+     * @param index piece index
+     * @return cached piece, or null if piece does not fit
+     */
+    private CachedPiece admit(int index) {
+
+        int numberOfBlocks = (diskManager.getPiece(index).getLength() + blockSize - 1) / blockSize;
+        long reserved = (long)numberOfBlocks * blockSize;
+
+        if(heldBytes + reserved > maxBytes && !pieces.isEmpty()) {
+
+            Map.Entry<Integer, CachedPiece> eldest = pieces.entrySet().iterator().next();
+
+            // Stalled if it received nothing while cache could have been filled
+            if(numberOfBlocksReceived - eldest.getValue().lastBlockReceived > maxBytes / blockSize)
+                evict(eldest.getKey());
+        }
+
+        if(heldBytes + reserved > maxBytes)
+            return null;
+
+        CachedPiece p = new CachedPiece(numberOfBlocks);
+
+        heldBytes += reserved;
+        pieces.put(index, p);
+
+        return p;
+    }
+
+    /**
+     * Hash of a piece whose blocks have all been written to cache, which is known
+     * right away if the piece was cached throughout.
+     * @param index piece index
+     * @return hash, or null if piece is hashed as stored when completed
+     */
+    public Hash getHash(int index) {
+
+        CachedPiece p = pieces.get(index);
+
+        return p == null ? null : p.hasher.getHash();
+    }
+
+    /**
+     * Registers that all blocks of a piece have been written to cache, the piece is
+     * then stored, and hashed as stored if it was not cached throughout, and a
+     * completed HashPieceJob is posted to handler.
+     * @param index piece index
+     */
+    public void pieceCompleted(int index) {
+
+        if(uncached.remove(index)) {
+            diskJobQueue.submit(new HashPieceJob(diskManager, index), handler);
+            return;
+        }
+
+        CachedPiece p = pieces.remove(index);
+
+        diskJobQueue.submit(new WritePieceJob(diskManager, index, p.blocks, p.hasher.getHash()), handler);
+    }
+
+    /**
+     * Drops all blocks of a piece held in cache, for when
+     * the piece is not going to be completed.
+     * @param index piece index
+     */
+    public void pieceDropped(int index) {
+
+        uncached.remove(index);
+
+        CachedPiece p = pieces.remove(index);
+
+        if(p != null) {
+            heldBytes -= (long)(p.blocks.length - p.numberOfReceivedBlocks) * blockSize;
+            release(p.blocks);
+        }
+    }
+
+    /**
+     * Reuses buffers of a completed job, all completed jobs submitted
+     * by cache must be passed here, other jobs are ignored.
+     * @param job job
+     */
+    public void jobCompleted(DiskJob job) {
+
+        if(job instanceof WritePieceJob)
+            release(((WritePieceJob)job).getBlocks());
+        else if(job instanceof FlushBlocksJob)
+            release(((FlushBlocksJob)job).getBlocks());
+    }
+
+    /**
+     * Evicts a partial piece, whose received blocks are written, and
+     * whose remaining blocks will be written as they arrive.
+     * @param index piece index
+     */
+    private void evict(int index) {
+
+        CachedPiece p = pieces.remove(index);
+
+        uncached.add(index);
+
+        // Reservation of blocks not received is given up now, received
+        // blocks are held until job completes
+        heldBytes -= (long)(p.blocks.length - p.numberOfReceivedBlocks) * blockSize;
+
+        diskJobQueue.submit(new FlushBlocksJob(diskManager, index, blockSize, p.blocks), handler);
+    }
+
+    private void release(ByteBuffer[] blocks) {
+
+        for(ByteBuffer b: blocks) {
+
+            if(b == null)
+                continue;
+
+            heldBytes -= blockSize;
+            free.push(b);
+        }
+    }
+
+    public long getHeldBytes() {
+        return heldBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets maximum number of bytes held, if it is lowered, no new
+     * pieces are cached until enough cached pieces complete.
+     * @param maxBytes number of bytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+}
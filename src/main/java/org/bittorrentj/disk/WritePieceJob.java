@@ -0,0 +1,63 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.message.field.Hash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Job writing a complete piece held in the blocks of a write cache with a single
+ * gathered write. The piece was hashed as its blocks arrived, so it is not read
+ * back, the job reports the hash given once the piece is written.
+ */
+public class WritePieceJob extends HashPieceJob {
+
+    /**
+     * Blocks of piece, in order, each with its content between position and limit.
+     */
+    private ByteBuffer[] blocks;
+
+    /**
+     * Number of bytes of memory held by blocks.
+     */
+    private long heldBytes;
+
+    /**
+     * Constructor
+     * @param diskManager storage of torrent
+     * @param index piece index
+     * @param blocks blocks of piece, in order, which are not altered
+     * @param hash hash of blocks
+     */
+    public WritePieceJob(DiskManager diskManager, int index, ByteBuffer[] blocks, Hash hash) {
+        super(diskManager, index);
+
+        this.blocks = blocks;
+        this.heldBytes = 0;
+
+        setHash(hash);
+
+        for(ByteBuffer b: blocks)
+            heldBytes += b.capacity();
+    }
+
+    @Override
+    void perform() throws IOException {
+
+        ByteBuffer[] views = new ByteBuffer[blocks.length];
+
+        for(int i = 0;i < blocks.length;i++)
+            views[i] = blocks[i].duplicate();
+
+        getDiskManager().writeBlock(getIndex(), 0, views);
+    }
+
+    @Override
+    long getQueuedBytes() {
+        return heldBytes;
+    }
+
+    public ByteBuffer[] getBlocks() {
+        return blocks;
+    }
+}
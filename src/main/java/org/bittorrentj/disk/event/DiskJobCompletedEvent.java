@@ -0,0 +1,19 @@
+package org.bittorrentj.disk.event;
+
+import org.bittorrentj.disk.DiskJob;
+
+/**
+ * Posted by a DiskJobQueue when a job has been performed, successfully or not.
+ */
+public class DiskJobCompletedEvent extends DiskEvent {
+
+    private DiskJob job;
+
+    public DiskJobCompletedEvent(DiskJob job) {
+        this.job = job;
+    }
+
+    public DiskJob getJob() {
+        return job;
+    }
+}
@@ -0,0 +1,27 @@
+package org.bittorrentj.event;
+
+import java.io.IOException;
+
+/**
+ * Accepting a connection from a peer failed.
+ */
+public class AcceptingClientFailedEvent implements Event {
+
+    /**
+     * Exception associated with failure.
+     */
+    private IOException exception;
+
+    public AcceptingClientFailedEvent(IOException exception) {
+        this.exception = exception;
+    }
+
+    public IOException getException() {
+        return exception;
+    }
+
+    @Override
+    public String message() {
+        return "Accepting client failed.";
+    }
+}
@@ -5,7 +5,7 @@ import java.io.IOException;
 /**
  * Created by bedeho on 13.09.2014.
  */
-public class ClientIOFailedEvent extends Event {
+public class ClientIOFailedEvent implements Event {
 
     /**
      * Input/Output exceptions in question.
@@ -19,4 +19,9 @@ public class ClientIOFailedEvent extends Event {
     public IOException getE() {
         return e;
     }
+
+    @Override
+    public String message() {
+        return "Client input/output failed.";
+    }
 }
@@ -3,6 +3,10 @@ package org.bittorrentj.event;
 /**
  * Created by bedeho on 30.08.2014.
  */
-public class CompletedCommandEvent extends Event {
+public class CompletedCommandEvent implements Event {
 
+    @Override
+    public String message() {
+        return "Command completed.";
+    }
 }
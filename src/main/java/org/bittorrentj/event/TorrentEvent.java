@@ -5,7 +5,7 @@ import org.bittorrentj.message.field.Hash;
 /**
  * Created by bedeho on 30.08.2014.
  */
-public abstract class TorrentEvent extends Event {
+public abstract class TorrentEvent implements Event {
 
     /**
      * Info_hash for torrent which event is associated with.
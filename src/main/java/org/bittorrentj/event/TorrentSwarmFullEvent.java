@@ -0,0 +1,31 @@
+package org.bittorrentj.event;
+
+import org.bittorrentj.message.field.Hash;
+
+import java.net.InetAddress;
+
+/**
+ * A peer was turned away, since the swarm of the torrent it asked for accepts no more connections.
+ */
+public class TorrentSwarmFullEvent extends TorrentEvent {
+
+    /**
+     * Address of peer.
+     */
+    private InetAddress address;
+
+    public TorrentSwarmFullEvent(InetAddress address, Hash hash) {
+        super(hash);
+
+        this.address = address;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public String message() {
+        return "Swarm full, connection rejected.";
+    }
+}
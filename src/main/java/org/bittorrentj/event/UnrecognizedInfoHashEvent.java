@@ -0,0 +1,31 @@
+package org.bittorrentj.event;
+
+import org.bittorrentj.message.field.Hash;
+
+import java.net.InetAddress;
+
+/**
+ * A peer was turned away, since it asked for a torrent which client does not have.
+ */
+public class UnrecognizedInfoHashEvent extends TorrentEvent {
+
+    /**
+     * Address of peer.
+     */
+    private InetAddress address;
+
+    public UnrecognizedInfoHashEvent(InetAddress address, Hash hash) {
+        super(hash);
+
+        this.address = address;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    @Override
+    public String message() {
+        return "Unrecognized info hash, connection rejected.";
+    }
+}
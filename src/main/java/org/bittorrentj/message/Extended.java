@@ -38,7 +38,7 @@ public abstract class Extended extends MessageWithLengthAndIdField {
         this.extendedMessageId = extendedMessageId;
 
         // Read extended message id from buffer
-        int readExtendedMessageId = src.getInt();
+        int readExtendedMessageId = src.get() & 0xff;
 
         // Confirm that they are identical
         if(this.extendedMessageId != readExtendedMessageId)
@@ -59,7 +59,7 @@ public abstract class Extended extends MessageWithLengthAndIdField {
     final protected void writePayloadToBuffer(ByteBuffer dst) {
 
         // Write extended message id
-        dst.putInt(extendedMessageId);
+        dst.put((byte)extendedMessageId);
 
         // Write rest of extended message.
         writeExtendedMessagePayloadToBuffer(dst);
@@ -20,9 +20,38 @@ public class ExtendedHandshake extends Extended {
     public final static int HANDSHAKE_ID = 0;
 
     /**
-     * Dictionary in extended handshake message
+     * Number of outstanding requests a peer is assumed to support
+     * when it does not say with the reqq key, as in libtorrent.
      */
-    private BencodeableDictionary payload;
+    public final static int DEFAULT_REQUEST_QUEUE_SIZE = 250;
+
+    /**
+     * Largest extension id, since extended messages carry it in one byte.
+     */
+    public final static int MAX_EXTENSION_ID = 255;
+
+    /**
+     * Keys of payload read by this class.
+     */
+    private final static String M_KEY = "m";
+    private final static String REQQ_KEY = "reqq";
+
+    /**
+     * Dictionary in extended handshake message. It is a LazyBencodeableDictionary when
+     * received, so only the keys read here are decoded, and the rest are left to
+     * the extensions which use them.
+     */
+    private Bencodable payload;
+
+    /**
+     * m dictionary in payload.
+     */
+    private BencodeableDictionary mDictionary;
+
+    /**
+     * Value of reqq key in payload, or null if absent.
+     */
+    private Bencodable reqq;
 
     /**
      * Constructor based on raw wire representation of message.
@@ -34,33 +63,35 @@ public class ExtendedHandshake extends Extended {
      * @throws PayloadDoesNotContainMDictionaryException If the m dictionary was not present in the handshake.
      * @throws MalformedMDictionaryException If the m dictionary did not have the expected structure.
      * @throws DecodingBencodingException If the payload did not have a well-formed bencoding.
-     * @throws ExtendedHandshakePayloadLengthToShortException If the length field was shorter than the minimum length of 6 = 4 + 1 + 1 = head length field (4b) + extension message id (1b) + handdshake id (1b).
+     * @throws ExtendedHandshakePayloadLengthToShortException If the length field was shorter than the minimum length of 2 = 1 + 1 = message id (1b) + handdshake id (1b).
      */
     public ExtendedHandshake(ByteBuffer src) throws UnrecognizedMessageIdException, NonMatchingIdFieldException, NonMatchingExtendedIdFieldException, DuplicateExtensionNameInMDictionaryException, PayloadDoesNotContainMDictionaryException, MalformedMDictionaryException, DecodingBencodingException, ExtendedHandshakePayloadLengthToShortException {
         super(HANDSHAKE_ID, src);
 
-        // Get payload length
-        int extendedHandshakePayloadLength = getMessageLengthField() - (LENGTH_FIELD_SIZE + ID_FIELD_SIZE + ID_FIELD_SIZE);
+        // Get payload length, length field does not count itself
+        int extendedHandshakePayloadLength = getMessageLengthField() - (ID_FIELD_SIZE + EXTENDED_ID_FIELD_SIZE);
 
         if(extendedHandshakePayloadLength < 0)
             throw new ExtendedHandshakePayloadLengthToShortException();
 
-        // Allocate space
+        // Allocate space, since the dictionary refers to the bytes it is parsed from
         byte [] extendedHandshakePayload = new byte[extendedHandshakePayloadLength];
 
         // Read from buffer
         src.get(extendedHandshakePayload);
 
-        // Parse bencoded dictionary
-        Bencodable o = Bencodej.decode(src);
+        // Parse bencoded dictionary lazily, which comes from a peer, hence is not trusted,
+        // limits apply to the full bencoding even though only a few keys are decoded
+        Bencodable o = Bencodej.decodeLazily(ByteBuffer.wrap(extendedHandshakePayload), DecodingLimits.UNTRUSTED);
 
-        if(!(o instanceof BencodeableDictionary))
+        if(!(o instanceof LazyBencodeableDictionary))
             throw new MalformedMDictionaryException();
-        else
-            this.payload = (BencodeableDictionary) o;
 
-        // Validate
-        validateMDictionary(payload);
+        LazyBencodeableDictionary lazyPayload = (LazyBencodeableDictionary) o;
+
+        this.payload = lazyPayload;
+        this.mDictionary = validateMDictionary(lazyPayload.get(M_KEY));
+        this.reqq = lazyPayload.get(REQQ_KEY);
     }
 
     /**
@@ -76,30 +107,39 @@ public class ExtendedHandshake extends Extended {
         this.payload = payload;
 
         // Verify the payload
-        validateMDictionary(payload);
+        this.mDictionary = validateMDictionary(payload.get(new BencodableByteString(M_KEY)));
+        this.reqq = payload.get(new BencodableByteString(REQQ_KEY));
     }
 
     /**
-     * Verify payload dictionary, and return registrations for extensions in message.
-     * @param payload dictionary sent with extended handshake message.
+     * Verify m dictionary of payload.
+     * @param m value of m key in payload, null if absent
+     * @return m dictionary
      * @throws DuplicateExtensionNameInMDictionaryException If an extension name was present more than once in the handshake m dictionary.
      * @throws PayloadDoesNotContainMDictionaryException If the m dictionary was not present in the handshake.
      * @throws MalformedMDictionaryException If the m dictionary did not have the expected structure.
      */
-    private static void validateMDictionary(BencodeableDictionary payload) throws DuplicateExtensionNameInMDictionaryException, MalformedMDictionaryException, PayloadDoesNotContainMDictionaryException {
+    private static BencodeableDictionary validateMDictionary(Bencodable m) throws DuplicateExtensionNameInMDictionaryException, MalformedMDictionaryException, PayloadDoesNotContainMDictionaryException {
 
         // Check that it has m kay
-        if(!payload.containsKey("m"))
+        if(m == null)
             throw new PayloadDoesNotContainMDictionaryException();
 
-        // Get extension dictionary
+        // Get extension dictionary, which is small, so a received one is decoded in full
         BencodeableDictionary extensionsDictionary;
 
-        try {
-            extensionsDictionary = (BencodeableDictionary) payload.get("m");
-        } catch(Exception e) {
-            throw new MalformedMDictionaryException(); // bencodable string key
-        }
+        if(m instanceof BencodeableDictionary)
+            extensionsDictionary = (BencodeableDictionary) m;
+        else if(m instanceof LazyBencodeableDictionary) {
+
+            try {
+                extensionsDictionary = ((LazyBencodeableDictionary) m).toDictionary();
+            } catch(DecodingBencodingException e) {
+                throw new MalformedMDictionaryException();
+            }
+
+        } else
+            throw new MalformedMDictionaryException();
 
         // Iterate m keys
         LinkedList<Integer> observedExtensionIds = new LinkedList<Integer>();
@@ -108,24 +148,45 @@ public class ExtendedHandshake extends Extended {
         for(BencodableByteString s: extensionsDictionary.keySet()) {
 
             // Confirm that the same extension is not registered multiple times
-            String name = s.getByteString().toString();
+            String name = new String(s.getByteString());
             if(observedExtensionNames.contains(name))
                 throw new DuplicateExtensionNameInMDictionaryException();
             else
                 observedExtensionNames.add(name);
 
-            try {
-                int id = ((BencodableInteger) extensionsDictionary.get(s)).getValue();
-
-                if(id != 0 && observedExtensionIds.contains(id))
-                    throw new DuplicateIdInMDictionaryException();
-                else
-                    observedExtensionIds.add(id);
+            // Confirm that the same id is not used by multiple extensions
+            int id = getExtensionId(extensionsDictionary, s);
 
-            } catch (Exception e) {
-                throw new MalformedMDictionaryException(); // bencodablestring key did not correspond to bencodable integer
-            }
+            if(id != 0 && observedExtensionIds.contains(id))
+                throw new MalformedMDictionaryException();
+            else
+                observedExtensionIds.add(id);
         }
+
+        return extensionsDictionary;
+    }
+
+    /**
+     * Get id of extension in m dictionary, which comes from a peer, hence may be
+     * any bencoding.
+     * @param extensionsDictionary m dictionary
+     * @param name name of extension
+     * @return extension id, zero if extension is disabled
+     * @throws MalformedMDictionaryException If the value is not an integer in the range 0 to MAX_EXTENSION_ID.
+     */
+    private static int getExtensionId(BencodeableDictionary extensionsDictionary, BencodableByteString name) throws MalformedMDictionaryException {
+
+        Bencodable id = extensionsDictionary.get(name);
+
+        if(!(id instanceof BencodableInteger))
+            throw new MalformedMDictionaryException();
+
+        long value = ((BencodableInteger) id).getLongValue();
+
+        if(value < 0 || value > MAX_EXTENSION_ID)
+            throw new MalformedMDictionaryException();
+
+        return (int)value;
     }
 
     /**
@@ -136,7 +197,7 @@ public class ExtendedHandshake extends Extended {
      * @throws PayloadDoesNotContainMDictionaryException If the m dictionary was not present in the handshake.
      * @throws MalformedMDictionaryException If the m dictionary did not have the expected structure.
      */
-    public HashMap<Integer, String> getEnabledExtensions() { // throws DuplicateExtensionNameInMDictionaryException, PayloadDoesNotContainMDictionaryException, MalformedMDictionaryException {
+    public HashMap<Integer, String> getEnabledExtensions() throws MalformedMDictionaryException { // throws DuplicateExtensionNameInMDictionaryException, PayloadDoesNotContainMDictionaryException, MalformedMDictionaryException {
 
         // Check that all is well
         // NB: we skip for now, assume we didn't mess it up after constructor check
@@ -145,18 +206,15 @@ public class ExtendedHandshake extends Extended {
         // Allocate list
         HashMap<Integer, String> map = new HashMap<Integer, String>();
 
-        // Get m dictionary
-        BencodeableDictionary extensionsDictionary = (BencodeableDictionary) payload.get("m");
-
         // Iterate m keys
-        for(BencodableByteString s: extensionsDictionary.keySet()) {
+        for(BencodableByteString s: mDictionary.keySet()) {
 
             // Get extension id
-            int id = ((BencodableInteger) extensionsDictionary.get(s)).getValue();
+            int id = getExtensionId(mDictionary, s);
 
             // If id is zero, then extension is disabled
             if(id != 0)
-                map.put(id, s.getByteString().toString());
+                map.put(id, new String(s.getByteString()));
         }
 
         return map;
@@ -172,42 +230,58 @@ public class ExtendedHandshake extends Extended {
      */
     public LinkedList<String> getDisabledExtensions() throws DuplicateExtensionNameInMDictionaryException, PayloadDoesNotContainMDictionaryException, MalformedMDictionaryException {
 
-        // Check that all is well
-        validateMDictionary(payload);
-
         // Allocate list
         LinkedList<String> list = new LinkedList<String>();
 
-        // Get m dictionary
-        BencodeableDictionary extensionsDictionary = (BencodeableDictionary) payload.get("m");
-
         // Iterate m keys
-        for(BencodableByteString s: extensionsDictionary.keySet()) {
+        for(BencodableByteString s: mDictionary.keySet()) {
 
             // Get extension id
-            int id = ((BencodableInteger) extensionsDictionary.get(s)).getValue();
+            int id = getExtensionId(mDictionary, s);
 
             // If id is zero, then extension is disabled
             if(id == 0)
-                list.add(s.getByteString().toString());
+                list.add(new String(s.getByteString()));
         }
 
         return list;
     }
 
-    public BencodeableDictionary getPayload() {
+    /**
+     * Number of outstanding request messages the sender supports
+     * without dropping any, that is the reqq key.
+     * @return number of requests, DEFAULT_REQUEST_QUEUE_SIZE if key is absent or not a positive integer
+     */
+    public int getRequestQueueSize() {
+
+        if(reqq instanceof BencodableInteger) {
+
+            long value = ((BencodableInteger) reqq).getLongValue();
+
+            if(value > 0)
+                return (int)Math.min(value, Integer.MAX_VALUE);
+        }
+
+        return DEFAULT_REQUEST_QUEUE_SIZE;
+    }
+
+    /**
+     * Dictionary sent with message.
+     * @return a BencodeableDictionary if message was built locally, a LazyBencodeableDictionary if it was received
+     */
+    public Bencodable getPayload() {
         return payload;
     }
 
     @Override
     public void writeExtendedMessagePayloadToBuffer(ByteBuffer dst){
 
-        // Write bencoding of payload to buffer
-        dst.put(payload.bencode());
+        // Write bencoding of payload straight into buffer
+        payload.encodeTo(dst);
     }
 
     @Override
     protected int getExtendedMessagePayloadLength() {
-        return payload.bencode().length;
+        return payload.encodedLength();
     }
 }
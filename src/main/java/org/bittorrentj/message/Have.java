@@ -53,7 +53,7 @@ public class Have extends MessageWithLengthAndIdField {
      * @return true iff the piece index is non-negative and less than parameter.
      */
     public boolean validate(int numberOfPiecesInTorrent) {
-        return (this.pieceIndex < 0 || this.pieceIndex >= numberOfPiecesInTorrent);
+        return this.pieceIndex >= 0 && this.pieceIndex < numberOfPiecesInTorrent;
     }
 
     public int getPieceIndex() {
@@ -0,0 +1,309 @@
+package org.bittorrentj.message;
+
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.exceptions.InvalidMessageLengthFieldException;
+import org.bittorrentj.message.exceptions.MessageCreationException;
+import org.bittorrentj.message.exceptions.UnsupportedExtendedMessageFoundException;
+import org.bittorrentj.message.field.MessageId;
+import org.bittorrentj.message.field.exceptions.UnrecognizedMessageIdException;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Flyweight view of the wire representation of a single message in a buffer,
+ * typically the network read buffer. Fields are read on demand with absolute
+ * operations directly from the buffer, and the view is repositioned over the next message
+ * with wrap(), so no objects are allocated per message.
+ *
+ * Positions are taken modulo the capacity of the buffer, so a view can also be
+ * positioned over a message which wraps around the end of a circular buffer, in which
+ * case fields are assembled from both ends, and the block is exposed as two segments.
+ *
+ * A view, and the block buffers it exposes, is only valid until the
+ * next call to wrap(), and until the underlying buffer is compacted or
+ * refilled. Consumers which must retain a message use toMessage().
+ */
+public class MessageView {
+
+    /**
+     * Offsets of fields relative to start of message.
+     */
+    private final static int ID_OFFSET = MessageWithLengthField.LENGTH_FIELD_SIZE;
+    private final static int INDEX_OFFSET = ID_OFFSET + MessageWithLengthAndIdField.ID_FIELD_SIZE;
+    private final static int BEGIN_OFFSET = INDEX_OFFSET + 4;
+    private final static int LENGTH_OFFSET = BEGIN_OFFSET + 4;
+    private final static int BLOCK_OFFSET = BEGIN_OFFSET + 4;
+
+    /**
+     * Buffer viewed.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Read only duplicates of buffer, which are repositioned
+     * over the one or two segments of the block of each piece message, and only recreated
+     * when a different buffer is viewed.
+     */
+    private ByteBuffer blockHead;
+    private ByteBuffer blockTail;
+
+    /**
+     * Arrays returned by getBlock(), for blocks in one and two segments respectively.
+     */
+    private ByteBuffer[] oneSegment;
+    private ByteBuffer[] twoSegments;
+
+    /**
+     * Absolute position in buffer where message, that is its length field, starts.
+     */
+    private int offset;
+
+    /**
+     * Length field of message.
+     */
+    private int lengthField;
+
+    /**
+     * Id of message, null for keep alive.
+     */
+    private MessageId id;
+
+    /**
+     * Positions view over message in buffer, which must be complete, and
+     * checks that the length field is consistent with the message id.
+     * Neither position nor limit of buffer is altered.
+     * @param buffer buffer
+     * @param offset absolute position of length field of message
+     * @return this view
+     * @throws UnrecognizedMessageIdException if id field is not recognized
+     * @throws InvalidMessageLengthFieldException if length field does not match id
+     */
+    public MessageView wrap(ByteBuffer buffer, int offset) throws UnrecognizedMessageIdException, InvalidMessageLengthFieldException {
+
+        if(this.buffer != buffer) {
+            this.buffer = buffer;
+            this.blockHead = buffer.asReadOnlyBuffer();
+            this.blockTail = buffer.asReadOnlyBuffer();
+            this.oneSegment = new ByteBuffer[] {blockHead};
+            this.twoSegments = new ByteBuffer[] {blockHead, blockTail};
+        }
+
+        this.offset = offset;
+        this.lengthField = getInt(0);
+
+        // Keep alive has no id
+        if(lengthField == 0) {
+            this.id = null;
+            return this;
+        }
+
+        this.id = MessageId.getMessageIdFromRaw(buffer.get(position(ID_OFFSET)));
+
+        if(!isValidLengthField(id, lengthField))
+            throw new InvalidMessageLengthFieldException(lengthField);
+
+        return this;
+    }
+
+    /**
+     * Absolute position in buffer of byte at given offset relative to start of message.
+     */
+    private int position(int relative) {
+
+        int p = offset + relative;
+
+        return p < buffer.capacity() ? p : p - buffer.capacity();
+    }
+
+    /**
+     * Reads four byte big-endian integer at given offset relative to start of message,
+     * which may wrap around end of buffer.
+     */
+    private int getInt(int relative) {
+
+        int p = position(relative);
+
+        if(p + 4 <= buffer.capacity())
+            return buffer.getInt(p);
+
+        // Assemble from both ends of buffer
+        int value = 0;
+
+        for(int i = 0;i < 4;i++)
+            value = (value << 8) | (buffer.get(position(relative + i)) & 0xff);
+
+        return value;
+    }
+
+    /**
+     * Whether message wraps around end of buffer.
+     * @return true iff message is not contiguous in buffer
+     */
+    public boolean isWrapped() {
+        return offset + getRawMessageLength() > buffer.capacity();
+    }
+
+    /**
+     * Checks whether length field is valid for a message with given id.
+     */
+    private static boolean isValidLengthField(MessageId id, int lengthField) {
+
+        switch(id) {
+            case CHOKE:
+            case UNCHOKE:
+            case INTERESTED:
+            case NOT_INTERESTED:
+                return lengthField == 1;
+            case HAVE:
+                return lengthField == 1 + 4;
+            case REQUEST:
+            case CANCEL:
+                return lengthField == 1 + 4 + 4 + 4;
+            case PIECE:
+                return lengthField > 1 + 4 + 4;
+            case PORT:
+                return lengthField == 1 + 2;
+            case EXTENDED:
+                return lengthField >= 1 + Extended.EXTENDED_ID_FIELD_SIZE;
+            default:
+                return lengthField >= 1;
+        }
+    }
+
+    /**
+     * Whether this is a keep alive message.
+     * @return true iff keep alive
+     */
+    public boolean isKeepAlive() {
+        return id == null;
+    }
+
+    /**
+     * Id of message.
+     * @return id, or null if keep alive
+     */
+    public MessageId getId() {
+        return id;
+    }
+
+    /**
+     * Length field of message, which does not include length field itself.
+     * @return length field
+     */
+    public int getLengthField() {
+        return lengthField;
+    }
+
+    /**
+     * Byte length of full wire representation of message.
+     * @return byte length
+     */
+    public int getRawMessageLength() {
+        return MessageWithLengthField.LENGTH_FIELD_SIZE + lengthField;
+    }
+
+    /**
+     * Piece index field of HAVE, REQUEST, PIECE and CANCEL messages.
+     * @return piece index
+     */
+    public int getIndex() {
+        return getInt(INDEX_OFFSET);
+    }
+
+    /**
+     * Begin field of REQUEST, PIECE and CANCEL messages.
+     * @return byte offset within piece
+     */
+    public int getBegin() {
+        return getInt(BEGIN_OFFSET);
+    }
+
+    /**
+     * Length field of REQUEST and CANCEL messages.
+     * @return requested length
+     */
+    public int getLength() {
+        return getInt(LENGTH_OFFSET);
+    }
+
+    /**
+     * Byte length of block of PIECE message.
+     * @return block length
+     */
+    public int getBlockLength() {
+        return MessageWithLengthField.LENGTH_FIELD_SIZE + lengthField - BLOCK_OFFSET;
+    }
+
+    /**
+     * Block of PIECE message, as read only buffers over the block in the
+     * underlying buffer. There is one buffer, unless the block wraps around the end of
+     * the underlying buffer, in which case there are two, to be read in order.
+     * The same buffer objects are returned for every message, and they are
+     * only valid as long as this view is.
+     * @return buffers, each with position at start of segment and limit at end of segment
+     */
+    public ByteBuffer[] getBlock() {
+
+        int start = position(BLOCK_OFFSET);
+        int blockLength = getBlockLength();
+        int headLength = Math.min(blockLength, buffer.capacity() - start);
+
+        // Clear first, since new position may be beyond old limit
+        blockHead.clear();
+        blockHead.position(start);
+        blockHead.limit(start + headLength);
+
+        if(headLength == blockLength)
+            return oneSegment;
+
+        // Rest of block is at front of buffer
+        blockTail.clear();
+        blockTail.limit(blockLength - headLength);
+
+        return twoSegments;
+    }
+
+    /**
+     * Creates regular message object from wire representation in view,
+     * which remains valid after view is repositioned.
+     * @param activeExtensions extensions, by extended message id
+     * @return message
+     * @throws MessageCreationException if message was malformed in buffer.
+     * @throws UnrecognizedMessageIdException if message id field in buffer was not recognized.
+     * @throws UnsupportedExtendedMessageFoundException if message is an extended message of an extension which is not active.
+     * @throws DecodingBencodingException if message has a malformed bencoded payload.
+     */
+    public MessageWithLengthField toMessage(HashMap<Integer, Extension> activeExtensions) throws MessageCreationException, UnrecognizedMessageIdException, UnsupportedExtendedMessageFoundException, DecodingBencodingException {
+
+        ByteBuffer src;
+
+        if(!isWrapped()) {
+
+            src = buffer.duplicate();
+
+            src.limit(offset + getRawMessageLength());
+            src.position(offset);
+
+        } else {
+
+            // Join both ends of message, since message objects are parsed from a contiguous buffer
+            src = ByteBuffer.allocate(getRawMessageLength());
+
+            ByteBuffer b = buffer.duplicate();
+
+            b.clear();
+            b.position(offset);
+            src.put(b);
+
+            b.clear();
+            b.limit(src.remaining());
+            src.put(b);
+
+            src.flip();
+        }
+
+        return MessageWithLengthField.create(src, activeExtensions);
+    }
+}
@@ -130,8 +130,8 @@ public abstract class MessageWithLengthField extends Message {
     @Override
     final public void writeMessageToBuffer(ByteBuffer dst) {
 
-        // Write four byte big endian length field
-        dst.putInt(getRawMessageLength());
+        // Write four byte big endian length field, which does not count itself
+        dst.putInt(getRawIdAndPayloadLength());
 
         // Any potential id and payload fields are written in this call
         writeIdAndPayloadToBuffer(dst);
@@ -1,11 +1,11 @@
 package org.bittorrentj.message;
 
-import org.bittorrentj.swarm.Connection;
 import org.bittorrentj.message.exceptions.BlockLengthIsToShortException;
 import org.bittorrentj.message.exceptions.BlockLengthToLargeException;
 import org.bittorrentj.message.exceptions.NonMatchingIdFieldException;
 import org.bittorrentj.message.field.MessageId;
 import org.bittorrentj.message.field.exceptions.UnrecognizedMessageIdException;
+import org.bittorrentj.message.stream.MessageStream;
 
 import java.nio.ByteBuffer;
 
@@ -14,6 +14,11 @@ import java.nio.ByteBuffer;
  */
 public class Piece extends MessageWithLengthAndIdField {
 
+    /**
+     * Byte length of wire representation of length, id, index and begin fields.
+     */
+    public final static int HEADER_SIZE = LENGTH_FIELD_SIZE + ID_FIELD_SIZE + 4 + 4;
+
     /**
      * The payload is the zero-based index of the piece
      */
@@ -25,9 +30,10 @@ public class Piece extends MessageWithLengthAndIdField {
     private int begin;
 
     /**
-     * block of data, which is a subset of the piece specified by index.
+     * block of data, which is a subset of the piece specified by index,
+     * between position and limit, which are never altered.
      */
-    private byte [] block;
+    private ByteBuffer block;
 
     /**
      * Constructor
@@ -37,6 +43,19 @@ public class Piece extends MessageWithLengthAndIdField {
      * @throws IllegalArgumentException if either parameter is negative, or length is equal to zero.
      */
     public Piece(int index, int begin, byte [] block) {
+        this(index, begin, ByteBuffer.wrap(block));
+    }
+
+    /**
+     * Constructor with a block which is not copied, such as a view of a cached piece,
+     * hence the block is written straight from it, and must not be altered while
+     * message is queued for sending.
+     * @param index piece index.
+     * @param begin byte offset within the piece.
+     * @param block block, between position and limit.
+     * @throws IllegalArgumentException if either parameter is negative, or length is equal to zero.
+     */
+    public Piece(int index, int begin, ByteBuffer block) {
         super(MessageId.PIECE);
 
         this.index = index;
@@ -55,28 +74,30 @@ public class Piece extends MessageWithLengthAndIdField {
      * @throws NonMatchingIdFieldException when id in buffer does not match PIECE message id.
      * @throws IllegalArgumentException if either parameter is negative, or length is equal to zero.
      * @throws BlockLengthIsToShortException if block length field is to short.
-     * @throws BlockLengthToLargeException if block length field is larger than the read buffer limit of Connection class.
+     * @throws BlockLengthToLargeException if block length field is larger than what fits in a network buffer.
      */
     public Piece(ByteBuffer src) throws UnrecognizedMessageIdException, NonMatchingIdFieldException, BlockLengthIsToShortException, BlockLengthToLargeException {
 
         // Read and process length and id fields
         super(MessageId.PIECE, src);
 
-        // Get payload length
-        int blockLength = getMessageLengthField() - (LENGTH_FIELD_SIZE + ID_FIELD_SIZE + 4 + 4); // the two 4 bytes are for index and begin field respectively
+        // Get payload length, length field does not count itself
+        int blockLength = getMessageLengthField() - (ID_FIELD_SIZE + 4 + 4); // the two 4 bytes are for index and begin field respectively
 
         // Check that block is long enough
         if(blockLength <= 0)
             throw new BlockLengthIsToShortException();
-        else if(blockLength > Connection.NETWORK_READ_BUFFER_SIZE)
+        else if(blockLength > MessageStream.BUFFER_SIZE - HEADER_SIZE)
             throw new BlockLengthToLargeException();
 
         // Read piece index
         this.index = src.getInt();
         this.begin = src.getInt();
 
-        this.block = new byte[blockLength];
-        src.put(this.block);
+        byte[] b = new byte[blockLength];
+        src.get(b);
+
+        this.block = ByteBuffer.wrap(b);
 
         // Check values
         if(index < 0 || begin < 0)
@@ -108,17 +129,38 @@ public class Piece extends MessageWithLengthAndIdField {
         return begin;
     }
 
-    public byte [] getBlock () { return block; }
+    /**
+     * Block of message.
+     * @return view of block, between position and limit
+     */
+    public ByteBuffer getBlock() { return block.duplicate(); }
+
+    public int getBlockLength() {
+        return block.remaining();
+    }
+
+    /**
+     * Writes length, id, index and begin fields, that is
+     * HEADER_SIZE bytes, into buffer, so the block can be written separately.
+     * @param dst buffer
+     */
+    public void writeHeaderToBuffer(ByteBuffer dst) {
+
+        dst.putInt(getRawIdAndPayloadLength());
+        dst.put(id.getRaw());
+        dst.putInt(index);
+        dst.putInt(begin);
+    }
 
     @Override
     protected void writePayloadToBuffer(ByteBuffer dst) {
         dst.putInt(index);
         dst.putInt(begin);
-        dst.put(block);
+        dst.put(block.duplicate());
     }
 
     @Override
     int getRawPayloadLength() {
-        return 4 + 4 + block.length;
+        return 4 + 4 + block.remaining();
     }
 }
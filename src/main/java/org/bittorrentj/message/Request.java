@@ -26,6 +26,17 @@ public class Request extends MessageWithLengthAndIdField {
      */
     private int length;
 
+    /**
+     * Whether request has been taken from a write queue to be written to peer.
+     */
+    private boolean written;
+
+    /**
+     * Whether request was cancelled before it was written, it is then dropped when it
+     * reaches the front of the write queue, rather than searched for and removed.
+     */
+    private boolean cancelled;
+
     /**
      * Constructor
      * @param index piece index.
@@ -107,6 +118,25 @@ public class Request extends MessageWithLengthAndIdField {
         return new Cancel(index, begin, length);
     }
 
+    public boolean isWritten() {
+        return written;
+    }
+
+    public void setWritten() {
+        this.written = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Marks request as cancelled, so it is not written if it is still queued.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,109 @@
+package org.bittorrentj.message;
+
+import org.bittorrentj.disk.DiskManager;
+import org.bittorrentj.message.field.MessageId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Piece message whose block is not held in memory, but is sent straight from
+ * storage by an OutputMessageStream, with FileChannel.transferTo on a disk worker.
+ * Used for blocks of pieces which are not read into the read cache.
+ */
+public class StoredPiece extends MessageWithLengthAndIdField {
+
+    private int index;
+
+    private int begin;
+
+    /**
+     * Byte length of block.
+     */
+    private int length;
+
+    /**
+     * Storage of torrent, where block is read from.
+     */
+    private DiskManager diskManager;
+
+    /**
+     * Constructor
+     * @param index piece index.
+     * @param begin byte offset within the piece.
+     * @param length byte length of block.
+     * @param diskManager storage of torrent.
+     * @throws IllegalArgumentException if block is empty, or not within a piece of torrent.
+     */
+    public StoredPiece(int index, int begin, int length, DiskManager diskManager) {
+        super(MessageId.PIECE);
+
+        this.index = index;
+        this.begin = begin;
+        this.length = length;
+        this.diskManager = diskManager;
+
+        // Check values
+        if(index < 0 || index >= diskManager.getNumberOfPieces() || begin < 0 || length <= 0 ||
+                (long)begin + length > diskManager.getPiece(index).getLength())
+            throw new IllegalArgumentException();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getBegin() {
+        return begin;
+    }
+
+    public int getBlockLength() {
+        return length;
+    }
+
+    public DiskManager getDiskManager() {
+        return diskManager;
+    }
+
+    /**
+     * Writes length, id, index and begin fields, that is
+     * Piece.HEADER_SIZE bytes, into buffer, so the block can be sent separately.
+     * @param dst buffer
+     */
+    public void writeHeaderToBuffer(ByteBuffer dst) {
+
+        dst.putInt(getRawIdAndPayloadLength());
+        dst.put(id.getRaw());
+        dst.putInt(index);
+        dst.putInt(begin);
+    }
+
+    /**
+     * Copies block from storage, only when message is serialized
+     * into a buffer rather than sent by a stream.
+     * @param dst buffer
+     * @throws IllegalStateException if block cannot be read
+     */
+    @Override
+    protected void writePayloadToBuffer(ByteBuffer dst) {
+
+        dst.putInt(index);
+        dst.putInt(begin);
+
+        ByteBuffer block = dst.duplicate();
+        block.limit(block.position() + length);
+
+        try {
+            diskManager.readBlock(index, begin, block);
+        } catch(IOException e) {
+            throw new IllegalStateException("Block could not be read from storage", e);
+        }
+
+        dst.position(dst.position() + length);
+    }
+
+    @Override
+    int getRawPayloadLength() {
+        return 4 + 4 + length;
+    }
+}
@@ -24,6 +24,17 @@ public enum MessageId {
 
     int id;
 
+    /**
+     * Message ids by raw wire representation (as unsigned byte), null where unrecognized.
+     * values() allocates a fresh array on every call, so it is only called once.
+     */
+    private final static MessageId[] byRaw = new MessageId[256];
+
+    static {
+        for(MessageId i : MessageId.values())
+            byRaw[i.getRaw() & 0xff] = i;
+    }
+
     MessageId(int id) {
         this.id = id;
     }
@@ -45,13 +56,11 @@ public enum MessageId {
      */
     public static MessageId getMessageIdFromRaw(byte rawId) throws UnrecognizedMessageIdException {
 
-        // Look for match among values
-        for(MessageId i : MessageId.values()) {
+        MessageId i = byRaw[rawId & 0xff];
 
-            if(i.getRaw() == rawId)
-                return i;
-        }
+        if(i == null)
+            throw new UnrecognizedMessageIdException(rawId);
 
-        throw new UnrecognizedMessageIdException(rawId);
+        return i;
     }
 }
@@ -46,7 +46,7 @@ public enum PeerId {
      * @param peer_id matched PeerType
      * @return
      */
-    static PeerId getPeerIdFromRaw(byte[] peer_id) {
+    public static PeerId getPeerIdFromRaw(byte[] peer_id) {
 
         String peer_id_string = peer_id.toString();
 
@@ -0,0 +1,247 @@
+package org.bittorrentj.message.stream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+/**
+ * Pool of direct network buffers of MessageStream.BUFFER_SIZE bytes, which
+ * streams borrow only while they have data in flight. Buffers are carved out of larger
+ * direct slabs, so native memory is allocated in few large chunks, and an idle
+ * connection holds no buffer at all.
+ *
+ * Buffers are lent out from the oldest slab with a free buffer, so surplus slabs
+ * allocated at a peak drain once traffic falls. A surplus slab which has had all its buffers
+ * returned for longer than the idle threshold is dropped, and its native memory is freed
+ * when it is collected. The first slab is always kept.
+ *
+ * A pool is not thread safe, it is meant to be shared by all streams of one swarm thread.
+ */
+public class BufferPool {
+
+    /**
+     * Number of buffers carved out of each slab.
+     */
+    final static int BUFFERS_PER_SLAB = 64;
+
+    /**
+     * Default time a surplus slab must have been unused before it is dropped.
+     */
+    public final static long DEFAULT_IDLE_THRESHOLD = 30L * 1000 * 1000 * 1000;
+
+    /**
+     * Slab of buffers, with those of its buffers not presently lent out.
+     */
+    private static class Slab {
+
+        private ArrayDeque<ByteBuffer> free;
+
+        /**
+         * Time when last lent out buffer was returned.
+         */
+        private long idleSince;
+
+        Slab(ArrayDeque<ByteBuffer> free, long idleSince) {
+            this.free = free;
+            this.idleSince = idleSince;
+        }
+
+        boolean isIdle() {
+            return free.size() == BUFFERS_PER_SLAB;
+        }
+    }
+
+    /**
+     * Source of time for idle slabs.
+     */
+    private Clock clock;
+
+    /**
+     * Time a surplus slab must have been unused before it is dropped, in nanoseconds.
+     */
+    private long idleThreshold;
+
+    /**
+     * Slabs, oldest first.
+     */
+    private ArrayList<Slab> slabs;
+
+    /**
+     * Slab of each buffer presently lent out.
+     */
+    private IdentityHashMap<ByteBuffer, Slab> lent;
+
+    /**
+     * Time when idle slabs were last looked for.
+     */
+    private long lastReclaim;
+
+    /**
+     * Largest number of buffers lent out at any one time.
+     */
+    private int peakBuffersInUse;
+
+    /**
+     * Number of slabs dropped since pool was created.
+     */
+    private int numberOfReclaimedSlabs;
+
+    /**
+     * Constructor, no memory is allocated until first buffer is acquired.
+     */
+    public BufferPool() {
+        this(Clock.SYSTEM, DEFAULT_IDLE_THRESHOLD);
+    }
+
+    /**
+     * Constructor, no memory is allocated until first buffer is acquired.
+     * @param clock source of time for idle slabs
+     * @param idleThreshold time a surplus slab must have been unused before it is dropped, in nanoseconds
+     */
+    public BufferPool(Clock clock, long idleThreshold) {
+
+        if(idleThreshold < 0)
+            throw new IllegalArgumentException();
+
+        this.clock = clock;
+        this.idleThreshold = idleThreshold;
+        this.slabs = new ArrayList<Slab>();
+        this.lent = new IdentityHashMap<ByteBuffer, Slab>();
+        this.lastReclaim = clock.nanoTime();
+        this.peakBuffersInUse = 0;
+        this.numberOfReclaimedSlabs = 0;
+    }
+
+    /**
+     * Lends out a buffer, allocating a new slab if no buffer is free.
+     * @return cleared buffer with capacity MessageStream.BUFFER_SIZE
+     */
+    public ByteBuffer acquire() {
+
+        Slab slab = null;
+
+        for(Slab s: slabs)
+            if(!s.free.isEmpty()) {
+                slab = s;
+                break;
+            }
+
+        if(slab == null)
+            slab = allocateSlab();
+
+        // Most recently used buffer is lent out first, since it is likely to be in cache
+        ByteBuffer b = slab.free.pop();
+        b.clear();
+
+        lent.put(b, slab);
+
+        if(lent.size() > peakBuffersInUse)
+            peakBuffersInUse = lent.size();
+
+        return b;
+    }
+
+    /**
+     * Returns a buffer previously acquired from this pool, the
+     * caller must not use it, or anything sharing its content, afterwards.
+     * @param b buffer
+     * @throws IllegalStateException if buffer is not lent out by this pool, e.g. if it has already been released
+     */
+    public void release(ByteBuffer b) {
+
+        Slab slab = lent.remove(b);
+
+        if(slab == null)
+            throw new IllegalStateException("Buffer is not lent out by this pool, it may have been released twice");
+
+        slab.free.push(b);
+
+        long now = clock.nanoTime();
+
+        if(slab.isIdle())
+            slab.idleSince = now;
+
+        if(now - lastReclaim >= idleThreshold)
+            reclaimIdleSlabs();
+    }
+
+    /**
+     * Drops every slab but the first which has been idle for at least the idle threshold.
+     * Is called as buffers are released, but may also be called when none are.
+     */
+    public void reclaimIdleSlabs() {
+
+        long now = clock.nanoTime();
+
+        Iterator<Slab> i = slabs.iterator();
+
+        // First slab is kept
+        if(i.hasNext())
+            i.next();
+
+        while(i.hasNext()) {
+
+            Slab s = i.next();
+
+            if(s.isIdle() && now - s.idleSince >= idleThreshold) {
+                i.remove();
+                numberOfReclaimedSlabs++;
+            }
+        }
+
+        lastReclaim = now;
+    }
+
+    private Slab allocateSlab() {
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(BUFFERS_PER_SLAB * MessageStream.BUFFER_SIZE);
+        ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>(BUFFERS_PER_SLAB);
+
+        for(int i = 0;i < BUFFERS_PER_SLAB;i++) {
+
+            slab.limit((i + 1) * MessageStream.BUFFER_SIZE);
+            slab.position(i * MessageStream.BUFFER_SIZE);
+
+            free.add(slab.slice());
+        }
+
+        Slab s = new Slab(free, clock.nanoTime());
+        slabs.add(s);
+
+        return s;
+    }
+
+    public int getNumberOfSlabs() {
+        return slabs.size();
+    }
+
+    public int getNumberOfReclaimedSlabs() {
+        return numberOfReclaimedSlabs;
+    }
+
+    public int getBuffersInUse() {
+        return lent.size();
+    }
+
+    public int getPeakBuffersInUse() {
+        return peakBuffersInUse;
+    }
+
+    /**
+     * Number of buffers in pool, whether lent out or not.
+     * @return number of buffers
+     */
+    public int getNumberOfBuffers() {
+        return slabs.size() * BUFFERS_PER_SLAB;
+    }
+
+    /**
+     * Native memory held by pool.
+     * @return byte size
+     */
+    public long getAllocatedBytes() {
+        return (long)getNumberOfBuffers() * MessageStream.BUFFER_SIZE;
+    }
+}
@@ -0,0 +1,25 @@
+package org.bittorrentj.message.stream;
+
+/**
+ * Source of monotonic time for rate management, which
+ * allows time to be simulated.
+ */
+public interface Clock {
+
+    /**
+     * Clock of the running JVM.
+     */
+    Clock SYSTEM = new Clock() {
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Present time, with an arbitrary origin.
+     * @return time in nanoseconds
+     */
+    long nanoTime();
+}
@@ -3,7 +3,9 @@ package org.bittorrentj.message.stream;
 import org.bittorrentj.exceptions.InvalidMessageReceivedException;
 import org.bittorrentj.swarm.exception.MessageToLargeForNetworkBufferException;
 import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.MessageView;
 import org.bittorrentj.message.MessageWithLengthField;
+import org.bittorrentj.message.field.MessageId;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -17,6 +19,12 @@ import java.util.LinkedList;
  * Stream which buffers communication with an underlying SocketChannel,
  * so as to create read and write methods on the Message level.
  * Also, the stream has reading/writing bandwidth utilization management.
+ *
+ * In circular mode the buffer is used as a ring: data is read from the socket
+ * into the free space on both sides of the wrap point with a single scattering read, and
+ * messages which straddle the wrap point are passed to the handler through a view which
+ * joins both ends. Hence unconsumed data is never moved, whereas in the default linear mode
+ * it is copied to the front of the buffer whenever the data reaches the end of the buffer.
  */
 public class InputMessageStream extends MessageStream {
 
@@ -33,35 +41,104 @@ public class InputMessageStream extends MessageStream {
     private int startPositionOfDataInReadBuffer;
     private int copyAtEdgeEvent; // purely a performance statistic to assess whether circular buffer is needed
 
+    /**
+     * Whether buffer is used as a ring.
+     */
+    private boolean circular;
+
+    /**
+     * Number of bytes in buffer, from startPositionOfDataInReadBuffer and possibly
+     * wrapping around, which have not been processed, is only used in circular mode.
+     */
+    private int numberOfBytesInReadBuffer;
+
+    /**
+     * Duplicates of buffer, which are repositioned over the free space after and
+     * before the wrap point for each scattering read, and only recreated when
+     * a different buffer is borrowed. Is only used in circular mode.
+     */
+    private ByteBuffer[] freeSegments;
+    private ByteBuffer freeSegmentsBuffer;
+
+    /**
+     * View which is repositioned over each message read.
+     */
+    private MessageView view;
+
     /**
      * Constructor
      * @param channel
      * @param manager
      * @param extensions
+     * @param pool
      */
-    InputMessageStream(SocketChannel channel, MessageStreamManager manager, HashMap<Integer, Extension> extensions) {
+    InputMessageStream(SocketChannel channel, MessageStreamManager manager, HashMap<Integer, Extension> extensions, BufferPool pool) {
+        this(channel, manager, extensions, pool, false);
+    }
 
-        super(channel, manager);
+    /**
+     * Constructor
+     * @param channel
+     * @param manager
+     * @param extensions
+     * @param pool
+     * @param circular whether buffer is used as a ring, rather than being compacted
+     */
+    InputMessageStream(SocketChannel channel, MessageStreamManager manager, HashMap<Integer, Extension> extensions, BufferPool pool, boolean circular) {
+
+        super(channel, manager, pool);
 
         this.extensions = extensions;
         this.startPositionOfDataInReadBuffer = 0;
         this.copyAtEdgeEvent = 0;
+        this.view = new MessageView();
+        this.circular = circular;
+        this.numberOfBytesInReadBuffer = 0;
+        this.freeSegments = new ByteBuffer[2];
+        this.freeSegmentsBuffer = null;
     }
 
     /**
-     * Read as many messages from socket as possible
+     * Read as many messages from socket as possible, and
+     * create a message object for each.
      * @param queue
      * @return number of bytes
      * @throws IOException
      * @throws MessageToLargeForNetworkBufferException
      * @throws InvalidMessageReceivedException
      */
-    public int read(LinkedList<MessageWithLengthField> queue) throws IOException, MessageToLargeForNetworkBufferException, InvalidMessageReceivedException  {
+    public int read(final LinkedList<MessageWithLengthField> queue) throws IOException, MessageToLargeForNetworkBufferException, InvalidMessageReceivedException  {
+
+        return read(new MessageHandler() {
+
+            @Override
+            public void handle(MessageView view) throws InvalidMessageReceivedException {
+
+                try {
+                    queue.add(view.toMessage(extensions));
+                } catch (Exception e){
+                    throw new InvalidMessageReceivedException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Read as many messages from socket as possible, and pass
+     * each to handler as a view over the read buffer, hence no objects are
+     * allocated per message. Handler must be done with view before returning.
+     * @param handler handler
+     * @return number of bytes
+     * @throws IOException
+     * @throws MessageToLargeForNetworkBufferException
+     * @throws InvalidMessageReceivedException
+     */
+    public int read(MessageHandler handler) throws IOException, MessageToLargeForNetworkBufferException, InvalidMessageReceivedException  {
 
         // Read, and note number of bytes read from socket into buffer
-        int numberOfBytesRead = read();
+        int numberOfBytesRead = circular ? readIntoRing() : read();
 
-        // Note where in buffer data ends
+        // Note where in buffer data ends, in linear mode
         int endPositionOfDataInReadBuffer = buffer.position();
 
         // Each iteration attempts to read one message from channel buffer
@@ -69,7 +146,10 @@ public class InputMessageStream extends MessageStream {
         while (true) {
 
             // Remaining space in buffer which has not been processed into a message
-            numberOfUnconsumedBytes = endPositionOfDataInReadBuffer - startPositionOfDataInReadBuffer;
+            if(circular)
+                numberOfUnconsumedBytes = numberOfBytesInReadBuffer;
+            else
+                numberOfUnconsumedBytes = endPositionOfDataInReadBuffer - startPositionOfDataInReadBuffer;
 
             /**
              * Do we have enough space in buffer for length field of new message?,
@@ -80,17 +160,19 @@ public class InputMessageStream extends MessageStream {
                 break;
 
             // Read length field of new message in as four byte big-endian integer, without altering buffer position
-            int messageIdAndPayloadSize = buffer.getInt(startPositionOfDataInReadBuffer);
-
-            // Get total size of message as claimed by length field
-            int totalMessageSize = MessageWithLengthField.LENGTH_FIELD_SIZE + messageIdAndPayloadSize;
+            int messageIdAndPayloadSize = getLengthField(startPositionOfDataInReadBuffer);
 
             /**
              * Check if peer is attempting to send a message we can never process,
              * that is a message greater than read buffer. If so we throw an exceptions.
+             * A length field of 2^31 or more is negative here, and is checked before
+             * the total size is computed, since that could overflow.
              */
-            if (totalMessageSize > BUFFER_SIZE)
-                throw new MessageToLargeForNetworkBufferException(totalMessageSize, BUFFER_SIZE);
+            if (messageIdAndPayloadSize < 0 || messageIdAndPayloadSize > BUFFER_SIZE - MessageWithLengthField.LENGTH_FIELD_SIZE)
+                throw new MessageToLargeForNetworkBufferException(messageIdAndPayloadSize, BUFFER_SIZE);
+
+            // Get total size of message as claimed by length field
+            int totalMessageSize = MessageWithLengthField.LENGTH_FIELD_SIZE + messageIdAndPayloadSize;
 
             /**
              * Check that buffer does contain a full new message, that is: <length><id><payload>.
@@ -99,40 +181,41 @@ public class InputMessageStream extends MessageStream {
              */
             if (numberOfUnconsumedBytes >= totalMessageSize) {
 
-                // Wrap in a temporary read only buffer.
-                // NB: underlying buffer array is NOT duplicated, thats the point!
-                ByteBuffer temporaryBuffer = buffer.duplicate().asReadOnlyBuffer();
-
-                // and make sure this buffer starts where message starts
-                temporaryBuffer.position(startPositionOfDataInReadBuffer);
-
-                // and ends where message ends
-                temporaryBuffer.limit(startPositionOfDataInReadBuffer + totalMessageSize);
-
-                // Process buffer and generate new message
-                MessageWithLengthField m;
-
+                // Position view over message.
+                // NB: buffer is NOT duplicated, thats the point!
                 try {
-                    m = MessageWithLengthField.create(temporaryBuffer, extensions);
+                    view.wrap(buffer, startPositionOfDataInReadBuffer);
                 } catch (Exception e){
                     throw new InvalidMessageReceivedException(e);
                 }
 
-                // Save message in read queue
-                queue.add(m);
+                // Let handler process message before buffer is altered
+                handler.handle(view);
 
-                // Advance position in buffer
-                startPositionOfDataInReadBuffer += messageIdAndPayloadSize;
+                // Count block as payload
+                if(view.getId() == MessageId.PIECE)
+                    transmittedPayload(view.getBlockLength());
+
+                // Advance position in buffer past full message
+                startPositionOfDataInReadBuffer += totalMessageSize;
+
+                if(circular) {
+
+                    if(startPositionOfDataInReadBuffer >= buffer.capacity())
+                        startPositionOfDataInReadBuffer -= buffer.capacity();
+
+                    numberOfBytesInReadBuffer -= totalMessageSize;
+                }
             } else
                 break;
         }
 
-        // If buffer is completely consumed, then we reset it
-        // to postpone copy at edge event
+        // If buffer is completely consumed, then we return it
+        // to pool, since connection may be idle for a long time
         if (numberOfUnconsumedBytes == 0) {
-            buffer.clear();
+            releaseBuffer();
             startPositionOfDataInReadBuffer = 0;
-        } else if (endPositionOfDataInReadBuffer == buffer.capacity()-1) {
+        } else if (!circular && endPositionOfDataInReadBuffer == buffer.capacity()) {
 
             // If unconsumed data touches buffer limit,
             // then copy to the front of the buffer.
@@ -147,6 +230,9 @@ public class InputMessageStream extends MessageStream {
             // Do copying
             buffer.compact();
 
+            // Data now starts at front of buffer
+            startPositionOfDataInReadBuffer = 0;
+
             // Note this compacting event, since its costly.
             copyAtEdgeEvent++;
         }
@@ -168,6 +254,9 @@ public class InputMessageStream extends MessageStream {
      */
     private int read() throws IOException {
 
+        // Borrow buffer from pool if we do not hold one already
+        acquireBuffer();
+
         // Prepare for transmission by updating limit on buffer
         updateTransmissionLimit();
 
@@ -180,4 +269,83 @@ public class InputMessageStream extends MessageStream {
         // and return quantity to caller
         return numberOfBytesRead;
     }
+
+    /**
+     * Reads from the socket channel into the free space of the ring,
+     * that is after the data and then from the front of the buffer, with a single
+     * scattering read, while respecting present transmission limit,
+     * and noting how much was read.
+     * @return number of bytes read
+     * @throws IOException
+     */
+    private int readIntoRing() throws IOException {
+
+        // Borrow buffer from pool if we do not hold one already
+        acquireBuffer();
+
+        if(freeSegmentsBuffer != buffer) {
+            freeSegmentsBuffer = buffer;
+            freeSegments[0] = buffer.duplicate();
+            freeSegments[1] = buffer.duplicate();
+        }
+
+        int capacity = buffer.capacity();
+
+        // Position in buffer where data ends
+        int endPosition = startPositionOfDataInReadBuffer + numberOfBytesInReadBuffer;
+
+        if(endPosition >= capacity)
+            endPosition -= capacity;
+
+        // Respect present transmission limit
+        int maxRead = Math.min(capacity - numberOfBytesInReadBuffer, maximumTransmittableData());
+
+        // Free space up to end of buffer, and then from front of buffer
+        int headLength = Math.min(maxRead, capacity - endPosition);
+
+        freeSegments[0].clear();
+        freeSegments[0].position(endPosition);
+        freeSegments[0].limit(endPosition + headLength);
+
+        freeSegments[1].clear();
+        freeSegments[1].limit(maxRead - headLength);
+
+        // Perform reading
+        int numberOfBytesRead = (int)channel.read(freeSegments, 0, maxRead > headLength ? 2 : 1);
+
+        if(numberOfBytesRead > 0)
+            numberOfBytesInReadBuffer += numberOfBytesRead;
+
+        // Notify manager of quantity read
+        transmittedData(numberOfBytesRead);
+
+        // and return quantity to caller
+        return numberOfBytesRead;
+    }
+
+    /**
+     * Reads length field of message starting at given position in buffer, as a
+     * four byte big-endian integer, without altering buffer position.
+     * In circular mode the field may wrap around end of buffer.
+     * @param position position of length field
+     * @return length field
+     */
+    private int getLengthField(int position) {
+
+        int capacity = buffer.capacity();
+
+        if(position + MessageWithLengthField.LENGTH_FIELD_SIZE <= capacity)
+            return buffer.getInt(position);
+
+        int value = 0;
+
+        for(int i = 0;i < MessageWithLengthField.LENGTH_FIELD_SIZE;i++)
+            value = (value << 8) | (buffer.get((position + i) % capacity) & 0xff);
+
+        return value;
+    }
+
+    public int getCopyAtEdgeEvent() {
+        return copyAtEdgeEvent;
+    }
 }
@@ -0,0 +1,20 @@
+package org.bittorrentj.message.stream;
+
+import org.bittorrentj.exceptions.InvalidMessageReceivedException;
+import org.bittorrentj.message.MessageView;
+
+/**
+ * Receives messages read by an InputMessageStream as flyweight views
+ * over its read buffer.
+ */
+public interface MessageHandler {
+
+    /**
+     * Is called once for each complete message read, in order of arrival. The view,
+     * and any buffer obtained from it, is only valid during the call, since the same view
+     * is repositioned over the next message, and the read buffer is compacted afterwards.
+     * @param view view of message
+     * @throws InvalidMessageReceivedException if message is invalid, which stops reading
+     */
+    public void handle(MessageView view) throws InvalidMessageReceivedException;
+}
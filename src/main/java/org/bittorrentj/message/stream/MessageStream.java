@@ -22,25 +22,67 @@ public abstract class MessageStream {
     private MessageStreamManager manager;
 
     /**
-     * Buffer
+     * Pool from which buffer is borrowed.
+     */
+    protected BufferPool pool;
+
+    /**
+     * Buffer, which is borrowed from pool only while
+     * stream has data in flight, and is otherwise null.
      */
     protected ByteBuffer buffer;
 
     /**
-     * Size (bytes) of buffer
+     * Size (bytes) of buffer, and thereby largest
+     * message which can be read or written through buffer.
      */
-    public final static int BUFFER_SIZE = 10 * 1024 * 1024;
+    public final static int BUFFER_SIZE = 64 * 1024;
 
     /**
      * Constructor
      * @param channel
      * @param manager
+     * @param pool
      */
-    MessageStream(SocketChannel channel, MessageStreamManager manager) {
+    MessageStream(SocketChannel channel, MessageStreamManager manager, BufferPool pool) {
 
         this.channel = channel;
         this.manager = manager;
-        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.pool = pool;
+        this.buffer = null;
+    }
+
+    public MessageStreamManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Borrows buffer from pool, if not already held.
+     */
+    protected void acquireBuffer() {
+
+        if(buffer == null)
+            buffer = pool.acquire();
+    }
+
+    /**
+     * Returns buffer to pool, if held.
+     */
+    protected void releaseBuffer() {
+
+        if(buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Releases all resources borrowed by stream, and leaves
+     * rate management, is called when connection is closed. Channel is not closed.
+     */
+    public void close() {
+        releaseBuffer();
+        manager.close();
     }
 
     /**
@@ -55,6 +97,24 @@ public abstract class MessageStream {
         manager.transmittedData(numberOfBytes);
     }
 
+    /**
+     * Wraps transmittedPayload in manager, is called for
+     * the blocks of piece messages, in addition to transmittedData.
+     * @param numberOfBytes number of bytes of blocks
+     */
+    protected void transmittedPayload(int numberOfBytes) {
+        manager.transmittedPayload(numberOfBytes);
+    }
+
+    /**
+     * Wraps maximumTransmittableDataAtThisTime in manager,
+     * for transmissions which do not go through buffer.
+     * @return maximum transmittable at present
+     */
+    protected int maximumTransmittableData() {
+        return manager.maximumTransmittableDataAtThisTime();
+    }
+
     /**
      * Updates the limit on the buffer
      * to respect the transmission limit at present.
@@ -65,8 +125,8 @@ public abstract class MessageStream {
         // How much can be transmitted at most at present
         int maxTransmitted = manager.maximumTransmittableDataAtThisTime();
 
-        // Set limit of buffer to respect this
-        buffer.limit(buffer.position() + maxTransmitted);
+        // Set limit of buffer to respect this, without going past capacity
+        buffer.limit((int)Math.min((long)buffer.position() + maxTransmitted, buffer.capacity()));
 
         return maxTransmitted;
     }
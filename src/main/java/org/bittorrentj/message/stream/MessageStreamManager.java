@@ -1,99 +1,73 @@
 package org.bittorrentj.message.stream;
 
-import java.util.Date;
-
 /**
  * Created by bedeho on 21.09.2014.
  *
  * Manages the transmission rate and historical information for Input and Output message
  * streams, one such manager is assigned per stream, and it works with both
  * types of streams.
+ *
+ * The rate is managed by a token bucket of the stream, which is nested under the
+ * buckets of the swarm and client, see TokenBucket. The rate actually achieved is
+ * estimated for all data, and for payload alone, that is blocks of piece messages,
+ * the difference being protocol overhead.
  */
 public class MessageStreamManager {
 
     /**
-     * The size of the window used to measure network io (up/down) speed
-     * over, in milliseconds.
-     */
-    public final static int SPEED_MEASUREMENT_WINDOW_SIZE = 1000; // (ms)
-
-    /**
-     * Time when manager when first started.
-     */
-    private Date startTime;
-
-    /**
-     * The total number of bytes over full lifetime of the
-     * manager.
+     * Token bucket of stream.
      */
-    private int totalAmountOfTransmittedData;
+    private TokenBucket bucket;
 
     /**
-     * Counts the amount of data transmitted between data source
-     * and message stream buffer read into the network read buffer
-     * within present averaging window.
+     * Clock of bucket.
      */
-    private int transmittedDataInPresentWindow;
+    private Clock clock;
 
     /**
-     * Date and time when data was last transmitted.
+     * Time (ns) when manager was first started.
      */
-    private Date timeLastDataTransmitted;
+    private long startTime;
 
     /**
-     * Date and time at which present measuring window starts.
+     * The total number of bytes over full lifetime of the
+     * manager.
      */
-    private Date currentWindowStart;
+    private long totalAmountOfTransmittedData;
 
     /**
-     * The rate (b/ms) at which data is allowed
-     * to be transmitted. The manager will attempt to get the rate
-     * as close as possible, but not above.
+     * Time (ns) when data was last transmitted, equal to
+     * startTime if no data has been transmitted.
      */
-    private int desiredTransmissionRate;
+    private long timeLastDataTransmitted;
 
     /**
-     * Represents whether transmission rate management
-     * is enabled at present.
+     * Estimators of rate of all data, and of payload.
      */
-    private boolean isRateManagementEnabled;
+    private RateEstimator rate;
+    private RateEstimator payloadRate;
 
     /**
      * Constructor
-     * @param desiredTransmissionRate
+     * @param bucket token bucket of stream, which is detached from its parent when manager is closed
      */
-    MessageStreamManager(int desiredTransmissionRate) {
+    public MessageStreamManager(TokenBucket bucket) {
 
-        this.startTime = new Date();
+        this.bucket = bucket;
+        this.clock = bucket.getClock();
+        this.startTime = clock.nanoTime();
         this.totalAmountOfTransmittedData = 0;
-        this.timeLastDataTransmitted = null;
-        this.desiredTransmissionRate = desiredTransmissionRate;
-        this.transmittedDataInPresentWindow = 0;
-        this.currentWindowStart = startTime;
-        this.isRateManagementEnabled = false;
+        this.timeLastDataTransmitted = startTime;
+        this.rate = new RateEstimator(clock);
+        this.payloadRate = new RateEstimator(clock);
     }
 
     /**
      * How much may be transmitted at present time
-     * @return
+     * @return number of bytes
      */
-    //public int maximumTransmittableDataAtThisTime() {
     public int maximumTransmittableDataAtThisTime() {
-
-        // Start a new measuring window if necessary
-        startNewWindowIfNecessary();
-
-        // Has the maximum amount been transmitted this window
-        int maximumAmountPerWindow = desiredTransmissionRate * SPEED_MEASUREMENT_WINDOW_SIZE;
-
-        // BOOLEAN: yes/no
-        // if so then return true iff we have not used up quota
-        //return transmittedDataInPresentWindow < maximumAmountPerWindow;
-
-        // INTEGER CAPPED: assumes it is called at least once per window
-        // if so then return true iff we have not used up quota
-        int remaining = transmittedDataInPresentWindow - maximumAmountPerWindow;
-        return remaining > 0 ? remaining : 0;
+        return (int)Math.min(bucket.available(), Integer.MAX_VALUE);
     }
 
     /**
@@ -103,68 +77,85 @@ public class MessageStreamManager {
      */
     public void transmittedData(int numberOfBytes) {
 
-        // Start a new measuring window if necessary
-        startNewWindowIfNecessary();
+        // Nothing transmitted, or end of stream
+        if(numberOfBytes <= 0)
+            return;
 
-        // Count towards counter for present window
-        transmittedDataInPresentWindow += numberOfBytes;
+        // Draw from bucket hierarchy
+        bucket.consume(numberOfBytes);
 
-        // and net total transmission rate
+        // and count towards net total
         totalAmountOfTransmittedData += numberOfBytes;
 
-        // and update the date of last transmitted data
-        timeLastDataTransmitted = new Date();
+        // and update the time of last transmitted data
+        timeLastDataTransmitted = clock.nanoTime();
+
+        rate.add(numberOfBytes);
     }
 
     /**
-     * Resets the starting time of the present window, and resets counter,
-     * both only if current time has exceeded measuring window.
-     * @return present starting date for window
+     * Registers that payload has been transmitted, which is
+     * also counted by transmittedData, is called from streams.
+     * @param numberOfBytes number of bytes of blocks
      */
-    private Date startNewWindowIfNecessary() {
-
-        long now = new Date().getTime();
+    public void transmittedPayload(int numberOfBytes) {
 
-        // Time since start of the last measuring window
-        long timeSinceLastWindowStart = now - currentWindowStart.getTime();
+        if(numberOfBytes > 0)
+            payloadRate.add(numberOfBytes);
+    }
 
-        // Has more than one interval passed, if so we must reset window start time and counter
-        if(timeSinceLastWindowStart > SPEED_MEASUREMENT_WINDOW_SIZE) {
+    /**
+     * Estimated rate of all data.
+     * @param horizon RateEstimator.SHORT, MEDIUM or LONG
+     * @return rate (bytes/s)
+     */
+    public double getRate(int horizon) {
+        return rate.getRate(horizon);
+    }
 
-            // Get overflow of passed time
-            long overflow = timeSinceLastWindowStart % SPEED_MEASUREMENT_WINDOW_SIZE;
+    /**
+     * Estimated rate of payload.
+     * @param horizon RateEstimator.SHORT, MEDIUM or LONG
+     * @return rate (bytes/s)
+     */
+    public double getPayloadRate(int horizon) {
+        return payloadRate.getRate(horizon);
+    }
 
-            // Set time to be -overflow in the past
-            this.currentWindowStart.setTime(now - overflow);
+    /**
+     * Estimated rate of protocol overhead, that is all data but payload.
+     * @param horizon RateEstimator.SHORT, MEDIUM or LONG
+     * @return rate (bytes/s)
+     */
+    public double getOverheadRate(int horizon) {
+        return Math.max(0, rate.getRate(horizon) - payloadRate.getRate(horizon));
+    }
 
-            // Reset transmission counter
-            this.transmittedDataInPresentWindow = 0;
-        }
+    public long getTotalAmountOfTransmittedPayload() {
+        return payloadRate.getTotal();
+    }
 
-        return currentWindowStart;
+    /**
+     * Removes bucket of stream from hierarchy, is called
+     * when stream is closed.
+     */
+    public void close() {
+        bucket.detach();
     }
 
-    public int getTotalAmountOfTransmittedData() {
+    public long getTotalAmountOfTransmittedData() {
         return totalAmountOfTransmittedData;
     }
 
-    public int getDesiredTransmissionRate() {
-        return desiredTransmissionRate;
+    public TokenBucket getBucket() {
+        return bucket;
     }
 
-    public Date getTimeLastDataTransmitted() {
+    public long getTimeLastDataTransmitted() {
         return timeLastDataTransmitted;
     }
 
-    public Date getStartTime() {
+    public long getStartTime() {
         return startTime;
     }
-
-    public boolean isRateManagementEnabled() {
-        return isRateManagementEnabled;
-    }
-
-    public void setRateManagementEnabled(boolean isRateManagementEnabled) {
-        this.isRateManagementEnabled = isRateManagementEnabled;
-    }
 }
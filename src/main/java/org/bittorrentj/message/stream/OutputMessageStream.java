@@ -1,32 +1,114 @@
 package org.bittorrentj.message.stream;
 
+import org.bittorrentj.disk.TransferBlockJob;
 import org.bittorrentj.swarm.exception.MessageToLargeForNetworkBufferException;
 import org.bittorrentj.message.MessageWithLengthField;
+import org.bittorrentj.message.Piece;
+import org.bittorrentj.message.Request;
+import org.bittorrentj.message.StoredPiece;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.LinkedList;
 
 /**
  * Created by bedeho on 21.09.2014.
+ *
+ * Messages are written in batches: as many queued messages as fit are
+ * serialized back to back into the buffer, and the whole batch is flushed with a single
+ * gathering write. Blocks of piece messages are not copied into the buffer, instead
+ * the batch refers to them directly.
+ *
+ * Blocks of stored piece messages are not in memory at all: a batch ends with the header
+ * of such a message, and once it is written the block is sent straight from storage by
+ * a TransferBlockJob, which is started with startTransfer() and handed back with
+ * transferCompleted(). Writing resumes with the next batch once the whole block is sent.
  */
 public class OutputMessageStream extends MessageStream {
 
     /**
-     * The number of bytes in the write buffer.
+     * Maximum number of buffers in a batch.
+     */
+    private final static int MAX_BATCH_BUFFERS = 64;
+
+    /**
+     * Buffers of present batch, which are either regions of buffer,
+     * or views of piece blocks. Slots are reused between batches.
+     */
+    private ByteBuffer[] batch;
+
+    /**
+     * Absolute limit of each buffer in batch, since limits are
+     * temporarily lowered to respect transmission limit.
+     */
+    private int[] batchLimits;
+
+    /**
+     * Whether each buffer in batch is a piece block, which is counted as payload as it is written.
+     */
+    private boolean[] batchBlocks;
+
+    /**
+     * Position of each buffer in batch before a write, so the amount written from each is known.
+     */
+    private int[] batchPositions;
+
+    /**
+     * Number of buffers in present batch.
+     */
+    private int batchSize;
+
+    /**
+     * Index of first buffer in batch which has not been fully written.
+     */
+    private int batchIndex;
+
+    /**
+     * The number of bytes in the present batch not yet written.
      * We cannot use hasRemaining on buffer, since that
      * can also be state when buffer is perfectly empty.
      */
-    private int bytesInWriteBuffer;
+    private long bytesInBatch;
+
+    /**
+     * Stored piece whose header has been batched, and whose block is not yet fully sent, or null.
+     */
+    private StoredPiece transfer;
+
+    /**
+     * Number of bytes of block of transfer sent so far.
+     */
+    private int transferredBytes;
+
+    /**
+     * Job sending part of block of transfer, while channel belongs to a disk worker, or null.
+     */
+    private TransferBlockJob transferInFlight;
+
+    /**
+     * Number of write calls on channel, purely a performance statistic.
+     */
+    private long numberOfWriteCalls;
 
-    public OutputMessageStream(SocketChannel channel, MessageStreamManager manager) {
+    public OutputMessageStream(SocketChannel channel, MessageStreamManager manager, BufferPool pool) {
 
-        super(channel, manager);
-        this.bytesInWriteBuffer = 0;
+        super(channel, manager, pool);
+        this.batch = new ByteBuffer[MAX_BATCH_BUFFERS];
+        this.batchLimits = new int[MAX_BATCH_BUFFERS];
+        this.batchBlocks = new boolean[MAX_BATCH_BUFFERS];
+        this.batchPositions = new int[MAX_BATCH_BUFFERS];
+        this.batchSize = 0;
+        this.batchIndex = 0;
+        this.bytesInBatch = 0;
+        this.transfer = null;
+        this.transferredBytes = 0;
+        this.transferInFlight = null;
+        this.numberOfWriteCalls = 0;
     }
 
     /**
-     *
+     * Writes as many messages from queue to socket as possible.
      * @param queue
      * @return
      * @throws IOException
@@ -34,77 +116,292 @@ public class OutputMessageStream extends MessageStream {
      */
     public int write(LinkedList<MessageWithLengthField> queue) throws IOException, MessageToLargeForNetworkBufferException {
 
-        // The number of bytes written into socket from write buffer in last iteration of next loop
+        // The number of bytes written into socket in last iteration of next loop
         int numberOfBytesWritten = 0;
 
         do {
 
-            // Does buffer have anything to be written
-            if(bytesInWriteBuffer == 0) {
-
-                // No, then if we still have messages to write, put in buffer
-                if(!queue.isEmpty()) {
-
-                    // Get message
-                    MessageWithLengthField m = queue.poll();
-
-                    // Is there space in buffer?
-                    int messageLength = m.getRawMessageLength();
+            // Does batch have anything to be written
+            if(bytesInBatch == 0) {
 
-                    // otherwise throw exception
-                    if(messageLength > BUFFER_SIZE)
-                        throw new MessageToLargeForNetworkBufferException(messageLength, BUFFER_SIZE);
-
-                    // Write raw message into network buffer
-                    m.writeMessageToBuffer(buffer);
-
-                    // Buffer was filled with full message
-                    bytesInWriteBuffer = messageLength;
+                // No, then block of a stored piece is sent before any later message
+                if(transfer != null)
+                    numberOfBytesWritten = 0;
+                else if(!queue.isEmpty()) { // if we still have messages to write, batch them
 
-                    // Write buffer to socket
-                    // removed from first line after if: buffer.clear();  // Clear buffer: pos = 0, lim = cap, mark discarded
-                    //buffer.flip(); // make limit= position and position = 0, to facilitate writing into socket
-                    //numberOfBytesWritten = channel.write(buffer);
-                    buffer.clear(); // pos = 0, lim=cap
-                    numberOfBytesWritten = write(bytesInWriteBuffer);
+                    fillBatch(queue);
+                    numberOfBytesWritten = writeBatch();
 
                 } else // Otherwise we are done
                     numberOfBytesWritten = 0;
 
-            } else // Write, and note number of bytes written from buffer to socket
-                numberOfBytesWritten = write(bytesInWriteBuffer);
+            } else // Write, and note number of bytes written from batch to socket
+                numberOfBytesWritten = writeBatch();
 
             if(numberOfBytesWritten > 0);
             // log data sent
 
-            // Update number of bytes in buffer
-            bytesInWriteBuffer -= numberOfBytesWritten;
-
         } while(numberOfBytesWritten > 0); // We are done for now if we can't write to socket right now
 
         return numberOfBytesWritten;
     }
 
     /**
-     * Writes from buffer into socket channel
-     * starting at present position
-     * while respecting present transmission limit,
-     * and noting how much was written.
+     * Moves messages from front of queue into a new batch, until queue is empty,
+     * or buffer or batch is full.
+     * @param queue
+     * @throws MessageToLargeForNetworkBufferException if a message can not fit in empty buffer
+     */
+    private void fillBatch(LinkedList<MessageWithLengthField> queue) throws MessageToLargeForNetworkBufferException {
+
+        // Borrow buffer from pool, it is returned when batch is fully written
+        acquireBuffer();
+        buffer.clear(); // pos = 0, lim=cap
+
+        batchSize = 0;
+        batchIndex = 0;
+        bytesInBatch = 0;
+
+        // Start of part of buffer not yet added to batch
+        int segmentStart = 0;
+
+        MessageWithLengthField m;
+        while((m = queue.peek()) != null) {
+
+            // Requests cancelled while queued are dropped
+            if(m instanceof Request && ((Request)m).isCancelled()) {
+                queue.poll();
+                continue;
+            }
+
+            // Leave room for a buffer segment, and possibly a block, after this message
+            if(batchSize + 2 > MAX_BATCH_BUFFERS)
+                break;
+
+            if(m instanceof StoredPiece) {
+
+                if(buffer.remaining() < Piece.HEADER_SIZE)
+                    break;
+
+                StoredPiece p = (StoredPiece)m;
+
+                p.writeHeaderToBuffer(buffer);
+                queue.poll();
+
+                // Block is sent from storage once header is written, so batch ends here
+                transfer = p;
+                transferredBytes = 0;
+                break;
+
+            } else if(m instanceof Piece) {
+
+                // Header goes in buffer, block is added to batch directly
+                if(buffer.remaining() < Piece.HEADER_SIZE)
+                    break;
+
+                Piece p = (Piece)m;
+
+                p.writeHeaderToBuffer(buffer);
+                segmentStart = addBufferSegment(segmentStart);
+                addToBatch(p.getBlock(), true);
+
+            } else {
+
+                int messageLength = m.getRawMessageLength();
+
+                // Message which can never be written
+                if(messageLength > BUFFER_SIZE)
+                    throw new MessageToLargeForNetworkBufferException(messageLength, BUFFER_SIZE);
+
+                // Wait for next batch if there is no space left
+                if(messageLength > buffer.remaining())
+                    break;
+
+                // Write raw message into network buffer
+                m.writeMessageToBuffer(buffer);
+
+                // Request can no longer be withdrawn from queue, only cancelled by a message
+                if(m instanceof Request)
+                    ((Request)m).setWritten();
+            }
+
+            queue.poll();
+        }
+
+        addBufferSegment(segmentStart);
+    }
+
+    /**
+     * Adds part of buffer written since segmentStart to batch, if it is not empty.
+     * @param segmentStart start of segment
+     * @return end of segment, which is start of next segment
+     */
+    private int addBufferSegment(int segmentStart) {
+
+        int segmentEnd = buffer.position();
+
+        if(segmentEnd > segmentStart) {
+
+            ByteBuffer segment = buffer.duplicate();
+
+            segment.limit(segmentEnd);
+            segment.position(segmentStart);
+
+            addToBatch(segment, false);
+        }
+
+        return segmentEnd;
+    }
+
+    private void addToBatch(ByteBuffer b, boolean block) {
+
+        batch[batchSize] = b;
+        batchLimits[batchSize] = b.limit();
+        batchBlocks[batchSize] = block;
+        batchSize++;
+
+        bytesInBatch += b.remaining();
+    }
+
+    /**
+     * Writes as much of batch as possible with a single gathering write,
+     * while respecting present transmission limit, and noting how much was written.
      * @return number of bytes written
      * @throws IOException
      */
-    protected int write(int upperLimit) throws IOException {
+    private int writeBatch() throws IOException {
+
+        // Lower limits of buffers so that at most the permitted amount is written
+        long permitted = maximumTransmittableData();
+        int end = batchIndex;
+
+        while(end < batchSize && permitted > 0) {
+
+            ByteBuffer b = batch[end];
+
+            if(b.remaining() > permitted)
+                b.limit(b.position() + (int)permitted);
+
+            batchPositions[end] = b.position();
+
+            permitted -= b.remaining();
+            end++;
+        }
 
-        // Prepare for transmission by updating limit on buffer
-        updateTransmissionLimit(upperLimit);
+        if(end == batchIndex)
+            return 0;
 
         // Perform writing
-        int numberOfBytesWritten = channel.write(buffer);
+        long numberOfBytesWritten = channel.write(batch, batchIndex, end - batchIndex);
+        numberOfWriteCalls++;
+
+        // Restore limits, count blocks as payload as far as they were
+        // written, and skip past fully written buffers
+        int payload = 0;
+
+        for(int i = batchIndex;i < end;i++) {
+
+            if(batchBlocks[i])
+                payload += batch[i].position() - batchPositions[i];
+
+            batch[i].limit(batchLimits[i]);
+        }
+
+        while(batchIndex < batchSize && !batch[batchIndex].hasRemaining()) {
+
+            // Release reference to block
+            batch[batchIndex] = null;
+            batchIndex++;
+        }
+
+        bytesInBatch -= numberOfBytesWritten;
+
+        // Stream does not hold a buffer while idle
+        if(bytesInBatch == 0)
+            releaseBuffer();
 
         // Notify manager of quantity written
-        transmittedData(numberOfBytesWritten);
+        transmittedData((int)numberOfBytesWritten);
+
+        if(payload > 0)
+            transmittedPayload(payload);
+
+        return (int)numberOfBytesWritten;
+    }
+
+    /**
+     * Checks whether the block of a stored piece is waiting to be sent, which
+     * is when its header has been written, and no job is sending it.
+     * @return true iff startTransfer() should be called
+     */
+    public boolean isTransferPending() {
+        return transfer != null && transferInFlight == null && bytesInBatch == 0;
+    }
+
+    /**
+     * Creates job sending as much of the block of the pending stored piece as present
+     * transmission limit permits. The job must be performed on a disk worker and passed
+     * to transferCompleted(), nothing is written by stream meanwhile.
+     * @return job, or null if nothing may be sent now
+     * @throws IllegalStateException if no transfer is pending
+     */
+    public TransferBlockJob startTransfer() {
+
+        if(!isTransferPending())
+            throw new IllegalStateException();
+
+        int permitted = maximumTransmittableData();
+
+        if(permitted <= 0)
+            return null;
+
+        int length = Math.min(permitted, transfer.getBlockLength() - transferredBytes);
+
+        transferInFlight = new TransferBlockJob(transfer.getDiskManager(), transfer.getIndex(),
+                transfer.getBegin() + transferredBytes, length, channel);
+
+        return transferInFlight;
+    }
+
+    /**
+     * Notes how much of block was sent by a completed job, which was
+     * returned by startTransfer(), and succeeded.
+     * @param job job
+     * @return number of bytes sent
+     * @throws IllegalArgumentException if job is not the one in flight
+     */
+    public int transferCompleted(TransferBlockJob job) {
+
+        if(job == null || job != transferInFlight)
+            throw new IllegalArgumentException();
+
+        transferInFlight = null;
+
+        int numberOfBytesWritten = (int)job.getTransferred();
+
+        transferredBytes += numberOfBytesWritten;
+
+        if(transferredBytes == transfer.getBlockLength())
+            transfer = null;
+
+        // Notify manager of quantity written, all of which is payload
+        if(numberOfBytesWritten > 0) {
+            transmittedData(numberOfBytesWritten);
+            transmittedPayload(numberOfBytesWritten);
+        }
 
-        // and return quantity to caller
         return numberOfBytesWritten;
     }
+
+    /**
+     * Job sending part of a block of a stored piece, which has not yet completed.
+     * @return job, or null
+     */
+    public TransferBlockJob getTransferInFlight() {
+        return transferInFlight;
+    }
+
+    public long getNumberOfWriteCalls() {
+        return numberOfWriteCalls;
+    }
 }
@@ -0,0 +1,129 @@
+package org.bittorrentj.message.stream;
+
+/**
+ * Estimates the rate at which data is transmitted, as exponentially weighted moving
+ * averages over several horizons, so a short horizon follows changes quickly, and a
+ * long horizon is stable.
+ *
+ * For each horizon tau, transmitted bytes are added to a mass which decays by
+ * exp(-dt/tau), and the rate is the mass divided by tau. At a steady rate the mass converges
+ * to rate times tau, so the estimate is unbiased. Before a horizon has passed since the start,
+ * the mass is divided by the decayed length of time actually observed instead, so early
+ * estimates are not too low, but at least one second is assumed observed, so the first
+ * few messages do not appear as a burst. Nothing is allocated after construction.
+ *
+ * Is not thread safe, it is only used by the thread of the stream it measures.
+ */
+public class RateEstimator {
+
+    /**
+     * Horizons, as indexes into HORIZONS.
+     */
+    public final static int SHORT = 0;
+    public final static int MEDIUM = 1;
+    public final static int LONG = 2;
+
+    /**
+     * Length (ns) of each horizon.
+     */
+    private final static long[] HORIZONS = {1L * 1000 * 1000 * 1000, 5L * 1000 * 1000 * 1000, 20L * 1000 * 1000 * 1000};
+
+    private final static double NANOS_PER_SECOND = 1000 * 1000 * 1000;
+
+    /**
+     * Clock of estimator.
+     */
+    private Clock clock;
+
+    /**
+     * Time (ns) when estimation started.
+     */
+    private long startTime;
+
+    /**
+     * Time (ns) when masses were last decayed.
+     */
+    private long lastUpdate;
+
+    /**
+     * Decayed number of bytes for each horizon.
+     */
+    private double[] mass;
+
+    /**
+     * Total number of bytes over full lifetime of estimator.
+     */
+    private long total;
+
+    /**
+     * Constructor
+     * @param clock clock of estimator
+     */
+    public RateEstimator(Clock clock) {
+
+        this.clock = clock;
+        this.startTime = clock.nanoTime();
+        this.lastUpdate = startTime;
+        this.mass = new double[HORIZONS.length];
+        this.total = 0;
+    }
+
+    /**
+     * Registers that data has been transmitted at present.
+     * @param numberOfBytes number of bytes
+     */
+    public void add(long numberOfBytes) {
+
+        decay(clock.nanoTime());
+
+        for(int i = 0;i < mass.length;i++)
+            mass[i] += numberOfBytes;
+
+        total += numberOfBytes;
+    }
+
+    /**
+     * Estimated rate over given horizon at present.
+     * @param horizon SHORT, MEDIUM or LONG
+     * @return rate (bytes/s)
+     */
+    public double getRate(int horizon) {
+
+        long now = clock.nanoTime();
+        long tau = HORIZONS[horizon];
+
+        double m = mass[horizon] * Math.exp(-(double)(now - lastUpdate) / tau);
+
+        // Length of time observed, weighted by the same decay as the mass
+        long age = Math.max(now - startTime, HORIZONS[SHORT]);
+
+        double observed = tau * -Math.expm1(-(double)age / tau);
+
+        return m * NANOS_PER_SECOND / observed;
+    }
+
+    /**
+     * Decays masses to given time.
+     * @param now present time
+     */
+    private void decay(long now) {
+
+        long elapsed = now - lastUpdate;
+
+        if(elapsed <= 0)
+            return;
+
+        for(int i = 0;i < mass.length;i++)
+            mass[i] *= Math.exp(-(double)elapsed / HORIZONS[i]);
+
+        lastUpdate = now;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+}
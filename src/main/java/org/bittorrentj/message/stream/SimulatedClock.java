@@ -0,0 +1,42 @@
+package org.bittorrentj.message.stream;
+
+/**
+ * Clock which only moves when advanced explicitly, so that
+ * rate management can be exercised deterministically.
+ */
+public class SimulatedClock implements Clock {
+
+    /**
+     * Present time in nanoseconds.
+     */
+    private long now;
+
+    public SimulatedClock() {
+        this.now = 0;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    /**
+     * Moves time forward.
+     * @param nanos number of nanoseconds
+     */
+    public void advance(long nanos) {
+
+        if(nanos < 0)
+            throw new IllegalArgumentException();
+
+        now += nanos;
+    }
+
+    /**
+     * Moves time forward.
+     * @param millis number of milliseconds
+     */
+    public void advanceMillis(long millis) {
+        advance(millis * 1000 * 1000);
+    }
+}
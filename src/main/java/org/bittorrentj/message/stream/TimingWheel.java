@@ -0,0 +1,256 @@
+package org.bittorrentj.message.stream;
+
+/**
+ * Hashed timing wheel, which runs timers of a selector loop, such as keep-alives and timeouts,
+ * without scanning all connections on every iteration.
+ *
+ * Time is divided into ticks, and the wheel has a power of two number of slots, each with a
+ * list of the timers which expire on a tick mapping to that slot. Advancing the wheel visits
+ * the slots of the ticks which have passed, and only fires the timers in them which are due, timers
+ * further away than a full turn of the wheel stay in their slot for later turns. Scheduling and
+ * cancelling are O(1), since timers are linked directly into the lists, hence nothing
+ * is allocated when a timer is rescheduled. Timers expire at the latest one tick late.
+ *
+ * Is not thread safe, it is only used by the thread of the selector loop.
+ */
+public class TimingWheel {
+
+    /**
+     * Timer which can be scheduled on a wheel.
+     */
+    public abstract static class Timer {
+
+        /**
+         * Neighbours in list of slot, or of expired timers, both null if not scheduled.
+         */
+        private Timer previous;
+        private Timer next;
+
+        /**
+         * Tick on which timer expires.
+         */
+        private long deadlineTick;
+
+        /**
+         * Is called when timer expires, after which it is no longer scheduled,
+         * hence it may be scheduled again.
+         */
+        public abstract void expired();
+
+        public boolean isScheduled() {
+            return next != null;
+        }
+
+        /**
+         * Links timer in before given timer.
+         */
+        private void linkBefore(Timer t) {
+
+            previous = t.previous;
+            next = t;
+
+            previous.next = this;
+            t.previous = this;
+        }
+
+        private void unlink() {
+
+            previous.next = next;
+            next.previous = previous;
+
+            previous = null;
+            next = null;
+        }
+    }
+
+    /**
+     * Head of circular list, which is not a timer itself.
+     */
+    private final static class Head extends Timer {
+
+        private Head() {
+            super.previous = this;
+            super.next = this;
+        }
+
+        @Override
+        public void expired() {
+        }
+    }
+
+    /**
+     * Clock of wheel.
+     */
+    private Clock clock;
+
+    /**
+     * Duration (ns) of a tick.
+     */
+    private long tickDuration;
+
+    /**
+     * Timers of each slot.
+     */
+    private Timer[] slots;
+
+    /**
+     * Number of slots minus one, for mapping ticks to slots.
+     */
+    private int mask;
+
+    /**
+     * Timers found to be due, which are being fired.
+     */
+    private Timer expired;
+
+    /**
+     * Time (ns) when wheel was created, tick 0 starts then.
+     */
+    private long startTime;
+
+    /**
+     * Last tick which has been processed.
+     */
+    private long currentTick;
+
+    /**
+     * Number of timers scheduled.
+     */
+    private int size;
+
+    /**
+     * Constructor
+     * @param clock clock of wheel
+     * @param tickDuration duration (ns) of a tick, which is the resolution of timers
+     * @param numberOfSlots number of slots, is rounded up to a power of two
+     * @throws IllegalArgumentException if tick duration or number of slots is not positive
+     */
+    public TimingWheel(Clock clock, long tickDuration, int numberOfSlots) {
+
+        if(tickDuration <= 0 || numberOfSlots <= 0 || numberOfSlots > (1 << 30))
+            throw new IllegalArgumentException();
+
+        int n = Integer.highestOneBit(numberOfSlots);
+
+        if(n < numberOfSlots)
+            n <<= 1;
+
+        this.clock = clock;
+        this.tickDuration = tickDuration;
+        this.slots = new Timer[n];
+        this.mask = n - 1;
+        this.expired = new Head();
+        this.startTime = clock.nanoTime();
+        this.currentTick = 0;
+        this.size = 0;
+
+        for(int i = 0;i < n;i++)
+            slots[i] = new Head();
+    }
+
+    /**
+     * Schedules timer to expire after given delay, a timer which is already
+     * scheduled is moved.
+     * @param timer timer
+     * @param delay delay (ns), is rounded up to whole ticks, and at least one tick
+     */
+    public void schedule(Timer timer, long delay) {
+
+        if(timer.isScheduled())
+            cancel(timer);
+
+        long deadline = clock.nanoTime() + Math.max(delay, 0) - startTime;
+
+        // Round up, and never onto a tick already processed, so timer does not fire in same advance
+        long tick = Math.max((deadline + tickDuration - 1) / tickDuration, currentTick + 1);
+
+        timer.deadlineTick = tick;
+        timer.linkBefore(slots[(int)(tick & mask)]);
+
+        size++;
+    }
+
+    /**
+     * Cancels timer, if scheduled.
+     * @param timer timer
+     */
+    public void cancel(Timer timer) {
+
+        if(!timer.isScheduled())
+            return;
+
+        timer.unlink();
+        size--;
+    }
+
+    /**
+     * Fires all timers which are due at present. Only the slots of the ticks passed since last
+     * advance are visited, at most a full turn of the wheel, hence cost is proportional to the number
+     * of timers expiring, and those sharing their slots. Timers may schedule or cancel any
+     * timer when they fire.
+     * @return number of timers fired
+     */
+    public int advance() {
+
+        long nowTick = (clock.nanoTime() - startTime) / tickDuration;
+
+        if(nowTick <= currentTick)
+            return 0;
+
+        // After a long stall each slot is visited only once
+        long firstTick = Math.max(currentTick + 1, nowTick - mask);
+
+        // Move due timers to expired list first, so firing can not disturb iteration of slots
+        for(long tick = firstTick;tick <= nowTick;tick++) {
+
+            Timer slot = slots[(int)(tick & mask)];
+            Timer t = slot.next;
+
+            while(t != slot) {
+
+                Timer next = t.next;
+
+                if(t.deadlineTick <= nowTick) {
+                    t.unlink();
+                    t.linkBefore(expired);
+                }
+
+                t = next;
+            }
+        }
+
+        currentTick = nowTick;
+
+        int fired = 0;
+
+        // Timer may cancel timers still in expired list, which are then not fired
+        while(expired.next != expired) {
+
+            Timer t = expired.next;
+
+            t.unlink();
+            size--;
+            fired++;
+
+            t.expired();
+        }
+
+        return fired;
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    public int getNumberOfSlots() {
+        return slots.length;
+    }
+
+    /**
+     * Number of timers scheduled.
+     * @return number of timers
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,417 @@
+package org.bittorrentj.message.stream;
+
+import java.util.ArrayList;
+
+/**
+ * Token bucket which limits the rate at which data is transmitted in one direction.
+ * Tokens, one per byte, accumulate at the rate of the bucket up to its burst size, and
+ * transmitted data is drawn from the bucket.
+ *
+ * Buckets are nested into a hierarchy, typically a client bucket, a bucket per swarm
+ * under it, and a bucket per connection under that, and data is drawn from a bucket
+ * and all its ancestors. A parent divides its rate fairly among the children
+ * which are presently contending for it, that is children which recently used all they
+ * were permitted by the parent. Children which are idle, or do not need their share,
+ * do not contend, and the rate they leave unused, as measured over the last
+ * contention window, is redistributed to the others.
+ *
+ * Buckets of different threads may share a parent, hence all access is synchronized.
+ */
+public class TokenBucket {
+
+    /**
+     * Rate of bucket which does not limit transmission.
+     */
+    public final static long UNLIMITED = 0;
+
+    /**
+     * Duration (ns) for which a child which has used all it was permitted
+     * by its parent is considered to contend for bandwidth of parent.
+     */
+    private final static long CONTENTION_WINDOW = 500L * 1000 * 1000;
+
+    /**
+     * Duration (ns) of transmission at its fair share rate which a child can save up.
+     */
+    private final static long FAIR_SHARE_BURST_TIME = 250L * 1000 * 1000;
+
+    private final static long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    /**
+     * Parent bucket, or null if root.
+     */
+    private TokenBucket parent;
+
+    /**
+     * Child buckets.
+     */
+    private ArrayList<TokenBucket> children;
+
+    /**
+     * Clock of hierarchy.
+     */
+    private Clock clock;
+
+    /**
+     * Rate (bytes/s) at which tokens accumulate, or UNLIMITED.
+     */
+    private long rate;
+
+    /**
+     * Maximum number of tokens in bucket.
+     */
+    private long burst;
+
+    /**
+     * Tokens in bucket, may be negative if more was transmitted than permitted.
+     */
+    private double tokens;
+
+    /**
+     * Time (ns) when tokens were last refilled.
+     */
+    private long lastRefill;
+
+    /**
+     * Tokens of fair share of rate of parent.
+     */
+    private double shareTokens;
+
+    /**
+     * Time (ns) when share tokens were last refilled.
+     */
+    private long lastShareRefill;
+
+    /**
+     * Amount permitted by last call to available().
+     */
+    private long lastPermitted;
+
+    /**
+     * Whether amount permitted by last call to available() was limited by
+     * parent, rather than by this bucket.
+     */
+    private boolean lastPermittedLimitedByParent;
+
+    /**
+     * Whether amount permitted by last call to available() was limited by fair share.
+     */
+    private boolean lastPermittedUsedShare;
+
+    /**
+     * Time (ns) when child last used all that parent permitted.
+     */
+    private volatile long lastSaturated;
+
+    /**
+     * Time (ns) when present measurement window started, windows are CONTENTION_WINDOW long.
+     */
+    private volatile long windowStart;
+
+    /**
+     * Number of bytes consumed in present measurement window.
+     */
+    private long bytesInWindow;
+
+    /**
+     * Rate (bytes/s) consumed in last full measurement window.
+     */
+    private volatile long rateInLastWindow;
+
+    /**
+     * Constructor of root bucket, which starts out full.
+     * @param clock clock of hierarchy
+     * @param rate rate (bytes/s), or UNLIMITED
+     * @param burst maximum number of tokens, is ignored if rate is UNLIMITED
+     * @throws IllegalArgumentException if rate is negative, or burst is not positive for a limited rate
+     */
+    public TokenBucket(Clock clock, long rate, long burst) {
+        this(null, clock, rate, burst);
+    }
+
+    /**
+     * Constructor of child bucket, which starts out full.
+     * @param parent parent bucket
+     * @param rate rate (bytes/s), or UNLIMITED
+     * @param burst maximum number of tokens, is ignored if rate is UNLIMITED
+     * @throws IllegalArgumentException if rate is negative, or burst is not positive for a limited rate
+     */
+    public TokenBucket(TokenBucket parent, long rate, long burst) {
+        this(parent, parent.clock, rate, burst);
+    }
+
+    private TokenBucket(TokenBucket parent, Clock clock, long rate, long burst) {
+
+        checkRate(rate, burst);
+
+        long now = clock.nanoTime();
+
+        this.parent = parent;
+        this.children = new ArrayList<TokenBucket>();
+        this.clock = clock;
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = now;
+        this.shareTokens = 0;
+        this.lastShareRefill = now - FAIR_SHARE_BURST_TIME; // first refill fills share
+        this.lastPermitted = 0;
+        this.lastPermittedLimitedByParent = false;
+        this.lastPermittedUsedShare = false;
+        this.lastSaturated = now - 2 * CONTENTION_WINDOW;
+        this.windowStart = now;
+        this.bytesInWindow = 0;
+        this.rateInLastWindow = 0;
+
+        if(parent != null)
+            parent.attach(this);
+    }
+
+    private static void checkRate(long rate, long burst) {
+
+        if(rate < 0 || (rate != UNLIMITED && burst <= 0))
+            throw new IllegalArgumentException();
+    }
+
+    /**
+     * Changes rate and burst size, tokens in excess of new burst size are discarded.
+     * @param rate rate (bytes/s), or UNLIMITED
+     * @param burst maximum number of tokens, is ignored if rate is UNLIMITED
+     * @throws IllegalArgumentException if rate is negative, or burst is not positive for a limited rate
+     */
+    synchronized public void setRate(long rate, long burst) {
+
+        checkRate(rate, burst);
+
+        refill(clock.nanoTime());
+
+        this.rate = rate;
+        this.burst = burst;
+
+        if(tokens > burst)
+            tokens = burst;
+    }
+
+    /**
+     * How much may be transmitted at present, as permitted by this bucket,
+     * its fair share of its parent, and all ancestors.
+     * @return number of bytes, Long.MAX_VALUE if nothing limits transmission
+     */
+    synchronized public long available() {
+
+        long now = clock.nanoTime();
+
+        long permitted = Long.MAX_VALUE;
+
+        if(rate != UNLIMITED) {
+            refill(now);
+            permitted = tokens > 0 ? (long)tokens : 0;
+        }
+
+        boolean limitedByParent = false;
+        lastPermittedUsedShare = false;
+
+        if(parent != null) {
+
+            long permittedByParent = parent.availableTo(this, now);
+
+            if(permittedByParent < permitted) {
+                permitted = permittedByParent;
+                limitedByParent = true;
+            }
+        }
+
+        lastPermitted = permitted;
+        lastPermittedLimitedByParent = limitedByParent;
+
+        return permitted;
+    }
+
+    /**
+     * Registers that data has been transmitted, which is drawn from this
+     * bucket and all ancestors.
+     * @param numberOfBytes number of bytes transmitted
+     */
+    synchronized public void consume(long numberOfBytes) {
+
+        long now = clock.nanoTime();
+
+        if(rate != UNLIMITED) {
+            refill(now);
+            tokens -= numberOfBytes;
+        }
+
+        if(lastPermittedUsedShare)
+            shareTokens -= numberOfBytes;
+
+        // Used all that parent permitted, so contend for more
+        if(lastPermittedLimitedByParent && numberOfBytes >= lastPermitted)
+            lastSaturated = now;
+
+        // Measure rate
+        long elapsed = now - windowStart;
+
+        if(elapsed >= CONTENTION_WINDOW) {
+
+            // Rate is zero if a full window has passed without anything consumed
+            rateInLastWindow = elapsed < 2 * CONTENTION_WINDOW ? bytesInWindow * NANOS_PER_SECOND / CONTENTION_WINDOW : 0;
+            windowStart = now - elapsed % CONTENTION_WINDOW;
+            bytesInWindow = 0;
+        }
+
+        bytesInWindow += numberOfBytes;
+
+        if(parent != null)
+            parent.consume(numberOfBytes);
+    }
+
+    /**
+     * Removes bucket from hierarchy, is called when the stream
+     * it belongs to is closed.
+     */
+    synchronized public void detach() {
+
+        if(parent != null) {
+            parent.removeChild(this);
+            parent = null;
+        }
+    }
+
+    synchronized private void attach(TokenBucket child) {
+        children.add(child);
+    }
+
+    synchronized private void removeChild(TokenBucket child) {
+        children.remove(child);
+    }
+
+    /**
+     * How much child may transmit at present, that is what this bucket permits,
+     * limited to the fair share of child. Is called by child, holding its own lock.
+     * @param child child bucket
+     * @param now present time
+     * @return number of bytes
+     */
+    synchronized private long availableTo(TokenBucket child, long now) {
+
+        long permitted = available();
+        long shareRate = shareRate(child, now);
+
+        if(shareRate != Long.MAX_VALUE)
+            permitted = Math.min(permitted, child.refillShare(shareRate, now));
+
+        return permitted;
+    }
+
+    /**
+     * Rate this bucket can actually sustain, which is limited by its own rate,
+     * and by its fair share of its parent.
+     * @param now present time
+     * @return rate (bytes/s), Long.MAX_VALUE if unlimited
+     */
+    synchronized private long effectiveRate(long now) {
+
+        long r = rate == UNLIMITED ? Long.MAX_VALUE : rate;
+
+        if(parent != null)
+            r = Math.min(r, parent.shareRate(this, now));
+
+        return r;
+    }
+
+    /**
+     * Fair share of effective rate of this bucket for a child. The rate
+     * presently used by children which do not contend for it is set aside, and the rest is divided
+     * equally among the child and all other children contending for it, but no
+     * child gets less than an equal share among all children.
+     * @param child child bucket
+     * @param now present time
+     * @return rate (bytes/s), Long.MAX_VALUE if unlimited
+     */
+    synchronized private long shareRate(TokenBucket child, long now) {
+
+        long r = effectiveRate(now);
+
+        if(r == Long.MAX_VALUE)
+            return r;
+
+        int contenders = 1;
+        long usedByOthers = 0;
+
+        for(TokenBucket c: children) {
+
+            if(c == child)
+                continue;
+
+            if(now - c.lastSaturated <= CONTENTION_WINDOW)
+                contenders++;
+            else
+                usedByOthers += c.getRecentRate(now);
+        }
+
+        long spare = Math.max(r - usedByOthers, r / Math.max(children.size(), 1) * contenders);
+
+        return spare / contenders;
+    }
+
+    /**
+     * Rate consumed in last full measurement window, which is read by parent
+     * without holding the lock of this bucket.
+     * @param now present time
+     * @return rate (bytes/s)
+     */
+    private long getRecentRate(long now) {
+
+        // Nothing consumed for a full window
+        if(now - windowStart >= 2 * CONTENTION_WINDOW)
+            return 0;
+
+        return rateInLastWindow;
+    }
+
+    /**
+     * Refills share tokens of this child at given fair share rate. Is
+     * called by parent while child holds its own lock.
+     * @param shareRate fair share rate (bytes/s)
+     * @param now present time
+     * @return number of whole share tokens available
+     */
+    private long refillShare(long shareRate, long now) {
+
+        double maxShareTokens = (double)shareRate * FAIR_SHARE_BURST_TIME / NANOS_PER_SECOND;
+
+        shareTokens = Math.min(maxShareTokens, shareTokens + (double)shareRate * (now - lastShareRefill) / NANOS_PER_SECOND);
+        lastShareRefill = now;
+        lastPermittedUsedShare = true;
+
+        return shareTokens > 0 ? (long)shareTokens : 0;
+    }
+
+    /**
+     * Adds tokens accumulated since last refill, up to burst size.
+     * @param now present time
+     */
+    private void refill(long now) {
+
+        if(now > lastRefill) {
+            tokens = Math.min(burst, tokens + (double)rate * (now - lastRefill) / NANOS_PER_SECOND);
+            lastRefill = now;
+        }
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public TokenBucket getParent() {
+        return parent;
+    }
+
+    synchronized public long getRate() {
+        return rate;
+    }
+
+    synchronized public long getBurst() {
+        return burst;
+    }
+}
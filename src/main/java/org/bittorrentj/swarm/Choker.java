@@ -0,0 +1,326 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.message.Choke;
+import org.bittorrentj.message.UnChoke;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Decides which peers of a swarm the client uploads to, that is which are unchoked.
+ *
+ * Every choking period, as scheduled by the swarm, the interested peers with the highest rate are unchoked in the regular
+ * upload slots, this is the rate at which they upload to us while we leech, and the rate at which
+ * we upload to them when we seed. They are found by selecting the top rates in place,
+ * rather than sorting all connections, so rechoking is linear in the number of connections.
+ * Ties at the boundary are broken randomly.
+ *
+ * One slot is unchoked optimistically, it rotates to a random choked peer every
+ * optimistic unchoking period, so new peers get a chance to show their rate. While
+ * leeching, a peer which has sent us nothing for a while, although we are interested, is
+ * snubbing us, and it only gets the optimistic slot.
+ */
+public class Choker {
+
+    /**
+     * Duration (ns) between each time regular slots are reassigned, standard is 10s.
+     */
+    public final static long CHOKING_PERIOD = 10L * 1000 * 1000 * 1000;
+
+    /**
+     * Duration (ns) between each time optimistic slot rotates, standard is 30s.
+     */
+    private final static long OPTIMISTIC_UNCHOKING_PERIOD = 30L * 1000 * 1000 * 1000;
+
+    /**
+     * Duration (ns) without receiving a block, while interested, after which a peer is snubbing us.
+     */
+    private final static long SNUB_DURATION = 60L * 1000 * 1000 * 1000;
+
+    /**
+     * Source of randomness for optimistic unchoking, and ties.
+     */
+    private Random random;
+
+    /**
+     * Number of peers unchoked at once, including optimistic slot.
+     */
+    private int numberOfUploadSlots;
+
+    /**
+     * Time (ns) of last rotation of optimistic slot.
+     */
+    private long lastOptimisticUnchoke;
+
+    /**
+     * Connection in optimistic slot, or null.
+     */
+    private Connection optimistic;
+
+    /**
+     * Presently unchoked connections.
+     */
+    private LinkedList<Connection> unchoked;
+
+    /**
+     * Connections eligible for regular slots, and their rates, in the order
+     * being selected. Are reused across rechokes, and only grow.
+     */
+    private Connection[] candidates;
+    private long[] rates;
+
+    /**
+     * Constructor
+     * @param random source of randomness
+     * @param numberOfUploadSlots number of peers unchoked at once, including optimistic slot
+     */
+    public Choker(Random random, int numberOfUploadSlots) {
+
+        this.random = random;
+        this.numberOfUploadSlots = numberOfUploadSlots;
+        this.lastOptimisticUnchoke = 0;
+        this.optimistic = null;
+        this.unchoked = new LinkedList<Connection>();
+        this.candidates = new Connection[16];
+        this.rates = new long[16];
+    }
+
+    /**
+     * Assigns regular slots to fastest interested peers, rotates optimistic
+     * slot if due, and sends choke and unchoke messages for all changes.
+     * Is called every choking period.
+     * @param connections all connections of swarm
+     * @param seeding whether client has all pieces
+     * @param now present time
+     */
+    public void rechoke(List<Connection> connections, boolean seeding, long now) {
+
+        int regularSlots = Math.max(0, numberOfUploadSlots - 1);
+
+        // Collect interested peers which do not snub us, with their rates
+        int n = 0;
+        for(Connection c: connections) {
+
+            if(!c.getPeerState().isInterested() || (!seeding && isSnubbing(c, now)))
+                continue;
+
+            if(n == candidates.length)
+                grow();
+
+            candidates[n] = c;
+            rates[n] = seeding ? c.getUploadRate() : c.getDownloadRate();
+            n++;
+        }
+
+        int k = Math.min(regularSlots, n);
+
+        selectFastest(n, k);
+
+        LinkedList<Connection> newUnchoked = new LinkedList<Connection>();
+
+        for(int i = 0;i < k;i++)
+            newUnchoked.add(candidates[i]);
+
+        // Rotate optimistic slot when due, or when its peer
+        // lost interest or earned a regular slot
+        if(numberOfUploadSlots > 0) {
+
+            if(optimistic == null || now - lastOptimisticUnchoke >= OPTIMISTIC_UNCHOKING_PERIOD
+                    || !optimistic.getPeerState().isInterested() || newUnchoked.contains(optimistic)) {
+
+                setOptimistic(pickOptimistic(connections, newUnchoked));
+                lastOptimisticUnchoke = now;
+            }
+
+            if(optimistic != null)
+                newUnchoked.add(optimistic);
+        } else
+            setOptimistic(null);
+
+        // Choke those which lost their slot, and unchoke those which got one
+        for(Connection c: unchoked)
+            if(!newUnchoked.contains(c))
+                setChoking(c, true);
+
+        for(Connection c: newUnchoked)
+            setChoking(c, false);
+
+        unchoked = newUnchoked;
+
+        // Drop references to connections, so closed ones can be collected
+        for(int i = 0;i < n;i++)
+            candidates[i] = null;
+    }
+
+    /**
+     * Registers that a connection is closed, so it no longer holds a slot.
+     * @param connection connection
+     */
+    public void connectionClosed(Connection connection) {
+
+        unchoked.remove(connection);
+
+        if(optimistic == connection)
+            optimistic = null;
+    }
+
+    /**
+     * Checks whether peer is snubbing us, that is it has not sent any block for
+     * a while, although we are interested.
+     * @param connection connection
+     * @param now present time
+     * @return true iff peer is snubbing us
+     */
+    private boolean isSnubbing(Connection connection, long now) {
+        return connection.getClientState().isInterested() && now - connection.getLastBlockReceivedTime() > SNUB_DURATION;
+    }
+
+    /**
+     * Picks a random interested peer which is not about to be unchoked.
+     * @param connections all connections of swarm
+     * @param newUnchoked connections about to be unchoked in regular slots
+     * @return connection, or null if there is none
+     */
+    private Connection pickOptimistic(List<Connection> connections, LinkedList<Connection> newUnchoked) {
+
+        Connection picked = null;
+        int seen = 0;
+
+        // Reservoir sampling, so connections are only iterated once
+        for(Connection c: connections) {
+
+            if(!c.getPeerState().isInterested() || newUnchoked.contains(c))
+                continue;
+
+            seen++;
+
+            if(random.nextInt(seen) == 0)
+                picked = c;
+        }
+
+        return picked;
+    }
+
+    private void setOptimistic(Connection connection) {
+
+        if(optimistic != null)
+            optimistic.setOptimisticallyUnchoked(false);
+
+        optimistic = connection;
+
+        if(connection != null)
+            connection.setOptimisticallyUnchoked(true);
+    }
+
+    /**
+     * Sends choke or unchoke message if choking state of client on connection changes.
+     */
+    private void setChoking(Connection connection, boolean choking) {
+
+        PeerState clientState = connection.getClientState();
+
+        if(clientState.isChoking() == choking)
+            return;
+
+        clientState.setChoking(choking);
+
+        if(choking)
+            connection.enqueueMessageForSending(new Choke());
+        else
+            connection.enqueueMessageForSending(new UnChoke());
+    }
+
+    /**
+     * Reorders first n candidates so the k with the highest rates come first, in
+     * expected O(n) time, by quickselect with three way partitioning. Ties at the
+     * boundary are broken randomly.
+     * @param n number of candidates
+     * @param k number to select
+     */
+    void selectFastest(int n, int k) {
+
+        if(k <= 0 || k >= n)
+            return;
+
+        int target = k - 1;
+        int left = 0;
+        int right = n - 1;
+
+        while(left < right) {
+
+            long pivot = rates[left + random.nextInt(right - left + 1)];
+
+            // Partition into rates above pivot [left, lt), equal [lt, gt] and below (gt, right]
+            int lt = left;
+            int gt = right;
+            int i = left;
+
+            while(i <= gt) {
+
+                if(rates[i] > pivot)
+                    swap(lt++, i++);
+                else if(rates[i] < pivot)
+                    swap(i, gt--);
+                else
+                    i++;
+            }
+
+            if(target < lt)
+                right = lt - 1;
+            else if(target > gt)
+                left = gt + 1;
+            else {
+
+                // Pick random subset of ties to fill up to target
+                for(int j = lt;j <= target;j++)
+                    swap(j, j + random.nextInt(gt - j + 1));
+
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+
+        Connection c = candidates[i];
+        candidates[i] = candidates[j];
+        candidates[j] = c;
+
+        long r = rates[i];
+        rates[i] = rates[j];
+        rates[j] = r;
+    }
+
+    private void grow() {
+
+        Connection[] newCandidates = new Connection[2 * candidates.length];
+        long[] newRates = new long[2 * rates.length];
+
+        System.arraycopy(candidates, 0, newCandidates, 0, candidates.length);
+        System.arraycopy(rates, 0, newRates, 0, rates.length);
+
+        candidates = newCandidates;
+        rates = newRates;
+    }
+
+    public LinkedList<Connection> getUnchoked() {
+        return unchoked;
+    }
+
+    public Connection getOptimistic() {
+        return optimistic;
+    }
+
+    public int getNumberOfUploadSlots() {
+        return numberOfUploadSlots;
+    }
+
+    /**
+     * Sets number of peers unchoked at once, which takes effect at next rechoke.
+     * @param numberOfUploadSlots number of peers, including optimistic slot
+     */
+    public void setNumberOfUploadSlots(int numberOfUploadSlots) {
+        this.numberOfUploadSlots = numberOfUploadSlots;
+    }
+}
@@ -1,7 +1,10 @@
 package org.bittorrentj.swarm;
 
 import org.bittorrentj.bencodej.BencodableByteString;
+import org.bittorrentj.bencodej.BencodableInteger;
 import org.bittorrentj.bencodej.BencodeableDictionary;
+import org.bittorrentj.disk.ReadCache;
+import org.bittorrentj.disk.TransferBlockJob;
 import org.bittorrentj.exceptions.*;
 import org.bittorrentj.extension.Extension;
 import org.bittorrentj.message.*;
@@ -10,12 +13,19 @@ import org.bittorrentj.message.exceptions.MalformedMDictionaryException;
 import org.bittorrentj.message.exceptions.PayloadDoesNotContainMDictionaryException;
 import org.bittorrentj.message.exceptions.UnsupportedExtendedMessageFoundException;
 import org.bittorrentj.message.field.MessageId;
+import org.bittorrentj.message.stream.Clock;
 import org.bittorrentj.message.stream.InputMessageStream;
+import org.bittorrentj.message.stream.MessageHandler;
+import org.bittorrentj.message.stream.MessageStream;
 import org.bittorrentj.message.stream.OutputMessageStream;
+import org.bittorrentj.message.stream.RateEstimator;
+import org.bittorrentj.message.stream.TimingWheel;
 import org.bittorrentj.swarm.exception.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 /**
@@ -23,10 +33,27 @@ import java.util.LinkedList;
  */
 public class Connection {
 
+    /**
+     * Number of messages which may be waiting to be written for more blocks to be taken
+     * from read cache, so queued blocks do not keep many evicted pieces in memory.
+     */
+    private final static int MAX_WRITE_QUEUE_LENGTH_FOR_PIECES = 4;
+
+    /**
+     * Most trust points a peer can earn, so a peer which sent many good pieces
+     * can not send many corrupt ones on that credit.
+     */
+    private final static int MAX_TRUST_POINTS = 8;
+
+    /**
+     * Trust points lost for each piece failing its hash check which peer sent blocks of.
+     */
+    private final static int HASH_FAILURE_PENALTY = 2;
+
     /**
      * Swarm to which this connection belongs.
      */
-    //private Swarm swarm;
+    private Swarm swarm;
 
     /**
      * State of client side of connection.
@@ -82,11 +109,23 @@ public class Connection {
      */
     private int validPieceDownloadCounter;
 
+    /**
+     * Trust in peer, which is raised for each verified piece peer sent blocks of,
+     * and lowered for each piece failing its hash check which peer sent blocks of.
+     */
+    private int trustPoints;
+
     /**
      * Queue of messages which have been read but not processed
      */
     private LinkedList<MessageWithLengthField> readMessagesQueue;
 
+    /**
+     * Handles messages as they are read from input stream, processing
+     * frequent messages directly from the read buffer, and queueing the rest.
+     */
+    private MessageHandler readMessageHandler;
+
     /**
      * Queue of messages which have been read but not processed
      */
@@ -107,9 +146,32 @@ public class Connection {
      */
     private BitField receivedBitField;
 
+    /**
+     * Block requests sent to peer which have not been answered,
+     * and how many should be outstanding.
+     */
+    private RequestPipeline requestPipeline;
+
+    /**
+     * Time (ns) when last block was received, or when connection
+     * was created if none has been. Is used to detect a peer snubbing us.
+     */
+    private long lastBlockReceivedTime;
+
+    /**
+     * Clock of swarm, used to time requests and blocks.
+     */
+    private Clock clock;
+
+    /**
+     * Timer of swarm which checks keep-alive, silence and request timeouts of connection.
+     */
+    private TimingWheel.Timer timer;
+
     /**
      * Constructor
      * @param swarm
+     * @param clock clock of swarm
      * @param clientState
      * @param peerState
      * @param inputStream
@@ -119,20 +181,33 @@ public class Connection {
      * @throws PayloadDoesNotContainMDictionaryException
      * @throws MalformedMDictionaryException
      */
-    public Connection(Swarm swarm, PeerState clientState, PeerState peerState, InputMessageStream inputStream, OutputMessageStream outputStream, HashMap<Integer, Extension> activeClientExtensions) throws DuplicateExtensionNameInMDictionaryException, PayloadDoesNotContainMDictionaryException, MalformedMDictionaryException {
+    public Connection(Swarm swarm, Clock clock, PeerState clientState, PeerState peerState, InputMessageStream inputStream, OutputMessageStream outputStream, HashMap<Integer, Extension> activeClientExtensions) throws DuplicateExtensionNameInMDictionaryException, PayloadDoesNotContainMDictionaryException, MalformedMDictionaryException {
 
         this.swarm = swarm;
+        this.clock = clock;
         this.clientState = clientState;
         this.peerState = peerState;
         this.outputStream = outputStream;
         this.nonPieceOutputStream = nonPieceOutputStream;
         this.inputStream = inputStream;
         this.validPieceDownloadCounter = 0;
+        this.trustPoints = 0;
         this.activeClientExtensions = activeClientExtensions;
         this.receivedBitField = null;
+        this.requestPipeline = new RequestPipeline(clock, ExtendedHandshake.DEFAULT_REQUEST_QUEUE_SIZE);
+        this.lastBlockReceivedTime = clock.nanoTime();
+        this.optimisticallyUnchoked = false;
         this.readMessagesQueue = new LinkedList<MessageWithLengthField>();
         this.writeMessagesQueue = new LinkedList<MessageWithLengthField>();
 
+        this.readMessageHandler = new MessageHandler() {
+
+            @Override
+            public void handle(MessageView view) throws InvalidMessageReceivedException {
+                processMessageView(view);
+            }
+        };
+
         /**
          * If we have knowledge about piece availability, e.g. because
          * are are resuming a download, then send a bitfield message.
@@ -156,17 +231,84 @@ public class Connection {
     }
 
     /**
-     * Is called when OP_READ is registered with channel and put full messages in readMessagesQueue.
+     * Is called when OP_READ is registered with channel. Keep alive, choking, interest,
+     * have and piece messages are processed directly from the read buffer, without
+     * allocating message objects, other full messages are put in readMessagesQueue.
      */
     public int readMessagesFromChannel() throws IOException, MessageToLargeForNetworkBufferException, InvalidMessageReceivedException {
-        return inputStream.read(readMessagesQueue);
+        return inputStream.read(readMessageHandler);
+    }
+
+    /**
+     * Processes message in read buffer, or queues it if it
+     * is not among the messages processed directly.
+     * @param view view of message, only valid during call
+     * @throws InvalidMessageReceivedException if message is invalid
+     */
+    void processMessageView(MessageView view) throws InvalidMessageReceivedException {
+
+        // Once a message has been queued, all following messages are queued as well, so they are processed in order
+        if(readMessagesQueue.isEmpty()) {
+
+            // Nothing to do for keep alive
+            if(view.isKeepAlive())
+                return;
+
+            switch (view.getId()) {
+                case CHOKE:
+                    processChoke();
+                    return;
+                case UNCHOKE:
+                    peerState.setChoking(false);
+                    return;
+                case INTERESTED:
+                    peerState.setInterested(true);
+                    return;
+                case NOT_INTERESTED:
+                    peerState.setInterested(false);
+                    return;
+                case HAVE:
+
+                    try {
+                        processHave(view.getIndex());
+                    } catch (InvalidPieceIndexInHaveMessage e) {
+                        throw new InvalidMessageReceivedException(e);
+                    }
+
+                    return;
+                case PIECE:
+                    processBlock(view.getIndex(), view.getBegin(), view.getBlock());
+                    return;
+                default:
+                    // Queued below
+            }
+        }
+
+        // Create message object which outlives read buffer
+        try {
+            readMessagesQueue.add(view.toMessage(activeClientExtensions));
+        } catch (Exception e) {
+            throw new InvalidMessageReceivedException(e);
+        }
     }
 
     /**
      * Is called when OP_WRITE is registered with channel and write messages from writeMessagesQueue.
      */
     public int writeMessagesToChannel() throws IOException, MessageToLargeForNetworkBufferException {
-        return outputStream.write(writeMessagesQueue);
+
+        int numberOfBytesWritten = outputStream.write(writeMessagesQueue);
+
+        // Block of a stored piece is sent from storage by a disk worker, once all before it is written
+        if(outputStream.isTransferPending()) {
+
+            TransferBlockJob job = outputStream.startTransfer();
+
+            if(job != null)
+                swarm.transferStarted(this, job);
+        }
+
+        return numberOfBytesWritten;
     }
 
     public void processReadMessageQueue() throws
@@ -174,7 +316,8 @@ public class Connection {
             ReceivedBitFieldMoreThanOnce,
             InvalidPieceIndexInHaveMessage,
             UnsupportedExtendedMessageFoundException,
-            ExtendedMessageReceivedWithoutEnabling {
+            ExtendedMessageReceivedWithoutEnabling,
+            MalformedMDictionaryException {
 
         // Process new message
         MessageWithLengthField m;
@@ -192,7 +335,8 @@ public class Connection {
             UnsupportedExtendedMessageFoundException,
             ReceivedBitFieldMoreThanOnce,
             InvalidPieceIndexInHaveMessage,
-            InvalidBitFieldMessage, ExtendedMessageReceivedWithoutEnabling {
+            InvalidBitFieldMessage, ExtendedMessageReceivedWithoutEnabling,
+            MalformedMDictionaryException {
 
         /**
          * Does it have id?, if not, then its just a keep-alive message,
@@ -207,7 +351,7 @@ public class Connection {
                 case CHOKE: // Peer just choked us
 
                     // Set choking state in peer state to true
-                    peerState.setChoking(true);
+                    processChoke();
 
                     break;
                 case UNCHOKE: // Peer just unchoked us
@@ -230,26 +374,7 @@ public class Connection {
                     break;
                 case HAVE: // Peer has a new piece
 
-                    // Do we have metainfo yet
-                    if(swarm.isMetaInformationKnown()) {
-
-                        Have haveMessage = (Have)m;
-
-                        // Check that have message is indeed valid
-                        int numberOfPiecesInTorrent = swarm.getMetaInformation().getNumberOfPiecesInTorrent();
-                        if(haveMessage.validate(numberOfPiecesInTorrent)) {
-
-                            int pieceIndex = haveMessage.getPieceIndex();
-
-                            // Alter availability of piece
-                            peerState.alterPieceAvailability(pieceIndex, true);
-
-                            // Update interested state i required
-                            alterMyInterestedStateIfNeeded(pieceIndex);
-
-                        } else
-                            throw new InvalidPieceIndexInHaveMessage(haveMessage.getPieceIndex(), numberOfPiecesInTorrent); // or throw exceptions if invalid
-                    }
+                    processHave(((Have)m).getPieceIndex());
 
                     break;
                 case BITFIELD: // Peer announces what pieces it has
@@ -271,8 +396,18 @@ public class Connection {
                             if(!receivedBitField.validateBitField(numberOfPieces))
                                 throw new InvalidBitFieldMessage(receivedBitField);
                             else { // and then alter peer piece availability based
+
+                                PiecePicker picker = swarm.getPiecePicker();
+
+                                // Pieces announced in HAVE messages before bitfield are counted again below
+                                if(picker != null && peerState.isPieceAvailabilityKnown())
+                                    picker.removePeer(peerState);
+
                                 peerState.setAdvertisedPieceAvailability(receivedBitField.getBooleanBitField(numberOfPieces));
 
+                                if(picker != null)
+                                    picker.addPeer(peerState);
+
                                 // If we are not presently interested, then check if any pieces in this bitfield
                                 // warrant changing client state.
                                 if(!clientState.isInterested()) {
@@ -301,17 +436,7 @@ public class Connection {
 
                     Piece pieceMessage = (Piece)m;
 
-                    int sizeOfNewData = swarm.sizeOfBlockWeDoNotHave(pieceMessage.getIndex(), pieceMessage.getBegin() , pieceMessage.getBlock().length);
-
-                    // Did we actually get any fresh data?
-                    if(sizeOfNewData > 0) {
-
-                        // Add the new part as part of download counter
-                        validPieceDownloadCounter += sizeOfNewData;
-
-                        // Process piece: save, send out cancelations etc.
-                        swarm.processNewPieceMessage(pieceMessage);
-                    }
+                    processBlock(pieceMessage.getIndex(), pieceMessage.getBegin(), new ByteBuffer[] {pieceMessage.getBlock()});
 
                     break;
                 case CANCEL: // Peer wants to cancel a previous request
@@ -359,6 +484,9 @@ public class Connection {
                         // Save (new) handshake in peer state
                         peerState.setExtendedHandshake(extendedHandshake);
 
+                        // Never have more requests outstanding than peer supports
+                        requestPipeline.setMaxQueueDepth(extendedHandshake.getRequestQueueSize());
+
                     } else if(activeClientExtensions.containsKey(extendedMessage.getExtendedMessageId())) // If we support this extension, then process it
                         activeClientExtensions.get(extendedMessage.getExtendedMessageId()).processMessage(this, extendedMessage);
                     else // we don't support this
@@ -372,6 +500,233 @@ public class Connection {
 
     }
 
+    /**
+     * Process the advent of a choke message, peer
+     * discards all requests it has not answered.
+     */
+    private void processChoke() {
+
+        peerState.setChoking(true);
+
+        // Let other connections request blocks again
+        swarm.requestsDropped(this, requestPipeline.clear());
+    }
+
+    /**
+     * Sends as many block requests as needed to fill request pipeline,
+     * if peer is not choking us and we are interested.
+     */
+    public void requestPieces() {
+
+        if(peerState.isChoking() || !clientState.isInterested())
+            return;
+
+        for(int n = requestPipeline.numberOfRequestsWanted();n > 0;n--) {
+
+            Request r = swarm.nextBlockRequest(this);
+
+            // Peer has nothing more we want
+            if(r == null)
+                break;
+
+            enqueueMessageForSending(r);
+            requestPipeline.requestSent(r);
+        }
+    }
+
+    /**
+     * Process the advent of a have message.
+     * @param pieceIndex piece index in message
+     * @throws InvalidPieceIndexInHaveMessage if piece index is not in torrent
+     */
+    private void processHave(int pieceIndex) throws InvalidPieceIndexInHaveMessage {
+
+        // Do we have metainfo yet
+        if(swarm.isMetaInformationKnown()) {
+
+            // Check that have message is indeed valid
+            int numberOfPiecesInTorrent = swarm.getMetaInformation().getNumberOfPiecesInTorrent();
+            if(pieceIndex >= 0 && pieceIndex < numberOfPiecesInTorrent) {
+
+                // Peer which had no pieces may skip bitfield
+                if(!peerState.isPieceAvailabilityKnown())
+                    peerState.setAdvertisedPieceAvailability(new boolean[numberOfPiecesInTorrent]);
+
+                // Alter availability of piece, and count it if it is new
+                if(!peerState.isPieceAvailable(pieceIndex)) {
+
+                    peerState.alterPieceAvailability(pieceIndex, true);
+
+                    PiecePicker picker = swarm.getPiecePicker();
+
+                    if(picker != null)
+                        picker.peerHasPiece(pieceIndex);
+                }
+
+                // Update interested state i required
+                alterMyInterestedStateIfNeeded(pieceIndex);
+
+            } else
+                throw new InvalidPieceIndexInHaveMessage(pieceIndex, numberOfPiecesInTorrent); // or throw exceptions if invalid
+        }
+    }
+
+    /**
+     * Process the advent of a block in a piece message.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param block buffers with consecutive segments of block between position and limit, only valid during call
+     */
+    private void processBlock(int index, int begin, ByteBuffer[] block) {
+
+        int blockLength = 0;
+        for(ByteBuffer segment: block)
+            blockLength += segment.remaining();
+
+        // Adapt request pipeline to how fast peer answers, a block which was not
+        // requested through this connection is dropped, and does not count as
+        // an answer, so peer can not push data, nor avoid being taken as snubbing
+        if(!requestPipeline.blockReceived(index, begin, blockLength))
+            return;
+
+        lastBlockReceivedTime = clock.nanoTime();
+
+        int sizeOfNewData = swarm.sizeOfBlockWeDoNotHave(index, begin, blockLength);
+
+        // Did we actually get any fresh data?
+        if(sizeOfNewData > 0) {
+
+            // Add the new part as part of download counter
+            validPieceDownloadCounter += sizeOfNewData;
+
+            // Process block: save, send out cancelations etc.
+            swarm.processNewBlock(this, index, begin, block);
+        }
+    }
+
+    /**
+     * Cancels all outstanding requests, since peer has not answered them in time,
+     * so their blocks can be requested from other peers.
+     */
+    public void requestsTimedOut() {
+
+        LinkedList<Request> requests = requestPipeline.timedOut();
+
+        for(Request r: requests)
+            withdrawRequest(r);
+
+        swarm.requestsDropped(this, requests);
+    }
+
+    /**
+     * Withdraws a request. A request still waiting in the write queue is marked as cancelled,
+     * and is dropped when the queue is drained, so the queue is not searched, which in endgame
+     * mode would be done for every duplicate block. Otherwise a cancel message is sent.
+     * @param r request
+     */
+    private void withdrawRequest(Request r) {
+
+        if(r.isWritten())
+            enqueueMessageForSending(r.toCancelMessage());
+        else
+            r.cancel();
+    }
+
+    /**
+     * Answers requests of peer, unless it is choked, while few messages are waiting to be written.
+     * Blocks are views of pieces in the read cache of the swarm, which are written without being
+     * copied, a request for a piece which is not cached yet waits until it is loaded, while later
+     * requests are answered. Blocks of pieces which do not fit in the cache are sent straight from
+     * storage as stored pieces. Requests which are invalid, or for pieces client does not have, or
+     * which can not be read, are dropped.
+     */
+    public void sendPieces() {
+
+        if(clientState.isChoking())
+            return;
+
+        PiecePicker picker = swarm.getPiecePicker();
+        ReadCache readCache = swarm.getReadCache();
+
+        // Nothing can be served before meta information is known
+        if(picker == null || readCache == null) {
+            peerState.getUnsatisfiedRequests().clear();
+            return;
+        }
+
+        Iterator<Request> i = peerState.getUnsatisfiedRequests().iterator();
+
+        while(i.hasNext() && writeMessagesQueue.size() < MAX_WRITE_QUEUE_LENGTH_FOR_PIECES) {
+
+            Request r = i.next();
+
+            if(!picker.clientHas(r.getIndex()) || r.getLength() > MessageStream.BUFFER_SIZE - Piece.HEADER_SIZE) {
+                i.remove();
+                continue;
+            }
+
+            ByteBuffer block;
+
+            try {
+
+                // Piece is never cached, so block is sent from storage
+                if(!readCache.isCacheable(r.getIndex())) {
+                    enqueueMessageForSending(new StoredPiece(r.getIndex(), r.getBegin(), r.getLength(), swarm.getDiskManager()));
+                    i.remove();
+                    continue;
+                }
+
+                block = readCache.getBlock(r.getIndex(), r.getBegin(), r.getLength());
+            } catch(IllegalArgumentException e) {
+                i.remove();
+                continue;
+            }
+
+            // Piece can not be served, so request is rejected rather than block later requests
+            if(block == null && !readCache.isReadable(r.getIndex())) {
+                i.remove();
+                continue;
+            }
+
+            // Piece is being loaded
+            if(block == null)
+                continue;
+
+            // Block is sent straight from cached piece
+            enqueueMessageForSending(new Piece(r.getIndex(), r.getBegin(), block));
+            i.remove();
+        }
+    }
+
+    /**
+     * Cancels a request for a block which has been received through
+     * another connection. If the request is still waiting in the write queue
+     * it is just dropped, otherwise a cancel message is sent.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     */
+    public void cancelRequest(int index, int begin, int length) {
+
+        Request r = requestPipeline.cancel(index, begin, length);
+
+        // Request was already answered, or dropped
+        if(r == null)
+            return;
+
+        withdrawRequest(r);
+    }
+
+    /**
+     * Returns network buffers held by streams of connection to pool,
+     * is called when connection is closed.
+     */
+    public void close() {
+
+        inputStream.close();
+        outputStream.close();
+    }
+
     /**
      * Add a message to the write queue of the connection.
      * @param m message
@@ -410,7 +765,7 @@ public class Connection {
             Extension e = activeClientExtensions.get(id);
 
             // Add key
-            m.put(new BencodableByteString(""+id), new BencodableByteString(e.getName()));
+            m.put(new BencodableByteString(e.getName()), new BencodableInteger(id));
 
             // Add extension specific keys to handshake payload
             // NB: duplicate keys will be replaced!!!
@@ -420,6 +775,9 @@ public class Connection {
         // Add m dictionary to payload
         handshakePayload.put(new BencodableByteString("m"), m);
 
+        // Number of outstanding requests we accept
+        handshakePayload.put(new BencodableByteString("reqq"), new BencodableInteger(ExtendedHandshake.DEFAULT_REQUEST_QUEUE_SIZE));
+
         // Create message and return
         return new ExtendedHandshake(handshakePayload);
     }
@@ -461,6 +819,10 @@ public class Connection {
     }
     */
 
+    public RequestPipeline getRequestPipeline() {
+        return requestPipeline;
+    }
+
     public PeerState getPeerState() {
         return peerState;
     }
@@ -469,11 +831,85 @@ public class Connection {
         return clientState;
     }
 
-    public int getUploadRate() {
+    public TimingWheel.Timer getTimer() {
+        return timer;
+    }
+
+    public void setTimer(TimingWheel.Timer timer) {
+        this.timer = timer;
+    }
+
+    public long getLastBlockReceivedTime() {
+        return lastBlockReceivedTime;
+    }
 
+    public boolean isOptimisticallyUnchoked() {
+        return optimisticallyUnchoked;
+    }
+
+    public void setOptimisticallyUnchoked(boolean optimisticallyUnchoked) {
+        this.optimisticallyUnchoked = optimisticallyUnchoked;
+    }
+
+    /**
+     * Registers that a piece which peer sent blocks of passed its hash check.
+     */
+    public void pieceVerified() {
+        trustPoints = Math.min(trustPoints + 1, MAX_TRUST_POINTS);
     }
 
+    /**
+     * Registers that a piece which peer sent blocks of failed its hash check.
+     */
+    public void hashFailed() {
+        trustPoints -= HASH_FAILURE_PENALTY;
+    }
+
+    public int getTrustPoints() {
+        return trustPoints;
+    }
+
+    /**
+     * Rate at which blocks are uploaded to peer, averaged over the
+     * long horizon, as used for choking.
+     * @return rate (bytes/s)
+     */
+    public int getUploadRate() {
+        return (int)Math.min(getUploadRate(RateEstimator.LONG), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Rate at which blocks are downloaded from peer, averaged over the
+     * long horizon, as used for choking.
+     * @return rate (bytes/s)
+     */
     public int getDownloadRate() {
+        return (int)Math.min(getDownloadRate(RateEstimator.LONG), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Rate at which blocks are uploaded to peer.
+     * @param horizon RateEstimator.SHORT, MEDIUM or LONG
+     * @return rate (bytes/s)
+     */
+    public double getUploadRate(int horizon) {
+        return outputStream.getManager().getPayloadRate(horizon);
+    }
+
+    /**
+     * Rate at which blocks are downloaded from peer.
+     * @param horizon RateEstimator.SHORT, MEDIUM or LONG
+     * @return rate (bytes/s)
+     */
+    public double getDownloadRate(int horizon) {
+        return inputStream.getManager().getPayloadRate(horizon);
+    }
+
+    public InputMessageStream getInputStream() {
+        return inputStream;
+    }
 
+    public OutputMessageStream getOutputStream() {
+        return outputStream;
     }
 }
\ No newline at end of file
@@ -0,0 +1,288 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.message.Request;
+import org.bittorrentj.message.stream.Clock;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * Progress of a piece being downloaded, that is which of its
+ * blocks have been requested, and which have been received.
+ *
+ * The connections holding an outstanding request for each block are tracked,
+ * normally there is one, but in endgame mode a block is requested from
+ * several peers, and the others are sent a cancel when the block arrives.
+ * The connection each block was received through is kept, so the peers
+ * which sent a piece failing its hash check can be found.
+ */
+public class DownloadingPiece {
+
+    /**
+     * State of a block.
+     */
+    public enum BlockState {
+        WANTED, REQUESTED, RECEIVED;
+    }
+
+    /**
+     * Piece index.
+     */
+    private int index;
+
+    /**
+     * Byte length of piece.
+     */
+    private int length;
+
+    /**
+     * State of each block.
+     */
+    private BlockState[] blocks;
+
+    /**
+     * Number of blocks received.
+     */
+    private int numberOfReceivedBlocks;
+
+    /**
+     * No block before this one is wanted.
+     */
+    private int firstWantedBlock;
+
+    /**
+     * Connections holding an outstanding request for each block.
+     */
+    private ArrayList<LinkedList<Connection>> holders;
+
+    /**
+     * Connection each block was received through, or null if not received.
+     */
+    private Connection[] senders;
+
+    /**
+     * Time (ns) when each block was last requested.
+     */
+    private long[] timeRequested;
+
+    /**
+     * Clock used to time requests.
+     */
+    private Clock clock;
+
+    /**
+     * Constructor
+     * @param index piece index
+     * @param length byte length of piece
+     * @param clock clock used to time requests
+     */
+    public DownloadingPiece(int index, int length, Clock clock) {
+
+        this.index = index;
+        this.length = length;
+        this.clock = clock;
+        this.blocks = new BlockState[(length + RequestPipeline.BLOCK_SIZE - 1) / RequestPipeline.BLOCK_SIZE];
+        this.numberOfReceivedBlocks = 0;
+        this.firstWantedBlock = 0;
+        this.holders = new ArrayList<LinkedList<Connection>>(blocks.length);
+        this.timeRequested = new long[blocks.length];
+        this.senders = new Connection[blocks.length];
+
+        for(int i = 0;i < blocks.length;i++) {
+            blocks[i] = BlockState.WANTED;
+            holders.add(new LinkedList<Connection>());
+        }
+    }
+
+    /**
+     * Request for first wanted block, which is then marked as requested.
+     * @param connection connection which will send request
+     * @return request, or null if no block is wanted
+     */
+    public Request nextRequest(Connection connection) {
+
+        while(firstWantedBlock < blocks.length && blocks[firstWantedBlock] != BlockState.WANTED)
+            firstWantedBlock++;
+
+        if(firstWantedBlock == blocks.length)
+            return null;
+
+        return request(firstWantedBlock, connection);
+    }
+
+    /**
+     * Request, in endgame mode, for a block which is already requested, but not
+     * by given connection. The block with the fewest requests outstanding is picked,
+     * so duplicates are spread evenly across the remaining blocks.
+     * @param connection connection which will send request
+     * @return request, or null if there is no such block
+     */
+    public Request nextEndgameRequest(Connection connection) {
+
+        int best = -1;
+
+        for(int i = 0;i < blocks.length;i++) {
+
+            if(blocks[i] != BlockState.REQUESTED || holders.get(i).contains(connection))
+                continue;
+
+            if(best == -1 || holders.get(i).size() < holders.get(best).size())
+                best = i;
+        }
+
+        if(best == -1)
+            return null;
+
+        return request(best, connection);
+    }
+
+    /**
+     * Request for a block which has been outstanding since before a given time,
+     * from a connection which does not already hold a request for it. Is used to
+     * request blocks of time critical pieces again, when the peer first asked is slow.
+     * @param connection connection which will send request
+     * @param requestedBefore time (ns), only blocks last requested before this are considered
+     * @return request, or null if there is no such block
+     */
+    public Request nextTimedOutRequest(Connection connection, long requestedBefore) {
+
+        for(int i = 0;i < blocks.length;i++) {
+
+            if(blocks[i] == BlockState.REQUESTED && timeRequested[i] - requestedBefore < 0 && !holders.get(i).contains(connection))
+                return request(i, connection);
+        }
+
+        return null;
+    }
+
+    private Request request(int block, Connection connection) {
+
+        blocks[block] = BlockState.REQUESTED;
+        holders.get(block).add(connection);
+        timeRequested[block] = clock.nanoTime();
+
+        return new Request(index, block * RequestPipeline.BLOCK_SIZE, getBlockLength(block));
+    }
+
+    /**
+     * Registers that a connection no longer holds a request for a block, e.g. because
+     * peer choked. If no other connection holds one, block is marked as wanted again.
+     * @param begin byte offset of block within piece
+     * @param connection connection which held request
+     */
+    public void requestDropped(int begin, Connection connection) {
+
+        int block = begin / RequestPipeline.BLOCK_SIZE;
+
+        holders.get(block).remove(connection);
+
+        if(blocks[block] == BlockState.REQUESTED && holders.get(block).isEmpty()) {
+
+            blocks[block] = BlockState.WANTED;
+
+            if(block < firstWantedBlock)
+                firstWantedBlock = block;
+        }
+    }
+
+    /**
+     * Marks block as received.
+     * @param begin byte offset of block within piece
+     * @param connection connection through which block was received
+     * @return other connections which held a request for block, and should cancel it,
+     *         or null if block was already received
+     */
+    public LinkedList<Connection> blockReceived(int begin, Connection connection) {
+
+        int block = begin / RequestPipeline.BLOCK_SIZE;
+
+        if(blocks[block] == BlockState.RECEIVED)
+            return null;
+
+        blocks[block] = BlockState.RECEIVED;
+        senders[block] = connection;
+        numberOfReceivedBlocks++;
+
+        LinkedList<Connection> others = holders.get(block);
+        others.remove(connection);
+
+        holders.set(block, new LinkedList<Connection>());
+
+        return others;
+    }
+
+    /**
+     * Connections through which blocks of piece were received.
+     * @return each connection once, in order of first block sent
+     */
+    public LinkedList<Connection> getContributors() {
+
+        LinkedList<Connection> contributors = new LinkedList<Connection>();
+
+        for(Connection c: senders)
+            if(c != null && !contributors.contains(c))
+                contributors.add(c);
+
+        return contributors;
+    }
+
+    /**
+     * Checks whether any block is neither requested nor received.
+     * @return true iff some block is wanted
+     */
+    public boolean hasWantedBlocks() {
+
+        for(int i = firstWantedBlock;i < blocks.length;i++)
+            if(blocks[i] == BlockState.WANTED)
+                return true;
+
+        return false;
+    }
+
+    /**
+     * Checks whether a block, given by offset and length, is a whole block of this piece.
+     * @param begin byte offset within piece
+     * @param length byte length
+     * @return true iff block is valid
+     */
+    public boolean isValidBlock(int begin, int length) {
+
+        if(begin < 0 || begin % RequestPipeline.BLOCK_SIZE != 0 || begin >= this.length)
+            return false;
+
+        return length == getBlockLength(begin / RequestPipeline.BLOCK_SIZE);
+    }
+
+    /**
+     * Byte length of block, which is BLOCK_SIZE except possibly for the last block.
+     * @param block block number
+     * @return byte length
+     */
+    private int getBlockLength(int block) {
+        return Math.min(RequestPipeline.BLOCK_SIZE, length - block * RequestPipeline.BLOCK_SIZE);
+    }
+
+    public BlockState getBlockState(int begin) {
+        return blocks[begin / RequestPipeline.BLOCK_SIZE];
+    }
+
+    public boolean isComplete() {
+        return numberOfReceivedBlocks == blocks.length;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getNumberOfBlocks() {
+        return blocks.length;
+    }
+
+    public int getNumberOfReceivedBlocks() {
+        return numberOfReceivedBlocks;
+    }
+}
@@ -132,4 +132,6 @@ public class PeerState {
     public void registerRequest(Request m) { unsatisfiedRequests.add(m);}
 
     public boolean unregisterRequest(Request m) { return unsatisfiedRequests.remove(m); }
+
+    public LinkedList<Request> getUnsatisfiedRequests() { return unsatisfiedRequests; }
 }
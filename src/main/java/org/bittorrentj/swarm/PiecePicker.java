@@ -0,0 +1,283 @@
+package org.bittorrentj.swarm;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tracks the availability of each piece among the peers of a swarm, that is
+ * the number of peers which have it, and picks the pieces to download.
+ *
+ * Pieces the client still wants are kept in an array ordered by availability,
+ * with the start of each availability bucket noted. When the availability of a piece
+ * changes, it is swapped to the edge of its bucket, which is then moved past it, hence
+ * updates are O(1), and the rarest pieces are always at the front. Pieces the client has
+ * are kept after all buckets. Within a bucket pieces are in random order, so peers
+ * tend to pick different pieces among those which are equally rare.
+ *
+ * Is not thread safe, it is only used by the thread of the swarm.
+ */
+public class PiecePicker {
+
+    /**
+     * Number of peers which have each piece.
+     */
+    private int[] availability;
+
+    /**
+     * Pieces, wanted pieces ordered by availability first, then pieces the client has.
+     */
+    private int[] pieces;
+
+    /**
+     * Position of each piece in pieces.
+     */
+    private int[] positions;
+
+    /**
+     * Position in pieces of first wanted piece with each availability, where
+     * the entry after the highest availability is numberOfWantedPieces.
+     */
+    private int[] bucketStarts;
+
+    /**
+     * Number of pieces the client does not have.
+     */
+    private int numberOfWantedPieces;
+
+    /**
+     * Whether client has each piece.
+     */
+    private boolean[] have;
+
+    /**
+     * Whether each piece is presently being downloaded, such pieces are not picked.
+     */
+    private boolean[] inProgress;
+
+    /**
+     * Source of randomness for order within buckets, and random picking.
+     */
+    private Random random;
+
+    /**
+     * Constructor, with all pieces wanted and no peers.
+     * @param numberOfPieces number of pieces in torrent
+     * @param random source of randomness
+     */
+    public PiecePicker(int numberOfPieces, Random random) {
+
+        this.availability = new int[numberOfPieces];
+        this.pieces = new int[numberOfPieces];
+        this.positions = new int[numberOfPieces];
+        this.bucketStarts = new int[] {0, numberOfPieces};
+        this.numberOfWantedPieces = numberOfPieces;
+        this.have = new boolean[numberOfPieces];
+        this.inProgress = new boolean[numberOfPieces];
+        this.random = random;
+
+        for(int i = 0;i < numberOfPieces;i++)
+            pieces[i] = i;
+
+        // Shuffle, so pieces of equal availability are in random order
+        for(int i = numberOfPieces - 1;i > 0;i--)
+            swap(i, random.nextInt(i + 1));
+
+        for(int i = 0;i < numberOfPieces;i++)
+            positions[pieces[i]] = i;
+    }
+
+    /**
+     * Registers that a peer has a piece, that is a HAVE message
+     * for a piece the peer did not already have.
+     * @param index piece index
+     */
+    public void peerHasPiece(int index) {
+
+        if(!have[index]) {
+
+            int a = availability[index];
+
+            ensureBucket(a + 1);
+
+            // Swap to end of bucket, and move start of next bucket down past it
+            swap(positions[index], bucketStarts[a + 1] - 1);
+            bucketStarts[a + 1]--;
+        }
+
+        availability[index]++;
+    }
+
+    /**
+     * Registers that a peer no longer has a piece, since it disconnected.
+     * @param index piece index
+     */
+    public void peerLostPiece(int index) {
+
+        if(!have[index]) {
+
+            int a = availability[index];
+
+            // Swap to start of bucket, and move start of bucket up past it
+            swap(positions[index], bucketStarts[a]);
+            bucketStarts[a]++;
+        }
+
+        availability[index]--;
+    }
+
+    /**
+     * Registers all pieces of a peer, that is a BITFIELD message.
+     * @param peer state of peer, with known piece availability
+     */
+    public void addPeer(PeerState peer) {
+
+        for(int i = 0;i < availability.length;i++)
+            if(peer.isPieceAvailable(i))
+                peerHasPiece(i);
+    }
+
+    /**
+     * Unregisters all pieces of a peer, that is when it disconnects.
+     * @param peer state of peer, with known piece availability
+     */
+    public void removePeer(PeerState peer) {
+
+        for(int i = 0;i < availability.length;i++)
+            if(peer.isPieceAvailable(i))
+                peerLostPiece(i);
+    }
+
+    /**
+     * Registers that client has a piece, which is then never picked again. Runs
+     * in time proportional to the number of availability buckets above the piece.
+     * @param index piece index
+     */
+    public void clientHasPiece(int index) {
+
+        if(have[index])
+            return;
+
+        // Carry piece through every bucket above its own, to the end of the wanted pieces
+        for(int a = availability[index];a < bucketStarts.length - 1;a++) {
+            swap(positions[index], bucketStarts[a + 1] - 1);
+            bucketStarts[a + 1]--;
+        }
+
+        numberOfWantedPieces--;
+
+        have[index] = true;
+        inProgress[index] = false;
+    }
+
+    /**
+     * Picks the rarest wanted piece which peer has, and which is not in progress.
+     * Since pieces are ordered by rarity, this is normally found after
+     * inspecting a few pieces.
+     * @param peer state of peer, with known piece availability
+     * @return piece index, or -1 if peer has no such piece
+     */
+    public int pickRarest(PeerState peer) {
+        return pickRarest(peer, 0, 0);
+    }
+
+    /**
+     * Picks the rarest wanted piece which peer has, which is not in progress,
+     * and which is not in a given range of pieces.
+     * @param peer state of peer, with known piece availability
+     * @param firstExcluded first piece index of range
+     * @param endExcluded piece index after range
+     * @return piece index, or -1 if peer has no such piece
+     */
+    public int pickRarest(PeerState peer, int firstExcluded, int endExcluded) {
+
+        // Pieces no peer has are skipped
+        for(int i = bucketStarts[1];i < numberOfWantedPieces;i++) {
+
+            int index = pieces[i];
+
+            if(!inProgress[index] && (index < firstExcluded || index >= endExcluded) && peer.isPieceAvailable(index))
+                return index;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Picks a random wanted piece which peer has, and which is not in progress.
+     * @param peer state of peer, with known piece availability
+     * @return piece index, or -1 if peer has no such piece
+     */
+    public int pickRandom(PeerState peer) {
+
+        int first = bucketStarts[1];
+        int count = numberOfWantedPieces - first;
+
+        if(count <= 0)
+            return -1;
+
+        int start = random.nextInt(count);
+
+        for(int i = 0;i < count;i++) {
+
+            int index = pieces[first + (start + i) % count];
+
+            if(!inProgress[index] && peer.isPieceAvailable(index))
+                return index;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Grows bucketStarts so that bucket a exists, new buckets are empty.
+     */
+    private void ensureBucket(int a) {
+
+        if(a + 1 < bucketStarts.length)
+            return;
+
+        int oldLength = bucketStarts.length;
+
+        bucketStarts = Arrays.copyOf(bucketStarts, Math.max(a + 2, 2 * oldLength));
+        Arrays.fill(bucketStarts, oldLength, bucketStarts.length, numberOfWantedPieces);
+    }
+
+    /**
+     * Swaps pieces at two positions.
+     */
+    private void swap(int i, int j) {
+
+        int pieceI = pieces[i];
+        int pieceJ = pieces[j];
+
+        pieces[i] = pieceJ;
+        pieces[j] = pieceI;
+
+        positions[pieceJ] = i;
+        positions[pieceI] = j;
+    }
+
+    public int getAvailability(int index) {
+        return availability[index];
+    }
+
+    public boolean isInProgress(int index) {
+        return inProgress[index];
+    }
+
+    public void setInProgress(int index, boolean inProgress) {
+        this.inProgress[index] = inProgress;
+    }
+
+    public boolean clientHas(int index) {
+        return have[index];
+    }
+
+    public int getNumberOfWantedPieces() {
+        return numberOfWantedPieces;
+    }
+
+    public int getNumberOfPieces() {
+        return availability.length;
+    }
+}
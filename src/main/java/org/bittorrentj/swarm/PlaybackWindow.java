@@ -0,0 +1,213 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.message.stream.Clock;
+
+import java.io.InterruptedIOException;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * Moving window of pieces which are time critical when the content of a torrent
+ * is played back while it is downloaded, as in the STREAMING leech policy.
+ *
+ * The window starts at the piece holding the playback position, and covers a fixed
+ * duration of playback at the bit rate of the content. Each piece in it has a deadline,
+ * the time at which playback reaches its first byte, assuming playback continues at
+ * the bit rate from when the position was last set.
+ *
+ * The window also records which pieces are complete, so a reader can wait
+ * for the piece it needs. It is shared between the thread of the swarm and reading
+ * threads, hence all access is synchronized.
+ */
+public class PlaybackWindow {
+
+    /**
+     * Duration (ns) of playback covered by window.
+     */
+    private final static long WINDOW_DURATION = 20L * 1000 * 1000 * 1000;
+
+    /**
+     * Bit rate (bytes/s) assumed until one is given.
+     */
+    public final static long DEFAULT_BIT_RATE = 512 * 1024;
+
+    private final static long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    /**
+     * Clock used for deadlines.
+     */
+    private Clock clock;
+
+    /**
+     * Byte length of pieces, all but the last have this length.
+     */
+    private int pieceLength;
+
+    /**
+     * Byte length of content of torrent.
+     */
+    private long totalLength;
+
+    /**
+     * Whether each piece is complete.
+     */
+    private boolean[] complete;
+
+    /**
+     * Playback position, as a byte offset in content of torrent.
+     */
+    private long position;
+
+    /**
+     * Time (ns) when position was last set.
+     */
+    private long positionTime;
+
+    /**
+     * Rate (bytes/s) at which content is played back.
+     */
+    private long bitRate;
+
+    /**
+     * Constructor, with playback position at start, and no piece complete.
+     * @param clock clock used for deadlines
+     * @param pieceLength byte length of pieces
+     * @param totalLength byte length of content of torrent
+     */
+    public PlaybackWindow(Clock clock, int pieceLength, long totalLength) {
+
+        this.clock = clock;
+        this.pieceLength = pieceLength;
+        this.totalLength = totalLength;
+        this.complete = new boolean[(int)((totalLength + pieceLength - 1) / pieceLength)];
+        this.position = 0;
+        this.positionTime = clock.nanoTime();
+        this.bitRate = DEFAULT_BIT_RATE;
+    }
+
+    /**
+     * Moves playback position, and with it the window.
+     * @param position byte offset in content of torrent
+     */
+    synchronized public void setPosition(long position) {
+
+        this.position = Math.max(0, Math.min(position, totalLength));
+        this.positionTime = clock.nanoTime();
+    }
+
+    /**
+     * Index of first piece of window, which holds playback position.
+     * @return piece index
+     */
+    synchronized public int getFirstPiece() {
+        return (int)(Math.min(position, totalLength - 1) / pieceLength);
+    }
+
+    /**
+     * Index after last piece of window.
+     * @return piece index
+     */
+    synchronized public int getEndPiece() {
+
+        long end = position + bitRate * WINDOW_DURATION / NANOS_PER_SECOND;
+
+        // Window holds at least the piece at the position
+        return (int)Math.min(complete.length, Math.max(end / pieceLength, getFirstPiece()) + 1);
+    }
+
+    /**
+     * Checks whether piece is in window.
+     * @param index piece index
+     * @return true iff piece is in window
+     */
+    synchronized public boolean isInWindow(int index) {
+        return index >= getFirstPiece() && index < getEndPiece();
+    }
+
+    /**
+     * Time at which playback reaches first byte of a piece.
+     * @param index piece index
+     * @return time (ns), is in the past for the piece holding the playback position
+     */
+    synchronized public long getDeadline(int index) {
+
+        long bytesAhead = Math.max(0, (long)index * pieceLength - position);
+
+        return positionTime + bytesAhead * NANOS_PER_SECOND / bitRate;
+    }
+
+    /**
+     * Registers that a piece is complete, and wakes up readers waiting for it.
+     * @param index piece index
+     */
+    synchronized public void pieceCompleted(int index) {
+
+        complete[index] = true;
+
+        notifyAll();
+    }
+
+    synchronized public boolean isComplete(int index) {
+        return complete[index];
+    }
+
+    /**
+     * Blocks until a piece is complete, or the channel waiting for it is closed.
+     * @param index piece index
+     * @param channel channel waiting for piece
+     * @throws InterruptedIOException if thread is interrupted while waiting
+     * @throws ClosedChannelException if channel is closed before piece is complete
+     */
+    synchronized public void awaitPiece(int index, Channel channel) throws InterruptedIOException, ClosedChannelException {
+
+        while(!complete[index]) {
+
+            if(!channel.isOpen())
+                throw new ClosedChannelException();
+
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for piece " + index);
+            }
+        }
+    }
+
+    /**
+     * Wakes threads waiting for pieces, so they notice a closed channel.
+     */
+    synchronized public void channelClosed() {
+        notifyAll();
+    }
+
+    /**
+     * Sets rate at which content is played back, which
+     * determines length of window and deadlines of pieces.
+     * @param bitRate rate (bytes/s)
+     * @throws IllegalArgumentException if rate is not positive
+     */
+    synchronized public void setBitRate(long bitRate) {
+
+        if(bitRate <= 0)
+            throw new IllegalArgumentException();
+
+        this.bitRate = bitRate;
+    }
+
+    synchronized public long getBitRate() {
+        return bitRate;
+    }
+
+    synchronized public long getPosition() {
+        return position;
+    }
+
+    public int getPieceLength() {
+        return pieceLength;
+    }
+
+    public long getTotalLength() {
+        return totalLength;
+    }
+}
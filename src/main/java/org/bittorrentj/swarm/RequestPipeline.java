@@ -0,0 +1,352 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.message.Request;
+import org.bittorrentj.message.stream.Clock;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Block requests sent to a peer which have not yet been answered, and the
+ * number of such requests which should be kept outstanding, that is the queue depth.
+ *
+ * To saturate a peer, the queue must cover the bandwidth-delay product of the link,
+ * that is the delivery rate of the peer times the round trip time. The queue depth
+ * starts out small and grows by one for every block received, hence doubles every round trip,
+ * until the delivery rate stops growing. From then on the depth follows the
+ * measured bandwidth-delay product, with some headroom so an increase in rate can be
+ * detected. The minimum round trip time observed is used, since the time
+ * until a request is answered also includes the time it spends queued behind
+ * other requests at the peer. The depth never exceeds the reqq of the peer.
+ */
+public class RequestPipeline {
+
+    /**
+     * Byte length of requested blocks.
+     */
+    public final static int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Smallest and initial queue depth.
+     */
+    private final static int MIN_QUEUE_DEPTH = 2;
+    private final static int INITIAL_QUEUE_DEPTH = 4;
+
+    /**
+     * Multiple of bandwidth-delay product kept outstanding.
+     */
+    private final static double BANDWIDTH_DELAY_PRODUCT_GAIN = 1.5;
+
+    /**
+     * Growth factor of delivery rate per round which keeps queue in slow start,
+     * and number of rounds without such growth after which slow start ends.
+     */
+    private final static double SLOW_START_GROWTH = 1.25;
+    private final static int SLOW_START_ROUNDS_WITHOUT_GROWTH = 3;
+
+    /**
+     * Shortest duration (ns) of a measuring round.
+     */
+    private final static long MIN_ROUND_DURATION = 10L * 1000 * 1000;
+
+    /**
+     * Factor by which the windowed maximum delivery rate decays per round,
+     * so a drop in rate is eventually followed.
+     */
+    private final static double DELIVERY_RATE_DECAY = 0.9;
+
+    private final static long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    /**
+     * Outstanding request, and time when it was sent.
+     */
+    private class OutstandingRequest {
+
+        private Request request;
+        private long timeSent;
+
+        private OutstandingRequest(Request request, long timeSent) {
+            this.request = request;
+            this.timeSent = timeSent;
+        }
+    }
+
+    /**
+     * Outstanding requests, in the order sent.
+     */
+    private LinkedList<OutstandingRequest> outstanding;
+
+    /**
+     * Clock used to time requests.
+     */
+    private Clock clock;
+
+    /**
+     * Largest number of outstanding requests peer supports, its reqq.
+     */
+    private int maxQueueDepth;
+
+    /**
+     * Present target number of outstanding requests.
+     */
+    private int queueDepth;
+
+    /**
+     * Whether queue depth is still growing exponentially.
+     */
+    private boolean slowStart;
+
+    /**
+     * Number of consecutive rounds in which delivery rate has not grown sufficiently.
+     */
+    private int roundsWithoutGrowth;
+
+    /**
+     * Delivery rate (bytes/s) at end of last round in which it grew sufficiently.
+     */
+    private double slowStartRate;
+
+    /**
+     * Smallest observed time (ns) from sending a request to receiving its block,
+     * or Long.MAX_VALUE before first block.
+     */
+    private long minRoundTripTime;
+
+    /**
+     * Time (ns) when present measuring round started, and bytes received in it.
+     */
+    private long roundStart;
+    private long bytesInRound;
+
+    /**
+     * Windowed maximum delivery rate (bytes/s).
+     */
+    private double deliveryRate;
+
+    /**
+     * Constructor
+     * @param clock clock used to time requests
+     * @param maxQueueDepth largest number of outstanding requests peer supports
+     */
+    public RequestPipeline(Clock clock, int maxQueueDepth) {
+
+        this.outstanding = new LinkedList<OutstandingRequest>();
+        this.clock = clock;
+        this.maxQueueDepth = maxQueueDepth;
+        this.queueDepth = Math.min(INITIAL_QUEUE_DEPTH, maxQueueDepth);
+        this.slowStart = true;
+        this.roundsWithoutGrowth = 0;
+        this.slowStartRate = 0;
+        this.minRoundTripTime = Long.MAX_VALUE;
+        this.roundStart = clock.nanoTime();
+        this.bytesInRound = 0;
+        this.deliveryRate = 0;
+    }
+
+    /**
+     * Number of requests which should be sent at present to fill queue.
+     * @return number of requests
+     */
+    public int numberOfRequestsWanted() {
+        return Math.max(0, queueDepth - outstanding.size());
+    }
+
+    /**
+     * Registers that a request has been queued for sending.
+     * @param request request
+     */
+    public void requestSent(Request request) {
+
+        // Measuring starts afresh when an idle queue is filled
+        if(outstanding.isEmpty()) {
+            roundStart = clock.nanoTime();
+            bytesInRound = 0;
+        }
+
+        outstanding.add(new OutstandingRequest(request, clock.nanoTime()));
+    }
+
+    /**
+     * Registers that a block has been received, and adapts queue depth.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     * @return true iff block answered an outstanding request
+     */
+    public boolean blockReceived(int index, int begin, int length) {
+
+        OutstandingRequest r = remove(index, begin, length);
+
+        if(r == null)
+            return false;
+
+        long now = clock.nanoTime();
+
+        minRoundTripTime = Math.min(minRoundTripTime, now - r.timeSent);
+        bytesInRound += length;
+
+        // Grow by one per block, which doubles depth every round trip
+        if(slowStart)
+            queueDepth = Math.min(queueDepth + 1, maxQueueDepth);
+
+        // End round when it has lasted a round trip
+        long roundDuration = now - roundStart;
+
+        if(roundDuration >= Math.max(minRoundTripTime, MIN_ROUND_DURATION))
+            endRound(now, roundDuration);
+
+        return true;
+    }
+
+    /**
+     * Updates delivery rate from round just ended, and sets queue depth.
+     */
+    private void endRound(long now, long roundDuration) {
+
+        double rate = (double)bytesInRound * NANOS_PER_SECOND / roundDuration;
+
+        deliveryRate = Math.max(rate, deliveryRate * DELIVERY_RATE_DECAY);
+
+        if(slowStart) {
+
+            // Leave slow start once rate has stopped growing
+            if(deliveryRate >= slowStartRate * SLOW_START_GROWTH) {
+                slowStartRate = deliveryRate;
+                roundsWithoutGrowth = 0;
+            } else if(++roundsWithoutGrowth >= SLOW_START_ROUNDS_WITHOUT_GROWTH)
+                slowStart = false;
+        }
+
+        if(!slowStart) {
+
+            double bandwidthDelayProduct = deliveryRate * minRoundTripTime / NANOS_PER_SECOND;
+            int depth = MIN_QUEUE_DEPTH + (int)Math.ceil(BANDWIDTH_DELAY_PRODUCT_GAIN * bandwidthDelayProduct / BLOCK_SIZE);
+
+            queueDepth = Math.max(MIN_QUEUE_DEPTH, Math.min(depth, maxQueueDepth));
+        }
+
+        roundStart = now;
+        bytesInRound = 0;
+    }
+
+    /**
+     * Removes outstanding request matching block, which is normally the oldest one.
+     * @return request, or null if there was none
+     */
+    private OutstandingRequest remove(int index, int begin, int length) {
+
+        Iterator<OutstandingRequest> i = outstanding.iterator();
+
+        while(i.hasNext()) {
+
+            OutstandingRequest r = i.next();
+
+            if(r.request.getIndex() == index && r.request.getBegin() == begin && r.request.getLength() == length) {
+                i.remove();
+                return r;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes outstanding request for a block, since it has
+     * been received from another peer, and is to be cancelled.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     * @return request, or null if there was none
+     */
+    public Request cancel(int index, int begin, int length) {
+
+        OutstandingRequest r = remove(index, begin, length);
+
+        return r == null ? null : r.request;
+    }
+
+    /**
+     * Removes all outstanding requests, which is done when
+     * peer chokes, since it then discards them.
+     * @return requests removed, in the order sent
+     */
+    public LinkedList<Request> clear() {
+
+        LinkedList<Request> requests = new LinkedList<Request>();
+
+        for(OutstandingRequest r: outstanding)
+            requests.add(r.request);
+
+        outstanding.clear();
+
+        return requests;
+    }
+
+    /**
+     * Removes all outstanding requests, since the oldest has not been answered in time, and
+     * collapses queue depth, which then grows again in slow start, like after a retransmission
+     * timeout in TCP.
+     * @return requests removed, in the order sent
+     */
+    public LinkedList<Request> timedOut() {
+
+        queueDepth = Math.min(MIN_QUEUE_DEPTH, maxQueueDepth);
+        slowStart = true;
+        roundsWithoutGrowth = 0;
+        slowStartRate = 0;
+
+        return clear();
+    }
+
+    /**
+     * Time when oldest outstanding request was sent.
+     * @return time (ns)
+     * @throws java.util.NoSuchElementException if there are no outstanding requests
+     */
+    public long getTimeOldestRequestSent() {
+        return outstanding.getFirst().timeSent;
+    }
+
+    /**
+     * Sets largest number of outstanding requests peer supports, typically
+     * from reqq of its extended handshake.
+     * @param maxQueueDepth number of requests
+     */
+    public void setMaxQueueDepth(int maxQueueDepth) {
+
+        this.maxQueueDepth = maxQueueDepth;
+        this.queueDepth = Math.min(queueDepth, maxQueueDepth);
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public int getNumberOfOutstandingRequests() {
+        return outstanding.size();
+    }
+
+    public boolean isSlowStart() {
+        return slowStart;
+    }
+
+    /**
+     * Smallest observed time (ns) from sending a request to receiving its block.
+     * @return time, or Long.MAX_VALUE if no block has been received
+     */
+    public long getMinRoundTripTime() {
+        return minRoundTripTime;
+    }
+
+    /**
+     * Measured delivery rate of peer.
+     * @return rate (bytes/s)
+     */
+    public double getDeliveryRate() {
+        return deliveryRate;
+    }
+}
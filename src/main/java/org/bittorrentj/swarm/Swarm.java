@@ -1,27 +1,47 @@
 package org.bittorrentj.swarm;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.bittorrentj.Client;
+import org.bittorrentj.disk.DiskJob;
+import org.bittorrentj.disk.DiskJobQueue;
+import org.bittorrentj.disk.DiskManager;
+import org.bittorrentj.disk.HashPieceJob;
+import org.bittorrentj.disk.ReadCache;
+import org.bittorrentj.disk.TransferBlockJob;
+import org.bittorrentj.disk.WriteCache;
+import org.bittorrentj.disk.event.DiskEvent;
+import org.bittorrentj.disk.event.DiskEventHandler;
+import org.bittorrentj.disk.event.DiskJobCompletedEvent;
 import org.bittorrentj.event.ClientIOFailedEvent;
 import org.bittorrentj.event.Event;
 import org.bittorrentj.exceptions.*;
 import org.bittorrentj.extension.Extension;
 import org.bittorrentj.message.*;
+import org.bittorrentj.message.exceptions.MalformedMDictionaryException;
 import org.bittorrentj.message.exceptions.UnsupportedExtendedMessageFoundException;
 import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.message.stream.BufferPool;
+import org.bittorrentj.message.stream.Clock;
+import org.bittorrentj.message.stream.MessageStreamManager;
+import org.bittorrentj.message.stream.RateEstimator;
+import org.bittorrentj.message.stream.TimingWheel;
+import org.bittorrentj.message.stream.TokenBucket;
 import org.bittorrentj.swarm.exception.*;
 import org.bittorrentj.torrent.MetaInfo;
 
 /**
  * Created by bedeho on 30.08.2014.
  */
-public class Swarm extends Thread {
+public class Swarm extends Thread implements DiskEventHandler {
 
     /**
      * Control state given by client of this swarm.
@@ -43,13 +63,16 @@ public class Swarm extends Thread {
      * the next piece among the peers which are
      * presently unchoking it to be the
      * RAREST_FIRST: most rare piece to be full among ALL peers,
-     * STREAMING: piece with lowest piece index among all its incomplete pieces
+     * STREAMING: pieces in the playback window in order of their deadlines, from the fastest
+     * peers, and rarest first outside the window
      * RANDOM: a random piece
      */
     public enum LeechPolicy {
         RAREST_FIRST, STREAMING, RANDOM;
     }
 
+    private LeechPolicy leechPolicy;
+
     /**
      * Multiplexing selector for swarm connectivity
      */
@@ -68,7 +91,7 @@ public class Swarm extends Thread {
     /**
      * Client object this swarm belongs to
      */
-    //private Client client;
+    private Client client;
 
     /**
      * All open connections in this swarm
@@ -92,10 +115,21 @@ public class Swarm extends Thread {
     private int maxNumberOfConnections;
 
     /**
-     * The maximum number of peers to upload to simultaneously
+     * The maximum number of peers to upload to simultaneously,
+     * including the optimistically unchoked peer
      */
     private int maxNumberOfUploads;
 
+    /**
+     * Default maximum number of peers to upload to simultaneously.
+     */
+    private final static int DEFAULT_MAX_NUMBER_OF_UPLOADS = 5;
+
+    /**
+     * Decides which peers are unchoked.
+     */
+    private Choker choker;
+
     /**
      * Maximum net upload speed
      */
@@ -107,10 +141,10 @@ public class Swarm extends Thread {
     private HashMap<Integer, Extension> activeClientExtensions;
 
     /**
-     * Maximum amount of time (ms) before no data from peer
+     * Maximum amount of time (ns) before no data from peer
      * results in disconnecting it
      */
-    private final static int MAX_SILENCE_DURATION = 3600*1000;
+    private final static long MAX_SILENCE_DURATION = 3600L * 1000 * 1000 * 1000;
 
     /**
      * If time from last sending of any data to peer exceeds this
@@ -122,67 +156,248 @@ public class Swarm extends Thread {
      * if no command have been sent for a given amount of time.
      * This amount of time is generally two minutes.
      */
-    private final static int KEEP_ALIVE_INTERVAL = 60*1000;
+    private final static long KEEP_ALIVE_INTERVAL = 60L * 1000 * 1000 * 1000;
 
     /**
-     * The last time (ms) the choking manager was called. Is
-     * used to keep track of whether choking manager should be
-     * called gain.
+     * Maximum amount of time (ns) the oldest request to a peer may go unanswered,
+     * before all its requests are cancelled and made available to other peers.
      */
-    private Date lastChokeUpdate;
+    private final static long REQUEST_TIMEOUT = 30L * 1000 * 1000 * 1000;
 
     /**
-     * The greatest number of peers which are allowed to be
-     * unchoked at any given time.
+     * Tick duration (ns) and number of slots of timing wheel, a turn of the wheel
+     * covers the keep-alive interval and request timeout.
      */
-    private final int MAX_NUMBER_OF_UNCHOKED_PEERS = 4;
+    private final static long TIMING_WHEEL_TICK = Client.MAX_SELECTOR_DELAY * 1000 * 1000;
+    private final static int TIMING_WHEEL_SLOTS = 1024;
 
     /**
-     * The last time (ms) an optimistic unchoke was performed. Is
-     * used to keep track of whether optimistic unchoking should be
-     * performed again.
+     * Timers of selector loop, all periodic work is scheduled on it.
      */
-    private Date lastOptimisticChokingUpdate;
+    private TimingWheel timingWheel;
 
     /**
-     * The greatest number of peers which are allowed to be
-     * unchoked at any given time.
+     * Timer of choke rounds.
      */
-    private final int MAX_NUMBER_OF_OPTIMISTICALLY_UNCHOKED_PEERS = 1;
+    private TimingWheel.Timer chokeTimer;
 
     /**
-     * The duration (ms) between each time choking state is
-     * updated by calling the choking manager. The
-     * standard value is 10s.
+     * Used to generate random numbers, in particular for optimistic unchoking.
      */
-    private final int CHOKING_MANAGEMENT_PERIODE = 10*1000;
+    private Random random;
 
     /**
-     * The duration (ms) between each time optimistic unchoking is attempted.
-     * The standard value is 30s.
+     * Network buffers shared by the message streams of all connections
+     * in swarm, which are only lent to streams with data in flight.
      */
-    private final int OPTIMISTIC_UNCHOKING_MANAGEMENT_PERIODE = 30*1000;
+    private BufferPool bufferPool;
 
     /**
-     * Used to generate random numbers, in particular for optimistic unchoking.
+     * Token buckets limiting upload and download rate of swarm,
+     * nested under those of client, with a bucket per connection under them.
      */
-    private Random random;
+    private TokenBucket uploadBucket;
+    private TokenBucket downloadBucket;
+
+    /**
+     * Tracks availability of pieces among peers, and picks pieces
+     * to download, is null while meta information is not known.
+     */
+    private PiecePicker piecePicker;
+
+    /**
+     * Pieces being downloaded, by piece index.
+     */
+    private HashMap<Integer, DownloadingPiece> downloadingPieces;
+
+    /**
+     * Time critical pieces in STREAMING leech policy, is null while meta information is not known.
+     */
+    private PlaybackWindow playbackWindow;
+
+    /**
+     * Number of fastest peers from which time critical pieces are requested.
+     */
+    private final static int NUMBER_OF_TIME_CRITICAL_PEERS = 4;
+
+    /**
+     * Download rate (bytes/s) a peer must have to be among fastest peers, as
+     * found when requesting pieces.
+     */
+    private double timeCriticalDownloadRate;
+
+    /**
+     * Download rates of the fastest peers not choking us, in descending
+     * order, which is reused each time the rate above is found.
+     */
+    private double[] fastestDownloadRates = new double[NUMBER_OF_TIME_CRITICAL_PEERS];
+
+    /**
+     * Longest and shortest time (ns) a block of a time critical piece may be outstanding
+     * before it is requested again from another peer. Within these bounds the timeout is
+     * half the time remaining until the deadline of the piece.
+     */
+    private final static long MAX_TIME_CRITICAL_REQUEST_TIMEOUT = 2L * 1000 * 1000 * 1000;
+    private final static long MIN_TIME_CRITICAL_REQUEST_TIMEOUT = 250L * 1000 * 1000;
+
+    /**
+     * Trust points at which a peer is banned, a peer which sent
+     * all blocks of a failed piece is banned right away.
+     */
+    private final static int MIN_TRUST_POINTS = -7;
+
+    /**
+     * Clock used to time requests.
+     */
+    private Clock clock;
+
+    /**
+     * Storage of torrent, is null while meta information is not known.
+     */
+    private DiskManager diskManager;
+
+    /**
+     * Queue of disk jobs, shared by all swarms of client, all disk access
+     * from the thread of the swarm goes through it.
+     */
+    private DiskJobQueue diskJobQueue;
+
+    /**
+     * Cache which writes received blocks a piece at a time, is null while meta information is not known.
+     */
+    private WriteCache writeCache;
+
+    /**
+     * Cache of pieces read for peers, shared by all connections, is null while meta information is not known.
+     */
+    private ReadCache readCache;
+
+    /**
+     * Connections whose channel is being written to by a disk worker, which sends
+     * a block of a stored piece, by the job doing so.
+     */
+    private HashMap<TransferBlockJob, Connection> transfers;
+
+    /**
+     * Completed disk jobs posted by disk workers, which are processed by thread of swarm.
+     */
+    private ConcurrentLinkedQueue<DiskEvent> diskEvents;
+
+    /**
+     * Complete pieces being hashed or written, before they are verified, by piece
+     * index, which are kept so the peers which sent them are known if they fail.
+     */
+    private HashMap<Integer, DownloadingPiece> piecesBeingHashed;
+
+    /**
+     * Addresses of peers which are banned for sending corrupt pieces.
+     */
+    private HashSet<InetAddress> bannedAddresses;
+
+    /**
+     * Connections to be banned, which are closed once messages read from network
+     * have been processed, since a piece may fail while the read buffer of a
+     * contributing connection is still being parsed.
+     */
+    private LinkedList<Connection> connectionsToBan;
+
+    /**
+     * Whether reading from network is paused, since disk job queue is full.
+     */
+    private boolean readingPaused;
 
     /**
      *
+     * @param client client this swarm belongs to
      * @param infoHash
      * @param metaInformation
      * @param activeClientExtensions
      * @param swarmState
+     * @param clientUploadBucket upload token bucket of client
+     * @param clientDownloadBucket download token bucket of client
+     * @param diskManager storage of torrent, or null if meta information is not known
+     * @param diskJobQueue queue of disk jobs of client
+     * @param clientPieceAvailability pieces already stored and verified on disk, by piece index, or null if there are none
+     * @throws IllegalArgumentException if piece availability does not match number of pieces in torrent
      */
-    public Swarm(Hash infoHash, MetaInfo metaInformation, HashMap<Integer, Extension> activeClientExtensions, SwarmState swarmState) {
+    public Swarm(Client client, Hash infoHash, MetaInfo metaInformation, HashMap<Integer, Extension> activeClientExtensions, SwarmState swarmState, TokenBucket clientUploadBucket, TokenBucket clientDownloadBucket, DiskManager diskManager, DiskJobQueue diskJobQueue, boolean[] clientPieceAvailability) {
+        this(client, infoHash, metaInformation, activeClientExtensions, swarmState, clientUploadBucket, clientDownloadBucket, diskManager, diskJobQueue, clientPieceAvailability, Clock.SYSTEM);
+    }
 
+    /**
+     * Constructor
+     * @param client client this swarm belongs to
+     * @param infoHash
+     * @param metaInformation
+     * @param activeClientExtensions
+     * @param swarmState
+     * @param clientUploadBucket upload token bucket of client
+     * @param clientDownloadBucket download token bucket of client
+     * @param diskManager storage of torrent, or null if meta information is not known
+     * @param diskJobQueue queue of disk jobs of client
+     * @param clientPieceAvailability pieces already stored and verified on disk, by piece index, or null if there are none
+     * @param clock clock used to time requests, timeouts and choking
+     * @throws IllegalArgumentException if piece availability does not match number of pieces in torrent
+     */
+    Swarm(Client client, Hash infoHash, MetaInfo metaInformation, HashMap<Integer, Extension> activeClientExtensions, SwarmState swarmState, TokenBucket clientUploadBucket, TokenBucket clientDownloadBucket, DiskManager diskManager, DiskJobQueue diskJobQueue, boolean[] clientPieceAvailability, Clock clock) {
+
+        this.client = client;
         this.infoHash = infoHash;
         this.metaInformation = metaInformation;
         this.activeClientExtensions = activeClientExtensions;
         this.swarmState = swarmState;
 
         this.random = new Random();
+        this.bufferPool = new BufferPool(clock, BufferPool.DEFAULT_IDLE_THRESHOLD);
+        this.uploadBucket = new TokenBucket(clientUploadBucket, TokenBucket.UNLIMITED, 0);
+        this.downloadBucket = new TokenBucket(clientDownloadBucket, TokenBucket.UNLIMITED, 0);
+        this.leechPolicy = LeechPolicy.RAREST_FIRST;
+        this.downloadingPieces = new HashMap<Integer, DownloadingPiece>();
+        this.clock = clock;
+        this.connections = new LinkedList<Connection>();
+        this.maxNumberOfUploads = DEFAULT_MAX_NUMBER_OF_UPLOADS;
+        this.choker = new Choker(random, maxNumberOfUploads);
+        this.timingWheel = new TimingWheel(clock, TIMING_WHEEL_TICK, TIMING_WHEEL_SLOTS);
+        this.diskManager = diskManager;
+        this.diskJobQueue = diskJobQueue;
+        this.diskEvents = new ConcurrentLinkedQueue<DiskEvent>();
+        this.transfers = new HashMap<TransferBlockJob, Connection>();
+        this.piecesBeingHashed = new HashMap<Integer, DownloadingPiece>();
+        this.bannedAddresses = new HashSet<InetAddress>();
+        this.connectionsToBan = new LinkedList<Connection>();
+        this.readingPaused = false;
+
+        // First choke round is right away
+        this.chokeTimer = new TimingWheel.Timer() {
+
+            @Override
+            public void expired() {
+                choker.rechoke(connections, weHaveAllPieces(), clock.nanoTime());
+                timingWheel.schedule(this, Choker.CHOKING_PERIOD);
+            }
+        };
+
+        timingWheel.schedule(chokeTimer, 0);
+
+        if(metaInformation != null) {
+            this.writeCache = new WriteCache(diskManager, diskJobQueue, this, RequestPipeline.BLOCK_SIZE, WriteCache.DEFAULT_SIZE);
+            this.readCache = new ReadCache(diskManager, diskJobQueue, this, ReadCache.DEFAULT_SIZE);
+            this.piecePicker = new PiecePicker(metaInformation.getNumberOfPiecesInTorrent(), random);
+            this.playbackWindow = new PlaybackWindow(clock, metaInformation.getInfo().getPieceLength(), metaInformation.getInfo().getTotalLength());
+
+            // Pieces on disk are neither picked nor waited for
+            if(clientPieceAvailability != null) {
+
+                if(clientPieceAvailability.length != metaInformation.getNumberOfPiecesInTorrent())
+                    throw new IllegalArgumentException();
+
+                for(int i = 0;i < clientPieceAvailability.length;i++)
+                    if(clientPieceAvailability[i]) {
+                        piecePicker.clientHasPiece(i);
+                        playbackWindow.pieceCompleted(i);
+                    }
+            }
+        }
 
         try {
             this.selector = Selector.open();
@@ -205,7 +420,7 @@ public class Swarm extends Thread {
             // if there were some selected keys, then we attempt to read/write
             if(numberOfUpdatedKeys > 0) {
 
-                LinkedList<Connection> writtenTo, readFrom;
+                LinkedList<Connection> writtenTo = null, readFrom = null;
 
                 Set<SelectionKey> selectedKeys = selector.selectedKeys();
 
@@ -252,26 +467,42 @@ public class Swarm extends Thread {
                             closeConnection(c);
                             //return;
                             // or just ignore ?
+                        } catch (MalformedMDictionaryException e) {
+                            closeConnection(c);
                         }
                     }
                 }
             }
 
-            // Run choking algorithm
-            LinkedList<Connection> unchokedConnections = chokingAlgorithm();
+            // Process disk jobs completed by disk workers
+            processDiskEvents();
+
+            // Close connections which sent corrupt pieces, now that no read buffer is in use
+            banConnections();
+
+            // Stop reading from network while disk can not keep up, and resume once queue is half empty
+            if(!readingPaused && diskJobQueue.isFull())
+                setReadingPaused(true);
+            else if(readingPaused && diskJobQueue.getQueuedBytes() <= diskJobQueue.getMaxQueuedBytes() / 2)
+                setReadingPaused(false);
+
+            // Fire due timers, which run choke rounds, send keep-alives, and handle timeouts
+            timingWheel.advance();
 
-            // Iterate unchoked connections, and send requests and pieces
-            for(Connection c: unchokedConnections) {
-                c.requestPieces();
+            LinkedList<Connection> unchokedConnections = choker.getUnchoked();
+
+            // Keep request pipelines of all connections full
+            requestPieces();
+
+            // Iterate unchoked connections, and send pieces
+            for(Connection c: unchokedConnections)
                 c.sendPieces();
-            }
 
             // Do general extension processing
             processExtensions();
 
-            // Maintain connectivity to swarm by sending keep-alive,
-            // and connecting to new peers if we have to few connections.
-            // Also drop peers not sending keep-alive.
+            // Maintain connectivity to swarm by connecting
+            // to new peers if we have to few connections.
             manageConnectivity();
         }
     }
@@ -374,141 +605,250 @@ public class Swarm extends Thread {
     }
 
     /**
-     * Choking algorithm is performed by doing
-     * two independent time contingent updates.
-     * Standard choking management simply unchokes a certain
-     * number of peers which have the greatest seed rate.
-     * Optimistic unchoking unchokes some other random subset
-     * of peers
-     * @return list of presently unchoked connections.
+     * Lets each connection send the block requests it needs to keep its request
+     * pipeline full, connections which are choked by their peer send nothing.
      */
-    private LinkedList<Connection> chokingAlgorithm() {
+    private void requestPieces() {
 
-        // List of presently unchoked connections
-        LinkedList<Connection> unchoked = new LinkedList<Connection>();
+        if(leechPolicy == LeechPolicy.STREAMING)
+            timeCriticalDownloadRate = findTimeCriticalDownloadRate();
 
-        // Get present time to compare against previous unchoking time stamp
-        long presentTime = new Date().getTime();
+        for(Connection c: connections)
+            c.requestPieces();
+    }
 
-        // Check if choking state should be updated
-        if(presentTime - lastChokeUpdate.getTime() > CHOKING_MANAGEMENT_PERIODE) {
+    /**
+     * Finds download rate of slowest among the fastest peers not choking us,
+     * which are the ones time critical pieces are requested from.
+     * @return rate (bytes/s), 0 if there are no more peers than that
+     */
+    private double findTimeCriticalDownloadRate() {
 
-            // Make a shallow copy just for sorting
-            LinkedList<Connection> copyForSorting = (LinkedList<Connection>)connections.clone();
+        int numberOfUnchokingPeers = 0;
 
-            // If we have all pieces, we unchoke the fastest leechers,
-            // otherwise we unchoke the fastest seeders
-            if(weHaveAllPieces())
-                Collections.sort(copyForSorting, new UploadRateDescendingComparator());
-            else
-                Collections.sort(copyForSorting, new DownloadRateDescendingComparator());
+        for(Connection c: connections) {
 
-            // Pick top MAX_NUMBER_OF_UNCHOKED_PEERS and send unchoke
-            // message to all that are not choked, and send
-            // choked message to everyone else that are choked.
-            int counter = 0;
-            for(Connection c: copyForSorting) {
+            if(c.getPeerState().isChoking())
+                continue;
 
-                // check if we should try to unchoke
-                if(counter < MAX_NUMBER_OF_UNCHOKED_PEERS) {
+            double rate = c.getDownloadRate(RateEstimator.MEDIUM);
 
-                    // if connection is choked, then send unchoke
-                    if(c.getClientState().isChoking())
-                        c.enqueueMessageForSending(new UnChoke());
+            // Insert among fastest rates found so far, which are few, dropping the slowest when full
+            int i = Math.min(numberOfUnchokingPeers, NUMBER_OF_TIME_CRITICAL_PEERS);
 
-                } else { // or try to unchoke
+            for(;i > 0 && fastestDownloadRates[i - 1] < rate;i--)
+                if(i < NUMBER_OF_TIME_CRITICAL_PEERS)
+                    fastestDownloadRates[i] = fastestDownloadRates[i - 1];
 
-                    // if connection is unchoked, then send choke
-                    if(!c.getClientState().isChoking())
-                        c.enqueueMessageForSending(new Choke());
-                }
+            if(i < NUMBER_OF_TIME_CRITICAL_PEERS)
+                fastestDownloadRates[i] = rate;
+
+            numberOfUnchokingPeers++;
+        }
+
+        if(numberOfUnchokingPeers <= NUMBER_OF_TIME_CRITICAL_PEERS)
+            return 0;
+
+        return fastestDownloadRates[NUMBER_OF_TIME_CRITICAL_PEERS - 1];
+    }
+
+    /**
+     * Request for the next block to download from peer of connection. Blocks of
+     * pieces already being downloaded come first, so pieces are completed before new ones are
+     * started, otherwise a new piece is picked.
+     *
+     * Once every block still missing has been requested, the swarm is in endgame mode,
+     * and blocks are requested again from every peer which has them, so the last
+     * blocks do not wait on the slowest peers. The first copy to arrive is kept, and the
+     * other requests are cancelled.
+     * @param connection connection
+     * @return request, or null if peer has no block we want which it has not already been asked for
+     */
+    Request nextBlockRequest(Connection connection) {
+
+        PeerState peerState = connection.getPeerState();
+
+        if(!peerState.isPieceAvailabilityKnown())
+            return null;
+
+        boolean streaming = leechPolicy == LeechPolicy.STREAMING && playbackWindow != null;
+
+        // Time critical pieces only go to the fastest peers
+        if(streaming && connection.getDownloadRate(RateEstimator.MEDIUM) >= timeCriticalDownloadRate) {
+
+            Request r = nextTimeCriticalRequest(connection);
+
+            if(r != null)
+                return r;
+        }
 
-                counter++;
+        for(DownloadingPiece p: downloadingPieces.values()) {
+
+            if(streaming && playbackWindow.isInWindow(p.getIndex()))
+                continue;
+
+            if(peerState.isPieceAvailable(p.getIndex())) {
+
+                Request r = p.nextRequest(connection);
+
+                if(r != null)
+                    return r;
             }
         }
 
-        // Check if optimistic unchoking should be performed
-        if(presentTime - lastOptimisticChokingUpdate.getTime() > OPTIMISTIC_UNCHOKING_MANAGEMENT_PERIODE) {
+        int index = pickNextPiece(connection);
+
+        if(index != -1)
+            return startDownloadingPiece(index).nextRequest(connection);
 
-            // Just find one which is choked and unchoke
-            Connection connection = pickConnectionForOptimisticUnchoking();
+        if(swarmState == SwarmState.ON_NORMAL && allMissingBlocksRequested())
+            swarmState = SwarmState.ON_ENDGAME;
 
-            // check that there was at least one, and then send un choke
-            if(connection != null)
-                connection.enqueueMessageForSending(new UnChoke());
+        if(swarmState != SwarmState.ON_ENDGAME)
+            return null;
+
+        for(DownloadingPiece p: downloadingPieces.values()) {
+
+            if(peerState.isPieceAvailable(p.getIndex())) {
+
+                Request r = p.nextEndgameRequest(connection);
+
+                if(r != null)
+                    return r;
+            }
         }
+
+        return null;
     }
 
     /**
-     * Comparator for finding good leechers
+     * Request for a block of a time critical piece, that is in the playback window, from
+     * peer of connection. Pieces are served in order of their deadlines, and blocks which
+     * have been outstanding for too long, given the deadline of their piece, are requested again.
+     * @param connection connection
+     * @return request, or null if peer has no block in window we want
      */
-    class UploadRateDescendingComparator implements Comparator<Connection> {
+    private Request nextTimeCriticalRequest(Connection connection) {
 
-        /**
-         * Compare upload rate in descending order
-         * @param o1
-         * @param o2
-         * @return
-         */
-        @Override
-        public int compare(Connection o1, Connection o2) {
-            return o1.getUploadRate() - o2.getUploadRate();
-        }
+        PeerState peerState = connection.getPeerState();
+        long now = clock.nanoTime();
+
+        int end = playbackWindow.getEndPiece();
+
+        for(int index = playbackWindow.getFirstPiece();index < end;index++) {
+
+            if(piecePicker.clientHas(index) || !peerState.isPieceAvailable(index))
+                continue;
 
-        /**
-         * This equals contract is not identical to Object.equals,
-         * read java api docs.
-         * @param obj
-         * @return
-         */
-        @Override
-        public boolean equals(Object obj) {
-            return obj instanceof UploadRateDescendingComparator;
+            DownloadingPiece p = downloadingPieces.get(index);
+
+            if(p == null) {
+
+                // Piece is being hashed
+                if(piecePicker.isInProgress(index))
+                    continue;
+
+                p = startDownloadingPiece(index);
+            }
+
+            Request r = p.nextRequest(connection);
+
+            if(r == null) {
+
+                long timeout = (playbackWindow.getDeadline(index) - now) / 2;
+                timeout = Math.max(MIN_TIME_CRITICAL_REQUEST_TIMEOUT, Math.min(timeout, MAX_TIME_CRITICAL_REQUEST_TIMEOUT));
+
+                r = p.nextTimedOutRequest(connection, now - timeout);
+            }
+
+            if(r != null)
+                return r;
         }
+
+        return null;
     }
 
     /**
-     * Comparator for finding good seeders
+     * Starts downloading a piece, which is marked as in progress.
+     * @param index piece index
+     * @return downloading piece
      */
-    class DownloadRateDescendingComparator implements Comparator<Connection> {
+    private DownloadingPiece startDownloadingPiece(int index) {
 
-        /**
-         * Compare upload rate in descending order
-         * @param o1
-         * @param o2
-         * @return
-         */
-        @Override
-        public int compare(Connection o1, Connection o2) {
-            return o1.getDownloadRate() - o2.getDownloadRate();
-        }
+        piecePicker.setInProgress(index, true);
 
-        /**
-         * This equals contract is not identical to Object.equals,
-         * read java api docs.
-         * @param obj
-         * @return
-         */
-        @Override
-        public boolean equals(Object obj) {
-            return obj instanceof DownloadRateDescendingComparator;
-        }
+        DownloadingPiece p = new DownloadingPiece(index, metaInformation.getInfo().getPieceLength(index), clock);
+        downloadingPieces.put(index, p);
+
+        return p;
     }
 
-    private void requestPieces() {
+    /**
+     * Checks whether every block the client does not have is already requested,
+     * that is all wanted pieces are being downloaded, and none of them has a wanted block.
+     * @return true iff all missing blocks are requested
+     */
+    private boolean allMissingBlocksRequested() {
+
+        if(piecePicker == null || piecePicker.getNumberOfWantedPieces() != downloadingPieces.size() + piecesBeingHashed.size())
+            return false;
+
+        for(DownloadingPiece p: downloadingPieces.values())
+            if(p.hasWantedBlocks())
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Makes blocks of requests which will not be answered available
+     * for requesting again, unless other connections also requested them.
+     * @param connection connection which sent requests
+     * @param requests requests
+     */
+    void requestsDropped(Connection connection, LinkedList<Request> requests) {
 
+        for(Request r: requests) {
 
+            DownloadingPiece p = downloadingPieces.get(r.getIndex());
 
+            if(p != null)
+                p.requestDropped(r.getBegin(), connection);
+        }
     }
 
     private void sendPieces() {
 
     }
 
-    private void pickNextPiece() {
+    /**
+     * Picks the next piece to download from the peer of a connection,
+     * according to the leech policy, outside of the playback window when streaming.
+     * @param connection connection
+     * @return piece index, or -1 if peer has no piece we want which is not already in progress
+     */
+    private int pickNextPiece(Connection connection) {
+
+        PeerState peerState = connection.getPeerState();
 
-        // should hvae streamin and rarest first
+        if(piecePicker == null || !peerState.isPieceAvailabilityKnown())
+            return -1;
 
+        int index;
+
+        switch(leechPolicy) {
+            case RANDOM:
+                index = piecePicker.pickRandom(peerState);
+                break;
+            case STREAMING:
+                index = piecePicker.pickRarest(peerState, playbackWindow.getFirstPiece(), playbackWindow.getEndPiece());
+                break;
+            case RAREST_FIRST:
+            default:
+                index = piecePicker.pickRarest(peerState);
+        }
+
+        return index;
     }
 
     /**
@@ -524,30 +864,75 @@ public class Swarm extends Thread {
 
     private void manageConnectivity() {
 
-        // send keep alive
+        // if we have to few peers, then try to connect to known peers, and if we know to few, ask to get more peers from somewhere.
+
+        // if we have to few connections now, how do we get more peers?
 
-        // dosconnect form silent peers
+    }
 
-        // if we have to few peers, then try to connect to known peers, and if we know to few, ask to get more peers from somewhere.
+    /**
+     * Schedules timer of a new connection, which checks its keep-alive,
+     * silence and request timeouts.
+     * @param connection connection
+     */
+    void scheduleConnectionTimer(final Connection connection) {
 
-        /**
-         *
-         // Disconnect connections which have taken to long to talk to us,
-         // send keep-alive if we have not written anything in a while
-         long nowDateInMs = new Date().getTime();
+        TimingWheel.Timer timer = new TimingWheel.Timer() {
 
-         // Close if it has taken more time than upper limit,
-         // otherwise send keep-alive if we have not written in a while
-         if(nowDateInMs - connection.getTimeLastDataReceived().getTime() > MAX_SILENCE_DURATION)
-         closeConnection(connection);
-         else if(nowDateInMs - connection.getTimeLastDataTransmitted().getTime() > KEEP_ALIVE_INTERVAL)
-         connection.enqueueMessageForSending(new KeepAlive());
-         *
-         */
+            @Override
+            public void expired() {
+                checkConnectionTimeouts(connection, this);
+            }
+        };
 
+        connection.setTimer(timer);
+        timingWheel.schedule(timer, Math.min(KEEP_ALIVE_INTERVAL, REQUEST_TIMEOUT));
+    }
 
-        // if we have to few connections now, how do we get more peers?
+    /**
+     * Disconnects connection if peer has been silent for too long, sends keep-alive if we have
+     * not written anything in a while, and cancels requests which have gone unanswered for too long.
+     * Timer of connection is then scheduled for when the next of these can be due, which keeps
+     * the cost proportional to the number of connections with something due.
+     * @param connection connection
+     * @param timer timer of connection
+     */
+    private void checkConnectionTimeouts(Connection connection, TimingWheel.Timer timer) {
+
+        long now = clock.nanoTime();
 
+        // Close if peer has not sent anything for longer than upper limit
+        long silent = now - connection.getInputStream().getManager().getTimeLastDataTransmitted();
+
+        if(silent >= MAX_SILENCE_DURATION) {
+            closeConnection(connection);
+            return;
+        }
+
+        // Send keep-alive if we have not written in a while
+        long idle = now - connection.getOutputStream().getManager().getTimeLastDataTransmitted();
+
+        if(idle >= KEEP_ALIVE_INTERVAL) {
+            connection.enqueueMessageForSending(new KeepAlive());
+            idle = 0;
+        }
+
+        // Requests sent later are checked within a timeout
+        long nextCheck = Math.min(Math.min(MAX_SILENCE_DURATION - silent, KEEP_ALIVE_INTERVAL - idle), REQUEST_TIMEOUT);
+
+        RequestPipeline pipeline = connection.getRequestPipeline();
+
+        if(pipeline.getNumberOfOutstandingRequests() > 0) {
+
+            long waiting = now - pipeline.getTimeOldestRequestSent();
+
+            if(waiting >= REQUEST_TIMEOUT)
+                connection.requestsTimedOut();
+            else
+                nextCheck = Math.min(nextCheck, REQUEST_TIMEOUT - waiting);
+        }
+
+        timingWheel.schedule(timer, nextCheck);
     }
 
     /**
@@ -555,8 +940,7 @@ public class Swarm extends Thread {
      * @return
      */
     boolean weHaveAllPieces() {
-        // check that we have metainfo
-        // then check that we hvae it all
+        return piecePicker != null && piecePicker.getNumberOfWantedPieces() == 0;
     }
 
 
@@ -575,6 +959,123 @@ public class Swarm extends Thread {
         // remove from connections hashmap
         // what to do about various buffer is in connection, and also in diskmanager?
 
+        // Outstanding requests of connection will not be answered
+        requestsDropped(connection, connection.getRequestPipeline().clear());
+
+        // Pieces of peer no longer count towards availability
+        if(piecePicker != null && connection.getPeerState().isPieceAvailabilityKnown())
+            piecePicker.removePeer(connection.getPeerState());
+
+        // Free upload slot of connection
+        choker.connectionClosed(connection);
+
+        // Stop timeouts of connection
+        if(connection.getTimer() != null)
+            timingWheel.cancel(connection.getTimer());
+
+        // Block being sent from storage is abandoned, job fails once channel is closed
+        if(connection.getOutputStream().getTransferInFlight() != null)
+            transfers.remove(connection.getOutputStream().getTransferInFlight());
+
+        // Return network buffers of connection to pool
+        connection.close();
+    }
+
+    /**
+     * Creates manager for output stream of a new connection, with a bucket
+     * sharing upload rate of swarm fairly with other connections.
+     * @return manager
+     */
+    public MessageStreamManager createUploadStreamManager() {
+        return new MessageStreamManager(new TokenBucket(uploadBucket, TokenBucket.UNLIMITED, 0));
+    }
+
+    /**
+     * Creates manager for input stream of a new connection, with a bucket
+     * sharing download rate of swarm fairly with other connections.
+     * @return manager
+     */
+    public MessageStreamManager createDownloadStreamManager() {
+        return new MessageStreamManager(new TokenBucket(downloadBucket, TokenBucket.UNLIMITED, 0));
+    }
+
+    public TokenBucket getUploadBucket() {
+        return uploadBucket;
+    }
+
+    public TokenBucket getDownloadBucket() {
+        return downloadBucket;
+    }
+
+    /**
+     * Pool of network buffers, from which message streams
+     * of connections in this swarm borrow buffers.
+     * @return pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public int getMaxNumberOfUploads() {
+        return maxNumberOfUploads;
+    }
+
+    /**
+     * Sets maximum number of peers to upload to simultaneously, which
+     * takes effect at next rechoke.
+     * @param maxNumberOfUploads number of peers, including the optimistically unchoked peer
+     */
+    public void setMaxNumberOfUploads(int maxNumberOfUploads) {
+
+        this.maxNumberOfUploads = maxNumberOfUploads;
+        choker.setNumberOfUploadSlots(maxNumberOfUploads);
+    }
+
+    public PiecePicker getPiecePicker() {
+        return piecePicker;
+    }
+
+    /**
+     * Opens a channel over the content of the torrent for playback while downloading, which
+     * should be combined with the STREAMING leech policy. Reading the channel moves the playback
+     * window, and blocks until the piece read is complete.
+     * @param bitRate rate (bytes/s) at which content is played back
+     * @return channel
+     * @throws IllegalStateException if meta information is not known
+     * @throws IllegalArgumentException if rate is not positive
+     */
+    public TorrentContentChannel openContentChannel(long bitRate) {
+
+        if(playbackWindow == null)
+            throw new IllegalStateException("Meta information is not known");
+
+        playbackWindow.setBitRate(bitRate);
+
+        return new TorrentContentChannel(playbackWindow, diskManager);
+    }
+
+    public PlaybackWindow getPlaybackWindow() {
+        return playbackWindow;
+    }
+
+    public WriteCache getWriteCache() {
+        return writeCache;
+    }
+
+    public ReadCache getReadCache() {
+        return readCache;
+    }
+
+    public DiskManager getDiskManager() {
+        return diskManager;
+    }
+
+    public LeechPolicy getLeechPolicy() {
+        return leechPolicy;
+    }
+
+    public void setLeechPolicy(LeechPolicy leechPolicy) {
+        this.leechPolicy = leechPolicy;
     }
 
     /**
@@ -598,12 +1099,26 @@ public class Swarm extends Thread {
      */
     public void addConnection(SocketChannel channel, Handshake m) {
 
-        //register channel with selector with both opread and opwrite
+        // Peers which sent corrupt pieces are turned away
+        if(isBanned(channel.socket().getInetAddress())) {
+
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // Already closed
+            }
+
+            return;
+        }
+
+        //register channel with selector with both opread and opwrite, only opwrite if readingPaused
 
         // new connection (PeerState clientState, PeerState peerState, HashMap<Integer, Extension> activeClientExtensions)
 
         // add to connections, and to connectionLookupTable
 
+        // scheduleConnectionTimer(connection)
+
         /*
         public synchronized addPeer(socket, peer_id, reserved) : for when a peer connects and gives you all this info :called by, at thisp point the peer
         p = new Peer(socket, peer_id, reserved, ExtensionsManager [])
@@ -652,78 +1167,289 @@ public class Swarm extends Thread {
      */
     public boolean isMetaInformationKnown() { return metaInformation != null;}
 
-    public int sizeOfBlockWeDoNotHave(int begin, int block, int length) {
+    /**
+     * Number of bytes of a received block which we need, that is
+     * the full block if it belongs to a piece being downloaded and
+     * has not been received already, otherwise nothing.
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param length byte length of block
+     * @return number of bytes
+     */
+    public int sizeOfBlockWeDoNotHave(int index, int begin, int length) {
+
+        DownloadingPiece p = downloadingPieces.get(index);
+
+        if(p == null || !p.isValidBlock(begin, length) || p.getBlockState(begin) == DownloadingPiece.BlockState.RECEIVED)
+            return 0;
 
+        return length;
     }
 
-    public void processNewPieceMessage(Piece m) {
+    /**
+     * Processes a block received in a piece message. The block may be
+     * a view over a network read buffer, hence it is only valid during this call,
+     * and must be written or copied before returning. Requests for the block held
+     * by other connections, which happens in endgame mode, are cancelled.
+     * @param connection connection through which block was received
+     * @param index piece index
+     * @param begin byte offset within piece
+     * @param block buffers with consecutive segments of block between position and limit,
+     *              there are two when block wraps around end of a circular read buffer
+     */
+    public void processNewBlock(Connection connection, int index, int begin, ByteBuffer[] block) {
+
+        DownloadingPiece p = downloadingPieces.get(index);
+
+        if(p == null)
+            return;
+
+        LinkedList<Connection> otherHolders = p.blockReceived(begin, connection);
+
+        if(otherHolders == null)
+            return;
 
-        // save to disk
+        // Other copies of block are no longer needed
+        int length = 0;
+        for(ByteBuffer segment: block)
+            length += segment.remaining();
 
-        // Iterate all connections, and remove all outstanding
-        // requests which are now satisfied with this new piece.
-        // e.g. if we were in end game mode this would be important,
-        // but also otherwise
+        for(Connection c: otherHolders)
+            c.cancelRequest(index, begin, length);
 
-        // switch into end game mode, and send requess to everyone
+        // Block is copied into cache, so network buffer can be reused
+        writeCache.writeBlock(index, begin, block);
 
-        // if this was last, then switch out of end game mode, if we were in it
+        // Piece is written when all blocks are received, and
+        // stays in progress until it is verified
+        if(p.isComplete()) {
 
+            downloadingPieces.remove(index);
+
+            // Piece hashed in cache as blocks arrived is checked right away, and is not written if corrupt
+            Hash hash = writeCache.getHash(index);
+
+            if(hash != null && !metaInformation.getInfo().getPieces().compare(index, hash.getRaw())) {
+                writeCache.pieceDropped(index);
+                pieceFailed(p);
+                return;
+            }
+
+            piecesBeingHashed.put(index, p);
+            writeCache.pieceCompleted(index);
+        }
     }
 
-    public MetaInfo getMetaInformation() {
-        return metaInformation;
+    /**
+     * Posts completed disk job to thread of swarm, is called on a disk worker.
+     * @param e event
+     */
+    @Override
+    public void diskEventHandler(DiskEvent e) {
+
+        diskEvents.add(e);
+
+        // Do not let completion wait for selector to time out
+        selector.wakeup();
     }
 
-    public SwarmState getSwarmState() {
-        return swarmState;
+    /**
+     * Processes all disk jobs completed since last time.
+     */
+    void processDiskEvents() {
+
+        DiskEvent e;
+
+        while((e = diskEvents.poll()) != null) {
+
+            DiskJob job = ((DiskJobCompletedEvent)e).getJob();
+
+            writeCache.jobCompleted(job);
+            readCache.jobCompleted(job);
+
+            // A failed write is caught when piece is hashed
+            if(job instanceof HashPieceJob)
+                pieceHashed((HashPieceJob)job);
+            else if(job instanceof TransferBlockJob)
+                transferCompleted((TransferBlockJob)job);
+        }
     }
 
-    // who calls this
-    public void setSwarmState(SwarmState swarmState) {
+    /**
+     * Submits job sending block of a stored piece from storage to
+     * channel of connection, is called by connection.
+     * @param connection connection
+     * @param job job returned by output stream of connection
+     */
+    void transferStarted(Connection connection, TransferBlockJob job) {
 
-        // do lots of other stuff if we are indeed turning stuff off, or going to endgame
+        transfers.put(job, connection);
+        diskJobQueue.submit(job, this);
+    }
 
+    /**
+     * Hands channel back to output stream of connection once block, or part of it, is sent,
+     * a connection whose block could not be sent is closed.
+     * @param job completed job
+     */
+    private void transferCompleted(TransferBlockJob job) {
 
-        this.swarmState = swarmState;
+        Connection connection = transfers.remove(job);
+
+        // Connection was closed meanwhile
+        if(connection == null)
+            return;
+
+        if(job.isSuccessful())
+            connection.getOutputStream().transferCompleted(job);
+        else
+            closeConnection(connection);
     }
 
     /**
-     * Returns one random presently choked connection.
-     * @return Connection
+     * Verifies hashed piece against meta information, a piece which
+     * fails, or could not be hashed, is downloaded again.
+     * @param job completed job
      */
-    private Connection pickConnectionForOptimisticUnchoking() {
+    private void pieceHashed(HashPieceJob job) {
 
-        // Temporary container for all choked connections
-        ArrayList<Connection> choked = new ArrayList<Connection>();
+        int index = job.getIndex();
 
-        // Iterate all connections, and
-        for(Connection c: connections) {
+        DownloadingPiece p = piecesBeingHashed.remove(index);
 
-            if(c.getPeerState().isChoking())
-                choked.add(c);
+        // Failing to store piece is not the fault of peers
+        if(!job.isSuccessful()) {
+            piecePicker.setInProgress(index, false);
+            return;
         }
 
-        // Return null if everything was choked
-        int numberOfChokedConnections = choked.size();
-        if(numberOfChokedConnections == 0)
-            return null;
-        else
-            return choked.get(randInt(0, numberOfChokedConnections - 1));
+        if(!metaInformation.getInfo().getPieces().compare(index, job.getHash().getRaw())) {
+            pieceFailed(p);
+            return;
+        }
+
+        piecePicker.clientHasPiece(index);
+        playbackWindow.pieceCompleted(index);
+
+        // Peers which sent piece earn trust
+        for(Connection c: p.getContributors())
+            c.pieceVerified();
+
+        // Endgame is over when nothing is missing
+        if(swarmState == SwarmState.ON_ENDGAME && piecePicker.getNumberOfWantedPieces() == 0)
+            swarmState = SwarmState.ON_NORMAL;
+    }
+
+    /**
+     * Handles piece which failed its hash check, it is downloaded again, and the peers
+     * which sent it lose trust. Which of several peers sent a corrupt block is not known, so
+     * a peer is only banned if it sent the whole piece, or once its trust falls to
+     * MIN_TRUST_POINTS, that is once it shared in clearly more failed pieces than verified
+     * ones, hence a peer corrupting blocks of many pieces does not get honest peers banned.
+     * @param p failed piece
+     */
+    private void pieceFailed(DownloadingPiece p) {
+
+        piecePicker.setInProgress(p.getIndex(), false);
+
+        LinkedList<Connection> contributors = p.getContributors();
+
+        for(Connection c: contributors) {
+
+            c.hashFailed();
+
+            if((contributors.size() == 1 || c.getTrustPoints() <= MIN_TRUST_POINTS) && !connectionsToBan.contains(c))
+                connectionsToBan.add(c);
+        }
+    }
+
+    /**
+     * Closes connections to be banned, if they are still open, and turns away later
+     * connections from the same addresses.
+     */
+    private void banConnections() {
+
+        while(!connectionsToBan.isEmpty())
+            banConnection(connectionsToBan.poll());
+    }
+
+    private void banConnection(Connection connection) {
+
+        for(SelectionKey key: selector.keys()) {
+
+            if(key.attachment() != connection)
+                continue;
+
+            SocketChannel channel = (SocketChannel)key.channel();
+
+            bannedAddresses.add(channel.socket().getInetAddress());
+
+            closeConnection(connection);
+
+            try {
+                channel.close();
+            } catch(IOException e) {
+                // Already closed
+            }
+
+            return;
+        }
+    }
+
+    public boolean isBanned(InetAddress address) {
+        return bannedAddresses.contains(address);
+    }
+
+    /**
+     * Pauses or resumes reading from all connections, a paused
+     * connection is not selected for reading.
+     * @param paused whether reading is paused
+     */
+    private void setReadingPaused(boolean paused) {
+
+        for(SelectionKey key: selector.keys()) {
+
+            if(!key.isValid())
+                continue;
+
+            if(paused)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        readingPaused = paused;
+    }
+
+    public MetaInfo getMetaInformation() {
+        return metaInformation;
     }
 
     /**
-     * Returns random integer between min and max, both included.
-     * @param min inlcusive lower bound
-     * @param max inclusive upper bound
-     * @return random integer
+     * Clock of swarm, which connections time requests with.
+     * @return clock
      */
-    private int randInt(int min, int max) {
+    public Clock getClock() {
+        return clock;
+    }
+
+    TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    public SwarmState getSwarmState() {
+        return swarmState;
+    }
+
+    // who calls this
+    public void setSwarmState(SwarmState swarmState) {
 
-        // nextInt is normally exclusive of the top value,
-        // so add 1 to make it inclusive
-        return random.nextInt((max - min) + 1) + min;
+        // do lots of other stuff if we are indeed turning stuff off, or going to endgame
+
+
+        this.swarmState = swarmState;
     }
 
 
+
 }
\ No newline at end of file
@@ -0,0 +1,179 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.disk.DiskManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read only channel over the content of a torrent which is still being downloaded,
+ * for playback while streaming. A read blocks until the piece holding the
+ * present position is complete, and only that piece, and reading moves the
+ * playback window of the swarm along with the position.
+ *
+ * A channel is used by a single reading thread, it is not thread safe itself,
+ * except that it may be closed from another thread, which wakes a blocked read.
+ */
+public class TorrentContentChannel implements SeekableByteChannel {
+
+    /**
+     * Playback window of swarm, which is moved by reading.
+     */
+    private PlaybackWindow window;
+
+    /**
+     * Storage of torrent.
+     */
+    private DiskManager diskManager;
+
+    /**
+     * Byte offset in content of torrent of next read.
+     */
+    private long position;
+
+    private volatile boolean open;
+
+    /**
+     * Constructor, with position at start of content.
+     * @param window playback window of swarm
+     * @param diskManager storage of torrent
+     */
+    public TorrentContentChannel(PlaybackWindow window, DiskManager diskManager) {
+
+        this.window = window;
+        this.diskManager = diskManager;
+        this.position = 0;
+        this.open = true;
+    }
+
+    /**
+     * Reads from present position, waiting until the piece holding it is complete,
+     * at most up to the end of that piece is read.
+     * @param dst buffer
+     * @return number of bytes read, or -1 at end of content
+     * @throws java.io.InterruptedIOException if thread is interrupted while waiting for piece
+     * @throws ClosedChannelException if channel is closed, also while waiting for piece
+     * @throws IOException if content cannot be read from disk
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+
+        checkOpen();
+
+        if(position >= window.getTotalLength())
+            return -1;
+
+        if(!dst.hasRemaining())
+            return 0;
+
+        int pieceLength = window.getPieceLength();
+        int index = (int)(position / pieceLength);
+        int begin = (int)(position - (long)index * pieceLength);
+        int pieceEnd = (int)Math.min(pieceLength, window.getTotalLength() - (long)index * pieceLength);
+        int length = Math.min(dst.remaining(), pieceEnd - begin);
+
+        window.setPosition(position);
+        window.awaitPiece(index, this);
+
+        ByteBuffer view = dst.duplicate();
+        view.limit(view.position() + length);
+
+        diskManager.readBlock(index, begin, view);
+
+        dst.position(view.position());
+        position += length;
+
+        return length;
+    }
+
+    /**
+     * Channel is read only.
+     * @throws NonWritableChannelException always
+     */
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+
+        checkOpen();
+
+        return position;
+    }
+
+    /**
+     * Moves position, which also moves playback window, so
+     * pieces at new position are downloaded first.
+     * @param newPosition byte offset in content of torrent
+     * @return this channel
+     * @throws IllegalArgumentException if position is negative
+     * @throws ClosedChannelException if channel is closed
+     */
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+
+        checkOpen();
+
+        if(newPosition < 0)
+            throw new IllegalArgumentException();
+
+        position = newPosition;
+        window.setPosition(newPosition);
+
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+
+        checkOpen();
+
+        return window.getTotalLength();
+    }
+
+    /**
+     * Channel is read only.
+     * @throws NonWritableChannelException always
+     */
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    /**
+     * Blocking input stream over this channel.
+     * @return input stream
+     */
+    public InputStream getInputStream() {
+        return Channels.newInputStream(this);
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+
+        if(!open)
+            throw new ClosedChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes channel, a read blocked waiting for a piece throws ClosedChannelException.
+     */
+    @Override
+    public void close() {
+
+        open = false;
+
+        window.channelClosed();
+    }
+}
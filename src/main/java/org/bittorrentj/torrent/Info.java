@@ -4,9 +4,12 @@ package org.bittorrentj.torrent;
  * Created by bedeho on 03.09.2014.
  */
 
+import org.bittorrentj.bencodej.BencodableByteString;
+import org.bittorrentj.bencodej.BencodableInteger;
+import org.bittorrentj.bencodej.BencodeableDictionary;
 import org.bittorrentj.message.field.Hash;
 
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -20,9 +23,10 @@ public abstract class Info {
 
     /**
      *  String consisting of the concatenation of all
-     *  20-byte SHA1 hash values, one per piece (byte string, i.e. not urlencoded)
+     *  20-byte SHA1 hash values, one per piece (byte string, i.e. not urlencoded),
+     *  kept packed in a single table.
      */
-    private LinkedList<Hash> pieces;
+    private PieceHashTable pieces;
 
     /**
      *  (optional) this field is an integer.
@@ -36,13 +40,20 @@ public abstract class Info {
      */
     private boolean private_;
 
+    /**
+     * Info hash, that is SHA1 hash of bencoding of info dictionary. It is
+     * set when this object is loaded from a metainfo file, in which case it is computed
+     * over the original bencoding, and otherwise computed from the fields on first use.
+     */
+    private Hash infoHash;
+
     /**
      * Constructor
      * @param pieceLength bytes per each piece
-     * @param pieces list of piece hashes
+     * @param pieces table of piece hashes
      * @param private_ privateness of torrent
      */
-    public Info(int pieceLength, LinkedList<Hash> pieces, boolean private_) {
+    public Info(int pieceLength, PieceHashTable pieces, boolean private_) {
 
         this.pieceLength = pieceLength;
         this.pieces = pieces;
@@ -65,13 +76,81 @@ public abstract class Info {
         this.pieceLength = pieceLength;
     }
 
-    public LinkedList<Hash> getPieces() {
+    public PieceHashTable getPieces() {
         return pieces;
     }
 
-    public void setPieces(LinkedList<Hash> pieces) {
+    public void setPieces(PieceHashTable pieces) {
         this.pieces = pieces;
     }
 
-    abstract public Hash computeInfoHash();
+    /**
+     * Info hash of this info dictionary. If the object was loaded from
+     * a metainfo file, this is the hash of the original bencoding, otherwise
+     * it is the hash of the canonical bencoding of the fields.
+     * @return info hash
+     */
+    public Hash computeInfoHash() {
+
+        if(infoHash == null)
+            infoHash = InfoHasher.hashRawInfo(ByteBuffer.wrap(toBencodeableDictionary().bencode()));
+
+        return infoHash;
+    }
+
+    /**
+     * Sets info hash computed over original bencoding
+     * this object was loaded from.
+     * @param infoHash info hash
+     */
+    void setInfoHash(Hash infoHash) {
+        this.infoHash = infoHash;
+    }
+
+    /**
+     * Builds info dictionary with the fields of this object.
+     * @return dictionary
+     */
+    public BencodeableDictionary toBencodeableDictionary() {
+
+        BencodeableDictionary d = new BencodeableDictionary();
+
+        d.put(new BencodableByteString("piece length"), new BencodableInteger(pieceLength));
+
+        // Concatenation of all piece hashes
+        d.put(new BencodableByteString("pieces"), new BencodableByteString(pieces.getRaw()));
+
+        if(private_)
+            d.put(new BencodableByteString("private"), new BencodableInteger(1));
+
+        // Add mode specific fields
+        addModeSpecificFields(d);
+
+        return d;
+    }
+
+    /**
+     * Byte length of given piece, which is the piece length for all but
+     * the last piece, which may be shorter.
+     * @param index piece index
+     * @return byte length
+     */
+    public int getPieceLength(int index) {
+
+        long start = (long)index * pieceLength;
+
+        return (int)Math.min(pieceLength, getTotalLength() - start);
+    }
+
+    /**
+     * Byte length of all files of torrent.
+     * @return byte length
+     */
+    abstract public long getTotalLength();
+
+    /**
+     * Adds fields specific to single or multiple file mode to info dictionary.
+     * @param d info dictionary
+     */
+    abstract protected void addModeSpecificFields(BencodeableDictionary d);
 }
\ No newline at end of file
@@ -0,0 +1,192 @@
+package org.bittorrentj.torrent;
+
+import org.bittorrentj.bencodej.BencodeParser;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+import org.bittorrentj.disk.Unmapper;
+import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.torrent.exception.MalformedMetaInfoException;
+import org.bittorrentj.torrent.exception.MissingMetaInfoKeyException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Computes info hashes, that is SHA1 hashes of the bencoding of the info
+ * dictionary, directly over the original bytes of the info value
+ * in a metainfo file. Nothing is decoded or re-encoded, which is also
+ * the only correct approach for info dictionaries which are not canonically encoded.
+ */
+public class InfoHasher {
+
+    /**
+     * Key of info dictionary in metainfo dictionary.
+     */
+    private final static byte[] INFO_KEY = "info".getBytes();
+
+    /**
+     * One digest per thread, since MessageDigest is not thread safe,
+     * and getInstance() is costly.
+     */
+    private final static ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    /**
+     * SHA1 digest of calling thread, which is reset. It is shared by all users on
+     * the thread, hence must be digested before the thread uses it for anything else.
+     * @return digest
+     */
+    public static MessageDigest getDigest() {
+        return digests.get();
+    }
+
+    /**
+     * New SHA1 digest, for hashes which are computed over several calls.
+     * @return digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes SHA1 hash of remaining bytes of buffer,
+     * position of buffer is not altered.
+     * @param rawInfo bencoding of info dictionary
+     * @return info hash
+     */
+    public static Hash hashRawInfo(ByteBuffer rawInfo) {
+
+        MessageDigest digest = digests.get();
+
+        digest.update(rawInfo.duplicate());
+
+        return new Hash(digest.digest());
+    }
+
+    /**
+     * Finds the bencoding of the info dictionary in a metainfo file.
+     * @param metaInfo bencoding of metainfo file, starting at present position
+     * @return buffer sharing content with metaInfo, with position = 0 and limit = length of info bencoding
+     * @throws DecodingBencodingException if bencoding is malformed
+     * @throws MissingMetaInfoKeyException if there is no info key
+     */
+    public static ByteBuffer findRawInfo(ByteBuffer metaInfo) throws DecodingBencodingException, MissingMetaInfoKeyException {
+
+        ByteBuffer rawInfo = BencodeParser.findValue(metaInfo, INFO_KEY);
+
+        if(rawInfo == null)
+            throw new MissingMetaInfoKeyException("info");
+
+        return rawInfo;
+    }
+
+    /**
+     * Computes info hash of a metainfo file.
+     * @param metaInfo bencoding of metainfo file, starting at present position
+     * @return info hash
+     * @throws DecodingBencodingException if bencoding is malformed
+     * @throws MissingMetaInfoKeyException if there is no info key
+     */
+    public static Hash computeInfoHash(ByteBuffer metaInfo) throws DecodingBencodingException, MissingMetaInfoKeyException {
+        return hashRawInfo(findRawInfo(metaInfo));
+    }
+
+    /**
+     * Computes info hash of a metainfo (.torrent) file, which is memory
+     * mapped rather than read, and unmapped when done.
+     * @param torrentFile file
+     * @return info hash
+     * @throws IOException if file cannot be mapped
+     * @throws DecodingBencodingException if bencoding is malformed
+     * @throws MissingMetaInfoKeyException if there is no info key
+     */
+    public static Hash computeInfoHash(File torrentFile) throws IOException, DecodingBencodingException, MissingMetaInfoKeyException {
+
+        MappedByteBuffer b = map(torrentFile);
+
+        try {
+            return computeInfoHash(b);
+        } finally {
+            Unmapper.unmap(b);
+        }
+    }
+
+    /**
+     * Maps full file into memory, read only. The mapping
+     * stays valid after the underlying channel is closed, callers
+     * unmap it with Unmapper once nothing refers to its content.
+     * @param file file
+     * @return mapped buffer
+     * @throws IOException if file cannot be mapped
+     */
+    static MappedByteBuffer map(File file) throws IOException {
+
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+
+        try {
+            FileChannel channel = f.getChannel();
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Computes info hashes of many metainfo files in parallel on the common fork-join pool.
+     * @param torrentFiles files
+     * @return mapping from each file to its info hash, files which could not be read, or were not valid metainfo files, map to null
+     */
+    public static HashMap<File, Hash> computeInfoHashes(List<File> torrentFiles) {
+        return computeInfoHashes(torrentFiles, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Computes info hashes of many metainfo files in parallel on given fork-join pool.
+     * @param torrentFiles files
+     * @param pool pool
+     * @return mapping from each file to its info hash, files which could not be read, or were not valid metainfo files, map to null
+     */
+    public static HashMap<File, Hash> computeInfoHashes(List<File> torrentFiles, ForkJoinPool pool) {
+        return computeInfoHashes(torrentFiles, pool, null);
+    }
+
+    /**
+     * Computes info hashes of many metainfo files in parallel on given fork-join pool,
+     * recording why files could not be hashed.
+     * @param torrentFiles files
+     * @param pool pool
+     * @param failures if not null, receives the exception of each file which could not be hashed
+     * @return mapping from each file to its info hash, files which could not be read, or were not valid metainfo files, map to null
+     */
+    public static HashMap<File, Hash> computeInfoHashes(List<File> torrentFiles, ForkJoinPool pool, HashMap<File, Exception> failures) {
+
+        ParallelFileProcessor<Hash> hasher = new ParallelFileProcessor<Hash>() {
+
+            @Override
+            Hash process(File file) throws IOException, DecodingBencodingException, MalformedMetaInfoException {
+                return computeInfoHash(file);
+            }
+        };
+
+        return hasher.processAll(torrentFiles, pool, failures);
+    }
+}
@@ -1,7 +1,10 @@
 package org.bittorrentj.torrent;
 
-import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+import org.bittorrentj.torrent.exception.MalformedMetaInfoException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import java.util.LinkedList;
 
@@ -26,8 +29,9 @@ public class MetaInfo {
     /**
      * (optional) This is an extention to the official specification
      * offering backwards-compatibility. (list of lists of strings).
+     * Each inner list is a tier of announce URLs.
      */
-    private LinkedList<String> announce_list;
+    private LinkedList<LinkedList<String>> announce_list;
 
     /**
      * (optional) The creation time of the torrent, in standard
@@ -52,11 +56,22 @@ public class MetaInfo {
     private String encoding;
 
     /**
-     * Constructor loading metainfo from .torrent file
+     * Constructor loading metainfo from .torrent file, see MetaInfoLoader.
      * @param filename name of .torrent file
+     * @throws IOException if file cannot be read
+     * @throws DecodingBencodingException if file is not a valid bencoding
+     * @throws MalformedMetaInfoException if bencoding does not have the structure of a metainfo file
      */
-    public MetaInfo(String filename) {
+    public MetaInfo(String filename) throws IOException, DecodingBencodingException, MalformedMetaInfoException {
+        this(MetaInfoLoader.load(new File(filename)));
+    }
 
+    /**
+     * Copy constructor, is needed by the file based constructor.
+     * @param m metainfo to copy
+     */
+    private MetaInfo(MetaInfo m) {
+        this(m.info, m.announce, m.announce_list, m.creation_date, m.comment, m.created_by, m.encoding);
     }
 
     /**
@@ -69,7 +84,7 @@ public class MetaInfo {
      * @param created_by
      * @param encoding
      */
-    public MetaInfo(Info info, String announce, LinkedList<String> announce_list, Date creation_date, String comment, String created_by, String encoding) {
+    public MetaInfo(Info info, String announce, LinkedList<LinkedList<String>> announce_list, Date creation_date, String comment, String created_by, String encoding) {
 
         this.info = info;
         this.announce = announce;
@@ -88,6 +103,34 @@ public class MetaInfo {
      * @return number of pieces
      */
     public int getNumberOfPiecesInTorrent() {
-        return info.getPieces().size();
+        return info.getPieces().getNumberOfPieces();
+    }
+
+    public Info getInfo() {
+        return info;
+    }
+
+    public String getAnnounce() {
+        return announce;
+    }
+
+    public LinkedList<LinkedList<String>> getAnnounce_list() {
+        return announce_list;
+    }
+
+    public Date getCreation_date() {
+        return creation_date;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public String getCreated_by() {
+        return created_by;
+    }
+
+    public String getEncoding() {
+        return encoding;
     }
 }
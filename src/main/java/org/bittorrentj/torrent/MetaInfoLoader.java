@@ -0,0 +1,435 @@
+package org.bittorrentj.torrent;
+
+import org.bittorrentj.bencodej.BencodeParser;
+import org.bittorrentj.bencodej.Bencodej;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+import org.bittorrentj.disk.Unmapper;
+import org.bittorrentj.torrent.exception.InvalidMetaInfoValueException;
+import org.bittorrentj.torrent.exception.MalformedMetaInfoException;
+import org.bittorrentj.torrent.exception.MissingMetaInfoKeyException;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Loads metainfo (.torrent) files in a single pass over a memory mapped
+ * file with BencodeParser, building MetaInfo, Info, file lists and the piece hash table
+ * directly from tokens. No intermediate Bencodable tree is built, so apart
+ * from the result itself memory use is bounded by the nesting depth of the file.
+ * The info hash is computed over the original bencoding of the info value.
+ */
+public class MetaInfoLoader {
+
+    /**
+     * Character set of strings in metainfo files.
+     */
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Keys of metainfo dictionary.
+     */
+    private final static byte[] INFO = "info".getBytes();
+    private final static byte[] ANNOUNCE = "announce".getBytes();
+    private final static byte[] ANNOUNCE_LIST = "announce-list".getBytes();
+    private final static byte[] CREATION_DATE = "creation date".getBytes();
+    private final static byte[] COMMENT = "comment".getBytes();
+    private final static byte[] CREATED_BY = "created by".getBytes();
+    private final static byte[] ENCODING = "encoding".getBytes();
+
+    /**
+     * Keys of info dictionary.
+     */
+    private final static byte[] PIECE_LENGTH = "piece length".getBytes();
+    private final static byte[] PIECES = "pieces".getBytes();
+    private final static byte[] PRIVATE = "private".getBytes();
+    private final static byte[] NAME = "name".getBytes();
+    private final static byte[] LENGTH = "length".getBytes();
+    private final static byte[] MD5SUM = "md5sum".getBytes();
+    private final static byte[] FILES = "files".getBytes();
+    private final static byte[] PATH = "path".getBytes();
+
+    /**
+     * Loads metainfo file, which is memory mapped, and unmapped when done,
+     * since nothing loaded refers to its content.
+     * @param torrentFile file
+     * @return metainfo
+     * @throws IOException if file cannot be mapped
+     * @throws DecodingBencodingException if file is not a valid bencoding
+     * @throws MalformedMetaInfoException if bencoding does not have the structure of a metainfo file
+     */
+    public static MetaInfo load(File torrentFile) throws IOException, DecodingBencodingException, MalformedMetaInfoException {
+
+        MappedByteBuffer b = InfoHasher.map(torrentFile);
+
+        try {
+            return load(b);
+        } finally {
+            Unmapper.unmap(b);
+        }
+    }
+
+    /**
+     * Loads metainfo from buffer, position of buffer is not altered.
+     * @param src bencoding of metainfo file, starting at present position
+     * @return metainfo
+     * @throws DecodingBencodingException if buffer is not a valid bencoding
+     * @throws MalformedMetaInfoException if bencoding does not have the structure of a metainfo file
+     */
+    public static MetaInfo load(ByteBuffer src) throws DecodingBencodingException, MalformedMetaInfoException {
+
+        BencodeParser parser = new BencodeParser(src.duplicate()).expect(BencodeParser.Token.START_DICT);
+        ByteBuffer b = parser.getSource();
+
+        Info info = null;
+        String announce = null;
+        LinkedList<LinkedList<String>> announceList = null;
+        Date creationDate = null;
+        String comment = null;
+        String createdBy = null;
+        String encoding = null;
+
+        while(parser.next() != BencodeParser.Token.END) {
+
+            if(parser.keyEquals(INFO)) {
+
+                // Note where info bencoding starts, so it can be hashed
+                int infoStart = b.position();
+
+                info = readInfo(parser);
+                info.setInfoHash(InfoHasher.hashRawInfo(Bencodej.slice(b, infoStart, b.position() - infoStart)));
+
+            } else if(parser.keyEquals(ANNOUNCE))
+                announce = readString(parser, "announce");
+            else if(parser.keyEquals(ANNOUNCE_LIST))
+                announceList = readAnnounceList(parser);
+            else if(parser.keyEquals(CREATION_DATE))
+                creationDate = new Date(readLong(parser, "creation date") * 1000);
+            else if(parser.keyEquals(COMMENT))
+                comment = readString(parser, "comment");
+            else if(parser.keyEquals(CREATED_BY))
+                createdBy = readString(parser, "created by");
+            else if(parser.keyEquals(ENCODING))
+                encoding = readString(parser, "encoding");
+            else
+                parser.skipValue(parser.next());
+        }
+
+        if(info == null)
+            throw new MissingMetaInfoKeyException("info");
+
+        return new MetaInfo(info, announce, announceList, creationDate, comment, createdBy, encoding);
+    }
+
+    /**
+     * Reads info dictionary, parser is positioned at value for info key.
+     */
+    private static Info readInfo(BencodeParser parser) throws DecodingBencodingException, MalformedMetaInfoException {
+
+        if(parser.next() != BencodeParser.Token.START_DICT)
+            throw new InvalidMetaInfoValueException("info");
+
+        long pieceLength = -1;
+        PieceHashTable pieces = null;
+        boolean private_ = false;
+        String name = null;
+        long length = -1;
+        String md5sum = null;
+        ArrayList<MultpleFileInfo.SingleFileAmongManyInfo> files = null;
+
+        while(parser.next() != BencodeParser.Token.END) {
+
+            if(parser.keyEquals(PIECE_LENGTH))
+                pieceLength = readLong(parser, "piece length");
+            else if(parser.keyEquals(PIECES)) {
+
+                if(parser.next() != BencodeParser.Token.BYTES)
+                    throw new InvalidMetaInfoValueException("pieces");
+
+                try {
+                    pieces = new PieceHashTable(parser.getByteString());
+                } catch (IllegalArgumentException e) {
+                    throw new InvalidMetaInfoValueException("pieces");
+                }
+
+            } else if(parser.keyEquals(PRIVATE))
+                private_ = readLong(parser, "private") == 1;
+            else if(parser.keyEquals(NAME))
+                name = readString(parser, "name");
+            else if(parser.keyEquals(LENGTH))
+                length = readLong(parser, "length");
+            else if(parser.keyEquals(MD5SUM))
+                md5sum = readString(parser, "md5sum");
+            else if(parser.keyEquals(FILES))
+                files = readFiles(parser);
+            else
+                parser.skipValue(parser.next());
+        }
+
+        // Check required fields
+        if(pieceLength == -1)
+            throw new MissingMetaInfoKeyException("piece length");
+        else if(pieceLength <= 0 || pieceLength > Integer.MAX_VALUE)
+            throw new InvalidMetaInfoValueException("piece length");
+
+        if(pieces == null)
+            throw new MissingMetaInfoKeyException("pieces");
+
+        // Name is the file name, or the directory name, of the torrent on disk
+        if(name == null)
+            throw new MissingMetaInfoKeyException("name");
+        else if(!isValidPathElement(name))
+            throw new InvalidMetaInfoValueException("name");
+
+        // Multiple file mode iff files key is present
+        long totalLength;
+
+        if(files != null) {
+
+            totalLength = 0;
+
+            try {
+                for(MultpleFileInfo.SingleFileAmongManyInfo f : files)
+                    totalLength = Math.addExact(totalLength, f.length);
+            } catch (ArithmeticException e) {
+                throw new InvalidMetaInfoValueException("files");
+            }
+
+        } else if(length == -1)
+            throw new MissingMetaInfoKeyException("length");
+        else if(length < 0)
+            throw new InvalidMetaInfoValueException("length");
+        else
+            totalLength = length;
+
+        // There is one hash for every piece, the last piece may be shorter
+        if(totalLength > Long.MAX_VALUE - pieceLength || pieces.getNumberOfPieces() != (totalLength + pieceLength - 1) / pieceLength)
+            throw new InvalidMetaInfoValueException("pieces");
+
+        if(files != null)
+            return new MultpleFileInfo((int)pieceLength, pieces, private_, name, files);
+        else
+            return new SingleFileInfo((int)pieceLength, pieces, private_, name, length, md5sum);
+    }
+
+    /**
+     * Reads files list of info dictionary in multiple file mode.
+     */
+    private static ArrayList<MultpleFileInfo.SingleFileAmongManyInfo> readFiles(BencodeParser parser) throws DecodingBencodingException, MalformedMetaInfoException {
+
+        if(parser.next() != BencodeParser.Token.START_LIST)
+            throw new InvalidMetaInfoValueException("files");
+
+        ArrayList<MultpleFileInfo.SingleFileAmongManyInfo> files = new ArrayList<MultpleFileInfo.SingleFileAmongManyInfo>();
+
+        // Reused for building each path
+        StringBuilder path = new StringBuilder();
+
+        BencodeParser.Token token;
+        while((token = parser.next()) != BencodeParser.Token.END) {
+
+            if(token != BencodeParser.Token.START_DICT)
+                throw new InvalidMetaInfoValueException("files");
+
+            long length = -1;
+            String md5sum = null;
+            boolean hasPath = false;
+
+            while(parser.next() != BencodeParser.Token.END) {
+
+                if(parser.keyEquals(LENGTH))
+                    length = readLong(parser, "length");
+                else if(parser.keyEquals(MD5SUM))
+                    md5sum = readString(parser, "md5sum");
+                else if(parser.keyEquals(PATH)) {
+
+                    if(parser.next() != BencodeParser.Token.START_LIST)
+                        throw new InvalidMetaInfoValueException("path");
+
+                    // Join path elements with '/'
+                    path.setLength(0);
+
+                    while((token = parser.next()) != BencodeParser.Token.END) {
+
+                        if(token != BencodeParser.Token.BYTES)
+                            throw new InvalidMetaInfoValueException("path");
+
+                        String element = UTF8.decode(parser.getByteString()).toString();
+
+                        if(!isValidPathElement(element))
+                            throw new InvalidMetaInfoValueException("path");
+
+                        if(path.length() > 0)
+                            path.append('/');
+
+                        path.append(element);
+                    }
+
+                    if(path.length() == 0)
+                        throw new InvalidMetaInfoValueException("path");
+
+                    hasPath = true;
+                } else
+                    parser.skipValue(parser.next());
+            }
+
+            if(length == -1)
+                throw new MissingMetaInfoKeyException("length");
+            else if(length < 0)
+                throw new InvalidMetaInfoValueException("length");
+
+            if(!hasPath)
+                throw new MissingMetaInfoKeyException("path");
+
+            files.add(new MultpleFileInfo.SingleFileAmongManyInfo(length, md5sum, path.toString()));
+        }
+
+        return files;
+    }
+
+    /**
+     * Checks whether a name, or an element of a file path, of a torrent names a
+     * single file or directory within the directory it is stored in, so that a
+     * hostile torrent can not write elsewhere.
+     * @param element name or path element
+     * @return true iff element is not empty, is not "." or "..", and has no separators
+     */
+    public static boolean isValidPathElement(String element) {
+
+        if(element.isEmpty() || element.equals(".") || element.equals(".."))
+            return false;
+
+        for(int i = 0;i < element.length();i++) {
+
+            char c = element.charAt(i);
+
+            if(c == '/' || c == '\\' || c == File.separatorChar || c == '\0')
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads announce-list, that is list of tiers, each being a list of URLs.
+     */
+    private static LinkedList<LinkedList<String>> readAnnounceList(BencodeParser parser) throws DecodingBencodingException, MalformedMetaInfoException {
+
+        if(parser.next() != BencodeParser.Token.START_LIST)
+            throw new InvalidMetaInfoValueException("announce-list");
+
+        LinkedList<LinkedList<String>> tiers = new LinkedList<LinkedList<String>>();
+
+        BencodeParser.Token token;
+        while((token = parser.next()) != BencodeParser.Token.END) {
+
+            if(token != BencodeParser.Token.START_LIST)
+                throw new InvalidMetaInfoValueException("announce-list");
+
+            LinkedList<String> tier = new LinkedList<String>();
+
+            while((token = parser.next()) != BencodeParser.Token.END) {
+
+                if(token != BencodeParser.Token.BYTES)
+                    throw new InvalidMetaInfoValueException("announce-list");
+
+                tier.add(UTF8.decode(parser.getByteString()).toString());
+            }
+
+            tiers.add(tier);
+        }
+
+        return tiers;
+    }
+
+    /**
+     * Reads byte string value as UTF-8 string.
+     */
+    private static String readString(BencodeParser parser, String key) throws DecodingBencodingException, InvalidMetaInfoValueException {
+
+        if(parser.next() != BencodeParser.Token.BYTES)
+            throw new InvalidMetaInfoValueException(key);
+
+        return UTF8.decode(parser.getByteString()).toString();
+    }
+
+    /**
+     * Reads integer value.
+     */
+    private static long readLong(BencodeParser parser, String key) throws DecodingBencodingException, InvalidMetaInfoValueException {
+
+        if(parser.next() != BencodeParser.Token.INT)
+            throw new InvalidMetaInfoValueException(key);
+
+        return parser.getLong();
+    }
+
+    /**
+     * Loads all metainfo (.torrent) files in directory in parallel, on the common fork-join pool,
+     * which by default has one worker per core.
+     * @param directory directory
+     * @return mapping from each .torrent file to its metainfo, files which could not be loaded map to null
+     * @throws IOException if directory cannot be listed
+     */
+    public static HashMap<File, MetaInfo> loadDirectory(File directory) throws IOException {
+        return loadDirectory(directory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Loads all metainfo (.torrent) files in directory in parallel on given fork-join pool.
+     * @param directory directory
+     * @param pool pool
+     * @return mapping from each .torrent file to its metainfo, files which could not be loaded map to null
+     * @throws IOException if directory cannot be listed
+     */
+    public static HashMap<File, MetaInfo> loadDirectory(File directory, ForkJoinPool pool) throws IOException {
+
+        File[] torrentFiles = directory.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".torrent");
+            }
+        });
+
+        if(torrentFiles == null)
+            throw new IOException("Could not list " + directory);
+
+        return load(Arrays.asList(torrentFiles), pool);
+    }
+
+    /**
+     * Loads metainfo files in parallel on given fork-join pool.
+     * @param torrentFiles files
+     * @param pool pool
+     * @return mapping from each file to its metainfo, files which could not be loaded map to null
+     */
+    public static HashMap<File, MetaInfo> load(List<File> torrentFiles, ForkJoinPool pool) {
+        return load(torrentFiles, pool, null);
+    }
+
+    /**
+     * Loads metainfo files in parallel on given fork-join pool, recording why files could not be loaded.
+     * @param torrentFiles files
+     * @param pool pool
+     * @param failures if not null, receives the exception of each file which could not be loaded
+     * @return mapping from each file to its metainfo, files which could not be loaded map to null
+     */
+    public static HashMap<File, MetaInfo> load(List<File> torrentFiles, ForkJoinPool pool, HashMap<File, Exception> failures) {
+
+        ParallelFileProcessor<MetaInfo> loader = new ParallelFileProcessor<MetaInfo>() {
+
+            @Override
+            MetaInfo process(File file) throws IOException, DecodingBencodingException, MalformedMetaInfoException {
+                return load(file);
+            }
+        };
+
+        return loader.processAll(torrentFiles, pool, failures);
+    }
+}
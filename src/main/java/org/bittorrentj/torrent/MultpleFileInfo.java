@@ -4,10 +4,12 @@ package org.bittorrentj.torrent;
  * Created by bedeho on 03.09.2014.
  */
 
-import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.bencodej.BencodableByteString;
+import org.bittorrentj.bencodej.BencodableInteger;
+import org.bittorrentj.bencodej.BencodableList;
+import org.bittorrentj.bencodej.BencodeableDictionary;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 
 /**
  * For the case of the multi-file mode,
@@ -26,12 +28,17 @@ public class MultpleFileInfo extends Info {
      */
     private ArrayList<SingleFileAmongManyInfo> files;
 
-    public class SingleFileAmongManyInfo {
+    /**
+     * Byte length of all files, summed when constructed.
+     */
+    private long totalLength;
+
+    public static class SingleFileAmongManyInfo {
 
         /**
          * Length of the file in bytes (integer)
          */
-        public int length;
+        public long length;
 
         /**
          *  (optional) A 32-character hexadecimal string corresponding to the MD5 sum of the file. This is not used by
@@ -46,7 +53,8 @@ public class MultpleFileInfo extends Info {
          * For example, a the file "dir1/dir2/file.ext" would consist of three
          * string elements: "dir1", "dir2", and "file.ext".
          * This is encoded as a bencoded list of strings
-         * such as l4:dir14:dir28:file.exte
+         * such as l4:dir14:dir28:file.exte, here it is kept with the
+         * elements separated by '/'.
          */
         public String path;
 
@@ -56,7 +64,7 @@ public class MultpleFileInfo extends Info {
          * @param md5
          * @param path
          */
-        public SingleFileAmongManyInfo(int length, String md5, String path) {
+        public SingleFileAmongManyInfo(long length, String md5, String path) {
 
             this.length = length;
             this.md5 = md5;
@@ -67,22 +75,62 @@ public class MultpleFileInfo extends Info {
     /**
      * Constructor
      * @param pieceLength bytes per each piece
-     * @param pieces list of piece hashes
+     * @param pieces table of piece hashes
      * @param private_ privateness of torrent
      * @param name
      * @param files
      */
-    public MultpleFileInfo(int pieceLength, LinkedList<Hash> pieces, boolean private_, String name, ArrayList<SingleFileAmongManyInfo> files) {
+    public MultpleFileInfo(int pieceLength, PieceHashTable pieces, boolean private_, String name, ArrayList<SingleFileAmongManyInfo> files) {
 
         super(pieceLength, pieces, private_);
 
         this.name = name;
         this.files = files;
+
+        for(SingleFileAmongManyInfo f: files)
+            totalLength += f.length;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ArrayList<SingleFileAmongManyInfo> getFiles() {
+        return files;
+    }
+
+    @Override
+    public long getTotalLength() {
+        return totalLength;
     }
 
     @Override
-    public Info computeInfoHash() {
-            // Generate info hash
-            return null;
+    protected void addModeSpecificFields(BencodeableDictionary d) {
+
+        d.put(new BencodableByteString("name"), new BencodableByteString(name));
+
+        BencodableList fileList = new BencodableList();
+
+        for(SingleFileAmongManyInfo f: files) {
+
+            BencodeableDictionary fileDictionary = new BencodeableDictionary();
+
+            fileDictionary.put(new BencodableByteString("length"), new BencodableInteger(f.length));
+
+            if(f.md5 != null)
+                fileDictionary.put(new BencodableByteString("md5sum"), new BencodableByteString(f.md5));
+
+            // Path is stored with '/' separating its elements
+            BencodableList path = new BencodableList();
+
+            for(String element: f.path.split("/"))
+                path.add(new BencodableByteString(element));
+
+            fileDictionary.put(new BencodableByteString("path"), path);
+
+            fileList.add(fileDictionary);
+        }
+
+        d.put(new BencodableByteString("files"), fileList);
     }
 }
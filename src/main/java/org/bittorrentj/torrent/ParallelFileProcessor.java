@@ -0,0 +1,115 @@
+package org.bittorrentj.torrent;
+
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+import org.bittorrentj.torrent.exception.MalformedMetaInfoException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Processes many metainfo files in parallel on a fork-join pool,
+ * by splitting the list of files in half until ranges are small enough
+ * to be processed sequentially. Is used for bulk loading and hashing.
+ *
+ * A file which cannot be processed, including one on which processing throws a
+ * RuntimeException, has no result, and does not stop the other files from being processed.
+ * @param <T> result of processing one file
+ */
+abstract class ParallelFileProcessor<T> {
+
+    /**
+     * Number of files below which a range is not split further.
+     */
+    private final static int SPLIT_THRESHOLD = 16;
+
+    /**
+     * Processes a single file.
+     * @param file file
+     * @return result
+     * @throws IOException if file cannot be read
+     * @throws DecodingBencodingException if file is not a valid bencoding
+     * @throws MalformedMetaInfoException if bencoding does not have the structure of a metainfo file
+     */
+    abstract T process(File file) throws IOException, DecodingBencodingException, MalformedMetaInfoException;
+
+    /**
+     * Processes all files on given pool.
+     * @param files files
+     * @param pool pool
+     * @param failures if not null, receives the exception of each file which could not be processed
+     * @return mapping from each file to its result, files which could not be processed map to null
+     */
+    HashMap<File, T> processAll(List<File> files, ForkJoinPool pool, HashMap<File, Exception> failures) {
+
+        File[] fileArray = files.toArray(new File[files.size()]);
+        AtomicReferenceArray<T> results = new AtomicReferenceArray<T>(fileArray.length);
+        AtomicReferenceArray<Exception> exceptions = new AtomicReferenceArray<Exception>(fileArray.length);
+
+        pool.invoke(new RangeTask(fileArray, results, exceptions, 0, fileArray.length));
+
+        HashMap<File, T> map = new HashMap<File, T>();
+
+        for(int i = 0;i < fileArray.length;i++) {
+
+            map.put(fileArray[i], results.get(i));
+
+            if(failures != null && exceptions.get(i) != null)
+                failures.put(fileArray[i], exceptions.get(i));
+        }
+
+        return map;
+    }
+
+    /**
+     * Processes a range of files.
+     */
+    private class RangeTask extends RecursiveAction {
+
+        private File[] files;
+        private AtomicReferenceArray<T> results;
+        private AtomicReferenceArray<Exception> exceptions;
+        private int from;
+        private int to;
+
+        RangeTask(File[] files, AtomicReferenceArray<T> results, AtomicReferenceArray<Exception> exceptions, int from, int to) {
+
+            this.files = files;
+            this.results = results;
+            this.exceptions = exceptions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+
+            if(to - from <= SPLIT_THRESHOLD) {
+
+                for(int i = from;i < to;i++) {
+                    try {
+                        results.set(i, process(files[i]));
+                    } catch (IOException e) {
+                        exceptions.set(i, e);
+                    } catch (DecodingBencodingException e) {
+                        exceptions.set(i, e);
+                    } catch (MalformedMetaInfoException e) {
+                        exceptions.set(i, e);
+                    } catch (RuntimeException e) {
+                        // A bug hit by one file must not abort the whole run
+                        exceptions.set(i, e);
+                    }
+                }
+            } else {
+
+                int middle = (from + to) >>> 1;
+
+                invokeAll(new RangeTask(files, results, exceptions, from, middle), new RangeTask(files, results, exceptions, middle, to));
+            }
+        }
+    }
+}
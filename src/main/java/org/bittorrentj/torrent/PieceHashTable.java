@@ -0,0 +1,136 @@
+package org.bittorrentj.torrent;
+
+import org.bittorrentj.message.field.Hash;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Table of the 20-byte SHA1 hashes of all pieces in a torrent,
+ * packed back to back in a single array exactly as in the pieces field of
+ * the info dictionary. There are no per piece objects, and
+ * access by piece index is constant time.
+ */
+public class PieceHashTable {
+
+    /**
+     * Concatenation of all piece hashes, in piece index order.
+     */
+    private byte[] hashes;
+
+    /**
+     * Number of pieces in table.
+     */
+    private int numberOfPieces;
+
+    /**
+     * Constructor based on concatenation of piece hashes, the
+     * array is used directly, not copied.
+     * @param hashes concatenation of piece hashes
+     * @throws IllegalArgumentException if length of array is not a multiple of hash length
+     */
+    public PieceHashTable(byte[] hashes) {
+
+        if(hashes.length % Hash.getLength() != 0)
+            throw new IllegalArgumentException("Argument had incorrect length, expected multiple of " + Hash.getLength() + ", received " + hashes.length);
+
+        this.hashes = hashes;
+        this.numberOfPieces = hashes.length / Hash.getLength();
+    }
+
+    /**
+     * Constructor based on remaining bytes in buffer, which
+     * are copied, position of buffer is not altered.
+     * @param src concatenation of piece hashes
+     * @throws IllegalArgumentException if number of remaining bytes is not a multiple of hash length
+     */
+    public PieceHashTable(ByteBuffer src) {
+        this(copyRemaining(src));
+    }
+
+    /**
+     * Constructor based on list of piece hashes.
+     * @param pieces piece hashes, in piece index order
+     */
+    public PieceHashTable(List<Hash> pieces) {
+
+        this.hashes = new byte[pieces.size() * Hash.getLength()];
+        this.numberOfPieces = pieces.size();
+
+        int offset = 0;
+        for(Hash h: pieces) {
+            System.arraycopy(h.getRaw(), 0, hashes, offset, Hash.getLength());
+            offset += Hash.getLength();
+        }
+    }
+
+    private static byte[] copyRemaining(ByteBuffer src) {
+
+        byte[] b = new byte[src.remaining()];
+
+        src.duplicate().get(b);
+
+        return b;
+    }
+
+    /**
+     * Number of pieces in table.
+     * @return number of pieces
+     */
+    public int getNumberOfPieces() {
+        return numberOfPieces;
+    }
+
+    /**
+     * Checks whether given digest matches hash of piece.
+     * @param pieceIndex zero-based piece index
+     * @param digest 20-byte SHA1 digest
+     * @return true iff digest matches
+     * @throws IndexOutOfBoundsException if piece index is not in table
+     */
+    public boolean compare(int pieceIndex, byte[] digest) {
+
+        if(pieceIndex < 0 || pieceIndex >= numberOfPieces)
+            throw new IndexOutOfBoundsException();
+
+        if(digest.length != Hash.getLength())
+            return false;
+
+        int offset = pieceIndex * Hash.getLength();
+
+        for(int i = 0;i < Hash.getLength();i++) {
+            if(hashes[offset + i] != digest[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Hash of given piece as a fresh object,
+     * prefer compare() where possible.
+     * @param pieceIndex zero-based piece index
+     * @return hash
+     * @throws IndexOutOfBoundsException if piece index is not in table
+     */
+    public Hash getHash(int pieceIndex) {
+
+        if(pieceIndex < 0 || pieceIndex >= numberOfPieces)
+            throw new IndexOutOfBoundsException();
+
+        byte[] h = new byte[Hash.getLength()];
+
+        System.arraycopy(hashes, pieceIndex * Hash.getLength(), h, 0, Hash.getLength());
+
+        return new Hash(h);
+    }
+
+    /**
+     * Returns concatenation of all piece hashes,
+     * altering array has no side effects on this object.
+     * @return byte array
+     */
+    public byte[] getRaw() {
+        return hashes.clone();
+    }
+}
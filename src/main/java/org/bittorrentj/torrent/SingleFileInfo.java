@@ -4,9 +4,9 @@ package org.bittorrentj.torrent;
  * Created by bedeho on 03.09.2014.
  */
 
-import org.bittorrentj.message.field.Hash;
-
-import java.util.LinkedList;
+import org.bittorrentj.bencodej.BencodableByteString;
+import org.bittorrentj.bencodej.BencodableInteger;
+import org.bittorrentj.bencodej.BencodeableDictionary;
 
 /**
  * For the case of the single-file mode,
@@ -22,7 +22,7 @@ public class SingleFileInfo extends Info {
     /**
      * Length of the file in bytes (integer)
      */
-    private int length;
+    private long length;
 
     /**
      * (optional) A 32-character hexadecimal string corresponding
@@ -40,7 +40,7 @@ public class SingleFileInfo extends Info {
      * @param length length of file
      * @param md5sum MD5 sum of file (optional)
      */
-    public SingleFileInfo(int pieceLength, LinkedList<Hash> pieces, boolean private_, String name, int length, String md5sum) {
+    public SingleFileInfo(int pieceLength, PieceHashTable pieces, boolean private_, String name, long length, String md5sum) {
 
         super(pieceLength, pieces, private_);
 
@@ -65,17 +65,26 @@ public class SingleFileInfo extends Info {
         this.name = name;
     }
 
-    public int getLength() {
+    public long getLength() {
         return length;
     }
 
-    public void setLength(int length) {
+    public void setLength(long length) {
         this.length = length;
     }
 
     @Override
-    public Info computeInfoHash() {
-        // Generate info hash
-        return null;
+    public long getTotalLength() {
+        return length;
+    }
+
+    @Override
+    protected void addModeSpecificFields(BencodeableDictionary d) {
+
+        d.put(new BencodableByteString("name"), new BencodableByteString(name));
+        d.put(new BencodableByteString("length"), new BencodableInteger(length));
+
+        if(md5sum != null)
+            d.put(new BencodableByteString("md5sum"), new BencodableByteString(md5sum));
     }
 }
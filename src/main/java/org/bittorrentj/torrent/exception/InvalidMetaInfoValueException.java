@@ -0,0 +1,21 @@
+package org.bittorrentj.torrent.exception;
+
+/**
+ * Thrown when a value in a metainfo or info dictionary
+ * does not have the type or range required for its key.
+ */
+public class InvalidMetaInfoValueException extends MalformedMetaInfoException {
+
+    /**
+     * Key of invalid value
+     */
+    private String key;
+
+    public InvalidMetaInfoValueException(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,9 @@
+package org.bittorrentj.torrent.exception;
+
+/**
+ * Parent class for all exceptions thrown when a
+ * bencoding is well-formed, but does not have the structure
+ * of a metainfo (.torrent) file.
+ */
+public class MalformedMetaInfoException extends Exception {
+}
@@ -0,0 +1,21 @@
+package org.bittorrentj.torrent.exception;
+
+/**
+ * Thrown when a required key is not present in
+ * a metainfo or info dictionary.
+ */
+public class MissingMetaInfoKeyException extends MalformedMetaInfoException {
+
+    /**
+     * Key which was missing
+     */
+    private String key;
+
+    public MissingMetaInfoKeyException(String key) {
+        this.key = key;
+    }
+
+    public String getKey() {
+        return key;
+    }
+}
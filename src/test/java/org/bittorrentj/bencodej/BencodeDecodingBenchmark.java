@@ -0,0 +1,133 @@
+package org.bittorrentj.bencodej;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of decoding an extended handshake, and a metainfo file
+ * with many files, by decoding a full object graph, decoding lazily, and
+ * pulling tokens, as well as finding a single value without decoding.
+ *
+ * Run with main(), with the test classpath, e.g.
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/test-classes:target/classes:$(cat cp.txt) org.bittorrentj.bencodej.BencodeDecodingBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BencodeDecodingBenchmark {
+
+    /**
+     * Number of files of metainfo file.
+     */
+    private final static int NUMBER_OF_FILES = 10000;
+
+    @Param({"handshake", "metainfo"})
+    public String input;
+
+    private byte[] bencoding;
+
+    private static BencodableByteString key(String s) {
+        return new BencodableByteString(s);
+    }
+
+    private static byte[] handshake() {
+
+        BencodeableDictionary m = new BencodeableDictionary();
+
+        for(int i = 1;i < 8;i++)
+            m.put(key("ut_ext" + i), new BencodableInteger(i));
+
+        BencodeableDictionary d = new BencodeableDictionary();
+        d.put(key("m"), m);
+        d.put(key("v"), key("bittorrentj 0.1"));
+        d.put(key("reqq"), new BencodableInteger(250));
+        d.put(key("metadata_size"), new BencodableInteger(123456));
+
+        return d.bencode();
+    }
+
+    private static byte[] metainfo() {
+
+        BencodableList files = new BencodableList();
+
+        for(int i = 0;i < NUMBER_OF_FILES;i++) {
+
+            BencodableList path = new BencodableList();
+            path.add(key("directory" + i % 100));
+            path.add(key("file" + i + ".dat"));
+
+            BencodeableDictionary f = new BencodeableDictionary();
+            f.put(key("length"), new BencodableInteger(1000L * 1000 + i));
+            f.put(key("path"), path);
+
+            files.add(f);
+        }
+
+        BencodeableDictionary info = new BencodeableDictionary();
+        info.put(key("files"), files);
+        info.put(key("name"), key("torrent"));
+        info.put(key("piece length"), new BencodableInteger(1 << 20));
+        info.put(key("pieces"), new BencodableByteString(new byte[20 * NUMBER_OF_FILES]));
+
+        BencodeableDictionary d = new BencodeableDictionary();
+        d.put(key("announce"), key("http://tracker.example.org/announce"));
+        d.put(key("info"), info);
+
+        return d.bencode();
+    }
+
+    @Setup
+    public void setUp() {
+        bencoding = input.equals("handshake") ? handshake() : metainfo();
+    }
+
+    /**
+     * Decodes full object graph.
+     */
+    @Benchmark
+    public Bencodable decode() throws Exception {
+        return Bencodej.decode(ByteBuffer.wrap(bencoding));
+    }
+
+    /**
+     * Decodes lazily, which validates everything, but only builds the top level.
+     */
+    @Benchmark
+    public Bencodable decodeLazily() throws Exception {
+        return Bencodej.decodeLazily(ByteBuffer.wrap(bencoding));
+    }
+
+    /**
+     * Pulls all tokens, without building anything.
+     */
+    @Benchmark
+    public void pullTokens(Blackhole blackhole) throws Exception {
+
+        BencodeParser parser = new BencodeParser(ByteBuffer.wrap(bencoding));
+
+        while(!parser.isComplete())
+            blackhole.consume(parser.next());
+    }
+
+    /**
+     * Finds the bencoding of the last key of the top level dictionary.
+     */
+    @Benchmark
+    public ByteBuffer findValue() throws Exception {
+        return BencodeParser.findValue(ByteBuffer.wrap(bencoding), input.equals("handshake") ? "v".getBytes() : "info".getBytes());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BencodeDecodingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,135 @@
+package org.bittorrentj.bencodej;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Tests of encoding Bencodable types with encodedLength() and encodeTo(),
+ * which bencode() and concatenateBencodingsIntoBencoding() are built on.
+ */
+public class BencodeEncodingTest extends TestCase {
+
+    /**
+     * Checks that object is sized and encoded as expected, also when it is encoded
+     * into the middle of a buffer, which is written only where the bencoding goes.
+     */
+    private static void assertEncoding(String expected, Bencodable o) {
+
+        assertEquals(expected, expected.length(), o.encodedLength());
+        assertEquals(expected, new String(o.bencode()));
+
+        ByteBuffer dst = ByteBuffer.allocate(3 + expected.length() + 3);
+        Arrays.fill(dst.array(), (byte)'#');
+        dst.position(3);
+
+        o.encodeTo(dst);
+
+        assertEquals(3 + expected.length(), dst.position());
+        assertEquals("###" + expected + "###", new String(dst.array()));
+    }
+
+    public void testIntegers() {
+
+        assertEncoding("i0e", new BencodableInteger(0));
+        assertEncoding("i9e", new BencodableInteger(9));
+        assertEncoding("i10e", new BencodableInteger(10));
+        assertEncoding("i-1e", new BencodableInteger(-1));
+        assertEncoding("i-10e", new BencodableInteger(-10));
+        assertEncoding("i1000000000000e", new BencodableInteger(1000000000000L));
+        assertEncoding("i9223372036854775807e", new BencodableInteger(Long.MAX_VALUE));
+        assertEncoding("i-9223372036854775808e", new BencodableInteger(Long.MIN_VALUE));
+    }
+
+    public void testByteStrings() {
+
+        assertEncoding("0:", new BencodableByteString(""));
+        assertEncoding("4:spam", new BencodableByteString("spam"));
+        assertEncoding("10:0123456789", new BencodableByteString("0123456789"));
+
+        // Bytes are copied as they are
+        byte[] raw = {0, (byte)0xff, 'e'};
+        ByteBuffer b = ByteBuffer.wrap(new BencodableByteString(raw).bencode());
+
+        assertEquals('3', b.get());
+        assertEquals(':', b.get());
+        assertEquals(ByteBuffer.wrap(raw), b);
+    }
+
+    public void testListsAndDictionaries() {
+
+        assertEncoding("le", new BencodableList());
+        assertEncoding("de", new BencodeableDictionary());
+
+        BencodableList list = new BencodableList();
+        list.add(new BencodableInteger(-3));
+        list.add(new BencodableByteString("a"));
+        list.add(new BencodableList());
+
+        // Keys are encoded in lexicographical order, whatever order they were put in
+        BencodeableDictionary d = new BencodeableDictionary();
+        d.put(new BencodableByteString("zz"), new BencodableInteger(1));
+        d.put(new BencodableByteString("b"), list);
+        d.put(new BencodableByteString("ab"), new BencodeableDictionary());
+        d.put(new BencodableByteString("a"), new BencodableByteString("x"));
+
+        assertEncoding("d1:a1:x2:abde1:bli-3e1:alee2:zzi1ee", d);
+    }
+
+    public void testDeeplyNestedLists() {
+
+        Bencodable o = new BencodableInteger(7);
+
+        for(int i = 0;i < 1000;i++) {
+
+            BencodableList l = new BencodableList();
+            l.add(o);
+            o = l;
+        }
+
+        StringBuilder expected = new StringBuilder();
+
+        for(int i = 0;i < 1000;i++)
+            expected.append('l');
+
+        expected.append("i7e");
+
+        for(int i = 0;i < 1000;i++)
+            expected.append('e');
+
+        assertEncoding(expected.toString(), o);
+    }
+
+    public void testConcatenatedBencodings() {
+
+        LinkedList<Bencodable> objects = new LinkedList<Bencodable>();
+        objects.add(new BencodableByteString("spam"));
+        objects.add(new BencodableInteger(42));
+
+        assertEquals("l4:spami42ee", new String(Bencodej.concatenateBencodingsIntoBencoding((byte)'l', objects)));
+        assertEquals("le", new String(Bencodej.concatenateBencodingsIntoBencoding((byte)'l', new LinkedList<Bencodable>())));
+    }
+
+    public void testEncodingIsDecodedAgain() throws DecodingBencodingException {
+
+        BencodableList list = new BencodableList();
+        list.add(new BencodableInteger(-Long.MAX_VALUE));
+        list.add(new BencodableInteger(Long.MAX_VALUE));
+        list.add(new BencodableByteString(new byte[300]));
+
+        BencodeableDictionary d = new BencodeableDictionary();
+        d.put(new BencodableByteString("list"), list);
+
+        ByteBuffer dst = ByteBuffer.allocate(d.encodedLength());
+        d.encodeTo(dst);
+
+        assertFalse(dst.hasRemaining());
+
+        dst.flip();
+
+        assertEquals(d, Bencodej.decode(dst));
+    }
+}
@@ -0,0 +1,197 @@
+package org.bittorrentj.bencodej;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.exception.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests of BencodeParser, and of decoding Bencodable types through it.
+ */
+public class BencodeParserTest extends TestCase {
+
+    private static BencodeParser parser(String bencoding) {
+        return new BencodeParser(ByteBuffer.wrap(bencoding.getBytes()));
+    }
+
+    /**
+     * Checks that parsing bencoding fails with given exception.
+     */
+    private static void assertMalformed(String bencoding, Class<? extends DecodingBencodingException> exception) {
+
+        try {
+            BencodeParser p = parser(bencoding);
+
+            while(!p.isComplete())
+                p.next();
+
+            fail("accepted " + bencoding);
+        } catch(DecodingBencodingException e) {
+            assertEquals(bencoding, exception, e.getClass());
+        }
+    }
+
+    public void testTokens() throws DecodingBencodingException {
+
+        BencodeParser p = parser("d3:bari-42e3:fool4:spami0eee");
+
+        assertEquals(BencodeParser.Token.START_DICT, p.next());
+        assertEquals(1, p.getDepth());
+
+        assertEquals(BencodeParser.Token.KEY, p.next());
+        assertTrue(p.keyEquals("bar".getBytes()));
+
+        assertEquals(BencodeParser.Token.INT, p.next());
+        assertEquals(-42, p.getLong());
+
+        assertEquals(BencodeParser.Token.KEY, p.next());
+        assertTrue(p.keyEquals("foo".getBytes()));
+
+        assertEquals(BencodeParser.Token.START_LIST, p.next());
+        assertEquals(2, p.getDepth());
+
+        assertEquals(BencodeParser.Token.BYTES, p.next());
+        assertTrue(Arrays.equals("spam".getBytes(), p.copyByteString()));
+
+        assertEquals(BencodeParser.Token.INT, p.next());
+        assertEquals(0, p.getLong());
+
+        assertEquals(BencodeParser.Token.END, p.next());
+        assertFalse(p.isComplete());
+
+        assertEquals(BencodeParser.Token.END, p.next());
+        assertTrue(p.isComplete());
+        assertEquals(0, p.getDepth());
+    }
+
+    public void testLongIntegers() throws DecodingBencodingException {
+
+        BencodeParser p = parser("i9223372036854775807e");
+
+        assertEquals(BencodeParser.Token.INT, p.next());
+        assertEquals(Long.MAX_VALUE, p.getLong());
+
+        assertMalformed("i9223372036854775808e", InvalidIntegerDigits.class);
+    }
+
+    public void testByteStringIsSliceOfSource() throws DecodingBencodingException {
+
+        ByteBuffer src = ByteBuffer.wrap("l5:helloe".getBytes());
+        BencodeParser p = new BencodeParser(src);
+
+        p.next();
+        p.next();
+
+        assertEquals(3, p.getByteStringOffset());
+        assertEquals(5, p.getByteStringLength());
+
+        ByteBuffer slice = p.getByteString();
+
+        assertEquals(0, slice.position());
+        assertEquals(5, slice.limit());
+
+        // Content is shared, not copied
+        src.put(3, (byte)'j');
+        assertEquals('j', slice.get(0));
+    }
+
+    public void testPositionFollowsTokens() throws DecodingBencodingException {
+
+        ByteBuffer src = ByteBuffer.wrap("xxi7e4:spam".getBytes());
+        src.position(2);
+
+        BencodeParser p = new BencodeParser(src);
+
+        p.next();
+        assertEquals(5, src.position());
+        assertTrue(p.isComplete());
+
+        try {
+            p.next();
+            fail();
+        } catch(IllegalStateException e) {
+        }
+    }
+
+    public void testSkipValue() throws DecodingBencodingException {
+
+        BencodeParser p = parser("d1:ad1:bli1ei2eee1:ci3ee");
+
+        p.next();
+        p.next();
+        p.skipValue(p.next());
+
+        assertEquals(BencodeParser.Token.KEY, p.next());
+        assertTrue(p.keyEquals("c".getBytes()));
+    }
+
+    public void testFindValue() throws DecodingBencodingException {
+
+        ByteBuffer src = ByteBuffer.wrap("d1:ali1ee1:bi2ee".getBytes());
+
+        ByteBuffer value = BencodeParser.findValue(src, "a".getBytes());
+
+        assertEquals("li1ee", new String(Bencodej.bencode(Bencodej.decode(value))));
+        assertNull(BencodeParser.findValue(src, "z".getBytes()));
+        assertEquals(0, src.position());
+    }
+
+    public void testMalformed() {
+
+        assertMalformed("i-0e", NegativeZeroException.class);
+        assertMalformed("ie", EmptyIntegerException.class);
+        assertMalformed("i1x2e", InvalidIntegerDigits.class);
+        assertMalformed("i12", UnexpectedEndOfBencodingException.class);
+        assertMalformed("3:ab", UnexpectedEndOfBencodingException.class);
+        assertMalformed("3x:abc", InvalidLengthFieldException.class);
+        assertMalformed("l", UnexpectedEndOfBencodingException.class);
+        assertMalformed("e", InvalidDelimiterException.class);
+        assertMalformed("x", InvalidDelimiterException.class);
+        assertMalformed("d:e", EmptyLengthFieldException.class);
+        assertMalformed("di1ei2ee", InvalidDelimiterException.class);
+        assertMalformed("d1:ae", InvalidDelimiterException.class);
+        assertMalformed("d1:b1:a1:a1:be", NonLexicographicalKeyOrderException.class);
+    }
+
+    public void testDecodeRoundTrip() throws DecodingBencodingException {
+
+        BencodeableDictionary m = new BencodeableDictionary();
+        m.put(new BencodableByteString("ut_metadata"), new BencodableInteger(2));
+        m.put(new BencodableByteString("ut_pex"), new BencodableInteger(1));
+
+        BencodableList list = new BencodableList();
+        list.add(new BencodableByteString(new byte[] {0, 1, (byte)0xff}));
+        list.add(new BencodableInteger(-1L << 40));
+
+        BencodeableDictionary d = new BencodeableDictionary();
+        d.put(new BencodableByteString("m"), m);
+        d.put(new BencodableByteString("l"), list);
+        d.put(new BencodableByteString("v"), new BencodableByteString("bittorrentj"));
+
+        byte[] bencoding = d.bencode();
+
+        // Heap and direct sources decode alike
+        ByteBuffer direct = ByteBuffer.allocateDirect(bencoding.length);
+        direct.put(bencoding);
+        direct.flip();
+
+        for(ByteBuffer src: new ByteBuffer[] {ByteBuffer.wrap(bencoding), direct}) {
+
+            Bencodable decoded = Bencodej.decode(src);
+
+            assertEquals(d, decoded);
+            assertEquals(bencoding.length, src.position());
+            assertTrue(Arrays.equals(bencoding, decoded.bencode()));
+        }
+    }
+
+    public void testLazyDecodeRoundTrip() throws DecodingBencodingException {
+
+        byte[] bencoding = "d1:ali1ei2ee1:bd1:ci3eee".getBytes();
+
+        Bencodable decoded = Bencodej.decodeLazily(ByteBuffer.wrap(bencoding));
+
+        assertTrue(Arrays.equals(bencoding, decoded.bencode()));
+    }
+}
@@ -0,0 +1,110 @@
+package org.bittorrentj.bencodej;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.exception.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests that BencodeParser enforces DecodingLimits.
+ */
+public class DecodingLimitsTest extends TestCase {
+
+    /**
+     * Checks that decoding bencoding with given limits fails with given exception.
+     */
+    private static void assertRejected(String bencoding, DecodingLimits limits, Class<? extends DecodingBencodingException> exception) {
+
+        try {
+            Bencodej.decode(ByteBuffer.wrap(bencoding.getBytes()), limits);
+            fail("accepted " + bencoding);
+        } catch(DecodingBencodingException e) {
+            assertEquals(bencoding, exception, e.getClass());
+        }
+    }
+
+    private static void assertAccepted(String bencoding, DecodingLimits limits) throws DecodingBencodingException {
+        Bencodej.decode(ByteBuffer.wrap(bencoding.getBytes()), limits);
+    }
+
+    public void testByteStringLength() throws DecodingBencodingException {
+
+        DecodingLimits limits = new DecodingLimits(100, 4, 10, 10);
+
+        assertAccepted("4:spam", limits);
+        assertRejected("5:spams", limits, LengthFieldToGreatException.class);
+
+        // Rejected from the length field, before content is looked for
+        assertRejected("99999999999999999999:", limits, LengthFieldToGreatException.class);
+    }
+
+    public void testTotalBytes() throws DecodingBencodingException {
+
+        DecodingLimits limits = new DecodingLimits(11, 100, 10, 100);
+
+        assertAccepted("l1:a1:b1:ce", limits);
+        assertRejected("l1:a1:b1:c1:de", limits, BencodingTooLongException.class);
+        assertRejected("i12345678901e", limits, BencodingTooLongException.class);
+    }
+
+    public void testDepth() throws DecodingBencodingException {
+
+        DecodingLimits limits = new DecodingLimits(100, 100, 2, 100);
+
+        assertAccepted("llee", limits);
+        assertRejected("llleee", limits, NestingTooDeepException.class);
+        assertRejected("d1:ad1:bd1:ci1eeee", limits, NestingTooDeepException.class);
+    }
+
+    public void testValues() throws DecodingBencodingException {
+
+        DecodingLimits limits = new DecodingLimits(100, 100, 10, 3);
+
+        // Keys are not counted
+        assertAccepted("d1:ai1e1:bi2ee", limits);
+        assertAccepted("li1ei2ee", limits);
+        assertRejected("li1ei2ei3ee", limits, TooManyValuesException.class);
+    }
+
+    public void testDeepNestingIsRejectedWhenTrusted() {
+
+        StringBuilder b = new StringBuilder();
+
+        for(int i = 0;i <= DecodingLimits.TRUSTED.getMaxDepth();i++)
+            b.append('l');
+
+        for(int i = 0;i <= DecodingLimits.TRUSTED.getMaxDepth();i++)
+            b.append('e');
+
+        assertRejected(b.toString(), DecodingLimits.TRUSTED, NestingTooDeepException.class);
+    }
+
+    public void testUntrustedLimitsAreSmall() {
+
+        DecodingLimits limits = DecodingLimits.UNTRUSTED;
+
+        assertTrue(limits.getMaxByteStringLength() <= limits.getMaxTotalBytes());
+        assertTrue(limits.getMaxDepth() < DecodingLimits.TRUSTED.getMaxDepth());
+    }
+
+    public void testNegativeLimit() {
+
+        try {
+            new DecodingLimits(-1, 0, 0, 0);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testLazyDecodingEnforcesLimits() {
+
+        DecodingLimits limits = new DecodingLimits(100, 100, 10, 2);
+
+        try {
+            Bencodej.decodeLazily(ByteBuffer.wrap("li1ei2ee".getBytes()), limits);
+            fail();
+        } catch(DecodingBencodingException e) {
+            assertEquals(TooManyValuesException.class, e.getClass());
+        }
+    }
+}
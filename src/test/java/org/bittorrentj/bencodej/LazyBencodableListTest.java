@@ -0,0 +1,70 @@
+package org.bittorrentj.bencodej;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests of LazyBencodableList, which decodes elements on access.
+ */
+public class LazyBencodableListTest extends TestCase {
+
+    private final static String BENCODING = "li1e3:fooli2eli3eeed1:ai4eee";
+
+    private static LazyBencodableList list(String bencoding) throws DecodingBencodingException {
+        return new LazyBencodableList(ByteBuffer.wrap(bencoding.getBytes()));
+    }
+
+    private static String string(ByteBuffer b) {
+
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+
+        return new String(bytes);
+    }
+
+    public void testGet() throws DecodingBencodingException {
+
+        LazyBencodableList l = list(BENCODING);
+
+        assertEquals(4, l.size());
+        assertEquals(new BencodableInteger(1), l.get(0));
+        assertEquals(new BencodableByteString("foo"), l.get(1));
+        assertSame(l.get(1), l.get(1));
+
+        try {
+            l.get(4);
+            fail("Index past list was accepted");
+        } catch(IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    public void testNestedContainers() throws DecodingBencodingException {
+
+        LazyBencodableList l = list(BENCODING);
+
+        LazyBencodableList nested = (LazyBencodableList) l.get(2);
+
+        assertEquals("li2eli3eee", string(l.getRawElement(2)));
+        assertEquals(2, nested.size());
+        assertEquals(new BencodableInteger(3), ((LazyBencodableList) nested.get(1)).get(0));
+
+        LazyBencodeableDictionary d = (LazyBencodeableDictionary) l.get(3);
+
+        assertEquals(new BencodableInteger(4), d.get("a"));
+        assertNull(d.get("b"));
+    }
+
+    public void testEncodingIsOriginalBencoding() throws DecodingBencodingException {
+
+        LazyBencodableList l = list(BENCODING);
+
+        assertEquals(BENCODING, string(l.getRaw()));
+        assertTrue(Arrays.equals(BENCODING.getBytes(), l.bencode()));
+        assertTrue(Arrays.equals(BENCODING.getBytes(), l.toList().bencode()));
+        assertEquals(0, list("le").size());
+    }
+}
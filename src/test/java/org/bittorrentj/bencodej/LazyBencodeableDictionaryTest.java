@@ -0,0 +1,137 @@
+package org.bittorrentj.bencodej;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests of looking up keys in LazyBencodeableDictionary, decoding
+ * values on access, and of raw bencodings of values and nested containers.
+ */
+public class LazyBencodeableDictionaryTest extends TestCase {
+
+    private final static String BENCODING = "d1:ai1e3:bar3:baz3:fool1:xd1:yi2eee4:spamd3:egg3:hame1:zi-7ee";
+
+    private static LazyBencodeableDictionary dictionary(String bencoding) throws DecodingBencodingException {
+        return new LazyBencodeableDictionary(ByteBuffer.wrap(bencoding.getBytes()));
+    }
+
+    private static String string(ByteBuffer b) {
+
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+
+        return new String(bytes);
+    }
+
+    public void testIndexOf() throws DecodingBencodingException {
+
+        LazyBencodeableDictionary d = dictionary(BENCODING);
+
+        assertEquals(5, d.size());
+        assertEquals(0, d.indexOf("a"));
+        assertEquals(1, d.indexOf("bar"));
+        assertEquals(2, d.indexOf("foo"));
+        assertEquals(3, d.indexOf("spam"));
+        assertEquals(4, d.indexOf("z"));
+        assertEquals(2, d.indexOf("foo".getBytes()));
+        assertEquals(new BencodableByteString("spam"), d.getKey(3));
+    }
+
+    public void testMissingKeys() throws DecodingBencodingException {
+
+        LazyBencodeableDictionary d = dictionary(BENCODING);
+
+        // Before first, between, prefix of and after last key
+        for(String key: new String[] {"", "0", "b", "ba", "barn", "sp", "y", "zz"}) {
+
+            assertEquals(key, -1, d.indexOf(key));
+            assertFalse(key, d.containsKey(key));
+            assertNull(key, d.get(key));
+            assertNull(key, d.getRawValue(key));
+        }
+
+        assertNull(dictionary("de").get("a"));
+        assertEquals(0, dictionary("de").size());
+    }
+
+    public void testGet() throws DecodingBencodingException {
+
+        LazyBencodeableDictionary d = dictionary(BENCODING);
+
+        assertEquals(new BencodableInteger(1), d.get("a"));
+        assertEquals(new BencodableByteString("baz"), d.get(new BencodableByteString("bar")));
+        assertEquals(new BencodableInteger(-7), d.getValue(4));
+
+        // Values are decoded once
+        assertSame(d.get("bar"), d.get("bar"));
+    }
+
+    public void testGetRawValue() throws DecodingBencodingException {
+
+        LazyBencodeableDictionary d = dictionary(BENCODING);
+
+        assertEquals("i1e", string(d.getRawValue("a")));
+        assertEquals("3:baz", string(d.getRawValue("bar")));
+        assertEquals("l1:xd1:yi2eee", string(d.getRawValue("foo")));
+        assertEquals("d3:egg3:hame", string(d.getRawValue(3)));
+        assertEquals(BENCODING, string(d.getRaw()));
+    }
+
+    public void testNestedContainersAreLazy() throws DecodingBencodingException {
+
+        LazyBencodeableDictionary d = dictionary(BENCODING);
+
+        LazyBencodableList foo = (LazyBencodableList) d.get("foo");
+
+        assertEquals(2, foo.size());
+        assertEquals(new BencodableByteString("x"), foo.get(0));
+        assertEquals("d1:yi2ee", string(foo.getRawElement(1)));
+
+        LazyBencodeableDictionary y = (LazyBencodeableDictionary) foo.get(1);
+
+        assertEquals(new BencodableInteger(2), y.get("y"));
+
+        LazyBencodeableDictionary spam = (LazyBencodeableDictionary) d.get("spam");
+
+        assertEquals(new BencodableByteString("ham"), spam.get("egg"));
+        assertNull(spam.get("ham"));
+    }
+
+    public void testSourcePositionIsAtEnd() throws DecodingBencodingException {
+
+        ByteBuffer src = ByteBuffer.wrap((BENCODING + "i5e").getBytes());
+
+        new LazyBencodeableDictionary(src);
+
+        assertEquals(BENCODING.length(), src.position());
+    }
+
+    public void testEncodingIsOriginalBencoding() throws DecodingBencodingException {
+
+        LazyBencodeableDictionary d = dictionary(BENCODING);
+
+        assertEquals(BENCODING.length(), d.encodedLength());
+        assertTrue(Arrays.equals(BENCODING.getBytes(), d.bencode()));
+
+        BencodeableDictionary decoded = d.toDictionary();
+
+        assertEquals(5, decoded.size());
+        assertTrue(Arrays.equals(BENCODING.getBytes(), decoded.bencode()));
+    }
+
+    public void testMalformedBencodingIsRejected() {
+
+        for(String bencoding: new String[] {"d1:ai1e", "d1:a", "d1:bi1e1:ai2ee", "li1ee"}) {
+
+            try {
+                dictionary(bencoding);
+                fail("accepted " + bencoding);
+            } catch(DecodingBencodingException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.disk.event.DiskEvent;
+import org.bittorrentj.disk.event.DiskEventHandler;
+import org.bittorrentj.disk.event.DiskJobCompletedEvent;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handler collecting jobs completed by a DiskJobQueue, so a test
+ * thread can take them in the order they complete.
+ */
+class CompletedJobs implements DiskEventHandler {
+
+    private LinkedBlockingQueue<DiskJob> jobs = new LinkedBlockingQueue<DiskJob>();
+
+    @Override
+    public void diskEventHandler(DiskEvent e) {
+        jobs.add(((DiskJobCompletedEvent)e).getJob());
+    }
+
+    /**
+     * Waits for next completed job.
+     * @return job
+     * @throws IllegalStateException if no job completes within ten seconds
+     */
+    DiskJob take() throws InterruptedException {
+
+        DiskJob job = jobs.poll(10, TimeUnit.SECONDS);
+
+        if(job == null)
+            throw new IllegalStateException("No job completed");
+
+        return job;
+    }
+
+    boolean isEmpty() {
+        return jobs.isEmpty();
+    }
+}
@@ -0,0 +1,361 @@
+package org.bittorrentj.disk;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of DiskJobQueue: jobs with the same ordering key are performed in the order
+ * submitted, while others proceed in parallel, barriers wait for all workers, failures
+ * are recorded in jobs, and queued bytes make the queue full until jobs are performed.
+ */
+public class DiskJobQueueTest extends TestCase {
+
+    private DiskJobQueue queue;
+
+    private CompletedJobs completed;
+
+    /**
+     * Sequence number given to each job as it is performed.
+     */
+    private AtomicInteger sequence;
+
+    @Override
+    protected void setUp() {
+        completed = new CompletedJobs();
+        sequence = new AtomicInteger(0);
+    }
+
+    @Override
+    protected void tearDown() {
+
+        if(queue != null)
+            queue.shutdown();
+    }
+
+    /**
+     * Job which notes when it is performed, and may wait for a latch first, or fail.
+     * Has no storage, so its key alone picks its worker.
+     */
+    private class TestJob extends DiskJob {
+
+        private int key;
+        private boolean barrier;
+        private long queuedBytes;
+
+        /**
+         * Latch waited for before job is performed, or null.
+         */
+        private CountDownLatch gate;
+
+        /**
+         * Exception thrown when performed, or null.
+         */
+        private Exception failure;
+
+        /**
+         * Sequence number of job when performed, or -1.
+         */
+        private volatile int performedAt;
+
+        TestJob(int key) {
+            super(null);
+
+            this.key = key;
+            this.performedAt = -1;
+        }
+
+        @Override
+        void perform() throws IOException {
+
+            if(gate != null) {
+                try {
+                    gate.await();
+                } catch(InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+
+            performedAt = sequence.getAndIncrement();
+
+            if(failure instanceof IOException)
+                throw (IOException)failure;
+            else if(failure instanceof RuntimeException)
+                throw (RuntimeException)failure;
+        }
+
+        @Override
+        int getOrderingKey() {
+            return key;
+        }
+
+        @Override
+        boolean isBarrier() {
+            return barrier;
+        }
+
+        @Override
+        long getQueuedBytes() {
+            return queuedBytes;
+        }
+    }
+
+    private TestJob barrier() {
+
+        TestJob job = new TestJob(0);
+        job.barrier = true;
+
+        return job;
+    }
+
+    /**
+     * Waits for given number of completed jobs.
+     */
+    private List<DiskJob> take(int numberOfJobs) throws InterruptedException {
+
+        List<DiskJob> jobs = new ArrayList<DiskJob>();
+
+        for(int i = 0;i < numberOfJobs;i++)
+            jobs.add(completed.take());
+
+        return jobs;
+    }
+
+    public void testJobsWithSameKeyAreOrdered() throws Exception {
+
+        queue = new DiskJobQueue(4, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+
+        List<TestJob> jobs = new ArrayList<TestJob>();
+
+        for(int i = 0;i < 500;i++) {
+
+            TestJob job = new TestJob(i % 7);
+
+            jobs.add(job);
+            queue.submit(job, completed);
+        }
+
+        take(jobs.size());
+
+        // Each job is performed after all jobs submitted before it with the same key
+        for(int i = 0;i < jobs.size();i++)
+            for(int j = i + 7;j < jobs.size();j += 7)
+                assertTrue(jobs.get(i).performedAt < jobs.get(j).performedAt);
+    }
+
+    public void testJobsWithOtherKeysAreNotHeldUp() throws Exception {
+
+        queue = new DiskJobQueue(2, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+
+        CountDownLatch gate = new CountDownLatch(1);
+
+        TestJob slow = new TestJob(0);
+        slow.gate = gate;
+
+        TestJob sameKey = new TestJob(0);
+        TestJob otherKey = new TestJob(1);
+
+        queue.submit(slow, completed);
+        queue.submit(sameKey, completed);
+        queue.submit(otherKey, completed);
+
+        // Job on other worker completes while first worker waits
+        assertSame(otherKey, completed.take());
+        assertEquals(-1, sameKey.performedAt);
+
+        gate.countDown();
+
+        assertEquals(Arrays.asList(slow, sameKey), take(2));
+    }
+
+    public void testFailuresAreRecorded() throws Exception {
+
+        queue = new DiskJobQueue(1, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+
+        IOException ioException = new IOException();
+
+        TestJob io = new TestJob(0);
+        io.failure = ioException;
+
+        TestJob runtime = new TestJob(0);
+        runtime.failure = new IllegalStateException();
+
+        TestJob next = new TestJob(0);
+
+        queue.submit(io, completed);
+        queue.submit(runtime, completed);
+        queue.submit(next, completed);
+
+        assertEquals(Arrays.asList(io, runtime, next), take(3));
+
+        assertFalse(io.isSuccessful());
+        assertSame(ioException, io.getException());
+
+        // Unchecked exception does not stop worker, and is wrapped
+        assertFalse(runtime.isSuccessful());
+        assertSame(runtime.failure, runtime.getException().getCause());
+
+        assertTrue(next.isSuccessful());
+        assertNull(next.getException());
+    }
+
+    public void testBarrierWaitsForAllWorkers() throws Exception {
+
+        queue = new DiskJobQueue(3, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+
+        CountDownLatch gate = new CountDownLatch(1);
+
+        List<TestJob> before = new ArrayList<TestJob>();
+        List<TestJob> after = new ArrayList<TestJob>();
+
+        for(int key = 0;key < 3;key++) {
+            before.add(new TestJob(key));
+            after.add(new TestJob(key));
+        }
+
+        // Worker of first key is held up
+        before.get(0).gate = gate;
+
+        TestJob barrier = barrier();
+
+        for(TestJob job: before)
+            queue.submit(job, completed);
+
+        queue.submit(barrier, completed);
+
+        for(TestJob job: after)
+            queue.submit(job, completed);
+
+        // Other workers are done with jobs before barrier, but neither barrier, nor jobs after it, are performed
+        take(2);
+        Thread.sleep(50);
+
+        assertTrue(completed.isEmpty());
+        assertEquals(-1, barrier.performedAt);
+
+        gate.countDown();
+
+        take(1 + 1 + after.size());
+
+        for(TestJob job: before)
+            assertTrue(job.performedAt < barrier.performedAt);
+
+        for(TestJob job: after)
+            assertTrue(barrier.performedAt < job.performedAt);
+    }
+
+    public void testBarriersSubmittedAtTheSameTimeComplete() throws Exception {
+
+        queue = new DiskJobQueue(4, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+
+        final int numberOfThreads = 4;
+        final int jobsPerThread = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final List<TestJob> barriers = Collections.synchronizedList(new ArrayList<TestJob>());
+        List<Thread> threads = new ArrayList<Thread>();
+
+        // Each thread submits barriers between jobs, as swarms flushing at the same time would
+        for(int t = 0;t < numberOfThreads;t++) {
+
+            final int key = t;
+
+            Thread thread = new Thread() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+
+                    for(int i = 0;i < jobsPerThread;i++) {
+
+                        if(i % 4 == 0) {
+
+                            TestJob barrier = barrier();
+
+                            barriers.add(barrier);
+                            queue.submit(barrier, completed);
+
+                        } else
+                            queue.submit(new TestJob(key + i), completed);
+                    }
+                }
+            };
+
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for(Thread thread: threads)
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+
+        // A deadlock of workers waiting on different barriers leaves jobs uncompleted
+        take(numberOfThreads * jobsPerThread);
+
+        for(TestJob barrier: barriers)
+            assertTrue(barrier.isSuccessful());
+    }
+
+    public void testQueuedBytesMakeQueueFull() throws Exception {
+
+        queue = new DiskJobQueue(1, 100);
+
+        CountDownLatch gate = new CountDownLatch(1);
+
+        List<TestJob> jobs = new ArrayList<TestJob>();
+
+        for(int i = 0;i < 3;i++) {
+
+            TestJob job = new TestJob(0);
+            job.queuedBytes = 40;
+
+            jobs.add(job);
+        }
+
+        jobs.get(0).gate = gate;
+
+        // Bytes count from submission until job is performed
+        queue.submit(jobs.get(0), completed);
+        queue.submit(jobs.get(1), completed);
+
+        assertEquals(80, queue.getQueuedBytes());
+        assertFalse(queue.isFull());
+
+        queue.submit(jobs.get(2), completed);
+
+        assertEquals(120, queue.getQueuedBytes());
+        assertTrue(queue.isFull());
+
+        gate.countDown();
+
+        // Bytes of a job are released before its completion is posted
+        assertSame(jobs.get(0), completed.take());
+        assertTrue(queue.getQueuedBytes() <= 80);
+
+        take(2);
+
+        assertEquals(0, queue.getQueuedBytes());
+        assertFalse(queue.isFull());
+    }
+
+    public void testWrittenBlockIsQueuedBytes() {
+
+        WriteBlockJob job = new WriteBlockJob(null, 0, 0, new ByteBuffer[] {ByteBuffer.allocate(16), ByteBuffer.allocate(5)});
+
+        assertEquals(21, job.getQueuedBytes());
+    }
+}
@@ -0,0 +1,350 @@
+package org.bittorrentj.disk;
+
+import junit.framework.TestCase;
+import org.bittorrentj.torrent.Info;
+import org.bittorrentj.torrent.InfoHasher;
+import org.bittorrentj.torrent.MultpleFileInfo;
+import org.bittorrentj.torrent.PieceHashTable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests of DiskManager, with pieces spanning several files, including empty files.
+ */
+public class DiskManagerTest extends TestCase {
+
+    private final static int PIECE_LENGTH = 16 * 1024;
+
+    /**
+     * Files of torrent, so that pieces start and end within files, span
+     * several files, and skip an empty file.
+     */
+    private final static long[] FILE_LENGTHS = {5, 0, 40000, 3, 70000, 1};
+
+    private File directory;
+
+    private Info info;
+
+    private DiskManager diskManager;
+
+    /**
+     * Content of whole torrent.
+     */
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        directory = TestStorage.createDirectory();
+        info = TestStorage.multipleFileInfo(PIECE_LENGTH, FILE_LENGTHS);
+        diskManager = new DiskManager(info, directory);
+        content = TestStorage.content((int)info.getTotalLength(), 1);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        diskManager.close();
+        TestStorage.delete(directory);
+    }
+
+    private ByteBuffer piece(int index) {
+        return ByteBuffer.wrap(content, index * PIECE_LENGTH, info.getPieceLength(index));
+    }
+
+    private void writeAll() throws IOException {
+
+        for(int i = 0;i < diskManager.getNumberOfPieces();i++)
+            diskManager.writePiece(i, piece(i));
+    }
+
+    public void testPieceSpans() {
+
+        assertEquals(7, diskManager.getNumberOfPieces());
+
+        // First piece covers first file, skips empty file, and ends in third file
+        Piece first = diskManager.getPiece(0);
+
+        assertEquals(2, first.getNumberOfSpans());
+        assertEquals(0, first.getFileIndex(0));
+        assertEquals(5, first.getSpanLength(0));
+        assertEquals(2, first.getFileIndex(1));
+        assertEquals(0, first.getFilePosition(1));
+        assertEquals(PIECE_LENGTH - 5, first.getSpanLength(1));
+
+        // Second piece is within third file
+        Piece second = diskManager.getPiece(1);
+
+        assertEquals(1, second.getNumberOfSpans());
+        assertEquals(2, second.getFileIndex(0));
+        assertEquals(PIECE_LENGTH - 5, second.getFilePosition(0));
+
+        // Last piece is short, and ends in last file
+        Piece last = diskManager.getPiece(6);
+
+        assertEquals(info.getTotalLength() - 6 * PIECE_LENGTH, last.getLength());
+        assertEquals(5, last.getFileIndex(last.getNumberOfSpans() - 1));
+
+        // Spans of every piece add up to piece
+        for(int i = 0;i < diskManager.getNumberOfPieces();i++) {
+
+            Piece p = diskManager.getPiece(i);
+            int length = 0;
+
+            for(int span = 0;span < p.getNumberOfSpans();span++) {
+                assertTrue(FILE_LENGTHS[p.getFileIndex(span)] > 0);
+                length += p.getSpanLength(span);
+            }
+
+            assertEquals(p.getLength(), length);
+        }
+    }
+
+    public void testFilesHoldContent() throws IOException {
+
+        writeAll();
+        diskManager.close();
+
+        int offset = 0;
+
+        for(int i = 0;i < FILE_LENGTHS.length;i++) {
+
+            File f = new File(new File(new File(directory, "torrent"), "directory"), "file" + i);
+            byte[] expected = Arrays.copyOfRange(content, offset, offset + (int)FILE_LENGTHS[i]);
+
+            // Empty files are never written
+            if(FILE_LENGTHS[i] > 0)
+                assertTrue("file " + i, Arrays.equals(expected, Files.readAllBytes(f.toPath())));
+
+            offset += FILE_LENGTHS[i];
+        }
+    }
+
+    public void testBlocksAcrossFiles() throws IOException {
+
+        writeAll();
+
+        // Block from last bytes of third file to first bytes of fifth file
+        int index = 40005 / PIECE_LENGTH;
+        int begin = 40005 - 10 - index * PIECE_LENGTH;
+
+        ByteBuffer block = ByteBuffer.allocate(20);
+        diskManager.readBlock(index, begin, block);
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 40005 - 10, 40005 + 10), block.array()));
+    }
+
+    /**
+     * Channel which takes at most a given number of bytes, as a full socket would.
+     */
+    private static class LimitedChannel implements WritableByteChannel {
+
+        private ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+        private int capacity;
+
+        LimitedChannel(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+
+            int n = Math.min(src.remaining(), capacity - written.size());
+
+            byte[] b = new byte[n];
+            src.get(b);
+            written.write(b, 0, n);
+
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public void testTransferBlockAcrossFiles() throws IOException {
+
+        writeAll();
+
+        // Block from last bytes of third file, through fourth file, to first bytes of fifth file
+        int index = 40005 / PIECE_LENGTH;
+        int begin = 40005 - 10 - index * PIECE_LENGTH;
+
+        LimitedChannel all = new LimitedChannel(Integer.MAX_VALUE);
+
+        assertEquals(20, diskManager.transferBlock(index, begin, 20, all));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 40005 - 10, 40005 + 10), all.written.toByteArray()));
+
+        // Channel which fills up within fourth file
+        LimitedChannel part = new LimitedChannel(11);
+
+        assertEquals(11, diskManager.transferBlock(index, begin, 20, part));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 40005 - 10, 40005 + 1), part.written.toByteArray()));
+    }
+
+    public void testGatheredWriteAndScatteredRead() throws IOException {
+
+        writeAll();
+
+        // Overwrite first piece from three buffers, split unevenly
+        byte[] replacement = TestStorage.content(PIECE_LENGTH, 2);
+
+        diskManager.writeBlock(0, 0, new ByteBuffer[] {
+                ByteBuffer.wrap(replacement, 0, 3),
+                ByteBuffer.wrap(replacement, 3, 0),
+                ByteBuffer.wrap(replacement, 3, PIECE_LENGTH - 3)});
+
+        ByteBuffer a = ByteBuffer.allocate(7);
+        ByteBuffer b = ByteBuffer.allocateDirect(PIECE_LENGTH - 7);
+
+        diskManager.readBlock(0, 0, new ByteBuffer[] {a, b});
+
+        assertFalse(a.hasRemaining());
+        assertFalse(b.hasRemaining());
+
+        b.flip();
+        byte[] tail = new byte[b.remaining()];
+        b.get(tail);
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(replacement, 0, 7), a.array()));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(replacement, 7, PIECE_LENGTH), tail));
+    }
+
+    public void testReadPiece() throws IOException {
+
+        writeAll();
+
+        for(int i = 0;i < diskManager.getNumberOfPieces();i++) {
+
+            ByteBuffer dst = ByteBuffer.allocate(PIECE_LENGTH);
+            diskManager.readPiece(i, dst);
+
+            assertEquals(info.getPieceLength(i), dst.position());
+            assertEquals(piece(i), (ByteBuffer)dst.flip());
+        }
+    }
+
+    public void testHashPiece() throws Exception {
+
+        writeAll();
+
+        for(int i = 0;i < diskManager.getNumberOfPieces();i++) {
+
+            MessageDigest digest = InfoHasher.getDigest();
+            digest.update(piece(i));
+
+            assertTrue(Arrays.equals(digest.digest(), diskManager.hashPiece(i).getRaw()));
+        }
+    }
+
+    public void testBlockOutsidePiece() throws IOException {
+
+        try {
+            diskManager.readBlock(0, PIECE_LENGTH - 1, ByteBuffer.allocate(2));
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+
+        try {
+            diskManager.readBlock(diskManager.getNumberOfPieces(), 0, ByteBuffer.allocate(1));
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+
+        try {
+            diskManager.writePiece(0, ByteBuffer.allocate(PIECE_LENGTH - 1));
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+
+        try {
+            diskManager.transferBlock(0, PIECE_LENGTH - 1, 2, new LimitedChannel(2));
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testMoveTo() throws IOException {
+
+        writeAll();
+
+        File newDirectory = TestStorage.createDirectory();
+
+        try {
+
+            diskManager.moveTo(newDirectory);
+
+            assertFalse(new File(directory, "torrent/directory/file0").exists());
+            assertTrue(new File(newDirectory, "torrent/directory/file0").exists());
+
+            for(int i = 0;i < diskManager.getNumberOfPieces();i++) {
+
+                ByteBuffer dst = ByteBuffer.allocate(info.getPieceLength(i));
+                diskManager.readPiece(i, dst);
+
+                assertEquals(piece(i), (ByteBuffer)dst.flip());
+            }
+
+            diskManager.close();
+
+        } finally {
+            TestStorage.delete(newDirectory);
+        }
+    }
+
+    public void testPathsOutsideDirectoryAreRejected() {
+
+        String[] paths = {"../escape", "a/../../escape", "a//b", "./a", "a/"};
+
+        for(String path: paths) {
+
+            ArrayList<MultpleFileInfo.SingleFileAmongManyInfo> files = new ArrayList<MultpleFileInfo.SingleFileAmongManyInfo>();
+            files.add(new MultpleFileInfo.SingleFileAmongManyInfo(1, null, path));
+
+            try {
+                new DiskManager(new MultpleFileInfo(1, new PieceHashTable(new byte[20]), false, "torrent", files), directory);
+                fail(path);
+            } catch(IllegalArgumentException e) {
+            }
+        }
+
+        for(String name: new String[] {"..", ".", "", "a/b"}) {
+
+            try {
+                new DiskManager(new MultpleFileInfo(1, new PieceHashTable(new byte[0]), false, name, new ArrayList<MultpleFileInfo.SingleFileAmongManyInfo>()), directory);
+                fail(name);
+            } catch(IllegalArgumentException e) {
+            }
+        }
+    }
+
+    public void testSingleFile() throws IOException {
+
+        Info single = TestStorage.singleFileInfo(PIECE_LENGTH, 3 * PIECE_LENGTH + 1);
+        DiskManager d = new DiskManager(single, directory);
+
+        byte[] data = TestStorage.content((int)single.getTotalLength(), 3);
+
+        for(int i = 0;i < d.getNumberOfPieces();i++)
+            d.writePiece(i, ByteBuffer.wrap(data, i * PIECE_LENGTH, single.getPieceLength(i)));
+
+        d.close();
+
+        assertEquals(4, d.getNumberOfPieces());
+        assertTrue(Arrays.equals(data, Files.readAllBytes(new File(directory, "file").toPath())));
+    }
+}
@@ -0,0 +1,126 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.disk.event.DiskEvent;
+import org.bittorrentj.disk.event.DiskEventHandler;
+import org.bittorrentj.torrent.Info;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmark of how long the thread of a swarm stalls on disk while downloading 768
+ * pieces of 1 MiB, when it writes and hashes received blocks itself, against
+ * submitting them to a DiskJobQueue.
+ *
+ * Each iteration of the loop receives the 64 blocks of a piece and completes it. Reports
+ * the median, 99th percentile and maximum time of an iteration, and the number of times
+ * the loop stopped reading while the queue was full, which is not counted as a stall,
+ * since a selector would wait on the network then, not on disk.
+ */
+public class DiskStallBenchmark {
+
+    private final static int PIECE_LENGTH = 1024 * 1024;
+    private final static int BLOCK_SIZE = 16 * 1024;
+    private final static int NUMBER_OF_PIECES = 768;
+    private final static int NUMBER_OF_BLOCKS = PIECE_LENGTH / BLOCK_SIZE;
+
+    private static void run(boolean async, File directory) throws IOException, InterruptedException {
+
+        Info info = TestStorage.singleFileInfo(PIECE_LENGTH, (long)NUMBER_OF_PIECES * PIECE_LENGTH);
+        DiskManager diskManager = new DiskManager(info, directory);
+        DiskJobQueue diskJobQueue = new DiskJobQueue(4, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+        CompletedJobs completed = new CompletedJobs();
+
+        ByteBuffer[] block = {ByteBuffer.allocateDirect(BLOCK_SIZE)};
+
+        long[] iterations = new long[NUMBER_OF_PIECES];
+        int paused = 0;
+
+        long t0 = System.nanoTime();
+
+        for(int i = 0;i < NUMBER_OF_PIECES;i++) {
+
+            // Stop reading from network until queue has drained
+            if(async && diskJobQueue.isFull()) {
+
+                paused++;
+
+                while(diskJobQueue.getQueuedBytes() > diskJobQueue.getMaxQueuedBytes() / 2)
+                    Thread.sleep(1);
+            }
+
+            long start = System.nanoTime();
+
+            for(int b = 0;b < NUMBER_OF_BLOCKS;b++) {
+
+                if(async)
+                    diskJobQueue.submit(new WriteBlockJob(diskManager, i, b * BLOCK_SIZE, block), completed);
+                else
+                    diskManager.writeBlock(i, b * BLOCK_SIZE, new ByteBuffer[] {block[0].duplicate()});
+            }
+
+            if(async)
+                diskJobQueue.submit(new HashPieceJob(diskManager, i), completed);
+            else
+                diskManager.hashPiece(i);
+
+            // Handle completions posted since last iteration
+            while(!completed.isEmpty())
+                completed.take();
+
+            iterations[i] = System.nanoTime() - start;
+        }
+
+        if(async) {
+
+            final CountDownLatch flushed = new CountDownLatch(1);
+
+            diskJobQueue.submit(new FlushJob(diskManager), new DiskEventHandler() {
+
+                @Override
+                public void diskEventHandler(DiskEvent e) {
+                    flushed.countDown();
+                }
+            });
+
+            flushed.await();
+
+        } else
+            diskManager.flush();
+
+        long t1 = System.nanoTime();
+
+        Arrays.sort(iterations);
+
+        System.out.printf("%s: iteration median %.0f us, 99th percentile %.0f us, max %.0f us, total %.2f s, paused %d times%n",
+                async ? "disk job queue" : "on swarm thread",
+                iterations[NUMBER_OF_PIECES / 2] / 1e3,
+                iterations[NUMBER_OF_PIECES * 99 / 100] / 1e3,
+                iterations[NUMBER_OF_PIECES - 1] / 1e3,
+                (t1 - t0) / 1e9,
+                paused);
+
+        diskJobQueue.shutdown();
+        diskManager.close();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        File directory = TestStorage.createDirectory();
+
+        try {
+
+            // First runs warm up
+            for(int i = 0;i < 3;i++) {
+                run(false, directory);
+                run(true, directory);
+            }
+
+        } finally {
+            TestStorage.delete(directory);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.bittorrentj.disk;
+
+import junit.framework.TestCase;
+import org.bittorrentj.torrent.InfoHasher;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests of PieceHasher, with blocks arriving in and out of order.
+ */
+public class PieceHasherTest extends TestCase {
+
+    private final static int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Piece of four full blocks and a short last block.
+     */
+    private final static int NUMBER_OF_BLOCKS = 5;
+    private final static int PIECE_LENGTH = 4 * BLOCK_SIZE + 100;
+
+    private byte[] piece;
+
+    @Override
+    protected void setUp() {
+        piece = TestStorage.content(PIECE_LENGTH, 1);
+    }
+
+    private ByteBuffer block(int block) {
+        return ByteBuffer.wrap(piece, block * BLOCK_SIZE, Math.min(BLOCK_SIZE, PIECE_LENGTH - block * BLOCK_SIZE));
+    }
+
+    private byte[] expectedHash() {
+        return InfoHasher.getDigest().digest(piece);
+    }
+
+    public void testBlocksInOrder() {
+
+        PieceHasher hasher = new PieceHasher(NUMBER_OF_BLOCKS);
+
+        for(int i = 0;i < NUMBER_OF_BLOCKS;i++) {
+
+            assertNull(hasher.getHash());
+
+            hasher.blockReceived(i, block(i));
+
+            // Each block is hashed as it arrives
+            assertEquals(i + 1, hasher.getNumberOfHashedBlocks());
+        }
+
+        assertTrue(hasher.isComplete());
+        assertTrue(Arrays.equals(expectedHash(), hasher.getHash().getRaw()));
+    }
+
+    public void testBlocksOutOfOrder() {
+
+        PieceHasher hasher = new PieceHasher(NUMBER_OF_BLOCKS);
+
+        hasher.blockReceived(3, block(3));
+        hasher.blockReceived(1, block(1));
+        hasher.blockReceived(4, block(4));
+
+        // Held until first block arrives
+        assertEquals(0, hasher.getNumberOfHashedBlocks());
+
+        hasher.blockReceived(0, block(0));
+
+        assertEquals(2, hasher.getNumberOfHashedBlocks());
+        assertFalse(hasher.isComplete());
+
+        hasher.blockReceived(2, block(2));
+
+        assertEquals(NUMBER_OF_BLOCKS, hasher.getNumberOfHashedBlocks());
+        assertTrue(Arrays.equals(expectedHash(), hasher.getHash().getRaw()));
+    }
+
+    public void testBlockReceivedAgainIsIgnored() {
+
+        PieceHasher hasher = new PieceHasher(NUMBER_OF_BLOCKS);
+
+        ByteBuffer other = ByteBuffer.wrap(TestStorage.content(BLOCK_SIZE, 2));
+
+        hasher.blockReceived(0, block(0));
+        hasher.blockReceived(2, block(2));
+
+        // Both already hashed and held blocks are kept
+        hasher.blockReceived(0, other);
+        hasher.blockReceived(2, other.duplicate());
+
+        for(int i = 1;i < NUMBER_OF_BLOCKS;i++)
+            hasher.blockReceived(i, block(i));
+
+        assertTrue(Arrays.equals(expectedHash(), hasher.getHash().getRaw()));
+    }
+
+    public void testBlocksAreNotAltered() {
+
+        PieceHasher hasher = new PieceHasher(NUMBER_OF_BLOCKS);
+
+        ByteBuffer[] blocks = new ByteBuffer[NUMBER_OF_BLOCKS];
+
+        for(int i = NUMBER_OF_BLOCKS - 1;i >= 0;i--) {
+            blocks[i] = block(i);
+            hasher.blockReceived(i, blocks[i]);
+        }
+
+        for(int i = 0;i < NUMBER_OF_BLOCKS;i++)
+            assertEquals(block(i), blocks[i]);
+
+        assertTrue(Arrays.equals(expectedHash(), hasher.getHash().getRaw()));
+    }
+
+    public void testPiecesHashedAtTheSameTime() {
+
+        PieceHasher first = new PieceHasher(NUMBER_OF_BLOCKS);
+        PieceHasher second = new PieceHasher(NUMBER_OF_BLOCKS);
+
+        // Blocks of both pieces interleave, with other hashes on the same thread in between
+        for(int i = 0;i < NUMBER_OF_BLOCKS;i++) {
+
+            first.blockReceived(i, block(i));
+            InfoHasher.getDigest().digest(new byte[10]);
+            second.blockReceived(i, block(i));
+        }
+
+        assertTrue(Arrays.equals(expectedHash(), first.getHash().getRaw()));
+        assertTrue(Arrays.equals(expectedHash(), second.getHash().getRaw()));
+    }
+}
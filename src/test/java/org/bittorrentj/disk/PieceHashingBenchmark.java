@@ -0,0 +1,140 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.torrent.Info;
+import org.bittorrentj.torrent.InfoHasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Benchmark of hashing pieces of 1 MiB incrementally with a PieceHasher as blocks
+ * arrive, against hashing each piece once complete, from memory and as stored.
+ *
+ * Blocks arrive in order, shuffled within windows of 8 blocks, as when requests are
+ * pipelined to one peer, and in random order, as when blocks come from many peers.
+ * Reports throughput, and how long the hash takes after the last block arrives.
+ */
+public class PieceHashingBenchmark {
+
+    private final static int PIECE_LENGTH = 1024 * 1024;
+    private final static int BLOCK_SIZE = 16 * 1024;
+    private final static int NUMBER_OF_PIECES = 512;
+    private final static int NUMBER_OF_BLOCKS = PIECE_LENGTH / BLOCK_SIZE;
+
+    private final static int WINDOW = 8;
+
+    private static void shuffle(int[] order, int from, int to, Random random) {
+
+        for(int i = to - 1;i > from;i--) {
+
+            int j = from + random.nextInt(i - from + 1);
+            int t = order[i];
+
+            order[i] = order[j];
+            order[j] = t;
+        }
+    }
+
+    private static void run(String arrival, DiskManager diskManager, ByteBuffer[] blocks, Random random) throws IOException {
+
+        int[] order = new int[NUMBER_OF_BLOCKS];
+
+        long incremental = 0, incrementalWait = 0, fromMemory = 0, asStored = 0;
+
+        for(int p = 0;p < NUMBER_OF_PIECES;p++) {
+
+            for(int i = 0;i < NUMBER_OF_BLOCKS;i++)
+                order[i] = i;
+
+            if(arrival.equals("window"))
+                for(int i = 0;i < NUMBER_OF_BLOCKS;i += WINDOW)
+                    shuffle(order, i, i + WINDOW, random);
+            else if(arrival.equals("random"))
+                shuffle(order, 0, NUMBER_OF_BLOCKS, random);
+
+            PieceHasher hasher = new PieceHasher(NUMBER_OF_BLOCKS);
+
+            long t0 = System.nanoTime();
+            long tLast = t0;
+
+            for(int i = 0;i < NUMBER_OF_BLOCKS;i++) {
+
+                if(i == NUMBER_OF_BLOCKS - 1)
+                    tLast = System.nanoTime();
+
+                hasher.blockReceived(order[i], blocks[order[i]]);
+            }
+
+            long t1 = System.nanoTime();
+
+            MessageDigest digest = InfoHasher.getDigest();
+
+            for(ByteBuffer b: blocks)
+                digest.update(b.duplicate());
+
+            byte[] hash = digest.digest();
+
+            long t2 = System.nanoTime();
+
+            Hash stored = diskManager.hashPiece(p);
+
+            long t3 = System.nanoTime();
+
+            if(!Arrays.equals(hash, hasher.getHash().getRaw()) || !Arrays.equals(hash, stored.getRaw()))
+                throw new IllegalStateException("Hashes differ");
+
+            incremental += t1 - t0;
+            incrementalWait += t1 - tLast;
+            fromMemory += t2 - t1;
+            asStored += t3 - t2;
+        }
+
+        double megabytes = (double)NUMBER_OF_PIECES * PIECE_LENGTH / (1024 * 1024);
+
+        System.out.printf("%s order: incremental %.0f MB/s, wait after last block %.1f us | once complete from memory %.0f MB/s, wait %.0f us | as stored %.0f MB/s, wait %.0f us%n",
+                arrival,
+                megabytes / (incremental / 1e9), incrementalWait / 1e3 / NUMBER_OF_PIECES,
+                megabytes / (fromMemory / 1e9), fromMemory / 1e3 / NUMBER_OF_PIECES,
+                megabytes / (asStored / 1e9), asStored / 1e3 / NUMBER_OF_PIECES);
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Random random = new Random(3);
+
+        ByteBuffer[] blocks = new ByteBuffer[NUMBER_OF_BLOCKS];
+
+        for(int i = 0;i < NUMBER_OF_BLOCKS;i++)
+            blocks[i] = ByteBuffer.wrap(TestStorage.content(BLOCK_SIZE, i));
+
+        ByteBuffer piece = ByteBuffer.allocate(PIECE_LENGTH);
+
+        for(ByteBuffer b: blocks)
+            piece.put(b.duplicate());
+
+        File directory = TestStorage.createDirectory();
+        Info info = TestStorage.singleFileInfo(PIECE_LENGTH, (long)NUMBER_OF_PIECES * PIECE_LENGTH);
+        DiskManager diskManager = new DiskManager(info, directory);
+
+        try {
+
+            // Every piece has the same content
+            for(int p = 0;p < NUMBER_OF_PIECES;p++)
+                diskManager.writePiece(p, (ByteBuffer)piece.duplicate().flip());
+
+            // First runs warm up
+            for(int i = 0;i < 3;i++)
+                for(String arrival: new String[] {"in", "window", "random"})
+                    run(arrival, diskManager, blocks, random);
+
+        } finally {
+            diskManager.close();
+            TestStorage.delete(directory);
+        }
+    }
+}
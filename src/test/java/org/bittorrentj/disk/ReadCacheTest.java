@@ -0,0 +1,255 @@
+package org.bittorrentj.disk;
+
+import junit.framework.TestCase;
+import org.bittorrentj.torrent.Info;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests of ReadCache, over a torrent of small pieces, with jobs performed
+ * by a queue with a single worker, so they complete in the order submitted.
+ */
+public class ReadCacheTest extends TestCase {
+
+    private final static int PIECE_LENGTH = 16 * 1024;
+    private final static int NUMBER_OF_PIECES = 10;
+
+    private File directory;
+
+    private Info info;
+
+    private DiskManager diskManager;
+
+    private DiskJobQueue diskJobQueue;
+
+    private CompletedJobs completed;
+
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        directory = TestStorage.createDirectory();
+        info = TestStorage.singleFileInfo(PIECE_LENGTH, NUMBER_OF_PIECES * PIECE_LENGTH);
+        diskManager = new DiskManager(info, directory);
+        diskJobQueue = new DiskJobQueue(1, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+        completed = new CompletedJobs();
+        content = TestStorage.content(NUMBER_OF_PIECES * PIECE_LENGTH, 1);
+
+        for(int i = 0;i < NUMBER_OF_PIECES;i++)
+            diskManager.writePiece(i, ByteBuffer.wrap(content, i * PIECE_LENGTH, PIECE_LENGTH));
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        diskJobQueue.shutdown();
+        diskManager.close();
+        TestStorage.delete(directory);
+    }
+
+    private ReadCache cache(int maxPieces) {
+        return new ReadCache(diskManager, diskJobQueue, completed, (long)maxPieces * PIECE_LENGTH);
+    }
+
+    /**
+     * Asks for a piece which is not cached, and passes the job loading it back to cache.
+     */
+    private void load(ReadCache cache, int index) throws InterruptedException {
+
+        assertNull(cache.getBlock(index, 0, 1));
+
+        cache.jobCompleted(completed.take());
+    }
+
+    private void assertBlock(int index, int begin, int length, ByteBuffer block) {
+
+        byte[] b = new byte[block.remaining()];
+        block.get(b);
+
+        int offset = index * PIECE_LENGTH + begin;
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, offset, offset + length), b));
+    }
+
+    public void testPieceIsLoadedOnFirstRequest() throws Exception {
+
+        ReadCache cache = cache(4);
+
+        assertNull(cache.getBlock(3, 100, 200));
+        assertTrue(cache.contains(3));
+
+        // Full piece is loaded once, however many blocks wait for it
+        assertNull(cache.getBlock(3, 300, 200));
+
+        ReadBlockJob job = (ReadBlockJob)completed.take();
+
+        assertEquals(0, job.getBegin());
+        assertEquals(PIECE_LENGTH, job.getLength());
+        assertTrue(completed.isEmpty());
+
+        cache.jobCompleted(job);
+
+        assertEquals(PIECE_LENGTH, cache.getHeldBytes());
+
+        ByteBuffer block = cache.getBlock(3, 100, 200);
+
+        assertTrue(block.isReadOnly());
+        assertBlock(3, 100, 200, block);
+        assertBlock(3, PIECE_LENGTH - 1000, 1000, cache.getBlock(3, PIECE_LENGTH - 1000, 1000));
+
+        // One miss, and two hits
+        assertEquals(1, cache.getNumberOfMisses());
+        assertEquals(2, cache.getNumberOfHits());
+        assertEquals(2.0 / 3, cache.getHitRate(), 1e-9);
+    }
+
+    public void testBlockOutsidePiece() {
+
+        ReadCache cache = cache(4);
+
+        try {
+            cache.getBlock(0, PIECE_LENGTH - 1, 2);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+
+        try {
+            cache.getBlock(NUMBER_OF_PIECES, 0, 1);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+
+        assertTrue(completed.isEmpty());
+    }
+
+    public void testPieceWhichDoesNotFitIsNotReadable() {
+
+        ReadCache cache = new ReadCache(diskManager, diskJobQueue, completed, PIECE_LENGTH - 1);
+
+        assertFalse(cache.isReadable(0));
+        assertNull(cache.getBlock(0, 0, 1));
+        assertFalse(cache.contains(0));
+        assertTrue(completed.isEmpty());
+    }
+
+    public void testPieceWhichFailsToLoadIsNotReadable() throws Exception {
+
+        ReadCache cache = cache(4);
+
+        assertNull(cache.getBlock(0, 0, 1));
+
+        DiskJob job = completed.take();
+        job.setException(new IOException());
+
+        cache.jobCompleted(job);
+
+        // Piece is not loaded again
+        assertFalse(cache.isReadable(0));
+        assertFalse(cache.contains(0));
+        assertNull(cache.getBlock(0, 0, 1));
+        assertTrue(completed.isEmpty());
+
+        // Until it is dropped
+        cache.pieceDropped(0);
+
+        assertTrue(cache.isReadable(0));
+
+        load(cache, 0);
+
+        assertBlock(0, 0, 1, cache.getBlock(0, 0, 1));
+    }
+
+    public void testDroppedPiece() throws Exception {
+
+        ReadCache cache = cache(4);
+
+        load(cache, 0);
+        cache.pieceDropped(0);
+
+        assertFalse(cache.contains(0));
+        assertEquals(0, cache.getHeldBytes());
+
+        // Piece being loaded when dropped is not cached
+        assertNull(cache.getBlock(1, 0, 1));
+
+        cache.pieceDropped(1);
+        cache.jobCompleted(completed.take());
+
+        assertFalse(cache.contains(1));
+        assertEquals(0, cache.getHeldBytes());
+    }
+
+    public void testLeastRecentlyRequestedPieceIsEvicted() throws Exception {
+
+        ReadCache cache = cache(3);
+
+        for(int i = 0;i < 3;i++)
+            load(cache, i);
+
+        // Piece 0 is requested again, further on
+        assertNotNull(cache.getBlock(0, 100, 1));
+
+        load(cache, 3);
+
+        assertEquals(1, cache.getNumberOfEvictions());
+        assertEquals(3 * PIECE_LENGTH, cache.getHeldBytes());
+        assertTrue(cache.contains(0));
+        assertFalse(cache.contains(1));
+    }
+
+    public void testPieceReadAgainIsProtectedFromSweep() throws Exception {
+
+        ReadCache cache = cache(4);
+
+        load(cache, 0);
+
+        // Read again from the start, as by a second peer
+        assertNotNull(cache.getBlock(0, 0, 1));
+        assertNotNull(cache.getBlock(0, 0, 1));
+
+        // Sweep over pieces read once, which would evict piece 0 under plain LRU
+        for(int i = 1;i <= 6;i++) {
+            load(cache, i);
+            assertNotNull(cache.getBlock(i, 0, 1));
+        }
+
+        assertTrue(cache.contains(0));
+        assertFalse(cache.contains(1));
+        assertEquals(4 * PIECE_LENGTH, cache.getHeldBytes());
+    }
+
+    public void testPieceReadOnceIsNotProtected() throws Exception {
+
+        ReadCache cache = cache(4);
+
+        load(cache, 0);
+
+        // Blocks of piece are read in order, once
+        assertNotNull(cache.getBlock(0, 0, 1));
+        assertNotNull(cache.getBlock(0, 1, 1));
+
+        for(int i = 1;i <= 4;i++) {
+            load(cache, i);
+            assertNotNull(cache.getBlock(i, 0, 1));
+        }
+
+        assertFalse(cache.contains(0));
+    }
+
+    public void testLoweringMaximumEvicts() throws Exception {
+
+        ReadCache cache = cache(4);
+
+        for(int i = 0;i < 4;i++)
+            load(cache, i);
+
+        cache.setMaxBytes(PIECE_LENGTH);
+
+        assertEquals(PIECE_LENGTH, cache.getHeldBytes());
+        assertEquals(3, cache.getNumberOfEvictions());
+        assertTrue(cache.contains(3));
+    }
+}
@@ -0,0 +1,252 @@
+package org.bittorrentj.disk;
+
+import junit.framework.TestCase;
+import org.bittorrentj.message.Have;
+import org.bittorrentj.message.MessageWithLengthField;
+import org.bittorrentj.message.StoredPiece;
+import org.bittorrentj.message.stream.BufferPool;
+import org.bittorrentj.message.stream.MessageStreamManager;
+import org.bittorrentj.message.stream.OutputMessageStream;
+import org.bittorrentj.message.stream.SimulatedClock;
+import org.bittorrentj.message.stream.TokenBucket;
+import org.bittorrentj.torrent.Info;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Tests of blocks of stored pieces sent by an OutputMessageStream over a loopback
+ * connection with FileChannel.transferTo, on the workers of a DiskJobQueue, between
+ * messages written from the buffer of the stream.
+ */
+public class StoredPieceTransferTest extends TestCase {
+
+    private final static int PIECE_LENGTH = 16 * 1024;
+
+    /**
+     * Files of torrent, so that blocks span several files.
+     */
+    private final static long[] FILE_LENGTHS = {5, 0, 40000, 3, 70000, 1};
+
+    private final static long SECONDS = 1000L * 1000 * 1000;
+
+    private File directory;
+    private Info info;
+    private DiskManager diskManager;
+    private DiskJobQueue diskJobQueue;
+    private CompletedJobs completed;
+    private SimulatedClock clock;
+
+    /**
+     * Content of whole torrent.
+     */
+    private byte[] content;
+
+    /**
+     * Writing and reading end of connection, both non-blocking.
+     */
+    private SocketChannel sender;
+    private SocketChannel receiver;
+
+    /**
+     * Number of transfer jobs performed by last call to send.
+     */
+    private int numberOfJobs;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        directory = TestStorage.createDirectory();
+        info = TestStorage.multipleFileInfo(PIECE_LENGTH, FILE_LENGTHS);
+        diskManager = new DiskManager(info, directory);
+        diskJobQueue = new DiskJobQueue(2, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+        completed = new CompletedJobs();
+        clock = new SimulatedClock();
+        content = TestStorage.content((int)info.getTotalLength(), 1);
+
+        for(int i = 0;i < diskManager.getNumberOfPieces();i++)
+            diskManager.writePiece(i, ByteBuffer.wrap(content, i * PIECE_LENGTH, info.getPieceLength(i)));
+
+        diskManager.flush();
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        sender = SocketChannel.open(server.getLocalAddress());
+        receiver = server.accept();
+
+        server.close();
+
+        sender.configureBlocking(false);
+        receiver.configureBlocking(false);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+
+        sender.close();
+        receiver.close();
+        diskJobQueue.shutdown();
+        diskManager.close();
+        TestStorage.delete(directory);
+    }
+
+    /**
+     * Wire representation of a piece message with a block of the torrent.
+     */
+    private byte[] piece(int index, int begin, int length) {
+
+        int offset = index * PIECE_LENGTH + begin;
+
+        ByteBuffer b = ByteBuffer.allocate(org.bittorrentj.message.Piece.HEADER_SIZE + length);
+        new org.bittorrentj.message.Piece(index, begin, Arrays.copyOfRange(content, offset, offset + length)).writeMessageToBuffer(b);
+
+        return b.array();
+    }
+
+    private static byte[] wire(MessageWithLengthField m) {
+
+        ByteBuffer b = ByteBuffer.allocate(m.getRawMessageLength());
+        m.writeMessageToBuffer(b);
+
+        return b.array();
+    }
+
+    private static byte[] concatenate(byte[]... parts) {
+
+        ByteBuffer b = ByteBuffer.allocate(1024 * 1024);
+
+        for(byte[] p: parts)
+            b.put(p);
+
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    /**
+     * Drives stream as a connection and its swarm would, until queue is written and
+     * the expected number of bytes is read at the other end, advancing the clock
+     * by a second each round.
+     * @return bytes read at other end
+     */
+    private byte[] send(OutputMessageStream out, LinkedList<MessageWithLengthField> queue, int expectedLength) throws Exception {
+
+        ByteBuffer received = ByteBuffer.allocate(expectedLength);
+        long deadline = System.nanoTime() + 10 * SECONDS;
+
+        numberOfJobs = 0;
+
+        while(received.hasRemaining() && System.nanoTime() < deadline) {
+
+            out.write(queue);
+
+            if(out.isTransferPending()) {
+
+                TransferBlockJob job = out.startTransfer();
+
+                if(job != null) {
+
+                    diskJobQueue.submit(job, completed);
+
+                    assertSame(job, completed.take());
+                    assertTrue(job.isSuccessful());
+                    assertSame(job, out.getTransferInFlight());
+
+                    out.transferCompleted(job);
+                    numberOfJobs++;
+                }
+            }
+
+            receiver.read(received);
+            clock.advance(SECONDS);
+        }
+
+        assertFalse(received.hasRemaining());
+        assertTrue(queue.isEmpty());
+        assertFalse(out.isTransferPending());
+        assertNull(out.getTransferInFlight());
+
+        return received.array();
+    }
+
+    public void testStoredPiecesBetweenBufferedMessagesUnderRateLimit() throws Exception {
+
+        // Few bytes may be sent each second, so blocks are sent by several jobs
+        MessageStreamManager manager = new MessageStreamManager(new TokenBucket(clock, 4096, 4096));
+        OutputMessageStream out = new OutputMessageStream(sender, manager, new BufferPool());
+
+        // Block from third file, through fourth file, into fifth file
+        int begin = 40005 - 2000 - 2 * PIECE_LENGTH;
+
+        LinkedList<MessageWithLengthField> queue = new LinkedList<MessageWithLengthField>();
+
+        queue.add(new Have(1));
+        queue.add(new StoredPiece(2, begin, 9000, diskManager));
+        queue.add(new org.bittorrentj.message.Piece(0, 0, Arrays.copyOf(content, 100)));
+        queue.add(new StoredPiece(6, 0, info.getPieceLength(6), diskManager));
+        queue.add(new Have(3));
+
+        byte[] expected = concatenate(wire(new Have(1)), piece(2, begin, 9000), piece(0, 0, 100),
+                piece(6, 0, info.getPieceLength(6)), wire(new Have(3)));
+
+        assertTrue(Arrays.equals(expected, send(out, queue, expected.length)));
+        assertTrue(numberOfJobs >= 9000 / 4096 + 1);
+
+        // Everything sent is counted, only blocks as payload
+        assertEquals(expected.length, manager.getTotalAmountOfTransmittedData());
+        assertEquals(9000 + 100 + info.getPieceLength(6), manager.getTotalAmountOfTransmittedPayload());
+    }
+
+    public void testStoredPiecesThroughFullSocket() throws Exception {
+
+        // Small socket buffers, so jobs often send part of a block
+        sender.setOption(StandardSocketOptions.SO_SNDBUF, 4096);
+        receiver.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+
+        MessageStreamManager manager = new MessageStreamManager(new TokenBucket(clock, TokenBucket.UNLIMITED, 0));
+        OutputMessageStream out = new OutputMessageStream(sender, manager, new BufferPool());
+
+        LinkedList<MessageWithLengthField> queue = new LinkedList<MessageWithLengthField>();
+        byte[] expected = new byte[0];
+
+        for(int i = 0;i < diskManager.getNumberOfPieces();i++) {
+
+            queue.add(new StoredPiece(i, 0, info.getPieceLength(i), diskManager));
+            queue.add(new Have(i));
+
+            expected = concatenate(expected, piece(i, 0, info.getPieceLength(i)), wire(new Have(i)));
+        }
+
+        assertTrue(Arrays.equals(expected, send(out, queue, expected.length)));
+    }
+
+    public void testStoredPieceSerializedIntoBuffer() {
+
+        int begin = 40005 - 10 - 2 * PIECE_LENGTH;
+
+        assertTrue(Arrays.equals(piece(2, begin, 20), wire(new StoredPiece(2, begin, 20, diskManager))));
+    }
+
+    public void testStoredPieceOutsidePieceIsRejected() {
+
+        try {
+            new StoredPiece(6, 0, info.getPieceLength(6) + 1, diskManager);
+            fail("Block past end of last piece was accepted");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+
+        try {
+            new StoredPiece(diskManager.getNumberOfPieces(), 0, 1, diskManager);
+            fail("Block of piece outside torrent was accepted");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.torrent.Info;
+import org.bittorrentj.torrent.MultpleFileInfo;
+import org.bittorrentj.torrent.PieceHashTable;
+import org.bittorrentj.torrent.SingleFileInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Torrents and directories for tests of storage.
+ */
+class TestStorage {
+
+    /**
+     * Info dictionary of multiple file torrent with given file lengths,
+     * with piece hashes of zeros.
+     * @param pieceLength byte length of pieces
+     * @param fileLengths byte length of each file
+     * @return info dictionary
+     */
+    static Info multipleFileInfo(int pieceLength, long... fileLengths) {
+
+        ArrayList<MultpleFileInfo.SingleFileAmongManyInfo> files = new ArrayList<MultpleFileInfo.SingleFileAmongManyInfo>();
+        long totalLength = 0;
+
+        for(int i = 0;i < fileLengths.length;i++) {
+            files.add(new MultpleFileInfo.SingleFileAmongManyInfo(fileLengths[i], null, "directory/file" + i));
+            totalLength += fileLengths[i];
+        }
+
+        return new MultpleFileInfo(pieceLength, hashes(pieceLength, totalLength), false, "torrent", files);
+    }
+
+    /**
+     * Info dictionary of single file torrent, with piece hashes of zeros.
+     * @param pieceLength byte length of pieces
+     * @param length byte length of file
+     * @return info dictionary
+     */
+    static Info singleFileInfo(int pieceLength, long length) {
+        return new SingleFileInfo(pieceLength, hashes(pieceLength, length), false, "file", length, null);
+    }
+
+    private static PieceHashTable hashes(int pieceLength, long totalLength) {
+        return new PieceHashTable(new byte[20 * (int)((totalLength + pieceLength - 1) / pieceLength)]);
+    }
+
+    /**
+     * Random content.
+     * @param length byte length
+     * @param seed seed
+     * @return content
+     */
+    static byte[] content(int length, long seed) {
+
+        byte[] b = new byte[length];
+        new Random(seed).nextBytes(b);
+
+        return b;
+    }
+
+    static File createDirectory() throws IOException {
+        return Files.createTempDirectory("bittorrentj").toFile();
+    }
+
+    /**
+     * Deletes file, or directory with all its content.
+     * @param f file or directory
+     */
+    static void delete(File f) {
+
+        File[] children = f.listFiles();
+
+        if(children != null)
+            for(File c: children)
+                delete(c);
+
+        f.delete();
+    }
+}
@@ -0,0 +1,162 @@
+package org.bittorrentj.disk;
+
+import org.bittorrentj.disk.event.DiskEvent;
+import org.bittorrentj.disk.event.DiskEventHandler;
+import org.bittorrentj.torrent.Info;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Benchmark of downloading 512 pieces of 1 MiB, 32 at a time, with blocks arriving in
+ * random order, through a WriteCache, against writing each block as it arrives.
+ *
+ * Reports time until all pieces are hashed and flushed, and the number of jobs
+ * of each kind, where each write job is one gathered write to storage.
+ * Takes size of cache in MiB as argument, 16 MiB by default.
+ */
+public class WriteCacheBenchmark {
+
+    private final static int PIECE_LENGTH = 1024 * 1024;
+    private final static int BLOCK_SIZE = 16 * 1024;
+    private final static int NUMBER_OF_PIECES = 512;
+    private final static int NUMBER_OF_BLOCKS = PIECE_LENGTH / BLOCK_SIZE;
+
+    private final static int CONCURRENT_PIECES = 32;
+
+    private static void count(Map<String, Integer> jobs, DiskJob job) {
+
+        String name = job.getClass().getSimpleName();
+        Integer n = jobs.get(name);
+
+        jobs.put(name, n == null ? 1 : n + 1);
+    }
+
+    private static void run(boolean cached, long cacheSize, File directory) throws IOException, InterruptedException {
+
+        Info info = TestStorage.singleFileInfo(PIECE_LENGTH, (long)NUMBER_OF_PIECES * PIECE_LENGTH);
+        DiskManager diskManager = new DiskManager(info, directory);
+        DiskJobQueue diskJobQueue = new DiskJobQueue(4, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+        CompletedJobs completed = new CompletedJobs();
+        WriteCache cache = new WriteCache(diskManager, diskJobQueue, completed, BLOCK_SIZE, cacheSize);
+
+        Random random = new Random(7);
+        ByteBuffer[] block = {ByteBuffer.allocateDirect(BLOCK_SIZE)};
+
+        // Order in which blocks of each piece arrive, and number arrived
+        int[][] order = new int[NUMBER_OF_PIECES][];
+        int[] arrived = new int[NUMBER_OF_PIECES];
+
+        ArrayList<Integer> active = new ArrayList<Integer>();
+        int next = 0;
+        int hashed = 0;
+
+        Map<String, Integer> jobs = new TreeMap<String, Integer>();
+
+        long t0 = System.nanoTime();
+
+        while(hashed < NUMBER_OF_PIECES) {
+
+            while(active.size() < CONCURRENT_PIECES && next < NUMBER_OF_PIECES) {
+
+                order[next] = new int[NUMBER_OF_BLOCKS];
+
+                for(int i = 0;i < NUMBER_OF_BLOCKS;i++)
+                    order[next][i] = i;
+
+                for(int i = NUMBER_OF_BLOCKS - 1;i > 0;i--) {
+
+                    int j = random.nextInt(i + 1);
+                    int t = order[next][i];
+
+                    order[next][i] = order[next][j];
+                    order[next][j] = t;
+                }
+
+                active.add(next++);
+            }
+
+            if(!active.isEmpty() && !diskJobQueue.isFull()) {
+
+                int k = random.nextInt(active.size());
+                int index = active.get(k);
+                int begin = order[index][arrived[index]++] * BLOCK_SIZE;
+
+                if(cached)
+                    cache.writeBlock(index, begin, block);
+                else
+                    diskJobQueue.submit(new WriteBlockJob(diskManager, index, begin, block), completed);
+
+                if(arrived[index] == NUMBER_OF_BLOCKS) {
+
+                    active.remove(k);
+
+                    if(cached)
+                        cache.pieceCompleted(index);
+                    else
+                        diskJobQueue.submit(new HashPieceJob(diskManager, index), completed);
+                }
+            }
+
+            // Wait for jobs only when nothing else can be done
+            while(!completed.isEmpty() || (diskJobQueue.isFull() || active.isEmpty()) && hashed < NUMBER_OF_PIECES) {
+
+                DiskJob job = completed.take();
+
+                cache.jobCompleted(job);
+                count(jobs, job);
+
+                if(job instanceof HashPieceJob)
+                    hashed++;
+            }
+        }
+
+        final CountDownLatch flushed = new CountDownLatch(1);
+
+        diskJobQueue.submit(new FlushJob(diskManager), new DiskEventHandler() {
+
+            @Override
+            public void diskEventHandler(DiskEvent e) {
+                flushed.countDown();
+            }
+        });
+
+        flushed.await();
+
+        long t1 = System.nanoTime();
+
+        System.out.printf("%s: %.2f s, %.0f MB/s, jobs %s%n",
+                cached ? "cache of " + cacheSize / (1024 * 1024) + " MiB" : "no cache",
+                (t1 - t0) / 1e9,
+                (double)NUMBER_OF_PIECES * PIECE_LENGTH / (1024 * 1024) / ((t1 - t0) / 1e9),
+                jobs);
+
+        diskJobQueue.shutdown();
+        diskManager.close();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+
+        long cacheSize = args.length > 0 ? Long.parseLong(args[0]) * 1024 * 1024 : WriteCache.DEFAULT_SIZE;
+
+        File directory = TestStorage.createDirectory();
+
+        try {
+
+            // First runs warm up
+            for(int i = 0;i < 3;i++) {
+                run(false, cacheSize, directory);
+                run(true, cacheSize, directory);
+            }
+
+        } finally {
+            TestStorage.delete(directory);
+        }
+    }
+}
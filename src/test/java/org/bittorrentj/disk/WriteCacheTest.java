@@ -0,0 +1,285 @@
+package org.bittorrentj.disk;
+
+import junit.framework.TestCase;
+import org.bittorrentj.torrent.Info;
+import org.bittorrentj.torrent.InfoHasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tests of WriteCache, with jobs performed by a queue with a single worker,
+ * so they complete in the order submitted.
+ */
+public class WriteCacheTest extends TestCase {
+
+    private final static int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Pieces of two blocks, the last of which has a short last block.
+     */
+    private final static int PIECE_LENGTH = 2 * BLOCK_SIZE;
+    private final static int NUMBER_OF_PIECES = 8;
+    private final static long TOTAL_LENGTH = (NUMBER_OF_PIECES - 1) * PIECE_LENGTH + BLOCK_SIZE + 100;
+
+    private File directory;
+
+    private Info info;
+
+    private DiskManager diskManager;
+
+    private DiskJobQueue diskJobQueue;
+
+    private CompletedJobs completed;
+
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        directory = TestStorage.createDirectory();
+        info = TestStorage.singleFileInfo(PIECE_LENGTH, TOTAL_LENGTH);
+        diskManager = new DiskManager(info, directory);
+        diskJobQueue = new DiskJobQueue(1, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+        completed = new CompletedJobs();
+        content = TestStorage.content((int)TOTAL_LENGTH, 1);
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        diskJobQueue.shutdown();
+        diskManager.close();
+        TestStorage.delete(directory);
+    }
+
+    private WriteCache cache(int maxBlocks) {
+        return new WriteCache(diskManager, diskJobQueue, completed, BLOCK_SIZE, (long)maxBlocks * BLOCK_SIZE);
+    }
+
+    private ByteBuffer[] block(int index, int block) {
+
+        int offset = index * PIECE_LENGTH + block * BLOCK_SIZE;
+        int length = Math.min(BLOCK_SIZE, info.getPieceLength(index) - block * BLOCK_SIZE);
+
+        return new ByteBuffer[] {ByteBuffer.wrap(content, offset, length)};
+    }
+
+    private byte[] expectedHash(int index) {
+
+        ByteBuffer piece = ByteBuffer.wrap(content, index * PIECE_LENGTH, info.getPieceLength(index));
+
+        return InfoHasher.getDigest().digest(Arrays.copyOfRange(content, piece.position(), piece.limit()));
+    }
+
+    private void writePiece(WriteCache cache, int index) {
+
+        cache.writeBlock(index, BLOCK_SIZE, block(index, 1));
+        cache.writeBlock(index, 0, block(index, 0));
+        cache.pieceCompleted(index);
+    }
+
+    /**
+     * Takes next completed job, which is passed back to cache.
+     */
+    private DiskJob complete(WriteCache cache, Class<? extends DiskJob> expected) throws InterruptedException {
+
+        DiskJob job = completed.take();
+
+        assertEquals(expected, job.getClass());
+        assertTrue(job.isSuccessful());
+
+        cache.jobCompleted(job);
+
+        return job;
+    }
+
+    private void assertStored(int index) throws IOException {
+
+        ByteBuffer dst = ByteBuffer.allocate(info.getPieceLength(index));
+        diskManager.readPiece(index, dst);
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, index * PIECE_LENGTH, index * PIECE_LENGTH + dst.capacity()), dst.array()));
+    }
+
+    public void testPieceIsWrittenOnceComplete() throws Exception {
+
+        WriteCache cache = cache(4);
+
+        cache.writeBlock(0, BLOCK_SIZE, block(0, 1));
+
+        assertNull(cache.getHash(0));
+
+        // Memory for full piece is reserved by first block
+        assertEquals(PIECE_LENGTH, cache.getHeldBytes());
+
+        cache.writeBlock(0, 0, block(0, 0));
+
+        // Hash is known when last block arrives, before piece is written
+        assertTrue(Arrays.equals(expectedHash(0), cache.getHash(0).getRaw()));
+        assertTrue(completed.isEmpty());
+
+        cache.pieceCompleted(0);
+
+        WritePieceJob job = (WritePieceJob)complete(cache, WritePieceJob.class);
+
+        assertEquals(0, job.getIndex());
+        assertTrue(Arrays.equals(expectedHash(0), job.getHash().getRaw()));
+        assertEquals(0, cache.getHeldBytes());
+
+        assertStored(0);
+    }
+
+    public void testShortLastPiece() throws Exception {
+
+        WriteCache cache = cache(4);
+        int last = NUMBER_OF_PIECES - 1;
+
+        writePiece(cache, last);
+
+        WritePieceJob job = (WritePieceJob)complete(cache, WritePieceJob.class);
+
+        assertTrue(Arrays.equals(expectedHash(last), job.getHash().getRaw()));
+        assertEquals(0, cache.getHeldBytes());
+
+        assertStored(last);
+    }
+
+    public void testBlockIsCopied() throws Exception {
+
+        WriteCache cache = cache(4);
+
+        // Block given in two segments, which are altered once written to cache
+        byte[] first = Arrays.copyOfRange(content, 0, 100);
+        byte[] rest = Arrays.copyOfRange(content, 100, BLOCK_SIZE);
+        ByteBuffer[] segments = {ByteBuffer.wrap(first), ByteBuffer.wrap(rest)};
+
+        cache.writeBlock(0, 0, segments);
+
+        assertEquals(0, segments[0].position());
+        assertEquals(0, segments[1].position());
+
+        Arrays.fill(first, (byte)0);
+        Arrays.fill(rest, (byte)0);
+
+        cache.writeBlock(0, BLOCK_SIZE, block(0, 1));
+        cache.pieceCompleted(0);
+
+        complete(cache, WritePieceJob.class);
+
+        assertStored(0);
+    }
+
+    public void testBuffersAreReused() throws Exception {
+
+        WriteCache cache = cache(4);
+
+        writePiece(cache, 0);
+
+        ByteBuffer[] blocks = ((WritePieceJob)complete(cache, WritePieceJob.class)).getBlocks();
+
+        writePiece(cache, 1);
+
+        ByteBuffer[] reused = ((WritePieceJob)complete(cache, WritePieceJob.class)).getBlocks();
+
+        for(ByteBuffer b: reused)
+            assertTrue(b == blocks[0] || b == blocks[1]);
+
+        assertStored(0);
+        assertStored(1);
+    }
+
+    public void testPieceWhichDoesNotFitIsWrittenAsBlocksArrive() throws Exception {
+
+        WriteCache cache = cache(3);
+
+        cache.writeBlock(0, 0, block(0, 0));
+
+        // Second piece does not fit, and no piece is stalled
+        cache.writeBlock(1, 0, block(1, 0));
+
+        assertNull(cache.getHash(1));
+        assertEquals(PIECE_LENGTH, cache.getHeldBytes());
+
+        complete(cache, WriteBlockJob.class);
+
+        cache.writeBlock(1, BLOCK_SIZE, block(1, 1));
+        cache.pieceCompleted(1);
+
+        complete(cache, WriteBlockJob.class);
+
+        // Piece is hashed as stored
+        HashPieceJob job = (HashPieceJob)complete(cache, HashPieceJob.class);
+
+        assertEquals(1, job.getIndex());
+        assertTrue(Arrays.equals(expectedHash(1), job.getHash().getRaw()));
+
+        assertStored(1);
+    }
+
+    public void testStalledPieceIsEvicted() throws Exception {
+
+        WriteCache cache = cache(5);
+
+        // Piece 0 receives one block, and then nothing
+        cache.writeBlock(0, BLOCK_SIZE, block(0, 1));
+
+        // Other pieces receive more blocks than cache holds
+        for(int i = 1;i <= 3;i++) {
+            writePiece(cache, i);
+            complete(cache, WritePieceJob.class);
+        }
+
+        cache.writeBlock(4, 0, block(4, 0));
+
+        // Piece 5 does not fit, so stalled piece 0 is evicted to admit it
+        cache.writeBlock(5, 0, block(5, 0));
+
+        FlushBlocksJob flush = (FlushBlocksJob)complete(cache, FlushBlocksJob.class);
+
+        assertEquals(0, flush.getIndex());
+        assertNull(flush.getBlocks()[0]);
+
+        // Reservations of pieces 4 and 5
+        assertEquals(2 * PIECE_LENGTH, cache.getHeldBytes());
+
+        // Rest of evicted piece is written as it arrives, and hashed as stored
+        cache.writeBlock(0, 0, block(0, 0));
+
+        assertNull(cache.getHash(0));
+
+        cache.pieceCompleted(0);
+
+        complete(cache, WriteBlockJob.class);
+
+        HashPieceJob job = (HashPieceJob)complete(cache, HashPieceJob.class);
+
+        assertTrue(Arrays.equals(expectedHash(0), job.getHash().getRaw()));
+
+        assertStored(0);
+    }
+
+    public void testDroppedPieceIsReleased() throws Exception {
+
+        WriteCache cache = cache(4);
+
+        cache.writeBlock(0, 0, block(0, 0));
+        cache.writeBlock(1, BLOCK_SIZE, block(1, 1));
+
+        assertEquals(2 * PIECE_LENGTH, cache.getHeldBytes());
+
+        cache.pieceDropped(0);
+        cache.pieceDropped(1);
+
+        assertEquals(0, cache.getHeldBytes());
+        assertNull(cache.getHash(0));
+        assertTrue(completed.isEmpty());
+
+        // Piece may be downloaded again
+        writePiece(cache, 0);
+        complete(cache, WritePieceJob.class);
+
+        assertStored(0);
+    }
+}
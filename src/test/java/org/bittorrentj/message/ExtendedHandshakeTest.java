@@ -0,0 +1,188 @@
+package org.bittorrentj.message;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.BencodableByteString;
+import org.bittorrentj.bencodej.BencodableInteger;
+import org.bittorrentj.bencodej.BencodeableDictionary;
+import org.bittorrentj.bencodej.LazyBencodeableDictionary;
+import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.exceptions.MalformedMDictionaryException;
+import org.bittorrentj.message.exceptions.PayloadDoesNotContainMDictionaryException;
+import org.bittorrentj.message.field.MessageId;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Tests of extension ids in the m dictionary of ExtendedHandshake, and of
+ * handshakes read from their wire representation.
+ */
+public class ExtendedHandshakeTest extends TestCase {
+
+    private static BencodeableDictionary payload(String name, long id) {
+
+        BencodeableDictionary m = new BencodeableDictionary();
+        m.put(new BencodableByteString(name), new BencodableInteger(id));
+
+        BencodeableDictionary payload = new BencodeableDictionary();
+        payload.put(new BencodableByteString("m"), m);
+
+        return payload;
+    }
+
+    private static void assertRejected(long id) throws Exception {
+
+        try {
+            new ExtendedHandshake(payload("ut_pex", id));
+            fail("Extension id " + id + " was accepted");
+        } catch(MalformedMDictionaryException e) {
+            // Expected
+        }
+    }
+
+    public void testEnabledAndDisabledExtensions() throws Exception {
+
+        ExtendedHandshake enabled = new ExtendedHandshake(payload("ut_pex", ExtendedHandshake.MAX_EXTENSION_ID));
+
+        HashMap<Integer, String> expected = new HashMap<Integer, String>();
+        expected.put(ExtendedHandshake.MAX_EXTENSION_ID, "ut_pex");
+
+        assertEquals(expected, enabled.getEnabledExtensions());
+        assertTrue(enabled.getDisabledExtensions().isEmpty());
+
+        ExtendedHandshake disabled = new ExtendedHandshake(payload("ut_pex", 0));
+
+        assertTrue(disabled.getEnabledExtensions().isEmpty());
+        assertEquals("ut_pex", disabled.getDisabledExtensions().getFirst());
+    }
+
+    public void testIdLargerThanOneByteIsRejected() throws Exception {
+        assertRejected(ExtendedHandshake.MAX_EXTENSION_ID + 1);
+    }
+
+    public void testIdLargerThanIntIsRejected() throws Exception {
+        assertRejected(1L << 40);
+    }
+
+    public void testNegativeIdIsRejected() throws Exception {
+        assertRejected(-1);
+        assertRejected(Long.MIN_VALUE);
+    }
+
+    public void testIdWhichIsNotAnIntegerIsRejected() throws Exception {
+
+        BencodeableDictionary m = new BencodeableDictionary();
+        m.put(new BencodableByteString("ut_pex"), new BencodableByteString("1"));
+
+        BencodeableDictionary payload = new BencodeableDictionary();
+        payload.put(new BencodableByteString("m"), m);
+
+        try {
+            new ExtendedHandshake(payload);
+            fail("Extension id which is a string was accepted");
+        } catch(MalformedMDictionaryException e) {
+            // Expected
+        }
+    }
+
+    public void testPayloadIsWrittenIntoMessageBuffer() throws Exception {
+
+        BencodeableDictionary payload = payload("ut_metadata", 3);
+        payload.put(new BencodableByteString("reqq"), new BencodableInteger(250));
+
+        ExtendedHandshake h = new ExtendedHandshake(payload);
+
+        // Message is sized without bencoding payload, and written after other bytes in buffer
+        ByteBuffer dst = ByteBuffer.allocate(7 + h.getRawMessageLength());
+        dst.position(7);
+
+        h.writeMessageToBuffer(dst);
+
+        assertFalse(dst.hasRemaining());
+
+        dst.position(7);
+
+        assertEquals(wire("d1:md11:ut_metadatai3ee4:reqqi250ee"), dst);
+    }
+
+    /**
+     * Wire representation of extended handshake with given payload.
+     */
+    private static ByteBuffer wire(String payload) {
+
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + 1 + payload.length());
+
+        b.putInt(1 + 1 + payload.length());
+        b.put(MessageId.EXTENDED.getRaw());
+        b.put((byte)ExtendedHandshake.HANDSHAKE_ID);
+        b.put(payload.getBytes());
+        b.flip();
+
+        return b;
+    }
+
+    public void testReceivedHandshake() throws Exception {
+
+        String payload = "d1:md11:ut_metadatai3e6:ut_pexi0ee13:metadata_sizei31235e4:reqqi500e1:v8:client 1e";
+        ByteBuffer src = wire(payload);
+
+        ExtendedHandshake h = (ExtendedHandshake) MessageWithLengthField.create(src, new HashMap<Integer, Extension>());
+
+        assertFalse(src.hasRemaining());
+
+        HashMap<Integer, String> expected = new HashMap<Integer, String>();
+        expected.put(3, "ut_metadata");
+
+        assertEquals(expected, h.getEnabledExtensions());
+        assertEquals("ut_pex", h.getDisabledExtensions().getFirst());
+        assertEquals(500, h.getRequestQueueSize());
+
+        // Keys not read by handshake are left for extensions, undecoded
+        LazyBencodeableDictionary received = (LazyBencodeableDictionary) h.getPayload();
+
+        assertEquals(new BencodableInteger(31235), received.get("metadata_size"));
+
+        // Forwarded as received
+        ByteBuffer dst = ByteBuffer.allocate(h.getRawMessageLength());
+        h.writeMessageToBuffer(dst);
+
+        assertFalse(dst.hasRemaining());
+        assertTrue(Arrays.equals(wire(payload).array(), dst.array()));
+    }
+
+    public void testReceivedHandshakeWithoutRequestQueueSize() throws Exception {
+
+        ExtendedHandshake h = new ExtendedHandshake(wire("d1:mdee"));
+
+        assertTrue(h.getEnabledExtensions().isEmpty());
+        assertEquals(ExtendedHandshake.DEFAULT_REQUEST_QUEUE_SIZE, h.getRequestQueueSize());
+    }
+
+    public void testReceivedHandshakeWithoutMDictionaryIsRejected() throws Exception {
+
+        try {
+            new ExtendedHandshake(wire("d1:v8:client 1e"));
+            fail("Handshake without m dictionary was accepted");
+        } catch(PayloadDoesNotContainMDictionaryException e) {
+            // Expected
+        }
+
+        try {
+            new ExtendedHandshake(wire("d1:mli1eee"));
+            fail("Handshake with m list was accepted");
+        } catch(MalformedMDictionaryException e) {
+            // Expected
+        }
+    }
+
+    public void testReceivedHandshakeWithOutOfRangeIdIsRejected() throws Exception {
+
+        try {
+            new ExtendedHandshake(wire("d1:md6:ut_pexi256eee"));
+            fail("Extension id 256 was accepted");
+        } catch(MalformedMDictionaryException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.bittorrentj.message;
+
+import junit.framework.TestCase;
+import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.exceptions.InvalidMessageLengthFieldException;
+import org.bittorrentj.message.field.MessageId;
+import org.bittorrentj.message.field.exceptions.UnrecognizedMessageIdException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Tests of MessageView, over messages which are contiguous, and
+ * which wrap around the end of a circular buffer at every possible point.
+ */
+public class MessageViewTest extends TestCase {
+
+    private final static int CAPACITY = 64;
+
+    private static byte[] raw(MessageWithLengthField m) {
+
+        ByteBuffer b = ByteBuffer.allocate(m.getRawMessageLength());
+        m.writeMessageToBuffer(b);
+
+        return b.array();
+    }
+
+    /**
+     * Buffer with given bytes starting at given offset, wrapping around its end.
+     */
+    private static ByteBuffer ring(byte[] raw, int offset) {
+
+        ByteBuffer b = ByteBuffer.allocate(CAPACITY);
+
+        for(int i = 0;i < raw.length;i++)
+            b.put((offset + i) % CAPACITY, raw[i]);
+
+        return b;
+    }
+
+    private static byte[] concatenate(ByteBuffer[] segments) {
+
+        int length = 0;
+        for(ByteBuffer s: segments)
+            length += s.remaining();
+
+        ByteBuffer b = ByteBuffer.allocate(length);
+
+        for(ByteBuffer s: segments)
+            b.put(s.duplicate());
+
+        return b.array();
+    }
+
+    public void testRequestAtEveryOffset() throws Exception {
+
+        Request request = new Request(7, 16384, 16384);
+        byte[] raw = raw(request);
+        MessageView view = new MessageView();
+
+        for(int offset = 0;offset < CAPACITY;offset++) {
+
+            ByteBuffer b = ring(raw, offset);
+
+            view.wrap(b, offset);
+
+            assertEquals(MessageId.REQUEST, view.getId());
+            assertEquals(raw.length, view.getRawMessageLength());
+            assertEquals(7, view.getIndex());
+            assertEquals(16384, view.getBegin());
+            assertEquals(16384, view.getLength());
+            assertEquals(offset + raw.length > CAPACITY, view.isWrapped());
+            assertEquals(request, view.toMessage(new HashMap<Integer, Extension>()));
+
+            // Buffer is not altered
+            assertEquals(0, b.position());
+            assertEquals(CAPACITY, b.limit());
+        }
+    }
+
+    public void testPieceBlockAtEveryOffset() throws Exception {
+
+        byte[] block = new byte[20];
+        for(int i = 0;i < block.length;i++)
+            block[i] = (byte)i;
+
+        byte[] raw = raw(new Piece(3, 32, block));
+        MessageView view = new MessageView();
+
+        for(int offset = 0;offset < CAPACITY;offset++) {
+
+            view.wrap(ring(raw, offset), offset);
+
+            assertEquals(MessageId.PIECE, view.getId());
+            assertEquals(3, view.getIndex());
+            assertEquals(32, view.getBegin());
+            assertEquals(block.length, view.getBlockLength());
+
+            ByteBuffer[] segments = view.getBlock();
+
+            // Block is only split when it straddles end of buffer
+            int blockStart = (offset + Piece.HEADER_SIZE) % CAPACITY;
+            assertEquals(blockStart + block.length > CAPACITY ? 2 : 1, segments.length);
+
+            assertTrue(Arrays.equals(block, concatenate(segments)));
+            assertTrue(segments[0].isReadOnly());
+        }
+    }
+
+    public void testViewIsReused() throws Exception {
+
+        MessageView view = new MessageView();
+        ByteBuffer b = ByteBuffer.allocate(CAPACITY);
+
+        b.put(raw(new Have(1)));
+        b.put(raw(new Have(2)));
+
+        assertSame(view, view.wrap(b, 0));
+        assertEquals(1, view.getIndex());
+
+        view.wrap(b, 9);
+        assertEquals(2, view.getIndex());
+    }
+
+    public void testKeepAlive() throws Exception {
+
+        MessageView view = new MessageView().wrap(ByteBuffer.allocate(CAPACITY), 0);
+
+        assertTrue(view.isKeepAlive());
+        assertNull(view.getId());
+        assertEquals(4, view.getRawMessageLength());
+    }
+
+    public void testInvalidLengthField() throws Exception {
+
+        ByteBuffer b = ByteBuffer.allocate(CAPACITY);
+
+        // HAVE with one byte too many
+        b.putInt(0, 6);
+        b.put(4, MessageId.HAVE.getRaw());
+
+        try {
+            new MessageView().wrap(b, 0);
+            fail();
+        } catch(InvalidMessageLengthFieldException e) {
+        }
+    }
+
+    public void testUnrecognizedId() throws Exception {
+
+        ByteBuffer b = ByteBuffer.allocate(CAPACITY);
+
+        b.putInt(0, 1);
+        b.put(4, (byte)99);
+
+        try {
+            new MessageView().wrap(b, 0);
+            fail();
+        } catch(UnrecognizedMessageIdException e) {
+        }
+    }
+}
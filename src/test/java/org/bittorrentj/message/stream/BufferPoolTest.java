@@ -0,0 +1,197 @@
+package org.bittorrentj.message.stream;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Tests of lending buffers out of BufferPool, growing it by slabs,
+ * dropping idle surplus slabs and detecting buffers released twice.
+ */
+public class BufferPoolTest extends TestCase {
+
+    private final static long IDLE_THRESHOLD = 1000L * 1000 * 1000;
+
+    private SimulatedClock clock;
+    private BufferPool pool;
+
+    @Override
+    protected void setUp() {
+        clock = new SimulatedClock();
+        pool = new BufferPool(clock, IDLE_THRESHOLD);
+    }
+
+    private ArrayList<ByteBuffer> acquire(int n) {
+
+        ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+        for(int i = 0;i < n;i++)
+            buffers.add(pool.acquire());
+
+        return buffers;
+    }
+
+    private void release(ArrayList<ByteBuffer> buffers) {
+
+        for(ByteBuffer b: buffers)
+            pool.release(b);
+    }
+
+    public void testAcquireAndRelease() {
+
+        assertEquals(0, pool.getNumberOfSlabs());
+
+        ByteBuffer b = pool.acquire();
+
+        assertTrue(b.isDirect());
+        assertEquals(MessageStream.BUFFER_SIZE, b.capacity());
+        assertEquals(0, b.position());
+        assertEquals(MessageStream.BUFFER_SIZE, b.limit());
+        assertEquals(1, pool.getBuffersInUse());
+
+        b.putInt(1);
+        pool.release(b);
+
+        assertEquals(0, pool.getBuffersInUse());
+
+        // Most recently returned buffer is lent out again, cleared
+        ByteBuffer c = pool.acquire();
+
+        assertSame(b, c);
+        assertEquals(0, c.position());
+        assertEquals(1, pool.getNumberOfSlabs());
+    }
+
+    public void testBuffersDoNotOverlap() {
+
+        ArrayList<ByteBuffer> buffers = acquire(BufferPool.BUFFERS_PER_SLAB);
+
+        for(int i = 0;i < buffers.size();i++)
+            buffers.get(i).putInt(0, i);
+
+        for(int i = 0;i < buffers.size();i++)
+            assertEquals(i, buffers.get(i).getInt(0));
+    }
+
+    public void testPoolGrowsBySlabs() {
+
+        ArrayList<ByteBuffer> buffers = acquire(BufferPool.BUFFERS_PER_SLAB);
+
+        assertEquals(1, pool.getNumberOfSlabs());
+
+        buffers.add(pool.acquire());
+
+        assertEquals(2, pool.getNumberOfSlabs());
+        assertEquals(2 * BufferPool.BUFFERS_PER_SLAB, pool.getNumberOfBuffers());
+        assertEquals(2L * BufferPool.BUFFERS_PER_SLAB * MessageStream.BUFFER_SIZE, pool.getAllocatedBytes());
+        assertEquals(BufferPool.BUFFERS_PER_SLAB + 1, pool.getPeakBuffersInUse());
+
+        release(buffers);
+
+        assertEquals(0, pool.getBuffersInUse());
+        assertEquals(BufferPool.BUFFERS_PER_SLAB + 1, pool.getPeakBuffersInUse());
+    }
+
+    public void testIdleSurplusSlabsAreReclaimed() {
+
+        release(acquire(3 * BufferPool.BUFFERS_PER_SLAB));
+
+        assertEquals(3, pool.getNumberOfSlabs());
+
+        // Not idle for long enough
+        clock.advance(IDLE_THRESHOLD - 1);
+        pool.reclaimIdleSlabs();
+
+        assertEquals(3, pool.getNumberOfSlabs());
+
+        // First slab is kept
+        clock.advance(1);
+        pool.reclaimIdleSlabs();
+
+        assertEquals(1, pool.getNumberOfSlabs());
+        assertEquals(2, pool.getNumberOfReclaimedSlabs());
+        assertEquals(BufferPool.BUFFERS_PER_SLAB, pool.getNumberOfBuffers());
+    }
+
+    public void testSlabInUseIsNotReclaimed() {
+
+        ArrayList<ByteBuffer> buffers = acquire(2 * BufferPool.BUFFERS_PER_SLAB);
+
+        // Return all but one buffer of second slab
+        ByteBuffer held = buffers.remove(buffers.size() - 1);
+        release(buffers);
+
+        clock.advance(2 * IDLE_THRESHOLD);
+        pool.reclaimIdleSlabs();
+
+        assertEquals(2, pool.getNumberOfSlabs());
+
+        // Idle time counts from when last buffer was returned
+        pool.release(held);
+
+        clock.advance(IDLE_THRESHOLD - 1);
+        pool.reclaimIdleSlabs();
+
+        assertEquals(2, pool.getNumberOfSlabs());
+
+        clock.advance(1);
+        pool.reclaimIdleSlabs();
+
+        assertEquals(1, pool.getNumberOfSlabs());
+    }
+
+    public void testSurplusSlabsDrainAsTrafficFalls() {
+
+        release(acquire(2 * BufferPool.BUFFERS_PER_SLAB));
+
+        // Buffers are lent out of oldest slab, so a few busy streams leave second slab idle
+        for(int i = 0;i < 10;i++) {
+
+            clock.advance(IDLE_THRESHOLD / 4);
+            release(acquire(BufferPool.BUFFERS_PER_SLAB / 2));
+        }
+
+        // Reclaimed as buffers are released
+        assertEquals(1, pool.getNumberOfSlabs());
+        assertEquals(1, pool.getNumberOfReclaimedSlabs());
+    }
+
+    public void testReleasingBufferTwiceIsDetected() {
+
+        ByteBuffer b = pool.acquire();
+        ByteBuffer c = pool.acquire();
+
+        pool.release(b);
+
+        try {
+            pool.release(b);
+            fail("Buffer released twice was accepted");
+        } catch(IllegalStateException e) {
+            // Expected
+        }
+
+        // Buffer is not lent out twice either
+        ByteBuffer d = pool.acquire();
+        ByteBuffer e = pool.acquire();
+
+        assertNotSame(d, e);
+        assertNotSame(c, d);
+        assertNotSame(c, e);
+        assertEquals(3, pool.getBuffersInUse());
+    }
+
+    public void testReleasingForeignBufferIsDetected() {
+
+        pool.acquire();
+
+        try {
+            pool.release(ByteBuffer.allocateDirect(MessageStream.BUFFER_SIZE));
+            fail("Buffer not acquired from pool was accepted");
+        } catch(IllegalStateException e) {
+            // Expected
+        }
+
+        assertEquals(1, pool.getBuffersInUse());
+    }
+}
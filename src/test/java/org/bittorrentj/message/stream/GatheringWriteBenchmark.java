@@ -0,0 +1,163 @@
+package org.bittorrentj.message.stream;
+
+import org.bittorrentj.message.Cancel;
+import org.bittorrentj.message.Have;
+import org.bittorrentj.message.KeepAlive;
+import org.bittorrentj.message.MessageWithLengthField;
+import org.bittorrentj.message.Piece;
+import org.bittorrentj.message.Request;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+
+/**
+ * Loopback benchmark of request heavy traffic written by OutputMessageStream, which
+ * flushes queued messages in batches with gathering writes, against writing each
+ * message with its own write call.
+ *
+ * Each selector wakeup is simulated by queueing 64 HAVE, REQUEST, CANCEL and KEEP_ALIVE
+ * messages, with or without one 16 KiB PIECE among them. A thread drains the other end.
+ * Reports messages per second, and write calls per wakeup.
+ */
+public class GatheringWriteBenchmark {
+
+    private final static int MESSAGES_PER_WAKEUP = 64;
+
+    private final static int NUMBER_OF_MESSAGES = 4 * 1000 * 1000;
+
+    private final static int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Messages queued at a wakeup.
+     */
+    private static void queue(LinkedList<MessageWithLengthField> queue, int wakeup, boolean withPiece) {
+
+        for(int i = 0;i < MESSAGES_PER_WAKEUP;i++) {
+
+            MessageWithLengthField m;
+
+            if(withPiece && i == MESSAGES_PER_WAKEUP / 2)
+                m = new Piece(wakeup, 0, ByteBuffer.allocate(BLOCK_SIZE));
+            else if(i % 4 == 0)
+                m = new Have(wakeup);
+            else if(i % 4 == 1)
+                m = new Request(wakeup, i * BLOCK_SIZE, BLOCK_SIZE);
+            else if(i % 4 == 2)
+                m = new Cancel(wakeup, i * BLOCK_SIZE, BLOCK_SIZE);
+            else
+                m = new KeepAlive();
+
+            queue.add(m);
+        }
+    }
+
+    /**
+     * Writes each message with its own write call, as done before batching.
+     * @return number of write calls
+     */
+    private static long writeOneByOne(SocketChannel channel, LinkedList<MessageWithLengthField> queue, ByteBuffer buffer) throws IOException {
+
+        long numberOfWriteCalls = 0;
+
+        while(!queue.isEmpty()) {
+
+            buffer.clear();
+            queue.removeFirst().writeMessageToBuffer(buffer);
+            buffer.flip();
+
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+                numberOfWriteCalls++;
+            }
+        }
+
+        return numberOfWriteCalls;
+    }
+
+    private static void run(SocketChannel channel, boolean batched, boolean withPiece) throws Exception {
+
+        TokenBucket bucket = new TokenBucket(Clock.SYSTEM, TokenBucket.UNLIMITED, 0);
+        OutputMessageStream out = new OutputMessageStream(channel, new MessageStreamManager(bucket), new BufferPool());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE + 13);
+        LinkedList<MessageWithLengthField> queue = new LinkedList<MessageWithLengthField>();
+
+        int numberOfWakeups = NUMBER_OF_MESSAGES / MESSAGES_PER_WAKEUP;
+        long numberOfWriteCalls = 0;
+        long numberOfBytes = 0;
+
+        long t0 = System.nanoTime();
+
+        for(int w = 0;w < numberOfWakeups;w++) {
+
+            queue(queue, w, withPiece);
+
+            for(MessageWithLengthField m: queue)
+                numberOfBytes += m.getRawMessageLength();
+
+            if(batched)
+                while(!queue.isEmpty())
+                    out.write(queue);
+            else
+                numberOfWriteCalls += writeOneByOne(channel, queue, buffer);
+        }
+
+        long t1 = System.nanoTime();
+
+        if(batched)
+            numberOfWriteCalls = out.getNumberOfWriteCalls();
+
+        System.out.printf("%s, %s: %.2f M messages/s, %.0f MB/s, %.1f write calls per wakeup%n",
+                batched ? "gathering writes" : "one write per message",
+                withPiece ? "with a piece" : "control only",
+                NUMBER_OF_MESSAGES / ((t1 - t0) / 1e3),
+                numberOfBytes / ((t1 - t0) / 1e3),
+                (double)numberOfWriteCalls / numberOfWakeups);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        final SocketChannel peer = server.accept();
+
+        client.configureBlocking(false);
+
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+
+                ByteBuffer b = ByteBuffer.allocateDirect(1024 * 1024);
+
+                try {
+
+                    do
+                        b.clear();
+                    while(peer.read(b) >= 0);
+
+                } catch(IOException e) {
+                    // Benchmark is over
+                }
+            }
+        };
+
+        reader.setDaemon(true);
+        reader.start();
+
+        // First runs warm up
+        for(int i = 0;i < 3;i++)
+            for(boolean withPiece: new boolean[] {false, true}) {
+                run(client, false, withPiece);
+                run(client, true, withPiece);
+            }
+
+        client.close();
+    }
+}
@@ -0,0 +1,227 @@
+package org.bittorrentj.message.stream;
+
+import junit.framework.TestCase;
+import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.Have;
+import org.bittorrentj.message.MessageView;
+import org.bittorrentj.message.MessageWithLengthField;
+import org.bittorrentj.message.Piece;
+import org.bittorrentj.swarm.exception.MessageToLargeForNetworkBufferException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests of InputMessageStream reading from a loopback connection,
+ * in linear and circular mode, including messages split across the wrap point of the ring.
+ */
+public class InputMessageStreamTest extends TestCase {
+
+    /**
+     * Writing and reading end of connection, the reading end is non-blocking.
+     */
+    private SocketChannel sender;
+    private SocketChannel receiver;
+
+    /**
+     * Number of messages handled.
+     */
+    private int numberOfMessages;
+
+    private MessageHandler handler = new MessageHandler() {
+
+        @Override
+        public void handle(MessageView view) {
+            numberOfMessages++;
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException {
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        sender = SocketChannel.open(server.getLocalAddress());
+        receiver = server.accept();
+        receiver.configureBlocking(false);
+
+        server.close();
+
+        numberOfMessages = 0;
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+    }
+
+    private InputMessageStream stream(boolean circular) {
+        return new InputMessageStream(receiver, new MessageStreamManager(new TokenBucket(Clock.SYSTEM, TokenBucket.UNLIMITED, 0)), new HashMap<Integer, Extension>(), new BufferPool(), circular);
+    }
+
+    private void send(ByteBuffer b) throws IOException {
+
+        b.flip();
+
+        while(b.hasRemaining())
+            sender.write(b);
+    }
+
+    /**
+     * Sends a length field followed by a few bytes of payload, and reads
+     * until stream rejects it, or fails if it does not within a second.
+     */
+    private void assertLengthFieldRejected(int lengthField, boolean circular) throws Exception {
+
+        ByteBuffer b = ByteBuffer.allocate(16);
+        b.putInt(lengthField);
+        b.put((byte)7);
+        b.putInt(0);
+        send(b);
+
+        InputMessageStream in = stream(circular);
+        long deadline = System.nanoTime() + 1000 * 1000 * 1000L;
+
+        while(System.nanoTime() < deadline) {
+
+            try {
+                in.read(handler);
+            } catch(MessageToLargeForNetworkBufferException e) {
+
+                assertEquals(lengthField, e.getSize());
+                assertEquals(0, numberOfMessages);
+                return;
+            }
+
+            Thread.sleep(1);
+        }
+
+        fail("Length field " + lengthField + " was not rejected");
+    }
+
+    public void testLengthFieldLargerThanBufferIsRejected() throws Exception {
+        assertLengthFieldRejected(MessageStream.BUFFER_SIZE - 3, false);
+    }
+
+    public void testLengthFieldOverflowingTotalSizeIsRejected() throws Exception {
+        assertLengthFieldRejected(Integer.MAX_VALUE - 3, false);
+    }
+
+    public void testLengthFieldOverflowingTotalSizeIsRejectedInRing() throws Exception {
+        assertLengthFieldRejected(Integer.MAX_VALUE - 3, true);
+    }
+
+    public void testLengthFieldWrappingTotalSizeToZeroIsRejected() throws Exception {
+        assertLengthFieldRejected(0xFFFFFFFC, false);
+    }
+
+    public void testLengthFieldWrappingTotalSizeToZeroIsRejectedInRing() throws Exception {
+        assertLengthFieldRejected(0xFFFFFFFC, true);
+    }
+
+    private static byte[] wire(MessageWithLengthField m) {
+
+        ByteBuffer b = ByteBuffer.allocate(m.getRawMessageLength());
+        m.writeMessageToBuffer(b);
+
+        return b.array();
+    }
+
+    /**
+     * Sends a piece message which fills the ring up to a given number of bytes
+     * before its end, followed by that many bytes of a second piece message, and
+     * once these are read, the rest of the second message and a have message.
+     * The second message is then read from both ends of the ring.
+     * @param bytesBeforeWrap number of bytes of second message before wrap point
+     */
+    private void assertMessageSplitAtWrapPoint(int bytesBeforeWrap) throws Exception {
+
+        final List<MessageWithLengthField> messages = new ArrayList<MessageWithLengthField>();
+        final List<Boolean> wrapped = new ArrayList<Boolean>();
+
+        MessageHandler collector = new MessageHandler() {
+
+            @Override
+            public void handle(MessageView view) {
+
+                wrapped.add(view.isWrapped());
+
+                try {
+                    messages.add(view.toMessage(new HashMap<Integer, Extension>()));
+                } catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        byte[] first = wire(new Piece(0, 0, new byte[MessageStream.BUFFER_SIZE - bytesBeforeWrap - Piece.HEADER_SIZE]));
+
+        byte[] block = new byte[1000];
+
+        for(int i = 0;i < block.length;i++)
+            block[i] = (byte)(i * 31 + 7);
+
+        byte[] second = wire(new Piece(1, 16, block));
+
+        InputMessageStream in = stream(true);
+
+        // Fill ring, leaving start of second message at its end
+        ByteBuffer b = ByteBuffer.allocate(MessageStream.BUFFER_SIZE);
+        b.put(first);
+        b.put(second, 0, bytesBeforeWrap);
+        send(b);
+
+        // Let all of it arrive, so it is read without the ring ever being empty
+        Thread.sleep(50);
+
+        long deadline = System.nanoTime() + 1000 * 1000 * 1000L;
+
+        while(messages.size() < 1 && System.nanoTime() < deadline)
+            in.read(collector);
+
+        assertEquals(1, messages.size());
+
+        // Rest of message is read into front of ring
+        b = ByteBuffer.allocate(second.length - bytesBeforeWrap + 16);
+        b.put(second, bytesBeforeWrap, second.length - bytesBeforeWrap);
+        b.put(wire(new Have(7)));
+        send(b);
+
+        while(messages.size() < 3 && System.nanoTime() < deadline) {
+            in.read(collector);
+            Thread.sleep(1);
+        }
+
+        assertEquals(3, messages.size());
+        assertEquals(Arrays.asList(false, true, false), wrapped);
+
+        Piece p = (Piece)messages.get(1);
+
+        assertEquals(1, p.getIndex());
+        assertEquals(16, p.getBegin());
+        assertEquals(ByteBuffer.wrap(block), p.getBlock());
+
+        assertEquals(7, ((Have)messages.get(2)).getPieceIndex());
+    }
+
+    public void testLengthFieldSplitAtWrapPoint() throws Exception {
+        assertMessageSplitAtWrapPoint(2);
+    }
+
+    public void testHeaderSplitAtWrapPoint() throws Exception {
+        assertMessageSplitAtWrapPoint(MessageWithLengthField.LENGTH_FIELD_SIZE + 1 + 3);
+    }
+
+    public void testBlockSplitAtWrapPoint() throws Exception {
+        assertMessageSplitAtWrapPoint(Piece.HEADER_SIZE + 100);
+    }
+}
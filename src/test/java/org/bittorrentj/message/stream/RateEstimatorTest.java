@@ -0,0 +1,97 @@
+package org.bittorrentj.message.stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of RateEstimator, driven by a SimulatedClock.
+ */
+public class RateEstimatorTest extends TestCase {
+
+    private SimulatedClock clock;
+
+    private RateEstimator estimator;
+
+    @Override
+    protected void setUp() {
+        clock = new SimulatedClock();
+        estimator = new RateEstimator(clock);
+    }
+
+    /**
+     * Transmits at a steady rate for given duration, in 10 ms steps.
+     * @param rate rate (bytes/s)
+     * @param millis duration (ms)
+     */
+    private void transmit(long rate, long millis) {
+
+        for(long t = 0;t < millis;t += 10) {
+            clock.advanceMillis(10);
+            estimator.add(rate / 100);
+        }
+    }
+
+    private static void assertNear(double expected, double actual, double tolerance) {
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * tolerance);
+    }
+
+    public void testNothingTransmitted() {
+
+        clock.advanceMillis(5000);
+
+        assertEquals(0.0, estimator.getRate(RateEstimator.SHORT), 0.0);
+        assertEquals(0.0, estimator.getRate(RateEstimator.LONG), 0.0);
+        assertEquals(0, estimator.getTotal());
+    }
+
+    public void testSteadyRateConverges() {
+
+        transmit(100 * 1000, 120 * 1000);
+
+        assertNear(100 * 1000, estimator.getRate(RateEstimator.SHORT), 0.02);
+        assertNear(100 * 1000, estimator.getRate(RateEstimator.MEDIUM), 0.02);
+        assertNear(100 * 1000, estimator.getRate(RateEstimator.LONG), 0.02);
+
+        assertEquals(100 * 1000 * 120, estimator.getTotal());
+    }
+
+    public void testEarlyEstimateIsNotTooLow() {
+
+        transmit(100 * 1000, 3 * 1000);
+
+        // Long horizons have not passed yet, but are corrected for time observed
+        assertNear(100 * 1000, estimator.getRate(RateEstimator.MEDIUM), 0.05);
+        assertNear(100 * 1000, estimator.getRate(RateEstimator.LONG), 0.05);
+    }
+
+    public void testFirstMessageIsNotABurst() {
+
+        estimator.add(16 * 1024);
+
+        // At least one second is assumed observed, weighted by the decay of the horizon
+        assertNear(16 * 1024 / -Math.expm1(-1), estimator.getRate(RateEstimator.SHORT), 1e-9);
+    }
+
+    public void testShortHorizonFollowsChangesFirst() {
+
+        transmit(100 * 1000, 60 * 1000);
+        transmit(10 * 1000, 5 * 1000);
+
+        double shortRate = estimator.getRate(RateEstimator.SHORT);
+        double longRate = estimator.getRate(RateEstimator.LONG);
+
+        assertNear(10 * 1000, shortRate, 0.1);
+        assertTrue(longRate > 70 * 1000);
+    }
+
+    public void testRateDecaysWhenIdle() {
+
+        transmit(100 * 1000, 60 * 1000);
+
+        double before = estimator.getRate(RateEstimator.SHORT);
+
+        clock.advanceMillis(5 * 1000);
+
+        // Five horizons have passed
+        assertTrue(estimator.getRate(RateEstimator.SHORT) < before * 0.01);
+    }
+}
@@ -0,0 +1,179 @@
+package org.bittorrentj.message.stream;
+
+import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.Choke;
+import org.bittorrentj.message.Have;
+import org.bittorrentj.message.KeepAlive;
+import org.bittorrentj.message.MessageView;
+import org.bittorrentj.message.Piece;
+import org.bittorrentj.message.Request;
+import org.bittorrentj.message.field.MessageId;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Loopback benchmark of InputMessageStream reading PIECE messages with blocks of 16 KiB,
+ * each followed by up to three HAVE, REQUEST, CHOKE or KEEP_ALIVE messages, with the
+ * buffer used as a ring, against the buffer being compacted.
+ *
+ * Reports the number of compaction copies, the number of messages passed through a
+ * view across the wrap point, and throughput. Every block is read byte by byte into a
+ * checksum, which is the same in both modes.
+ */
+public class RingBufferReadBenchmark {
+
+    private final static int BLOCK_SIZE = 16 * 1024;
+
+    private final static int NUMBER_OF_PIECES = 2048;
+
+    /**
+     * Number of times traffic is sent per run.
+     */
+    private final static int ROUNDS = 20;
+
+    /**
+     * Traffic sent each round, and number of messages in it.
+     */
+    private static byte[] traffic;
+    private static int numberOfMessages;
+
+    private static void createTraffic() {
+
+        ByteBuffer b = ByteBuffer.allocate(NUMBER_OF_PIECES * (BLOCK_SIZE + 100));
+        Random random = new Random(1);
+
+        numberOfMessages = 0;
+
+        for(int i = 0;i < NUMBER_OF_PIECES;i++) {
+
+            byte[] block = new byte[BLOCK_SIZE];
+            random.nextBytes(block);
+
+            new Piece(i, 0, block).writeMessageToBuffer(b);
+            numberOfMessages++;
+
+            int k = random.nextInt(4);
+
+            for(int j = 0;j < k;j++) {
+
+                switch(random.nextInt(4)) {
+                    case 0: new Have(i).writeMessageToBuffer(b); break;
+                    case 1: new Request(i, 0, BLOCK_SIZE).writeMessageToBuffer(b); break;
+                    case 2: new Choke().writeMessageToBuffer(b); break;
+                    default: new KeepAlive().writeMessageToBuffer(b);
+                }
+
+                numberOfMessages++;
+            }
+        }
+
+        b.flip();
+        traffic = new byte[b.remaining()];
+        b.get(traffic);
+    }
+
+    private static void run(boolean circular) throws Exception {
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        final SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        SocketChannel peer = server.accept();
+
+        server.close();
+
+        Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    for(int r = 0;r < ROUNDS;r++) {
+
+                        ByteBuffer b = ByteBuffer.wrap(traffic);
+
+                        while(b.hasRemaining())
+                            client.write(b);
+                    }
+
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        TokenBucket bucket = new TokenBucket(Clock.SYSTEM, TokenBucket.UNLIMITED, 0);
+        InputMessageStream in = new InputMessageStream(peer, new MessageStreamManager(bucket), new HashMap<Integer, Extension>(), new BufferPool(), circular);
+
+        // Number of messages, checksum, and number of messages across wrap point
+        final long[] statistics = new long[3];
+
+        MessageHandler handler = new MessageHandler() {
+
+            @Override
+            public void handle(MessageView view) {
+
+                statistics[0]++;
+
+                if(view.isWrapped())
+                    statistics[2]++;
+
+                if(view.getId() == MessageId.PIECE) {
+
+                    long x = view.getIndex();
+
+                    for(ByteBuffer segment: view.getBlock())
+                        for(int i = segment.position();i < segment.limit();i++)
+                            x = x * 31 + segment.get(i);
+
+                    statistics[1] += x;
+
+                } else if(view.getId() == MessageId.REQUEST || view.getId() == MessageId.HAVE)
+                    statistics[1] += view.getIndex();
+            }
+        };
+
+        long total = (long)ROUNDS * numberOfMessages;
+
+        long t0 = System.nanoTime();
+
+        writer.start();
+
+        while(statistics[0] < total)
+            in.read(handler);
+
+        long t1 = System.nanoTime();
+
+        writer.join();
+        client.close();
+        peer.close();
+
+        double seconds = (t1 - t0) / 1e9;
+
+        System.out.printf("%s: %d compaction copies, %d messages across wrap point, %.0f MB/s, %.2f M messages/s (checksum %d)%n",
+                circular ? "ring" : "compacted",
+                in.getCopyAtEdgeEvent(),
+                statistics[2],
+                (double)ROUNDS * traffic.length / seconds / 1e6,
+                statistics[0] / seconds / 1e6,
+                statistics[1]);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        createTraffic();
+
+        // First runs warm up
+        for(int i = 0;i < 3;i++) {
+            run(false);
+            run(true);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.bittorrentj.message.stream;
+
+import org.bittorrentj.extension.Extension;
+
+import java.util.HashMap;
+
+/**
+ * Streams without a channel, for tests and benchmarks in other packages of
+ * connections which are never read from or written to, only their managers are used.
+ */
+public class TestStreams {
+
+    public static InputMessageStream input(MessageStreamManager manager) {
+        return new InputMessageStream(null, manager, new HashMap<Integer, Extension>(), new BufferPool());
+    }
+
+    public static OutputMessageStream output(MessageStreamManager manager) {
+        return new OutputMessageStream(null, manager, new BufferPool());
+    }
+}
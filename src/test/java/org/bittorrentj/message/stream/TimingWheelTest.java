@@ -0,0 +1,264 @@
+package org.bittorrentj.message.stream;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Tests of TimingWheel, driven by a SimulatedClock.
+ */
+public class TimingWheelTest extends TestCase {
+
+    /**
+     * Duration (ms) of a tick, and number of slots of wheels tested.
+     */
+    private final static long TICK = 10;
+    private final static int SLOTS = 8;
+
+    private final static long MILLIS = 1000L * 1000;
+
+    private SimulatedClock clock;
+
+    private TimingWheel wheel;
+
+    /**
+     * Timer which records when it expired.
+     */
+    private class RecordingTimer extends TimingWheel.Timer {
+
+        int numberOfExpirations = 0;
+        long lastExpired = -1;
+
+        @Override
+        public void expired() {
+            numberOfExpirations++;
+            lastExpired = clock.nanoTime();
+        }
+    }
+
+    @Override
+    protected void setUp() {
+        clock = new SimulatedClock();
+        wheel = new TimingWheel(clock, TICK * MILLIS, SLOTS);
+    }
+
+    /**
+     * Advances clock and wheel one millisecond at a time.
+     */
+    private void run(long millis) {
+
+        for(long t = 0;t < millis;t++) {
+            clock.advanceMillis(1);
+            wheel.advance();
+        }
+    }
+
+    public void testExpiresOnTime() {
+
+        RecordingTimer timer = new RecordingTimer();
+
+        wheel.schedule(timer, 35 * MILLIS);
+        assertTrue(timer.isScheduled());
+        assertEquals(1, wheel.size());
+
+        run(34);
+        assertEquals(0, timer.numberOfExpirations);
+
+        run(100);
+        assertEquals(1, timer.numberOfExpirations);
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.size());
+
+        // At the latest one tick late
+        assertTrue(timer.lastExpired >= 35 * MILLIS);
+        assertTrue(timer.lastExpired <= (35 + TICK) * MILLIS);
+    }
+
+    public void testZeroDelayExpiresOnNextTick() {
+
+        RecordingTimer timer = new RecordingTimer();
+
+        wheel.schedule(timer, 0);
+        assertEquals(0, wheel.advance());
+
+        run(TICK);
+        assertEquals(1, timer.numberOfExpirations);
+    }
+
+    public void testDelayBeyondFullTurn() {
+
+        RecordingTimer timer = new RecordingTimer();
+
+        // More than two turns of the wheel
+        long delay = (2 * SLOTS * TICK + 25) * MILLIS;
+
+        wheel.schedule(timer, delay);
+
+        run(delay / MILLIS - 1);
+        assertEquals(0, timer.numberOfExpirations);
+
+        run(TICK);
+        assertEquals(1, timer.numberOfExpirations);
+        assertTrue(timer.lastExpired >= delay);
+    }
+
+    public void testRescheduleMovesTimer() {
+
+        RecordingTimer timer = new RecordingTimer();
+
+        wheel.schedule(timer, 20 * MILLIS);
+        wheel.schedule(timer, 200 * MILLIS);
+        assertEquals(1, wheel.size());
+
+        run(100);
+        assertEquals(0, timer.numberOfExpirations);
+
+        run(200);
+        assertEquals(1, timer.numberOfExpirations);
+    }
+
+    public void testCancel() {
+
+        RecordingTimer timer = new RecordingTimer();
+
+        wheel.schedule(timer, 20 * MILLIS);
+        wheel.cancel(timer);
+        assertFalse(timer.isScheduled());
+        assertEquals(0, wheel.size());
+
+        // Cancelling again does nothing
+        wheel.cancel(timer);
+
+        run(100);
+        assertEquals(0, timer.numberOfExpirations);
+    }
+
+    public void testStallFiresAllOverdueTimers() {
+
+        RecordingTimer[] timers = new RecordingTimer[50];
+
+        for(int i = 0;i < timers.length;i++) {
+            timers[i] = new RecordingTimer();
+            wheel.schedule(timers[i], i * 7 * MILLIS);
+        }
+
+        // Far longer than a turn of the wheel
+        clock.advanceMillis(10 * 1000);
+
+        assertEquals(timers.length, wheel.advance());
+
+        for(RecordingTimer t: timers)
+            assertEquals(1, t.numberOfExpirations);
+    }
+
+    public void testPeriodicTimer() {
+
+        final int[] count = new int[1];
+
+        TimingWheel.Timer periodic = new TimingWheel.Timer() {
+
+            @Override
+            public void expired() {
+                count[0]++;
+                wheel.schedule(this, 50 * MILLIS);
+            }
+        };
+
+        wheel.schedule(periodic, 50 * MILLIS);
+
+        run(1000);
+        assertEquals(20, count[0]);
+        assertTrue(periodic.isScheduled());
+    }
+
+    public void testTimerMayCancelOtherExpiredTimer() {
+
+        final RecordingTimer victim = new RecordingTimer();
+        final int[] count = new int[1];
+
+        TimingWheel.Timer canceller = new TimingWheel.Timer() {
+
+            @Override
+            public void expired() {
+                count[0]++;
+                wheel.cancel(victim);
+            }
+        };
+
+        // Both due on same advance, canceller scheduled first so it fires first
+        wheel.schedule(canceller, 10 * MILLIS);
+        wheel.schedule(victim, 10 * MILLIS);
+
+        clock.advanceMillis(100);
+
+        assertEquals(1, wheel.advance());
+        assertEquals(1, count[0]);
+        assertEquals(0, victim.numberOfExpirations);
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Schedules, reschedules and cancels many timers at random, and checks that
+     * every timer expires exactly once, no earlier than due and at most one tick late.
+     */
+    public void testRandomTimers() {
+
+        Random random = new Random(3);
+        RecordingTimer[] timers = new RecordingTimer[500];
+        long[] deadlines = new long[timers.length];
+        boolean[] cancelled = new boolean[timers.length];
+
+        for(int i = 0;i < timers.length;i++) {
+
+            timers[i] = new RecordingTimer();
+            deadlines[i] = (random.nextInt(2000) + 1) * MILLIS;
+            wheel.schedule(timers[i], deadlines[i]);
+        }
+
+        for(int step = 0;step < 500;step++) {
+
+            int i = random.nextInt(timers.length);
+
+            if(!timers[i].isScheduled())
+                continue;
+
+            if(random.nextBoolean()) {
+                deadlines[i] = clock.nanoTime() + (random.nextInt(2000) + 1) * MILLIS;
+                wheel.schedule(timers[i], deadlines[i] - clock.nanoTime());
+            } else {
+                wheel.cancel(timers[i]);
+                cancelled[i] = true;
+            }
+
+            run(random.nextInt(5));
+        }
+
+        run(5000);
+
+        for(int i = 0;i < timers.length;i++) {
+
+            if(cancelled[i]) {
+                assertEquals(0, timers[i].numberOfExpirations);
+                continue;
+            }
+
+            assertEquals(1, timers[i].numberOfExpirations);
+            assertTrue(timers[i].lastExpired >= deadlines[i]);
+            assertTrue(timers[i].lastExpired <= deadlines[i] + TICK * MILLIS);
+        }
+
+        assertEquals(0, wheel.size());
+    }
+
+    public void testNumberOfSlotsIsPowerOfTwo() {
+
+        assertEquals(8, new TimingWheel(clock, MILLIS, 5).getNumberOfSlots());
+        assertEquals(8, new TimingWheel(clock, MILLIS, 8).getNumberOfSlots());
+
+        try {
+            new TimingWheel(clock, 0, 8);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.bittorrentj.message.stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of TokenBucket hierarchies, driven by a SimulatedClock.
+ */
+public class TokenBucketTest extends TestCase {
+
+    /**
+     * Step (ms) by which time moves while buckets are drained.
+     */
+    private final static long STEP = 10;
+
+    private SimulatedClock clock;
+
+    @Override
+    protected void setUp() {
+        clock = new SimulatedClock();
+    }
+
+    /**
+     * Drains buckets for given duration, each step every bucket which is
+     * not idle consumes all it is permitted.
+     * @param buckets buckets
+     * @param idle whether each bucket is idle
+     * @param millis duration (ms)
+     * @return number of bytes consumed by each bucket
+     */
+    private long[] drain(TokenBucket[] buckets, boolean[] idle, long millis) {
+
+        long[] consumed = new long[buckets.length];
+
+        for(long t = 0;t < millis;t += STEP) {
+
+            clock.advanceMillis(STEP);
+
+            for(int i = 0;i < buckets.length;i++) {
+
+                if(idle[i])
+                    continue;
+
+                long n = buckets[i].available();
+
+                buckets[i].consume(n);
+                consumed[i] += n;
+            }
+        }
+
+        return consumed;
+    }
+
+    private static void assertNear(long expected, long actual, double tolerance) {
+        assertTrue("expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * tolerance);
+    }
+
+    public void testStartsFull() {
+
+        TokenBucket b = new TokenBucket(clock, 1000, 500);
+
+        assertEquals(500, b.available());
+    }
+
+    public void testUnlimited() {
+
+        TokenBucket b = new TokenBucket(clock, TokenBucket.UNLIMITED, 0);
+
+        assertEquals(Long.MAX_VALUE, b.available());
+
+        b.consume(1000 * 1000);
+
+        assertEquals(Long.MAX_VALUE, b.available());
+    }
+
+    public void testRefillsAtRateUpToBurst() {
+
+        TokenBucket b = new TokenBucket(clock, 1000, 500);
+
+        b.consume(500);
+        assertEquals(0, b.available());
+
+        clock.advanceMillis(100);
+        assertEquals(100, b.available());
+
+        clock.advanceMillis(10 * 1000);
+        assertEquals(500, b.available());
+    }
+
+    public void testOverdraftIsPaidBack() {
+
+        TokenBucket b = new TokenBucket(clock, 1000, 500);
+
+        b.consume(1500);
+        assertEquals(0, b.available());
+
+        clock.advanceMillis(1000);
+        assertEquals(0, b.available());
+
+        clock.advanceMillis(100);
+        assertEquals(100, b.available());
+    }
+
+    public void testSetRateDiscardsTokensAboveBurst() {
+
+        TokenBucket b = new TokenBucket(clock, 1000, 500);
+
+        b.setRate(2000, 100);
+
+        assertEquals(100, b.available());
+        assertEquals(2000, b.getRate());
+        assertEquals(100, b.getBurst());
+    }
+
+    public void testInvalidRate() {
+
+        try {
+            new TokenBucket(clock, -1, 100);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+
+        try {
+            new TokenBucket(clock, 1000, 0);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+
+        TokenBucket b = new TokenBucket(clock, 1000, 100);
+
+        try {
+            b.setRate(1000, -1);
+            fail();
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    public void testChildIsLimitedByOwnRate() {
+
+        TokenBucket root = new TokenBucket(clock, 100 * 1000, 1000);
+        TokenBucket child = new TokenBucket(root, 10 * 1000, 1000);
+
+        long[] consumed = drain(new TokenBucket[] {child}, new boolean[1], 10 * 1000);
+
+        assertNear(10 * 10 * 1000, consumed[0], 0.05);
+    }
+
+    public void testChildIsLimitedByParent() {
+
+        TokenBucket root = new TokenBucket(clock, 10 * 1000, 1000);
+        TokenBucket child = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+
+        long[] consumed = drain(new TokenBucket[] {child}, new boolean[1], 10 * 1000);
+
+        assertNear(10 * 10 * 1000, consumed[0], 0.05);
+    }
+
+    public void testConsumptionIsDrawnFromAncestors() {
+
+        TokenBucket root = new TokenBucket(clock, 1000, 1000);
+        TokenBucket swarm = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+        TokenBucket connection = new TokenBucket(swarm, TokenBucket.UNLIMITED, 0);
+
+        connection.consume(600);
+
+        assertEquals(400, root.available());
+    }
+
+    public void testContendingChildrenShareParentFairly() {
+
+        TokenBucket root = new TokenBucket(clock, 100 * 1000, 10 * 1000);
+        TokenBucket[] children = new TokenBucket[4];
+
+        for(int i = 0;i < children.length;i++)
+            children[i] = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+
+        long[] consumed = drain(children, new boolean[children.length], 20 * 1000);
+
+        long total = 0;
+        for(long c: consumed)
+            total += c;
+
+        // Parent rate is used in full, and divided evenly
+        assertNear(20 * 100 * 1000, total, 0.05);
+
+        for(long c: consumed)
+            assertNear(total / children.length, c, 0.1);
+    }
+
+    public void testIdleChildLeavesRateToOthers() {
+
+        TokenBucket root = new TokenBucket(clock, 100 * 1000, 10 * 1000);
+        TokenBucket busy = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+        TokenBucket idle = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+
+        long[] consumed = drain(new TokenBucket[] {busy, idle}, new boolean[] {false, true}, 20 * 1000);
+
+        assertEquals(0, consumed[1]);
+        assertNear(20 * 100 * 1000, consumed[0], 0.05);
+    }
+
+    public void testRateLeftUnusedIsRedistributed() {
+
+        TokenBucket root = new TokenBucket(clock, 100 * 1000, 10 * 1000);
+        TokenBucket slow = new TokenBucket(root, 10 * 1000, 1000);
+        TokenBucket fast = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+
+        long[] consumed = drain(new TokenBucket[] {slow, fast}, new boolean[2], 20 * 1000);
+
+        // Slow child is held back by its own rate, which leaves the rest to fast child
+        assertNear(20 * 10 * 1000, consumed[0], 0.05);
+        assertNear(20 * 90 * 1000, consumed[1], 0.1);
+    }
+
+    public void testDetachedChildNoLongerShares() {
+
+        TokenBucket root = new TokenBucket(clock, 100 * 1000, 10 * 1000);
+        TokenBucket a = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+        TokenBucket b = new TokenBucket(root, TokenBucket.UNLIMITED, 0);
+
+        drain(new TokenBucket[] {a, b}, new boolean[2], 5 * 1000);
+
+        b.detach();
+        assertNull(b.getParent());
+
+        long[] consumed = drain(new TokenBucket[] {a}, new boolean[1], 20 * 1000);
+
+        assertNear(20 * 100 * 1000, consumed[0], 0.05);
+    }
+}
@@ -0,0 +1,150 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.Handshake;
+import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.message.field.PeerId;
+import org.bittorrentj.message.field.Reserved;
+import org.bittorrentj.message.stream.MessageStreamManager;
+import org.bittorrentj.message.stream.SimulatedClock;
+import org.bittorrentj.message.stream.TestStreams;
+import org.bittorrentj.message.stream.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Benchmark of rechoking 5k connections with Choker, which selects the fastest peers
+ * in place, against cloning and sorting all connections by rate, as done before.
+ *
+ * Four in five peers are interested, and download rates are spread up to 1 MB/s.
+ * Rates change a little between rechokes. Checks that regular slots go to the fastest
+ * interested peers, and reports the time per rechoke and per sort.
+ */
+public class ChokerBenchmark {
+
+    private final static int NUMBER_OF_CONNECTIONS = 5000;
+
+    private final static int NUMBER_OF_UPLOAD_SLOTS = 5;
+
+    private final static int NUMBER_OF_RECHOKES = 2000;
+
+    /**
+     * Connections, with download managers driven by a simulated clock.
+     */
+    private static LinkedList<Connection> connections;
+    private static ArrayList<MessageStreamManager> managers;
+    private static SimulatedClock clock;
+
+    private static void createConnections(Random random) throws Exception {
+
+        clock = new SimulatedClock();
+        connections = new LinkedList<Connection>();
+        managers = new ArrayList<MessageStreamManager>();
+
+        Handshake handshake = new Handshake(19, "BitTorrent protocol", new Reserved(false, false), new Hash(new byte[20]), PeerId.UNKNOWN);
+
+        for(int i = 0;i < NUMBER_OF_CONNECTIONS;i++) {
+
+            MessageStreamManager download = new MessageStreamManager(new TokenBucket(clock, TokenBucket.UNLIMITED, 0));
+            MessageStreamManager upload = new MessageStreamManager(new TokenBucket(clock, TokenBucket.UNLIMITED, 0));
+
+            PeerState clientState = new PeerState(true, false, null, handshake, null);
+            PeerState peerState = new PeerState(true, random.nextInt(5) != 0, null, handshake, null);
+
+            connections.add(new Connection(null, clock, clientState, peerState, TestStreams.input(download), TestStreams.output(upload), new HashMap<Integer, Extension>()));
+            managers.add(download);
+        }
+
+        for(MessageStreamManager m: managers)
+            m.transmittedPayload(1 + random.nextInt(1024 * 1024));
+
+        clock.advanceMillis(1000);
+    }
+
+    /**
+     * Receives a little more from each peer.
+     */
+    private static void changeRates(Random random) {
+
+        for(MessageStreamManager m: managers)
+            m.transmittedPayload(random.nextInt(16 * 1024));
+
+        clock.advanceMillis(10);
+    }
+
+    private static void check(Choker choker) {
+
+        ArrayList<Integer> rates = new ArrayList<Integer>();
+
+        for(Connection c: connections)
+            if(c.getPeerState().isInterested())
+                rates.add(c.getDownloadRate());
+
+        Collections.sort(rates, Collections.reverseOrder());
+
+        int slowestRegular = rates.get(NUMBER_OF_UPLOAD_SLOTS - 2);
+
+        for(Connection c: choker.getUnchoked())
+            if(c != choker.getOptimistic() && c.getDownloadRate() < slowestRegular)
+                throw new IllegalStateException("Regular slot does not hold a fastest peer");
+
+        if(choker.getUnchoked().size() != NUMBER_OF_UPLOAD_SLOTS || choker.getOptimistic() == null)
+            throw new IllegalStateException("Slots are not filled");
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Random random = new Random(1);
+
+        createConnections(random);
+
+        Choker choker = new Choker(new Random(2), NUMBER_OF_UPLOAD_SLOTS);
+
+        Comparator<Connection> byRateDescending = new Comparator<Connection>() {
+
+            @Override
+            public int compare(Connection a, Connection b) {
+                return Integer.compare(b.getDownloadRate(), a.getDownloadRate());
+            }
+        };
+
+        // First runs warm up
+        for(int round = 0;round < 3;round++) {
+
+            long rechoking = 0;
+            long sorting = 0;
+            int checksum = 0;
+
+            for(int i = 0;i < NUMBER_OF_RECHOKES;i++) {
+
+                changeRates(random);
+
+                long t0 = System.nanoTime();
+
+                choker.rechoke(connections, false, System.nanoTime());
+
+                long t1 = System.nanoTime();
+
+                @SuppressWarnings("unchecked")
+                LinkedList<Connection> sorted = (LinkedList<Connection>)connections.clone();
+                Collections.sort(sorted, byRateDescending);
+
+                long t2 = System.nanoTime();
+
+                rechoking += t1 - t0;
+                sorting += t2 - t1;
+                checksum += sorted.getFirst().getDownloadRate();
+            }
+
+            check(choker);
+
+            System.out.printf("%d connections: rechoke %.0f us, clone and sort %.0f us (checksum %d)%n",
+                    NUMBER_OF_CONNECTIONS, rechoking / 1e3 / NUMBER_OF_RECHOKES, sorting / 1e3 / NUMBER_OF_RECHOKES, checksum);
+        }
+    }
+}
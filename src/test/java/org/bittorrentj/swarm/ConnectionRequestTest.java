@@ -0,0 +1,349 @@
+package org.bittorrentj.swarm;
+
+import junit.framework.TestCase;
+import org.bittorrentj.disk.DiskJobQueue;
+import org.bittorrentj.disk.DiskManager;
+import org.bittorrentj.extension.Extension;
+import org.bittorrentj.message.Handshake;
+import org.bittorrentj.message.MessageView;
+import org.bittorrentj.message.Piece;
+import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.message.field.PeerId;
+import org.bittorrentj.message.field.Reserved;
+import org.bittorrentj.message.stream.OutputMessageStream;
+import org.bittorrentj.message.stream.SimulatedClock;
+import org.bittorrentj.message.stream.TestStreams;
+import org.bittorrentj.message.stream.TokenBucket;
+import org.bittorrentj.torrent.MetaInfo;
+import org.bittorrentj.torrent.PieceHashTable;
+import org.bittorrentj.torrent.SingleFileInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tests of block requests sent by connections of a swarm driven by a SimulatedClock:
+ * request timeouts, cancelling duplicate requests in endgame mode, and
+ * entering and leaving endgame mode.
+ *
+ * Each connection writes to a loopback socket, and messages read at the other end are
+ * compared as text. Blocks are delivered to connections as views, as by their input stream.
+ */
+public class ConnectionRequestTest extends TestCase {
+
+    private final static int BLOCK_SIZE = RequestPipeline.BLOCK_SIZE;
+
+    private final static int PIECE_LENGTH = 2 * BLOCK_SIZE;
+
+    private final static long SECONDS = 1000L * 1000 * 1000;
+
+    private SimulatedClock clock;
+    private File directory;
+    private DiskManager diskManager;
+    private DiskJobQueue diskJobQueue;
+    private Swarm swarm;
+
+    /**
+     * Content of torrent.
+     */
+    private byte[] content;
+
+    /**
+     * Sockets written to by connections, and the peer ends they are read from.
+     */
+    private List<SocketChannel> sockets;
+    private HashMap<Connection, SocketChannel> peers;
+
+    @Override
+    protected void setUp() throws IOException {
+
+        clock = new SimulatedClock();
+        directory = Files.createTempDirectory("bittorrentj").toFile();
+        sockets = new ArrayList<SocketChannel>();
+        peers = new HashMap<Connection, SocketChannel>();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+
+        for(SocketChannel s: sockets)
+            s.close();
+
+        if(diskJobQueue != null)
+            diskJobQueue.shutdown();
+
+        if(diskManager != null)
+            diskManager.close();
+
+        File[] files = directory.listFiles();
+
+        if(files != null)
+            for(File f: files)
+                f.delete();
+
+        directory.delete();
+    }
+
+    /**
+     * Creates swarm of a torrent with given number of pieces of two blocks,
+     * with correct piece hashes.
+     */
+    private void createSwarm(int numberOfPieces) throws Exception {
+
+        content = new byte[numberOfPieces * PIECE_LENGTH];
+
+        for(int i = 0;i < content.length;i++)
+            content[i] = (byte)(i * 7 + i / 251);
+
+        ByteBuffer hashes = ByteBuffer.allocate(20 * numberOfPieces);
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+        for(int i = 0;i < numberOfPieces;i++) {
+            digest.update(content, i * PIECE_LENGTH, PIECE_LENGTH);
+            hashes.put(digest.digest());
+        }
+
+        SingleFileInfo info = new SingleFileInfo(PIECE_LENGTH, new PieceHashTable(hashes.array()), false, "file", content.length, null);
+        MetaInfo metaInfo = new MetaInfo(info, null, null, null, null, null, null);
+
+        diskManager = new DiskManager(info, directory);
+        diskJobQueue = new DiskJobQueue(1, DiskJobQueue.DEFAULT_MAX_QUEUED_BYTES);
+
+        TokenBucket upload = new TokenBucket(clock, TokenBucket.UNLIMITED, 0);
+        TokenBucket download = new TokenBucket(clock, TokenBucket.UNLIMITED, 0);
+
+        swarm = new Swarm(null, new Hash(new byte[20]), metaInfo, new HashMap<Integer, Extension>(), Swarm.SwarmState.ON_NORMAL,
+                upload, download, diskManager, diskJobQueue, null, clock);
+    }
+
+    /**
+     * Connection to a peer which has all pieces and is not choking us, while we are interested.
+     */
+    private Connection connect() throws Exception {
+
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        SocketChannel socket = SocketChannel.open(server.getLocalAddress());
+        SocketChannel peer = server.accept();
+
+        server.close();
+
+        peer.configureBlocking(false);
+        sockets.add(socket);
+        sockets.add(peer);
+
+        Handshake handshake = new Handshake(19, "BitTorrent protocol", new Reserved(false, false), new Hash(new byte[20]), PeerId.UNKNOWN);
+
+        boolean[] availability = new boolean[swarm.getMetaInformation().getNumberOfPiecesInTorrent()];
+        Arrays.fill(availability, true);
+
+        PeerState clientState = new PeerState(true, true, null, handshake, null);
+        PeerState peerState = new PeerState(false, false, availability, handshake, null);
+
+        swarm.getPiecePicker().addPeer(peerState);
+
+        Connection c = new Connection(swarm, swarm.getClock(), clientState, peerState,
+                TestStreams.input(swarm.createDownloadStreamManager()),
+                new OutputMessageStream(socket, swarm.createUploadStreamManager(), swarm.getBufferPool()),
+                new HashMap<Integer, Extension>());
+
+        peers.put(c, peer);
+
+        return c;
+    }
+
+    /**
+     * Writes queued messages of connection, and reads them at peer end.
+     * @return messages as text, e.g. "REQUEST 0 16384 16384"
+     */
+    private List<String> drain(Connection c) throws Exception {
+
+        c.writeMessagesToChannel();
+
+        SocketChannel peer = peers.get(c);
+        ByteBuffer b = ByteBuffer.allocate(64 * 1024);
+
+        // Loopback delivers right away, wait a little for stragglers
+        for(int idle = 0;idle < 5;idle++) {
+
+            if(peer.read(b) > 0)
+                idle = 0;
+            else
+                Thread.sleep(2);
+        }
+
+        List<String> messages = new ArrayList<String>();
+        MessageView view = new MessageView();
+
+        for(int offset = 0;offset < b.position();offset += view.getRawMessageLength()) {
+
+            view.wrap(b, offset);
+            messages.add(view.getId() + " " + view.getIndex() + " " + view.getBegin() + " " + view.getLength());
+        }
+
+        return messages;
+    }
+
+    /**
+     * Delivers block to connection, as its input stream would.
+     */
+    private void deliver(Connection c, int index, int begin) throws Exception {
+
+        byte[] block = Arrays.copyOfRange(content, index * PIECE_LENGTH + begin, index * PIECE_LENGTH + begin + BLOCK_SIZE);
+
+        ByteBuffer b = ByteBuffer.allocate(Piece.HEADER_SIZE + BLOCK_SIZE);
+        new Piece(index, begin, block).writeMessageToBuffer(b);
+
+        c.processMessageView(new MessageView().wrap(b, 0));
+    }
+
+    private static String request(int index, int block) {
+        return "REQUEST " + index + " " + block * BLOCK_SIZE + " " + BLOCK_SIZE;
+    }
+
+    private static String cancel(int index, int block) {
+        return "CANCEL " + index + " " + block * BLOCK_SIZE + " " + BLOCK_SIZE;
+    }
+
+    /**
+     * Requests sent as many times as each is expected.
+     */
+    private static void assertRequests(List<String> messages, String... expected) {
+
+        List<String> sorted = new ArrayList<String>(messages);
+        List<String> sortedExpected = new ArrayList<String>(Arrays.asList(expected));
+
+        java.util.Collections.sort(sorted);
+        java.util.Collections.sort(sortedExpected);
+
+        assertEquals(sortedExpected, sorted);
+    }
+
+    public void testRequestsTimeOutOnClockOfSwarm() throws Exception {
+
+        createSwarm(2);
+
+        Connection a = connect();
+        Connection b = connect();
+
+        swarm.scheduleConnectionTimer(a);
+
+        a.requestPieces();
+        List<String> sent = drain(a);
+
+        assertEquals(4, sent.size());
+        assertEquals(clock.nanoTime(), a.getRequestPipeline().getTimeOldestRequestSent());
+
+        // Not yet timed out
+        clock.advance(29 * SECONDS);
+        swarm.getTimingWheel().advance();
+
+        assertEquals(4, a.getRequestPipeline().getNumberOfOutstandingRequests());
+        assertTrue(drain(a).isEmpty());
+
+        // Every written request is cancelled, and blocks are requested from other connection
+        clock.advance(2 * SECONDS);
+        swarm.getTimingWheel().advance();
+
+        assertEquals(0, a.getRequestPipeline().getNumberOfOutstandingRequests());
+        assertRequests(drain(a), cancel(0, 0), cancel(0, 1), cancel(1, 0), cancel(1, 1));
+
+        b.requestPieces();
+        assertEquals(4, drain(b).size());
+        assertEquals(Swarm.SwarmState.ON_NORMAL, swarm.getSwarmState());
+    }
+
+    public void testRequestsTimedOutBeforeWrittenAreDropped() throws Exception {
+
+        createSwarm(2);
+
+        Connection a = connect();
+
+        a.requestPieces();
+        a.requestsTimedOut();
+
+        // Neither requests nor cancels are written
+        assertTrue(drain(a).isEmpty());
+        assertEquals(0, a.getRequestPipeline().getNumberOfOutstandingRequests());
+    }
+
+    public void testEndgameCancelsDuplicateRequests() throws Exception {
+
+        createSwarm(1);
+
+        Connection a = connect();
+        Connection b = connect();
+
+        // First connection requests both blocks, which leaves nothing unrequested
+        a.requestPieces();
+        assertRequests(drain(a), request(0, 0), request(0, 1));
+        assertEquals(Swarm.SwarmState.ON_ENDGAME, swarm.getSwarmState());
+
+        // Second connection requests them again
+        b.requestPieces();
+        assertEquals(2, b.getRequestPipeline().getNumberOfOutstandingRequests());
+
+        // Block arrives while duplicate is still queued, which is then dropped, not cancelled
+        deliver(a, 0, 0);
+
+        assertEquals(1, b.getRequestPipeline().getNumberOfOutstandingRequests());
+        assertRequests(drain(b), request(0, 1));
+
+        // Block arrives after duplicate was written, which is then cancelled
+        deliver(b, 0, BLOCK_SIZE);
+
+        assertEquals(0, a.getRequestPipeline().getNumberOfOutstandingRequests());
+        assertRequests(drain(a), cancel(0, 1));
+        assertTrue(drain(b).isEmpty());
+
+        assertEquals(clock.nanoTime(), b.getLastBlockReceivedTime());
+    }
+
+    public void testEndgameEndsWhenLastPieceIsVerified() throws Exception {
+
+        createSwarm(2);
+
+        Connection a = connect();
+        Connection b = connect();
+
+        a.requestPieces();
+        drain(a);
+
+        // Last block requested leaves swarm in normal mode until a request is wanted
+        assertEquals(Swarm.SwarmState.ON_NORMAL, swarm.getSwarmState());
+
+        b.requestPieces();
+        assertEquals(Swarm.SwarmState.ON_ENDGAME, swarm.getSwarmState());
+        assertEquals(4, b.getRequestPipeline().getNumberOfOutstandingRequests());
+
+        // Pieces arrive, each block from one of the connections
+        for(int index = 0;index < 2;index++) {
+            deliver(a, index, 0);
+            deliver(b, index, BLOCK_SIZE);
+        }
+
+        // Stays in endgame mode until pieces are hashed on disk
+        assertEquals(Swarm.SwarmState.ON_ENDGAME, swarm.getSwarmState());
+
+        long deadline = System.nanoTime() + 10 * SECONDS;
+
+        while(swarm.getSwarmState() == Swarm.SwarmState.ON_ENDGAME && System.nanoTime() < deadline) {
+            swarm.processDiskEvents();
+            Thread.sleep(1);
+        }
+
+        assertEquals(Swarm.SwarmState.ON_NORMAL, swarm.getSwarmState());
+        assertTrue(swarm.weHaveAllPieces());
+    }
+}
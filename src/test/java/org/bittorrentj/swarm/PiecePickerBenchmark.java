@@ -0,0 +1,137 @@
+package org.bittorrentj.swarm;
+
+import java.util.Random;
+
+/**
+ * Benchmark of PiecePicker with 100k pieces and 1,000 peers, against picking
+ * the rarest piece by counting availability over the pieces of all peers.
+ *
+ * Reports the time to register all bitfields, per HAVE message, per pick of the rarest
+ * piece, per completed piece and per disconnect, as well as per pick by scanning.
+ */
+public class PiecePickerBenchmark {
+
+    private final static int NUMBER_OF_PIECES = 100 * 1000;
+    private final static int NUMBER_OF_PEERS = 1000;
+
+    private final static int NUMBER_OF_HAVES = 1000 * 1000;
+    private final static int NUMBER_OF_PICKS = 100 * 1000;
+    private final static int NUMBER_OF_COMPLETIONS = 50 * 1000;
+    private final static int NUMBER_OF_DISCONNECTS = 100;
+    private final static int NUMBER_OF_SCANS = 5;
+
+    /**
+     * Picks rarest wanted piece which peer has, by scanning all peers.
+     */
+    private static int scan(PeerState[] peers, PiecePicker picker, PeerState peer) {
+
+        int rarest = -1;
+        int rarestAvailability = Integer.MAX_VALUE;
+
+        for(int i = 0;i < NUMBER_OF_PIECES;i++) {
+
+            if(picker.clientHas(i) || !peer.isPieceAvailable(i))
+                continue;
+
+            int availability = 0;
+
+            for(PeerState p: peers)
+                if(p.isPieceAvailable(i))
+                    availability++;
+
+            if(availability < rarestAvailability) {
+                rarest = i;
+                rarestAvailability = availability;
+            }
+        }
+
+        return rarest;
+    }
+
+    private static void run(Random random) {
+
+        PeerState[] peers = new PeerState[NUMBER_OF_PEERS];
+
+        // Peers have from none to all pieces
+        for(int j = 0;j < NUMBER_OF_PEERS;j++) {
+
+            boolean[] availability = new boolean[NUMBER_OF_PIECES];
+            double share = random.nextDouble();
+
+            for(int i = 0;i < NUMBER_OF_PIECES;i++)
+                availability[i] = random.nextDouble() < share;
+
+            peers[j] = new PeerState(true, false, availability, null, null);
+        }
+
+        long t0 = System.nanoTime();
+
+        PiecePicker picker = new PiecePicker(NUMBER_OF_PIECES, random);
+
+        for(PeerState p: peers)
+            picker.addPeer(p);
+
+        long t1 = System.nanoTime();
+
+        int haves = 0;
+
+        for(int k = 0;k < NUMBER_OF_HAVES;k++) {
+
+            PeerState p = peers[random.nextInt(NUMBER_OF_PEERS)];
+            int index = random.nextInt(NUMBER_OF_PIECES);
+
+            if(!p.isPieceAvailable(index)) {
+                p.alterPieceAvailability(index, true);
+                picker.peerHasPiece(index);
+                haves++;
+            }
+        }
+
+        long t2 = System.nanoTime();
+
+        int sum = 0;
+
+        for(int k = 0;k < NUMBER_OF_PICKS;k++)
+            sum += picker.pickRarest(peers[k % NUMBER_OF_PEERS]);
+
+        long t3 = System.nanoTime();
+
+        for(int k = 0;k < NUMBER_OF_COMPLETIONS;k++) {
+
+            int index = picker.pickRarest(peers[random.nextInt(NUMBER_OF_PEERS)]);
+
+            if(index >= 0)
+                picker.clientHasPiece(index);
+        }
+
+        long t4 = System.nanoTime();
+
+        for(int k = 0;k < NUMBER_OF_DISCONNECTS;k++)
+            picker.removePeer(peers[k]);
+
+        long t5 = System.nanoTime();
+
+        for(int k = 0;k < NUMBER_OF_SCANS;k++)
+            sum += scan(peers, picker, peers[random.nextInt(NUMBER_OF_PEERS)]);
+
+        long t6 = System.nanoTime();
+
+        System.out.printf("bitfields %.0f ms, have %.0f ns, pick %.2f us, pick and complete %.2f us, disconnect %.2f ms, scan %.0f ms (checksum %d)%n",
+                (t1 - t0) / 1e6,
+                (double)(t2 - t1) / haves,
+                (t3 - t2) / 1e3 / NUMBER_OF_PICKS,
+                (t4 - t3) / 1e3 / NUMBER_OF_COMPLETIONS,
+                (t5 - t4) / 1e6 / NUMBER_OF_DISCONNECTS,
+                (t6 - t5) / 1e6 / NUMBER_OF_SCANS,
+                sum);
+    }
+
+    public static void main(String[] args) {
+
+        Random random = new Random(7);
+
+        // First runs warm up
+        for(int i = 0;i < 3;i++)
+            run(random);
+    }
+}
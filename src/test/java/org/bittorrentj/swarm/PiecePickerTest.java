@@ -0,0 +1,230 @@
+package org.bittorrentj.swarm;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Tests of PiecePicker, against availability counted by scanning all peers.
+ */
+public class PiecePickerTest extends TestCase {
+
+    private static PeerState peer(boolean[] availability) {
+        return new PeerState(true, false, availability, null, null);
+    }
+
+    private static PeerState peer(int numberOfPieces, int... pieces) {
+
+        boolean[] availability = new boolean[numberOfPieces];
+
+        for(int i: pieces)
+            availability[i] = true;
+
+        return peer(availability);
+    }
+
+    public void testNothingToPickWithoutPeers() {
+
+        PiecePicker picker = new PiecePicker(10, new Random(1));
+
+        assertEquals(-1, picker.pickRarest(peer(10)));
+        assertEquals(-1, picker.pickRandom(peer(10)));
+        assertEquals(10, picker.getNumberOfWantedPieces());
+    }
+
+    public void testAvailabilityIsCounted() {
+
+        PiecePicker picker = new PiecePicker(4, new Random(1));
+
+        PeerState a = peer(4, 0, 1, 2);
+        PeerState b = peer(4, 1, 2);
+
+        picker.addPeer(a);
+        picker.addPeer(b);
+        picker.peerHasPiece(2);
+
+        assertEquals(1, picker.getAvailability(0));
+        assertEquals(2, picker.getAvailability(1));
+        assertEquals(3, picker.getAvailability(2));
+        assertEquals(0, picker.getAvailability(3));
+
+        picker.removePeer(a);
+
+        assertEquals(0, picker.getAvailability(0));
+        assertEquals(1, picker.getAvailability(1));
+        assertEquals(2, picker.getAvailability(2));
+    }
+
+    public void testPicksRarestPieceOfPeer() {
+
+        PiecePicker picker = new PiecePicker(4, new Random(1));
+
+        picker.addPeer(peer(4, 0, 1, 2, 3));
+        picker.addPeer(peer(4, 0, 1, 3));
+        picker.addPeer(peer(4, 0, 3));
+
+        // Piece 2 is rarest
+        assertEquals(2, picker.pickRarest(peer(4, 0, 1, 2, 3)));
+
+        // Piece 1 is rarest among those of peer
+        assertEquals(1, picker.pickRarest(peer(4, 0, 1, 3)));
+    }
+
+    public void testPiecesInProgressAreNotPicked() {
+
+        PiecePicker picker = new PiecePicker(3, new Random(1));
+        PeerState p = peer(3, 0, 1, 2);
+
+        picker.addPeer(p);
+        picker.peerHasPiece(1);
+        picker.peerHasPiece(2);
+        picker.peerHasPiece(2);
+
+        picker.setInProgress(0, true);
+        assertEquals(1, picker.pickRarest(p));
+
+        picker.setInProgress(1, true);
+        picker.setInProgress(2, true);
+        assertEquals(-1, picker.pickRarest(p));
+        assertEquals(-1, picker.pickRandom(p));
+
+        picker.setInProgress(0, false);
+        assertEquals(0, picker.pickRarest(p));
+    }
+
+    public void testExcludedRangeIsNotPicked() {
+
+        PiecePicker picker = new PiecePicker(4, new Random(1));
+        PeerState p = peer(4, 0, 1, 2, 3);
+
+        picker.addPeer(p);
+        picker.peerHasPiece(3);
+
+        assertEquals(3, picker.pickRarest(p, 0, 3));
+        assertEquals(-1, picker.pickRarest(p, 0, 4));
+    }
+
+    public void testPiecesClientHasAreNotPicked() {
+
+        PiecePicker picker = new PiecePicker(3, new Random(1));
+        PeerState p = peer(3, 0, 1, 2);
+
+        picker.addPeer(p);
+        picker.peerHasPiece(0);
+        picker.peerHasPiece(0);
+        picker.peerHasPiece(1);
+
+        picker.clientHasPiece(2);
+        assertTrue(picker.clientHas(2));
+        assertEquals(2, picker.getNumberOfWantedPieces());
+        assertEquals(1, picker.pickRarest(p));
+
+        // Availability is still counted
+        picker.peerHasPiece(2);
+        assertEquals(2, picker.getAvailability(2));
+
+        picker.clientHasPiece(1);
+        picker.clientHasPiece(0);
+        assertEquals(0, picker.getNumberOfWantedPieces());
+        assertEquals(-1, picker.pickRarest(p));
+        assertEquals(-1, picker.pickRandom(p));
+    }
+
+    public void testRandomPickIsAvailable() {
+
+        PiecePicker picker = new PiecePicker(100, new Random(1));
+        PeerState p = peer(100, 10, 20, 30);
+
+        picker.addPeer(p);
+
+        for(int i = 0;i < 100;i++) {
+
+            int index = picker.pickRandom(p);
+
+            assertTrue(index == 10 || index == 20 || index == 30);
+        }
+    }
+
+    /**
+     * Runs random HAVE messages, connects, disconnects and completed pieces, and
+     * checks that every pick is as rare as the rarest piece found by scanning all peers.
+     */
+    public void testAgainstScan() {
+
+        int numberOfPieces = 200;
+        Random random = new Random(7);
+        PiecePicker picker = new PiecePicker(numberOfPieces, new Random(1));
+        ArrayList<PeerState> peers = new ArrayList<PeerState>();
+        boolean[] have = new boolean[numberOfPieces];
+
+        for(int step = 0;step < 5000;step++) {
+
+            int op = random.nextInt(100);
+
+            if(op < 5 || peers.isEmpty()) {
+
+                boolean[] availability = new boolean[numberOfPieces];
+                double share = random.nextDouble();
+
+                for(int i = 0;i < numberOfPieces;i++)
+                    availability[i] = random.nextDouble() < share;
+
+                PeerState p = peer(availability);
+                peers.add(p);
+                picker.addPeer(p);
+
+            } else if(op < 8) {
+                picker.removePeer(peers.remove(random.nextInt(peers.size())));
+            } else if(op < 10) {
+
+                int index = random.nextInt(numberOfPieces);
+                picker.clientHasPiece(index);
+                have[index] = true;
+
+            } else {
+
+                PeerState p = peers.get(random.nextInt(peers.size()));
+                int index = random.nextInt(numberOfPieces);
+
+                if(!p.isPieceAvailable(index)) {
+                    p.alterPieceAvailability(index, true);
+                    picker.peerHasPiece(index);
+                }
+            }
+
+            if(peers.isEmpty())
+                continue;
+
+            PeerState p = peers.get(random.nextInt(peers.size()));
+            int rarest = -1;
+            int rarestAvailability = Integer.MAX_VALUE;
+
+            for(int i = 0;i < numberOfPieces;i++) {
+
+                if(have[i] || !p.isPieceAvailable(i))
+                    continue;
+
+                int availability = 0;
+
+                for(PeerState q: peers)
+                    if(q.isPieceAvailable(i))
+                        availability++;
+
+                assertEquals(availability, picker.getAvailability(i));
+
+                if(availability < rarestAvailability) {
+                    rarest = i;
+                    rarestAvailability = availability;
+                }
+            }
+
+            int picked = picker.pickRarest(p);
+
+            if(rarest == -1)
+                assertEquals(-1, picked);
+            else
+                assertEquals(rarestAvailability, picker.getAvailability(picked));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.message.stream.SimulatedClock;
+
+/**
+ * Simulation of downloading from a single peer over links with a range of
+ * round trip times, which reports throughput with fixed queue depths,
+ * and with the adaptive depth of RequestPipeline, with a reqq of 250 and 50.
+ *
+ * Optional argument is rate of link in MB/s, 10 by default.
+ */
+public class RequestPipelineSimulation {
+
+    private final static long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+    private final static long NANOS_PER_MILLI = 1000L * 1000;
+
+    /**
+     * Duration (ns) of download before throughput is measured, and of measurement.
+     */
+    private final static long SETTLE_TIME = 10 * NANOS_PER_SECOND;
+    private final static long MEASURE_TIME = 20 * NANOS_PER_SECOND;
+
+    private final static long[] ROUND_TRIP_TIMES = {1, 10, 25, 50, 100, 200, 400};
+
+    private static double megabytesPerSecond(long bytes) {
+        return bytes / ((double)MEASURE_TIME / NANOS_PER_SECOND) / 1e6;
+    }
+
+    private static double fixed(long rtt, long rate, int depth) {
+
+        SimulatedPeerLink link = new SimulatedPeerLink(new SimulatedClock(), rtt, rate);
+
+        link.download(depth, SETTLE_TIME);
+
+        return megabytesPerSecond(link.download(depth, MEASURE_TIME));
+    }
+
+    private static RequestPipeline adaptive(long rtt, long rate, int reqq, double[] throughput) {
+
+        SimulatedClock clock = new SimulatedClock();
+        SimulatedPeerLink link = new SimulatedPeerLink(clock, rtt, rate);
+        RequestPipeline pipeline = new RequestPipeline(clock, reqq);
+
+        link.download(pipeline, SETTLE_TIME);
+
+        throughput[0] = megabytesPerSecond(link.download(pipeline, MEASURE_TIME));
+
+        return pipeline;
+    }
+
+    public static void main(String[] args) {
+
+        long rate = (long)(Double.parseDouble(args.length > 0 ? args[0] : "10") * 1e6);
+
+        System.out.printf("link %.0f MB/s, throughput in MB/s%n", rate / 1e6);
+        System.out.println("RTT ms | BDP blocks | depth 5 | depth 20 | adaptive (depth) | adaptive reqq=50 (depth)");
+
+        for(long rttMillis: ROUND_TRIP_TIMES) {
+
+            long rtt = rttMillis * NANOS_PER_MILLI;
+            double[] throughput = new double[1];
+            double[] throughputLimited = new double[1];
+
+            RequestPipeline pipeline = adaptive(rtt, rate, 250, throughput);
+            RequestPipeline pipelineLimited = adaptive(rtt, rate, 50, throughputLimited);
+
+            System.out.printf("%6d | %10.1f | %7.2f | %8.2f | %9.2f (%3d) | %17.2f (%3d)%n",
+                    rttMillis,
+                    (double)rate * rtt / NANOS_PER_SECOND / RequestPipeline.BLOCK_SIZE,
+                    fixed(rtt, rate, 5),
+                    fixed(rtt, rate, 20),
+                    throughput[0], pipeline.getQueueDepth(),
+                    throughputLimited[0], pipelineLimited.getQueueDepth());
+        }
+    }
+}
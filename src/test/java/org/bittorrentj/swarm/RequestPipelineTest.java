@@ -0,0 +1,145 @@
+package org.bittorrentj.swarm;
+
+import junit.framework.TestCase;
+import org.bittorrentj.message.Request;
+import org.bittorrentj.message.stream.SimulatedClock;
+
+import java.util.LinkedList;
+
+/**
+ * Tests of RequestPipeline, driven by a SimulatedClock.
+ */
+public class RequestPipelineTest extends TestCase {
+
+    private final static long MILLIS = 1000L * 1000;
+    private final static long SECONDS = 1000 * MILLIS;
+
+    private SimulatedClock clock;
+
+    @Override
+    protected void setUp() {
+        clock = new SimulatedClock();
+    }
+
+    private static Request block(int n) {
+        return new Request(0, n * RequestPipeline.BLOCK_SIZE, RequestPipeline.BLOCK_SIZE);
+    }
+
+    public void testFillsInitialQueue() {
+
+        RequestPipeline pipeline = new RequestPipeline(clock, 250);
+
+        int wanted = pipeline.numberOfRequestsWanted();
+        assertTrue(wanted > 0);
+
+        for(int i = 0;i < wanted;i++)
+            pipeline.requestSent(block(i));
+
+        assertEquals(0, pipeline.numberOfRequestsWanted());
+        assertEquals(wanted, pipeline.getNumberOfOutstandingRequests());
+    }
+
+    public void testUnrequestedBlockIsNotAccepted() {
+
+        RequestPipeline pipeline = new RequestPipeline(clock, 250);
+
+        pipeline.requestSent(block(0));
+
+        assertFalse(pipeline.blockReceived(0, RequestPipeline.BLOCK_SIZE, RequestPipeline.BLOCK_SIZE));
+        assertFalse(pipeline.blockReceived(0, 0, 100));
+        assertTrue(pipeline.blockReceived(0, 0, RequestPipeline.BLOCK_SIZE));
+
+        // Block received twice
+        assertFalse(pipeline.blockReceived(0, 0, RequestPipeline.BLOCK_SIZE));
+    }
+
+    public void testSlowStartGrowsByOnePerBlock() {
+
+        RequestPipeline pipeline = new RequestPipeline(clock, 250);
+        int depth = pipeline.getQueueDepth();
+
+        pipeline.requestSent(block(0));
+        clock.advanceMillis(1);
+        pipeline.blockReceived(0, 0, RequestPipeline.BLOCK_SIZE);
+
+        assertTrue(pipeline.isSlowStart());
+        assertEquals(depth + 1, pipeline.getQueueDepth());
+        assertEquals(1 * MILLIS, pipeline.getMinRoundTripTime());
+    }
+
+    public void testDepthIsLimitedByReqq() {
+
+        RequestPipeline pipeline = new RequestPipeline(clock, 250);
+        SimulatedPeerLink link = new SimulatedPeerLink(clock, 200 * MILLIS, 10 * 1000 * 1000);
+
+        link.download(pipeline, 10 * SECONDS);
+        assertTrue(pipeline.getQueueDepth() > 20);
+
+        pipeline.setMaxQueueDepth(20);
+        assertEquals(20, pipeline.getQueueDepth());
+
+        link.download(pipeline, 10 * SECONDS);
+        assertTrue(pipeline.getQueueDepth() <= 20);
+        assertTrue(pipeline.getNumberOfOutstandingRequests() <= 20);
+    }
+
+    public void testCancelAndClear() {
+
+        RequestPipeline pipeline = new RequestPipeline(clock, 250);
+
+        for(int i = 0;i < 3;i++)
+            pipeline.requestSent(block(i));
+
+        assertEquals(block(1), pipeline.cancel(0, RequestPipeline.BLOCK_SIZE, RequestPipeline.BLOCK_SIZE));
+        assertNull(pipeline.cancel(0, RequestPipeline.BLOCK_SIZE, RequestPipeline.BLOCK_SIZE));
+
+        LinkedList<Request> cleared = pipeline.clear();
+
+        assertEquals(2, cleared.size());
+        assertEquals(block(0), cleared.getFirst());
+        assertEquals(block(2), cleared.getLast());
+        assertEquals(0, pipeline.getNumberOfOutstandingRequests());
+    }
+
+    public void testTimeoutCollapsesDepth() {
+
+        RequestPipeline pipeline = new RequestPipeline(clock, 250);
+        SimulatedPeerLink link = new SimulatedPeerLink(clock, 100 * MILLIS, 10 * 1000 * 1000);
+
+        link.download(pipeline, 10 * SECONDS);
+        assertFalse(pipeline.isSlowStart());
+
+        int outstanding = pipeline.getNumberOfOutstandingRequests();
+
+        assertEquals(outstanding, pipeline.timedOut().size());
+        assertTrue(pipeline.isSlowStart());
+        assertTrue(pipeline.getQueueDepth() <= 2);
+    }
+
+    /**
+     * Checks that pipeline saturates links with a range of round trip times, with a queue
+     * depth near the bandwidth-delay product, rather than the full reqq.
+     */
+    public void testSaturatesLink() {
+
+        long rate = 10 * 1000 * 1000;
+
+        for(long rtt: new long[] {10 * MILLIS, 50 * MILLIS, 200 * MILLIS}) {
+
+            clock = new SimulatedClock();
+
+            RequestPipeline pipeline = new RequestPipeline(clock, 250);
+            SimulatedPeerLink link = new SimulatedPeerLink(clock, rtt, rate);
+
+            // Settle
+            link.download(pipeline, 10 * SECONDS);
+
+            long bytes = link.download(pipeline, 10 * SECONDS);
+            double bandwidthDelayProduct = (double)rate * rtt / SECONDS / RequestPipeline.BLOCK_SIZE;
+
+            assertTrue("rtt " + rtt + ": " + bytes, bytes >= 0.9 * rate * 10);
+            assertTrue("rtt " + rtt + ": depth " + pipeline.getQueueDepth(), pipeline.getQueueDepth() >= bandwidthDelayProduct);
+            assertTrue("rtt " + rtt + ": depth " + pipeline.getQueueDepth(), pipeline.getQueueDepth() <= 2 * bandwidthDelayProduct + 4);
+        }
+    }
+}
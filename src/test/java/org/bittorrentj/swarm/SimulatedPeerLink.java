@@ -0,0 +1,169 @@
+package org.bittorrentj.swarm;
+
+import org.bittorrentj.message.Request;
+import org.bittorrentj.message.stream.SimulatedClock;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Event driven simulation of downloading from a single peer over a link, where
+ * requests take half a round trip to reach the peer, the peer serves them in order
+ * at the rate of the link, and blocks take half a round trip to come back.
+ * Is used to exercise RequestPipeline.
+ */
+class SimulatedPeerLink {
+
+    private final static long NANOS_PER_SECOND = 1000L * 1000 * 1000;
+
+    /**
+     * Block arriving at client, at a given time.
+     */
+    private static class Arrival {
+
+        long time;
+        Request request;
+
+        Arrival(long time, Request request) {
+            this.time = time;
+            this.request = request;
+        }
+    }
+
+    private SimulatedClock clock;
+
+    /**
+     * One way delay (ns), and time (ns) peer takes to send a block.
+     */
+    private long oneWayDelay;
+    private long transmissionTime;
+
+    /**
+     * Time (ns) when peer is done sending all blocks requested so far.
+     */
+    private long peerFree;
+
+    /**
+     * Blocks on their way, by time of arrival.
+     */
+    private PriorityQueue<Arrival> arrivals;
+
+    /**
+     * Number of blocks requested so far.
+     */
+    private int numberOfRequests;
+
+    /**
+     * Constructor
+     * @param clock clock, which is advanced by the simulation
+     * @param roundTripTime round trip time (ns)
+     * @param rate rate (bytes/s) of link
+     */
+    SimulatedPeerLink(SimulatedClock clock, long roundTripTime, long rate) {
+
+        this.clock = clock;
+        this.oneWayDelay = roundTripTime / 2;
+        this.transmissionTime = RequestPipeline.BLOCK_SIZE * NANOS_PER_SECOND / rate;
+        this.peerFree = 0;
+        this.arrivals = new PriorityQueue<Arrival>(11, new Comparator<Arrival>() {
+
+            @Override
+            public int compare(Arrival a, Arrival b) {
+                return Long.compare(a.time, b.time);
+            }
+        });
+        this.numberOfRequests = 0;
+    }
+
+    /**
+     * Sends next request to peer.
+     * @return request
+     */
+    Request sendRequest() {
+
+        int block = numberOfRequests++;
+        Request request = new Request(block / 16, (block % 16) * RequestPipeline.BLOCK_SIZE, RequestPipeline.BLOCK_SIZE);
+
+        long start = Math.max(peerFree, clock.nanoTime() + oneWayDelay);
+        peerFree = start + transmissionTime;
+
+        arrivals.add(new Arrival(peerFree + oneWayDelay, request));
+
+        return request;
+    }
+
+    /**
+     * Advances clock to arrival of next block.
+     * @return request answered by block, or null if no block is on its way
+     */
+    Request receiveBlock() {
+
+        Arrival a = arrivals.poll();
+
+        if(a == null)
+            return null;
+
+        clock.advance(a.time - clock.nanoTime());
+
+        return a.request;
+    }
+
+    /**
+     * Downloads for given duration, keeping as many requests outstanding as pipeline wants.
+     * @param pipeline pipeline
+     * @param duration duration (ns)
+     * @return number of bytes received
+     */
+    long download(RequestPipeline pipeline, long duration) {
+
+        long end = clock.nanoTime() + duration;
+        long bytes = 0;
+
+        while(true) {
+
+            for(int n = pipeline.numberOfRequestsWanted();n > 0;n--)
+                pipeline.requestSent(sendRequest());
+
+            if(arrivals.isEmpty() || arrivals.peek().time > end)
+                break;
+
+            Request r = receiveBlock();
+
+            pipeline.blockReceived(r.getIndex(), r.getBegin(), r.getLength());
+            bytes += r.getLength();
+        }
+
+        clock.advance(end - clock.nanoTime());
+
+        return bytes;
+    }
+
+    /**
+     * Downloads for given duration, keeping a fixed number of requests outstanding.
+     * @param depth number of outstanding requests
+     * @param duration duration (ns)
+     * @return number of bytes received
+     */
+    long download(int depth, long duration) {
+
+        long end = clock.nanoTime() + duration;
+        long bytes = 0;
+        int outstanding = 0;
+
+        while(true) {
+
+            for(;outstanding < depth;outstanding++)
+                sendRequest();
+
+            if(arrivals.peek().time > end)
+                break;
+
+            bytes += receiveBlock().getLength();
+            outstanding--;
+        }
+
+        clock.advance(end - clock.nanoTime());
+
+        return bytes;
+    }
+}
@@ -0,0 +1,220 @@
+package org.bittorrentj.torrent;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+import org.bittorrentj.message.field.Hash;
+import org.bittorrentj.torrent.exception.MalformedMetaInfoException;
+import org.bittorrentj.torrent.exception.MissingMetaInfoKeyException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests of info hashes computed by InfoHasher and MetaInfoLoader, against
+ * hashes computed independently over the same bencodings, and of bulk runs
+ * over files which cannot be hashed.
+ */
+public class InfoHasherTest extends TestCase {
+
+    /**
+     * Info dictionary of a single 100000 byte file in four pieces, up to the piece hashes.
+     */
+    private final static String INFO = "d6:lengthi100000e4:name8:file.bin12:piece lengthi32768e6:pieces80:";
+
+    /**
+     * Hash of info dictionary, and of same dictionary with a key which is not part of Info.
+     */
+    private final static String INFO_HASH = "108ce76d042068ad9f45c18cc7b11fe4c4c4c66a";
+    private final static String SOURCE = "6:source4:test";
+    private final static String SOURCE_INFO_HASH = "b50697144b71c38b254cba9f5fc4d1b5cc4e2974";
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("bittorrentj").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+
+        File[] files = directory.listFiles();
+
+        if(files != null)
+            for(File f: files)
+                f.delete();
+
+        directory.delete();
+    }
+
+    /**
+     * Info dictionary, with piece hashes 0, 1, ..., 79.
+     * @param suffix keys following piece hashes
+     */
+    private static byte[] info(String suffix) {
+
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+
+        b.write(INFO.getBytes(), 0, INFO.length());
+
+        for(int i = 0;i < 80;i++)
+            b.write(i);
+
+        b.write(suffix.getBytes(), 0, suffix.length());
+        b.write('e');
+
+        return b.toByteArray();
+    }
+
+    private static byte[] metaInfo(byte[] info) {
+
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        byte[] announce = "d8:announce23:http://tracker/announce4:info".getBytes();
+
+        b.write(announce, 0, announce.length);
+        b.write(info, 0, info.length);
+        b.write('e');
+
+        return b.toByteArray();
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+
+        File f = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(f);
+
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+
+        return f;
+    }
+
+    private static String hex(Hash h) {
+
+        StringBuilder s = new StringBuilder();
+
+        for(byte b: h.getRaw())
+            s.append(String.format("%02x", b & 0xff));
+
+        return s.toString();
+    }
+
+    public void testInfoHashOfBuffer() throws Exception {
+
+        assertEquals(INFO_HASH, hex(InfoHasher.computeInfoHash(ByteBuffer.wrap(metaInfo(info(""))))));
+        assertEquals(INFO_HASH, hex(InfoHasher.hashRawInfo(ByteBuffer.wrap(info("")))));
+    }
+
+    public void testUnknownKeysAreHashed() throws Exception {
+
+        assertEquals(SOURCE_INFO_HASH, hex(InfoHasher.computeInfoHash(ByteBuffer.wrap(metaInfo(info(SOURCE))))));
+
+        // Hash of loaded info is over original bencoding, not fields of Info
+        MetaInfo m = MetaInfoLoader.load(ByteBuffer.wrap(metaInfo(info(SOURCE))));
+
+        assertEquals(SOURCE_INFO_HASH, hex(m.getInfo().computeInfoHash()));
+    }
+
+    public void testInfoHashOfFile() throws Exception {
+
+        File f = write("a.torrent", metaInfo(info("")));
+
+        assertEquals(INFO_HASH, hex(InfoHasher.computeInfoHash(f)));
+
+        // File is unmapped when done, so it can be hashed again, and rewritten
+        assertEquals(INFO_HASH, hex(InfoHasher.computeInfoHash(f)));
+
+        write("a.torrent", metaInfo(info(SOURCE)));
+
+        assertEquals(SOURCE_INFO_HASH, hex(InfoHasher.computeInfoHash(f)));
+    }
+
+    public void testLoadedInfoHasSameHash() throws Exception {
+
+        MetaInfo m = MetaInfoLoader.load(write("a.torrent", metaInfo(info(""))));
+
+        assertEquals(INFO_HASH, hex(m.getInfo().computeInfoHash()));
+        assertEquals(4, m.getInfo().getPieces().getNumberOfPieces());
+        assertEquals(100000, m.getInfo().getTotalLength());
+    }
+
+    public void testMissingInfoKey() throws Exception {
+
+        try {
+            InfoHasher.computeInfoHash(ByteBuffer.wrap("d8:announce3:urle".getBytes()));
+            fail("Metainfo without info was hashed");
+        } catch(MissingMetaInfoKeyException e) {
+            // Expected
+        }
+    }
+
+    public void testBulkHashingRecordsFailures() throws Exception {
+
+        ArrayList<File> files = new ArrayList<File>();
+
+        File good = write("good.torrent", metaInfo(info("")));
+        File noInfo = write("noinfo.torrent", "d8:announce3:urle".getBytes());
+        File missing = new File(directory, "missing.torrent");
+
+        files.add(good);
+        files.add(noInfo);
+        files.add(missing);
+
+        HashMap<File, Exception> failures = new HashMap<File, Exception>();
+        HashMap<File, Hash> hashes = InfoHasher.computeInfoHashes(files, ForkJoinPool.commonPool(), failures);
+
+        assertEquals(3, hashes.size());
+        assertEquals(INFO_HASH, hex(hashes.get(good)));
+        assertNull(hashes.get(noInfo));
+        assertNull(hashes.get(missing));
+
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(noInfo) instanceof MissingMetaInfoKeyException);
+        assertTrue(failures.get(missing) instanceof IOException);
+    }
+
+    public void testRuntimeExceptionDoesNotAbortBulkRun() throws Exception {
+
+        final ArrayList<File> files = new ArrayList<File>();
+
+        // Enough files for ranges to be split over several tasks
+        for(int i = 0;i < 100;i++)
+            files.add(new File(directory, i + ".torrent"));
+
+        final IllegalStateException bug = new IllegalStateException();
+
+        ParallelFileProcessor<String> processor = new ParallelFileProcessor<String>() {
+
+            @Override
+            String process(File file) throws IOException, DecodingBencodingException, MalformedMetaInfoException {
+
+                if(file == files.get(42))
+                    throw bug;
+
+                return file.getName();
+            }
+        };
+
+        HashMap<File, Exception> failures = new HashMap<File, Exception>();
+        HashMap<File, String> results = processor.processAll(files, new ForkJoinPool(4), failures);
+
+        for(int i = 0;i < files.size();i++)
+            if(i == 42)
+                assertNull(results.get(files.get(i)));
+            else
+                assertEquals(i + ".torrent", results.get(files.get(i)));
+
+        assertEquals(1, failures.size());
+        assertSame(bug, failures.get(files.get(42)));
+    }
+}
@@ -0,0 +1,155 @@
+package org.bittorrentj.torrent;
+
+import org.bittorrentj.bencodej.BencodableByteString;
+import org.bittorrentj.bencodej.BencodableInteger;
+import org.bittorrentj.bencodej.BencodableList;
+import org.bittorrentj.bencodej.BencodeableDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Benchmark of loading a directory of 10k synthetic metainfo files with
+ * MetaInfoLoader.loadDirectory(), on all cores, against loading them one by one.
+ *
+ * Three in four torrents have a single file, the rest have up to 2,000 files of up to 1 MiB,
+ * and one in twenty single file torrents has up to 16,000 pieces of 256 KiB, the rest up to 2,000,
+ * so files are from a few hundred bytes to a few hundred kilobytes.
+ */
+public class MetaInfoLoaderBenchmark {
+
+    private final static int NUMBER_OF_TORRENTS = 10 * 1000;
+
+    private final static int PIECE_LENGTH = 256 * 1024;
+
+    private static BencodableByteString string(String s) {
+        return new BencodableByteString(s);
+    }
+
+    private static BencodableList list(String... strings) {
+
+        BencodableList list = new BencodableList();
+
+        for(String s: strings)
+            list.add(string(s));
+
+        return list;
+    }
+
+    /**
+     * Bencoding of a synthetic metainfo file.
+     */
+    private static byte[] torrent(int number, Random random) {
+
+        BencodeableDictionary info = new BencodeableDictionary();
+        long totalLength;
+
+        if(random.nextInt(4) != 0) {
+
+            int numberOfPieces = 1 + random.nextInt(random.nextInt(20) == 0 ? 16000 : 2000);
+            totalLength = (long)numberOfPieces * PIECE_LENGTH - random.nextInt(PIECE_LENGTH);
+
+            info.put(string("length"), new BencodableInteger(totalLength));
+            info.put(string("name"), string("file" + number));
+
+        } else {
+
+            BencodableList files = new BencodableList();
+            int numberOfFiles = 1 + random.nextInt(2000);
+            totalLength = 0;
+
+            for(int i = 0;i < numberOfFiles;i++) {
+
+                long length = 1 + random.nextInt(1024 * 1024);
+
+                BencodeableDictionary file = new BencodeableDictionary();
+                file.put(string("length"), new BencodableInteger(length));
+                file.put(string("path"), list("directory" + i % 10, "file" + i));
+
+                files.add(file);
+                totalLength += length;
+            }
+
+            info.put(string("files"), files);
+            info.put(string("name"), string("torrent" + number));
+        }
+
+        byte[] pieces = new byte[20 * (int)((totalLength + PIECE_LENGTH - 1) / PIECE_LENGTH)];
+        random.nextBytes(pieces);
+
+        info.put(string("piece length"), new BencodableInteger(PIECE_LENGTH));
+        info.put(string("pieces"), new BencodableByteString(pieces));
+
+        BencodableList announceList = new BencodableList();
+        announceList.add(list("http://a.example/announce", "http://b.example/announce"));
+        announceList.add(list("udp://c.example:6969"));
+
+        BencodeableDictionary metaInfo = new BencodeableDictionary();
+        metaInfo.put(string("announce"), string("http://a.example/announce"));
+        metaInfo.put(string("announce-list"), announceList);
+        metaInfo.put(string("creation date"), new BencodableInteger(1400000000 + number));
+        metaInfo.put(string("info"), info);
+
+        return metaInfo.bencode();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        File directory = Files.createTempDirectory("bittorrentj").toFile();
+        Random random = new Random(11);
+
+        try {
+
+            long bytes = 0;
+
+            for(int i = 0;i < NUMBER_OF_TORRENTS;i++) {
+
+                byte[] torrent = torrent(i, random);
+
+                Files.write(new File(directory, String.format("%05d.torrent", i)).toPath(), torrent);
+                bytes += torrent.length;
+            }
+
+            System.out.printf("%d torrents, %.0f MB, %d cores%n", NUMBER_OF_TORRENTS, bytes / 1e6, Runtime.getRuntime().availableProcessors());
+
+            File[] files = directory.listFiles();
+
+            // First runs warm up
+            for(int run = 0;run < 5;run++) {
+
+                long t0 = System.nanoTime();
+
+                HashMap<File, MetaInfo> loaded = MetaInfoLoader.loadDirectory(directory);
+
+                long t1 = System.nanoTime();
+
+                for(File f: files)
+                    MetaInfoLoader.load(f);
+
+                long t2 = System.nanoTime();
+
+                int failed = 0;
+
+                for(MetaInfo m: loaded.values())
+                    if(m == null)
+                        failed++;
+
+                if(loaded.size() != NUMBER_OF_TORRENTS || failed > 0)
+                    throw new IllegalStateException(failed + " torrents failed to load");
+
+                System.out.printf("parallel %.0f ms, sequential %.0f ms, %.1f us per torrent in parallel%n",
+                        (t1 - t0) / 1e6, (t2 - t1) / 1e6, (t1 - t0) / 1e3 / NUMBER_OF_TORRENTS);
+            }
+
+        } finally {
+
+            for(File f: directory.listFiles())
+                f.delete();
+
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package org.bittorrentj.torrent;
+
+import junit.framework.TestCase;
+import org.bittorrentj.bencodej.BencodableByteString;
+import org.bittorrentj.bencodej.BencodableInteger;
+import org.bittorrentj.bencodej.BencodableList;
+import org.bittorrentj.bencodej.BencodeableDictionary;
+import org.bittorrentj.bencodej.exception.DecodingBencodingException;
+import org.bittorrentj.torrent.exception.InvalidMetaInfoValueException;
+import org.bittorrentj.torrent.exception.MalformedMetaInfoException;
+import org.bittorrentj.torrent.exception.MissingMetaInfoKeyException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tests of metainfo loaded by MetaInfoLoader in single and multiple file mode, of the
+ * piece hash table built from the pieces field, and of malformed and hostile metainfo.
+ */
+public class MetaInfoLoaderTest extends TestCase {
+
+    private final static int PIECE_LENGTH = 32768;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("bittorrentj").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+
+        File[] files = directory.listFiles();
+
+        if(files != null)
+            for(File f: files)
+                f.delete();
+
+        directory.delete();
+    }
+
+    private static BencodableByteString s(String s) {
+        return new BencodableByteString(s);
+    }
+
+    private static BencodableInteger i(long i) {
+        return new BencodableInteger(i);
+    }
+
+    private static BencodableList list(String... elements) {
+
+        BencodableList l = new BencodableList();
+
+        for(String e: elements)
+            l.add(s(e));
+
+        return l;
+    }
+
+    /**
+     * Concatenated piece hashes, where byte j of all hashes is j.
+     */
+    private static byte[] hashes(int numberOfPieces) {
+
+        byte[] b = new byte[20 * numberOfPieces];
+
+        for(int j = 0;j < b.length;j++)
+            b[j] = (byte)j;
+
+        return b;
+    }
+
+    /**
+     * Info dictionary of a single file of given length.
+     */
+    private static BencodeableDictionary singleFileInfo(long length, byte[] pieces) {
+
+        BencodeableDictionary info = new BencodeableDictionary();
+        info.put(s("length"), i(length));
+        info.put(s("name"), s("file.bin"));
+        info.put(s("piece length"), i(PIECE_LENGTH));
+        info.put(s("pieces"), new BencodableByteString(pieces));
+
+        return info;
+    }
+
+    private static BencodeableDictionary file(long length, BencodableList path) {
+
+        BencodeableDictionary f = new BencodeableDictionary();
+        f.put(s("length"), i(length));
+        f.put(s("path"), path);
+
+        return f;
+    }
+
+    /**
+     * Info dictionary of files of lengths 5 and 70000, in three pieces.
+     */
+    private static BencodeableDictionary multipleFileInfo() {
+
+        BencodableList files = new BencodableList();
+        files.add(file(5, list("a", "b.txt")));
+        files.add(file(70000, list("c")));
+
+        BencodeableDictionary info = new BencodeableDictionary();
+        info.put(s("files"), files);
+        info.put(s("name"), s("torrent"));
+        info.put(s("piece length"), i(PIECE_LENGTH));
+        info.put(s("pieces"), new BencodableByteString(hashes(3)));
+
+        return info;
+    }
+
+    private static BencodeableDictionary metaInfo(BencodeableDictionary info) {
+
+        BencodeableDictionary m = new BencodeableDictionary();
+        m.put(s("announce"), s("http://tracker/announce"));
+        m.put(s("info"), info);
+
+        return m;
+    }
+
+    private static MetaInfo load(BencodeableDictionary metaInfo) throws DecodingBencodingException, MalformedMetaInfoException {
+        return MetaInfoLoader.load(ByteBuffer.wrap(metaInfo.bencode()));
+    }
+
+    /**
+     * Checks that metainfo is rejected for given key.
+     */
+    private static void assertMalformed(BencodeableDictionary metaInfo, Class<? extends MalformedMetaInfoException> exception, String key) throws DecodingBencodingException {
+
+        try {
+            load(metaInfo);
+            fail("Metainfo with bad " + key + " was accepted");
+        } catch(MalformedMetaInfoException e) {
+
+            assertEquals(exception, e.getClass());
+
+            if(e instanceof InvalidMetaInfoValueException)
+                assertEquals(key, ((InvalidMetaInfoValueException)e).getKey());
+            else
+                assertEquals(key, ((MissingMetaInfoKeyException)e).getKey());
+        }
+    }
+
+    public void testSingleFile() throws Exception {
+
+        BencodeableDictionary info = singleFileInfo(100000, hashes(4));
+        info.put(s("private"), i(1));
+        info.put(s("md5sum"), s("0123456789abcdef0123456789abcdef"));
+
+        BencodableList tiers = new BencodableList();
+        tiers.add(list("http://a", "http://b"));
+        tiers.add(list("http://c"));
+
+        BencodeableDictionary m = metaInfo(info);
+        m.put(s("announce-list"), tiers);
+        m.put(s("creation date"), i(1400000000));
+        m.put(s("comment"), s("comment"));
+        m.put(s("created by"), s("bittorrentj"));
+        m.put(s("encoding"), s("UTF-8"));
+        m.put(s("x-unknown"), multipleFileInfo());
+
+        MetaInfo loaded = load(m);
+
+        assertEquals("http://tracker/announce", loaded.getAnnounce());
+        assertEquals(Arrays.asList(Arrays.asList("http://a", "http://b"), Arrays.asList("http://c")), loaded.getAnnounce_list());
+        assertEquals(new Date(1400000000L * 1000), loaded.getCreation_date());
+        assertEquals("comment", loaded.getComment());
+        assertEquals("bittorrentj", loaded.getCreated_by());
+        assertEquals("UTF-8", loaded.getEncoding());
+
+        SingleFileInfo single = (SingleFileInfo)loaded.getInfo();
+
+        assertEquals("file.bin", single.getName());
+        assertEquals(100000, single.getLength());
+        assertEquals(100000, single.getTotalLength());
+        assertEquals("0123456789abcdef0123456789abcdef", single.getMd5sum());
+        assertTrue(single.getPrivate_());
+        assertEquals(PIECE_LENGTH, single.getPieceLength());
+        assertEquals(100000 - 3 * PIECE_LENGTH, single.getPieceLength(3));
+
+        // Info hash is of info dictionary as it was bencoded
+        assertTrue(Arrays.equals(InfoHasher.hashRawInfo(ByteBuffer.wrap(info.bencode())).getRaw(), single.computeInfoHash().getRaw()));
+    }
+
+    public void testPieceHashTable() throws Exception {
+
+        byte[] pieces = hashes(4);
+        MetaInfo loaded = load(metaInfo(singleFileInfo(100000, pieces)));
+
+        PieceHashTable table = loaded.getInfo().getPieces();
+
+        assertEquals(4, loaded.getNumberOfPiecesInTorrent());
+        assertEquals(4, table.getNumberOfPieces());
+        assertTrue(Arrays.equals(pieces, table.getRaw()));
+
+        for(int p = 0;p < 4;p++) {
+
+            byte[] digest = Arrays.copyOfRange(pieces, 20 * p, 20 * p + 20);
+
+            assertTrue(table.compare(p, digest));
+            assertFalse(table.compare((p + 1) % 4, digest));
+        }
+    }
+
+    public void testMultipleFiles() throws Exception {
+
+        MetaInfo loaded = load(metaInfo(multipleFileInfo()));
+
+        MultpleFileInfo multiple = (MultpleFileInfo)loaded.getInfo();
+
+        assertEquals("torrent", multiple.getName());
+        assertEquals(70005, multiple.getTotalLength());
+        assertEquals(3, loaded.getNumberOfPiecesInTorrent());
+        assertEquals(2, multiple.getFiles().size());
+
+        // Path elements are joined by separator
+        assertEquals("a/b.txt", multiple.getFiles().get(0).path);
+        assertEquals(5, multiple.getFiles().get(0).length);
+        assertEquals("c", multiple.getFiles().get(1).path);
+        assertEquals(70000, multiple.getFiles().get(1).length);
+    }
+
+    public void testNumberOfPieceHashesMustMatchLength() throws Exception {
+
+        // Piece hashes must be whole
+        assertMalformed(metaInfo(singleFileInfo(100000, new byte[79])), InvalidMetaInfoValueException.class, "pieces");
+
+        // One hash per piece, last piece being shorter
+        assertMalformed(metaInfo(singleFileInfo(100000, hashes(3))), InvalidMetaInfoValueException.class, "pieces");
+        assertMalformed(metaInfo(singleFileInfo(100000, hashes(5))), InvalidMetaInfoValueException.class, "pieces");
+        assertMalformed(metaInfo(singleFileInfo(4 * PIECE_LENGTH + 1, hashes(4))), InvalidMetaInfoValueException.class, "pieces");
+
+        assertEquals(4, load(metaInfo(singleFileInfo(4 * PIECE_LENGTH, hashes(4)))).getNumberOfPiecesInTorrent());
+    }
+
+    public void testMissingKeys() throws Exception {
+
+        BencodeableDictionary info = singleFileInfo(100000, hashes(4));
+        info.remove(s("pieces"));
+        assertMalformed(metaInfo(info), MissingMetaInfoKeyException.class, "pieces");
+
+        info = singleFileInfo(100000, hashes(4));
+        info.remove(s("piece length"));
+        assertMalformed(metaInfo(info), MissingMetaInfoKeyException.class, "piece length");
+
+        info = singleFileInfo(100000, hashes(4));
+        info.remove(s("length"));
+        assertMalformed(metaInfo(info), MissingMetaInfoKeyException.class, "length");
+
+        BencodeableDictionary m = metaInfo(info);
+        m.remove(s("info"));
+        assertMalformed(m, MissingMetaInfoKeyException.class, "info");
+    }
+
+    public void testInvalidValues() throws Exception {
+
+        BencodeableDictionary info = singleFileInfo(100000, hashes(4));
+        info.put(s("piece length"), i(0));
+        assertMalformed(metaInfo(info), InvalidMetaInfoValueException.class, "piece length");
+
+        info = singleFileInfo(100000, hashes(4));
+        info.put(s("pieces"), i(1));
+        assertMalformed(metaInfo(info), InvalidMetaInfoValueException.class, "pieces");
+
+        info = singleFileInfo(-2, hashes(4));
+        assertMalformed(metaInfo(info), InvalidMetaInfoValueException.class, "length");
+    }
+
+    public void testNamesOutsideDirectoryAreRejected() throws Exception {
+
+        for(String name: new String[] {"..", ".", "", "a/b", "a\\b"}) {
+
+            BencodeableDictionary info = singleFileInfo(100000, hashes(4));
+            info.put(s("name"), s(name));
+
+            assertMalformed(metaInfo(info), InvalidMetaInfoValueException.class, "name");
+        }
+
+        for(BencodableList path: new BencodableList[] {list(".."), list("a", ".."), list("a", ""), list("a/b"), list()}) {
+
+            BencodableList files = new BencodableList();
+            files.add(file(100000, path));
+
+            BencodeableDictionary info = singleFileInfo(100000, hashes(4));
+            info.remove(s("length"));
+            info.put(s("files"), files);
+
+            assertMalformed(metaInfo(info), InvalidMetaInfoValueException.class, "path");
+        }
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+
+        File f = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(f);
+
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+
+        return f;
+    }
+
+    public void testBulkLoadRecordsFailures() throws Exception {
+
+        File good = write("good.torrent", metaInfo(multipleFileInfo()).bencode());
+        File malformed = write("malformed.torrent", metaInfo(singleFileInfo(100000, hashes(3))).bencode());
+        File garbage = write("garbage.torrent", "not a bencoding".getBytes());
+
+        HashMap<File, Exception> failures = new HashMap<File, Exception>();
+        HashMap<File, MetaInfo> loaded = MetaInfoLoader.load(Arrays.asList(good, malformed, garbage), new ForkJoinPool(2), failures);
+
+        assertEquals(3, loaded.size());
+        assertEquals(3, loaded.get(good).getNumberOfPiecesInTorrent());
+        assertNull(loaded.get(malformed));
+        assertNull(loaded.get(garbage));
+
+        assertEquals(2, failures.size());
+        assertTrue(failures.get(malformed) instanceof InvalidMetaInfoValueException);
+        assertTrue(failures.get(garbage) instanceof DecodingBencodingException);
+    }
+}
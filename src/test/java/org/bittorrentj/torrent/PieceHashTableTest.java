@@ -0,0 +1,105 @@
+package org.bittorrentj.torrent;
+
+import junit.framework.TestCase;
+import org.bittorrentj.message.field.Hash;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests of comparing digests against PieceHashTable, and of building it.
+ */
+public class PieceHashTableTest extends TestCase {
+
+    private final static int NUMBER_OF_PIECES = 3;
+
+    private byte[] hashes;
+    private PieceHashTable table;
+
+    @Override
+    protected void setUp() {
+
+        hashes = new byte[NUMBER_OF_PIECES * Hash.getLength()];
+
+        for(int i = 0;i < hashes.length;i++)
+            hashes[i] = (byte)(i * 31 + 7);
+
+        table = new PieceHashTable(hashes.clone());
+    }
+
+    private byte[] hash(int pieceIndex) {
+        return Arrays.copyOfRange(hashes, pieceIndex * Hash.getLength(), (pieceIndex + 1) * Hash.getLength());
+    }
+
+    public void testCompareMatchesOwnHashOnly() {
+
+        assertEquals(NUMBER_OF_PIECES, table.getNumberOfPieces());
+
+        for(int i = 0;i < NUMBER_OF_PIECES;i++)
+            for(int j = 0;j < NUMBER_OF_PIECES;j++)
+                assertEquals(i == j, table.compare(i, hash(j)));
+    }
+
+    public void testCompareDetectsEachDifferentByte() {
+
+        for(int i = 0;i < Hash.getLength();i++) {
+
+            byte[] digest = hash(1);
+            digest[i] ^= 1;
+
+            assertFalse(table.compare(1, digest));
+        }
+    }
+
+    public void testCompareRejectsDigestOfWrongLength() {
+
+        assertFalse(table.compare(0, Arrays.copyOf(hash(0), Hash.getLength() - 1)));
+        assertFalse(table.compare(0, Arrays.copyOf(hash(0), Hash.getLength() + 1)));
+    }
+
+    public void testCompareRejectsPieceIndexOutOfRange() {
+
+        try {
+            table.compare(NUMBER_OF_PIECES, hash(0));
+            fail("Piece index past table was accepted");
+        } catch(IndexOutOfBoundsException e) {
+            // Expected
+        }
+
+        try {
+            table.compare(-1, hash(0));
+            fail("Negative piece index was accepted");
+        } catch(IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    public void testConstructorsAgree() {
+
+        ByteBuffer b = ByteBuffer.allocate(hashes.length + 4);
+        b.putInt(0);
+        b.put(hashes);
+        b.position(4);
+
+        ArrayList<Hash> list = new ArrayList<Hash>();
+
+        for(int i = 0;i < NUMBER_OF_PIECES;i++)
+            list.add(new Hash(hash(i)));
+
+        assertTrue(Arrays.equals(hashes, new PieceHashTable(b).getRaw()));
+        assertEquals(4, b.position());
+        assertTrue(Arrays.equals(hashes, new PieceHashTable(list).getRaw()));
+        assertTrue(Arrays.equals(hash(2), table.getHash(2).getRaw()));
+    }
+
+    public void testLengthWhichIsNotMultipleOfHashLengthIsRejected() {
+
+        try {
+            new PieceHashTable(new byte[Hash.getLength() + 1]);
+            fail("Table of partial hash was accepted");
+        } catch(IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}